@@ -19,6 +19,7 @@ import io.confluent.examples.streams.avro.Customer;
 import io.confluent.examples.streams.avro.EnrichedOrder;
 import io.confluent.examples.streams.avro.Order;
 import io.confluent.examples.streams.avro.Product;
+import io.confluent.examples.streams.utils.ReusingSpecificAvroSerde;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -139,13 +140,14 @@ public class GlobalKTablesExample {
     streamsConfiguration.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
 
     // create and configure the SpecificAvroSerdes required in this example
-    final SpecificAvroSerde<Order> orderSerde = new SpecificAvroSerde<>();
+    // every order is read, and a customer looked up for it, so both avoid the per record garbage
+    final ReusingSpecificAvroSerde<Order> orderSerde = new ReusingSpecificAvroSerde<>();
     final Map<String, String> serdeConfig =
         Collections.singletonMap(AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG,
             schemaRegistryUrl);
     orderSerde.configure(serdeConfig, false);
 
-    final SpecificAvroSerde<Customer> customerSerde = new SpecificAvroSerde<>();
+    final ReusingSpecificAvroSerde<Customer> customerSerde = new ReusingSpecificAvroSerde<>();
     customerSerde.configure(serdeConfig, false);
 
     final SpecificAvroSerde<Product> productSerde = new SpecificAvroSerde<>();
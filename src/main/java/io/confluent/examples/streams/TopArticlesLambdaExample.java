@@ -15,7 +15,7 @@
  */
 package io.confluent.examples.streams;
 
-import io.confluent.examples.streams.utils.PriorityQueueSerde;
+import io.confluent.examples.streams.utils.RankedStore;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.GenericAvroSerde;
 import org.apache.avro.Schema;
@@ -31,7 +31,6 @@ import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.kstream.Grouped;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KTable;
-import org.apache.kafka.streams.kstream.Materialized;
 import org.apache.kafka.streams.kstream.Produced;
 import org.apache.kafka.streams.kstream.TimeWindows;
 import org.apache.kafka.streams.kstream.Windowed;
@@ -41,9 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.time.Duration;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Properties;
 
 /**
@@ -51,9 +48,11 @@ import java.util.Properties;
  * In this example, we count the TopN articles from a stream of page views (aka clickstreams) that
  * reads from a topic named "PageViews". We filter the PageViews stream so that we only consider
  * pages of type article, and then map the record key to effectively nullify the user, such that
- * the we can count page views by (page, industry). The counts per (page, industry) are then
- * grouped by industry and aggregated into a PriorityQueue with descending order. Finally we
- * perform a mapValues to fetch the top 100 articles per industry.
+ * the we can count page views by (page, industry). Each update of the counts per (page, industry)
+ * is then re-keyed by industry and written to a {@link RankedStore}, which keeps every page of an
+ * industry in descending order of count, so that the top 100 articles per industry are read back
+ * with a range scan that stops after 100 pages. Updating a page's count only rewrites that page's
+ * entries in the store, and its changelog, rather than the whole ranking of its industry.
  * <p>
  * Note: The generic Avro binding is used for serialization/deserialization.  This means the
  * appropriate Avro schema files must be provided for each of the "intermediate" Avro classes, i.e.
@@ -70,6 +69,8 @@ import java.util.Properties;
  * {@code
  * $ bin/kafka-topics --create --topic PageViews \
  *                    --zookeeper localhost:2181 --partitions 1 --replication-factor 1
+ * $ bin/kafka-topics --create --topic ArticleViewCountsByIndustry \
+ *                    --zookeeper localhost:2181 --partitions 1 --replication-factor 1
  * $ bin/kafka-topics --create --topic TopNewsPerIndustry \
  *                    --zookeeper localhost:2181 --partitions 1 --replication-factor 1
  * }</pre>
@@ -100,6 +101,8 @@ public class TopArticlesLambdaExample {
 
   static final String TOP_NEWS_PER_INDUSTRY_TOPIC = "TopNewsPerIndustry";
   static final String PAGE_VIEWS = "PageViews";
+  static final String ARTICLE_VIEW_COUNTS_BY_INDUSTRY_TOPIC = "ArticleViewCountsByIndustry";
+  static final String TOP_ARTICLES_STORE = "top-articles-store";
 
   private static boolean isArticle(final GenericRecord record) {
     final Utf8 flags = (Utf8) record.get("flags");
@@ -193,61 +196,44 @@ public class TopArticlesLambdaExample {
       .windowedBy(TimeWindows.of(Duration.ofHours(1)))
       .count();
 
-    final Comparator<GenericRecord> comparator =
-      (o1, o2) -> (int) ((Long) o2.get("count") - (Long) o1.get("count"));
-
-    final KTable<Windowed<String>, PriorityQueue<GenericRecord>> allViewCounts = viewCounts
-      .groupBy(
-        // the selector
-        (windowedArticle, count) -> {
-          // project on the industry field for key
-          final Windowed<String> windowedIndustry =
-            new Windowed<>(windowedArticle.key().get("industry").toString(),
-              windowedArticle.window());
-          // add the page into the value
-          final GenericRecord viewStats = new GenericData.Record(schema);
-          viewStats.put("page", windowedArticle.key().get("page"));
-          viewStats.put("user", "user");
-          viewStats.put("industry", windowedArticle.key().get("industry"));
-          viewStats.put("count", count);
-          return new KeyValue<>(windowedIndustry, viewStats);
-        },
-        Grouped.with(windowedStringSerde, valueAvroSerde)
-      ).aggregate(
-        // the initializer
-        () -> new PriorityQueue<>(comparator),
-
-        // the "add" aggregator
-        (windowedIndustry, record, queue) -> {
-          queue.add(record);
-          return queue;
-        },
-
-        // the "remove" aggregator
-        (windowedIndustry, record, queue) -> {
-          queue.remove(record);
-          return queue;
-        },
-
-        Materialized.with(windowedStringSerde, new PriorityQueueSerde<>(comparator, valueAvroSerde))
-        );
-
     final int topN = 100;
-    final KTable<Windowed<String>, String> topViewCounts = allViewCounts
-      .mapValues(queue -> {
+    builder.addStateStore(RankedStore.builder(TOP_ARTICLES_STORE, windowedStringSerde, stringSerde));
+
+    viewCounts
+      .toStream()
+      // re-key each count by (industry, window), with the page and its count as the value
+      .map((windowedArticle, count) -> {
+        // project on the industry field for key
+        final Windowed<String> windowedIndustry =
+          new Windowed<>(windowedArticle.key().get("industry").toString(),
+            windowedArticle.window());
+        // add the page into the value
+        final GenericRecord viewStats = new GenericData.Record(schema);
+        viewStats.put("page", windowedArticle.key().get("page"));
+        viewStats.put("user", "user");
+        viewStats.put("industry", windowedArticle.key().get("industry"));
+        viewStats.put("count", count);
+        return new KeyValue<>(windowedIndustry, viewStats);
+      })
+      // repartition by (industry, window), so that every page of an industry is ranked by the
+      // same task
+      .through(ARTICLE_VIEW_COUNTS_BY_INDUSTRY_TOPIC, Produced.with(windowedStringSerde, valueAvroSerde))
+      // update the page's count in the ranked store, and read back the industry's top pages
+      .transform(RankedStore.topN(TOP_ARTICLES_STORE,
+                                  (windowedIndustry, viewStats) -> windowedIndustry,
+                                  (windowedIndustry, viewStats) -> viewStats.get("page").toString(),
+                                  (windowedIndustry, viewStats) -> (Long) viewStats.get("count"),
+                                  topN),
+                 TOP_ARTICLES_STORE)
+      .mapValues(topPages -> {
         final StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < topN; i++) {
-          final GenericRecord record = queue.poll();
-          if (record == null) {
-            break;
-          }
-          sb.append(record.get("page").toString());
+        for (final KeyValue<String, Long> page : topPages) {
+          sb.append(page.key);
           sb.append("\n");
         }
         return sb.toString();
-      });
-
-    topViewCounts.toStream().to(TOP_NEWS_PER_INDUSTRY_TOPIC, Produced.with(windowedStringSerde, stringSerde));
+      })
+      .to(TOP_NEWS_PER_INDUSTRY_TOPIC, Produced.with(windowedStringSerde, stringSerde));
     return new KafkaStreams(builder.build(), streamsConfiguration);
   }
 
@@ -18,6 +18,7 @@ package io.confluent.examples.streams.interactivequeries.kafkamusic;
 import io.confluent.examples.streams.avro.PlayEvent;
 import io.confluent.examples.streams.avro.Song;
 import io.confluent.examples.streams.avro.SongPlayCount;
+import io.confluent.examples.streams.utils.ReusingSpecificAvroSerde;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -283,7 +284,8 @@ public class KafkaMusicExample {
     final Map<String, String> serdeConfig = Collections.singletonMap(
         AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, schemaRegistryUrl);
 
-    final SpecificAvroSerde<PlayEvent> playEventSerde = new SpecificAvroSerde<>();
+    // play events are the busiest topic, so are read and written without the per record garbage
+    final ReusingSpecificAvroSerde<PlayEvent> playEventSerde = new ReusingSpecificAvroSerde<>();
     playEventSerde.configure(serdeConfig, false);
 
     final SpecificAvroSerde<Song> keySongSerde = new SpecificAvroSerde<>();
@@ -16,7 +16,6 @@ import java.util.concurrent.ExecutionException;
 
 import static io.confluent.examples.streams.avro.microservices.Product.JUMPERS;
 import static io.confluent.examples.streams.avro.microservices.Product.UNDERPANTS;
-import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.ProductTypeSerde;
 import static java.util.Arrays.asList;
 
 public class AddInventory {
@@ -31,11 +30,10 @@ public class AddInventory {
         producerConfig.put(ProducerConfig.RETRIES_CONFIG, 0);
         producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, "inventory-generator");
         MonitoringInterceptorUtils.maybeConfigureInterceptorsProducer(producerConfig);
-        final ProductTypeSerde productSerde = new ProductTypeSerde();
 
         try (final KafkaProducer<Product, Integer> stockProducer = new KafkaProducer<>(
             producerConfig,
-            productSerde.serializer(),
+            topic.keySerde().serializer(),
             Serdes.Integer().serializer())) {
             for (final KeyValue<Product, Integer> kv : inventory) {
                 stockProducer.send(new ProducerRecord<>(topic.name(), kv.key, kv.value))
@@ -0,0 +1,300 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.microservices.EmailService.EmailTuple;
+import io.confluent.examples.streams.microservices.EmailService.Emailer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Sends emails off the stream thread. The tuples to email are read from a topic by a consumer
+ * and handed, through a bounded queue, to a pool of workers, each of which passes them to the
+ * {@link Emailer} in batches.
+ * <p>
+ * When the queue is full the consumer pauses its partitions, and carries on polling so it stays
+ * in the group, until the workers catch up. Offsets are only committed once every email before
+ * them has been sent, so each email is sent at least once. A batch that fails is retried a few
+ * times, then each of its emails is retried on its own, so one email the {@link Emailer} always
+ * rejects doesn't hold up the rest. Any that still fail are logged and skipped, so their
+ * partition can move on.
+ * <p>
+ * The depth of the queue, the time taken to send each batch and the number of emails skipped
+ * are reported as metrics.
+ */
+class AsyncEmailSink implements ConsumerRebalanceListener {
+
+  private static final Logger log = LoggerFactory.getLogger(AsyncEmailSink.class);
+  private static final String METRIC_GROUP = "email-sink";
+  private static final int MAX_BATCH_SIZE = 50;
+  private static final Duration RETRY_BACKOFF = Duration.ofSeconds(1);
+  private static final int MAX_ATTEMPTS = 3;
+  private static final Duration REVOKE_TIMEOUT = Duration.ofSeconds(30);
+
+  private final KafkaConsumer<String, EmailTuple> consumer;
+  private final Emailer emailer;
+  private final int workerThreads;
+  private final BlockingQueue<PendingEmail> queue;
+  private final ExecutorService pollThread = Executors.newSingleThreadExecutor();
+  private final ExecutorService workers;
+  private final Sensor sendLatency;
+  private final Sensor skipped;
+  private volatile boolean running = true;
+
+  //only accessed from the poll thread
+  private final Map<TopicPartition, Deque<PendingEmail>> pending = new HashMap<>();
+  private final Deque<PendingEmail> overflow = new ArrayDeque<>();
+
+  AsyncEmailSink(final KafkaConsumer<String, EmailTuple> consumer,
+                 final Emailer emailer,
+                 final int workerThreads,
+                 final int queueCapacity,
+                 final Metrics metrics) {
+    this.consumer = consumer;
+    this.emailer = emailer;
+    this.workerThreads = workerThreads;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.workers = Executors.newFixedThreadPool(workerThreads);
+
+    metrics.addMetric(metrics.metricName("queue-depth", METRIC_GROUP,
+        "The number of emails waiting for a worker"),
+        (Gauge<Integer>) (config, now) -> queue.size());
+    sendLatency = metrics.sensor(METRIC_GROUP + "-send-latency");
+    sendLatency.add(metrics.metricName("send-latency-avg", METRIC_GROUP,
+        "The average time in ms taken to send a batch of emails"), new Avg());
+    sendLatency.add(metrics.metricName("send-latency-max", METRIC_GROUP,
+        "The maximum time in ms taken to send a batch of emails"), new Max());
+    skipped = metrics.sensor(METRIC_GROUP + "-skipped");
+    skipped.add(metrics.metricName("skipped-total", METRIC_GROUP,
+        "The number of emails given up on after failing every attempt to send them"), new Total());
+  }
+
+  void start(final String topic) {
+    pollThread.execute(() -> poll(topic));
+    for (int i = 0; i < workerThreads; i++) {
+      workers.execute(this::sendEmails);
+    }
+  }
+
+  private void poll(final String topic) {
+    try {
+      consumer.subscribe(singletonList(topic), this);
+      while (running) {
+        for (final ConsumerRecord<String, EmailTuple> record : consumer.poll(Duration.ofMillis(100))) {
+          final PendingEmail email = new PendingEmail(record);
+          pending.computeIfAbsent(email.partition, p -> new ArrayDeque<>()).add(email);
+          overflow.add(email);
+        }
+        enqueue();
+        commitSent();
+      }
+    } catch (final WakeupException e) {
+      //we're closing
+    } finally {
+      try {
+        final Map<TopicPartition, OffsetAndMetadata> offsets = sent(pending.keySet());
+        if (!offsets.isEmpty()) {
+          consumer.commitSync(offsets);
+        }
+      } finally {
+        consumer.close();
+      }
+    }
+  }
+
+  /**
+   * Move what we can into the queue, pausing consumption while anything is left over.
+   */
+  private void enqueue() {
+    while (!overflow.isEmpty() && queue.offer(overflow.peek())) {
+      overflow.poll();
+    }
+    if (!overflow.isEmpty()) {
+      consumer.pause(consumer.assignment());
+    } else if (!consumer.paused().isEmpty()) {
+      consumer.resume(consumer.paused());
+    }
+  }
+
+  private void sendEmails() {
+    final List<PendingEmail> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    try {
+      while (running) {
+        final PendingEmail first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        send(batch);
+        //Including any given up on
+        batch.forEach(email -> email.sent = true);
+        batch.clear();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Send the batch or, should it keep failing, each of its emails on its own, skipping those that
+   * can't be sent.
+   */
+  private void send(final List<PendingEmail> batch) throws InterruptedException {
+    if (attempt(batch)) {
+      return;
+    }
+    for (final PendingEmail email : batch) {
+      if (batch.size() > 1 && attempt(singletonList(email))) {
+        continue;
+      }
+      log.error("Giving up on the email for order " + email.tuple.order.getId() + ", at offset "
+          + email.offset + " of " + email.partition + ", after " + MAX_ATTEMPTS + " attempts");
+      skipped.record();
+    }
+  }
+
+  /**
+   * @return whether the emails were sent within {@link #MAX_ATTEMPTS}
+   */
+  private boolean attempt(final List<PendingEmail> emails) throws InterruptedException {
+    final List<EmailTuple> tuples = emails.stream().map(email -> email.tuple).collect(Collectors.toList());
+    for (int attempt = 1; ; attempt++) {
+      final long start = System.currentTimeMillis();
+      try {
+        emailer.sendEmails(tuples);
+        sendLatency.record(System.currentTimeMillis() - start);
+        return true;
+      } catch (final RuntimeException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          log.warn("Failed to send " + tuples.size() + " emails after " + attempt + " attempts", e);
+          return false;
+        }
+        log.warn("Failed to send " + tuples.size() + " emails, retrying", e);
+        Thread.sleep(RETRY_BACKOFF.toMillis());
+        if (!running) {
+          throw new InterruptedException("Closed before emails could be sent");
+        }
+      }
+    }
+  }
+
+  private void commitSent() {
+    final Map<TopicPartition, OffsetAndMetadata> offsets = sent(pending.keySet());
+    if (!offsets.isEmpty()) {
+      consumer.commitAsync(offsets, (committed, exception) -> {
+        if (exception != null) {
+          log.warn("Failed to commit offsets " + committed, exception);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the offsets after the emails, at the head of each partition's queue, that have been sent
+   */
+  private Map<TopicPartition, OffsetAndMetadata> sent(final Collection<TopicPartition> partitions) {
+    final Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (final TopicPartition partition : partitions) {
+      final Deque<PendingEmail> emails = pending.get(partition);
+      PendingEmail last = null;
+      while (emails != null && !emails.isEmpty() && emails.peek().sent) {
+        last = emails.poll();
+      }
+      if (last != null) {
+        offsets.put(partition, new OffsetAndMetadata(last.offset + 1));
+      }
+    }
+    return offsets;
+  }
+
+  @Override
+  public void onPartitionsRevoked(final Collection<TopicPartition> partitions) {
+    //Emails that never reached the queue will be sent by the partition's next owner. They are
+    //the tail of their partition's pending emails, so drop them there too, or we'd wait on them
+    overflow.stream()
+        .filter(email -> partitions.contains(email.partition))
+        .forEach(email -> pending.get(email.partition).removeLastOccurrence(email));
+    overflow.removeIf(email -> partitions.contains(email.partition));
+    //Wait for the rest, so the next owner doesn't send them again
+    final long deadline = System.currentTimeMillis() + REVOKE_TIMEOUT.toMillis();
+    try {
+      while (running && !allSent(partitions) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    final Map<TopicPartition, OffsetAndMetadata> offsets = sent(partitions);
+    if (!offsets.isEmpty()) {
+      consumer.commitSync(offsets);
+    }
+    partitions.forEach(pending::remove);
+  }
+
+  private boolean allSent(final Collection<TopicPartition> partitions) {
+    return partitions.stream()
+        .map(pending::get)
+        .allMatch(emails -> emails == null || emails.stream().allMatch(email -> email.sent));
+  }
+
+  @Override
+  public void onPartitionsAssigned(final Collection<TopicPartition> partitions) {
+  }
+
+  void close() {
+    running = false;
+    workers.shutdown();
+    pollThread.shutdown();
+    try {
+      //let the workers finish their batches first, so the poll thread can commit them
+      workers.awaitTermination(10, TimeUnit.SECONDS);
+      if (!pollThread.awaitTermination(10, TimeUnit.SECONDS)) {
+        consumer.wakeup();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class PendingEmail {
+
+    private final TopicPartition partition;
+    private final long offset;
+    private final EmailTuple tuple;
+    private volatile boolean sent = false;
+
+    PendingEmail(final ConsumerRecord<String, EmailTuple> record) {
+      this.partition = new TopicPartition(record.topic(), record.partition());
+      this.offset = record.offset();
+      this.tuple = record.value();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.util.BoundedMemoryRocksDBConfig;
+import io.confluent.examples.streams.microservices.util.SharedResources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.addShutdownHookAndBlock;
+
+/**
+ * Runs every service in one JVM, for small deployments and local performance testing, rather
+ * than one process per service.
+ * <p>
+ * Each service keeps its own application.id, and so its own consumer group, state and
+ * changelogs, so any of them can later be moved out to a process of its own without a reset.
+ * What they share is:
+ * <ul>
+ * <li>RocksDB memory: the block cache set up by {@link BoundedMemoryRocksDBConfig} is one per
+ * JVM, so every store of every service is held to one budget, rather than one per process;</li>
+ * <li>metrics: one registry, reported over JMX once, see {@link SharedResources};</li>
+ * <li>a producer: the OrdersService and, unless Exactly Once is enabled, the
+ * OrderDetailsService write through one producer. Kafka Streams' own producers, and the
+ * OrderDetailsService's transactional ones, are not shared;</li>
+ * <li>Jetty: only the OrdersService serves HTTP, so there is one server.</li>
+ * </ul>
+ * Kafka Streams' threads and clients are not shared: each service's KafkaStreams instance has
+ * its own, as this version of Kafka Streams can't share them between applications.
+ */
+public class ConsolidatedServices implements Service {
+
+  private static final Logger log = LoggerFactory.getLogger(ConsolidatedServices.class);
+
+  private final OrdersService ordersService;
+  private final List<Service> services = new ArrayList<>();
+
+  public ConsolidatedServices(final OrdersService ordersService, final EmailService.Emailer emailer) {
+    this.ordersService = ordersService;
+    services.add(new FraudService());
+    services.add(new InventoryService());
+    services.add(new OrderDetailsService());
+    services.add(new ValidationsAggregatorService());
+    services.add(new EmailService(emailer));
+    //Last, so orders are only accepted once they can be validated
+    services.add(ordersService);
+  }
+
+  @Override
+  public void start(final String bootstrapServers, final String stateDir) {
+    SharedResources.start();
+    services.forEach(service -> service.start(bootstrapServers, stateDir));
+    log.info("Started " + services.size() + " services in one JVM");
+  }
+
+  @Override
+  public void stop() {
+    for (int i = services.size() - 1; i >= 0; i--) {
+      services.get(i).stop();
+    }
+    SharedResources.stop();
+  }
+
+  public int port() {
+    return ordersService.port();
+  }
+
+  public static void main(final String[] args) throws Exception {
+
+    final String bootstrapServers = args.length > 0 ? args[0] : "localhost:9092";
+    final String schemaRegistryUrl = args.length > 1 ? args[1] : "http://localhost:8081";
+    final String restHostname = args.length > 2 ? args[2] : "localhost";
+    final String restPort = args.length > 3 ? args[3] : null;
+
+    Schemas.configureSerdesWithSchemaRegistryUrl(schemaRegistryUrl);
+    final ConsolidatedServices services = new ConsolidatedServices(
+        new OrdersService(restHostname, restPort == null ? 0 : Integer.valueOf(restPort)),
+        new EmailService.LoggingEmailer());
+    services.start(bootstrapServers, "/tmp/kafka-streams");
+    addShutdownHookAndBlock(services);
+  }
+}
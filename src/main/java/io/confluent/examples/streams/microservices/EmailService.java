@@ -6,13 +6,23 @@ import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.PAYMENTS;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.addShutdownHookAndBlock;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.baseStreamsConfig;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.createStreams;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.parseArgsAndConfigure;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startMetrics;
 
 import io.confluent.examples.streams.avro.microservices.Customer;
 import io.confluent.examples.streams.avro.microservices.Order;
 import io.confluent.examples.streams.avro.microservices.OrderEnriched;
 import io.confluent.examples.streams.avro.microservices.Payment;
+import io.confluent.examples.streams.microservices.util.RocksDBStatisticsRecorder;
 
+import io.confluent.examples.streams.utils.MonitoringInterceptorUtils;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.kstream.Consumed;
@@ -24,21 +34,38 @@ import org.apache.kafka.streams.kstream.Produced;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 
 /**
  * A very simple service which sends emails. Order and Payment streams are joined
  * using a window. The result is then joined to a lookup table of Customers.
  * Finally an email is sent for each resulting tuple.
+ * <p>
+ * By default emails are sent on the stream thread, so a slow email transport holds up the whole
+ * topology. If {@link #setAsyncEmailsEnabled(boolean)} is set, the tuples are written to the
+ * {@link #EMAIL_TUPLES_TOPIC} topic instead and sent from there by an {@link AsyncEmailSink},
+ * with its own consumer and pool of workers.
  */
 public class EmailService implements Service {
 
   private static final Logger log = LoggerFactory.getLogger(EmailService.class);
   private final String SERVICE_APP_ID = getClass().getSimpleName();
 
+  public static final String EMAIL_TUPLES_TOPIC = "email-tuples";
+
   private KafkaStreams streams;
   private final Emailer emailer;
+  private boolean asyncEmailsEnabled = false;
+  private int emailWorkers = 4;
+  private int emailQueueCapacity = 1000;
+  private Metrics metrics;
+  private RocksDBStatisticsRecorder rocksDBStatistics;
+  private AsyncEmailSink emailSink;
 
   public EmailService(final Emailer emailer) {
     this.emailer = emailer;
@@ -46,9 +73,16 @@ public class EmailService implements Service {
 
   @Override
   public void start(final String bootstrapServers, final String stateDir) {
+    metrics = startMetrics(SERVICE_APP_ID);
+    rocksDBStatistics = new RocksDBStatisticsRecorder(SERVICE_APP_ID, metrics);
     streams = processStreams(bootstrapServers, stateDir);
     streams.cleanUp(); //don't do this in prod as it clears your state stores
     streams.start();
+    if (asyncEmailsEnabled) {
+      emailSink = new AsyncEmailSink(emailConsumer(bootstrapServers), emailer, emailWorkers,
+          emailQueueCapacity, metrics);
+      emailSink.start(EMAIL_TUPLES_TOPIC);
+    }
     log.info("Started Service " + SERVICE_APP_ID);
   }
 
@@ -70,25 +104,64 @@ public class EmailService implements Service {
         .with(ORDERS.keySerde(), ORDERS.valueSerde(), PAYMENTS.valueSerde());
 
     //Join the two streams and the table then send an email for each
-    orders.join(payments, EmailTuple::new,
+    final KStream<String, EmailTuple> emailTuples = orders.join(payments, EmailTuple::new,
         //Join Orders and Payments streams
         JoinWindows.of(Duration.ofMinutes(1)), serdes)
         //Next join to the GKTable of Customers
         .join(customers,
             (key1, tuple) -> tuple.order.getCustomerId(),
             // note how, because we use a GKtable, we can join on any attribute of the Customer.
-            EmailTuple::setCustomer)
-        //Now for each tuple send an email.
-        .peek((key, emailTuple)
-            -> emailer.sendEmail(emailTuple)
-        );
+            EmailTuple::setCustomer);
+    if (asyncEmailsEnabled) {
+      //Leave the emails to the sink, so the stream thread never waits on the email transport
+      emailTuples.to(EMAIL_TUPLES_TOPIC, Produced.with(ORDERS.keySerde(), new EmailTupleSerde()));
+    } else {
+      //Now for each tuple send an email.
+      emailTuples.peek((key, emailTuple)
+          -> emailer.sendEmail(emailTuple)
+      );
+    }
 
     //Send the order to a topic whose name is the value of customer level
     orders.join(customers, (orderId, order) -> order.getCustomerId(), (order, customer) -> new OrderEnriched (order.getId(), order.getCustomerId(), customer.getLevel()))
         //TopicNameExtractor to get the topic name (i.e., customerLevel) from the enriched order record being sent
         .to((orderId, orderEnriched, record) -> orderEnriched.getCustomerLevel(), Produced.with(ORDERS_ENRICHED.keySerde(), ORDERS_ENRICHED.valueSerde()));
 
-    return new KafkaStreams(builder.build(), baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID));
+    return createStreams(builder.build(), baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID),
+        rocksDBStatistics);
+  }
+
+  private KafkaConsumer<String, EmailTuple> emailConsumer(final String bootstrapServers) {
+    final Properties consumerConfig = new Properties();
+    consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    consumerConfig.put(ConsumerConfig.GROUP_ID_CONFIG, SERVICE_APP_ID + "-sink");
+    consumerConfig.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+    //offsets are committed by the sink once the emails have been sent
+    consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    consumerConfig.put(ConsumerConfig.CLIENT_ID_CONFIG, "email-service-sink-consumer");
+    MonitoringInterceptorUtils.maybeConfigureInterceptorsConsumer(consumerConfig);
+
+    final EmailTupleSerde serde = new EmailTupleSerde();
+    return new KafkaConsumer<>(consumerConfig, ORDERS.keySerde().deserializer(), serde.deserializer());
+  }
+
+  public void setAsyncEmailsEnabled(final boolean value) {
+    this.asyncEmailsEnabled = value;
+  }
+
+  /**
+   * Set the number of threads sending emails when async emails are enabled.
+   */
+  public void setEmailWorkers(final int emailWorkers) {
+    this.emailWorkers = emailWorkers;
+  }
+
+  /**
+   * Set the number of emails that can wait for a worker, when async emails are enabled, before
+   * the sink stops consuming.
+   */
+  public void setEmailQueueCapacity(final int emailQueueCapacity) {
+    this.emailQueueCapacity = emailQueueCapacity;
   }
 
   public static void main(final String[] args) throws Exception {
@@ -97,7 +170,7 @@ public class EmailService implements Service {
     addShutdownHookAndBlock(service);
   }
 
-  private static class LoggingEmailer implements Emailer {
+  static class LoggingEmailer implements Emailer {
 
     @Override
     public void sendEmail(final EmailTuple details) {
@@ -111,10 +184,27 @@ public class EmailService implements Service {
     if (streams != null) {
       streams.close();
     }
+    if (rocksDBStatistics != null) {
+      rocksDBStatistics.close();
+    }
+    if (emailSink != null) {
+      emailSink.close();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
   interface Emailer {
     void sendEmail(EmailTuple details);
+
+    /**
+     * Send several emails at once. Implementations whose transport can take a batch in one
+     * call should override this.
+     */
+    default void sendEmails(final List<EmailTuple> emails) {
+      emails.forEach(this::sendEmail);
+    }
   }
 
   public class EmailTuple {
@@ -142,4 +232,82 @@ public class EmailService implements Service {
           '}';
     }
   }
+
+  /**
+   * Writes an {@link EmailTuple} as its order, payment and customer, each length prefixed and
+   * serialized as it is on its own topic, so no new schemas need registering.
+   */
+  class EmailTupleSerde implements Serde<EmailTuple> {
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Serializer<EmailTuple> serializer() {
+      return new Serializer<EmailTuple>() {
+        @Override
+        public void configure(final Map<String, ?> configs, final boolean isKey) {
+        }
+
+        @Override
+        public byte[] serialize(final String topic, final EmailTuple tuple) {
+          if (tuple == null) {
+            return null;
+          }
+          final byte[] order = ORDERS.valueSerde().serializer().serialize(ORDERS.name(), tuple.order);
+          final byte[] payment =
+              PAYMENTS.valueSerde().serializer().serialize(PAYMENTS.name(), tuple.payment);
+          final byte[] customer =
+              CUSTOMERS.valueSerde().serializer().serialize(CUSTOMERS.name(), tuple.customer);
+          return ByteBuffer.allocate(12 + order.length + payment.length + customer.length)
+              .putInt(order.length).put(order)
+              .putInt(payment.length).put(payment)
+              .putInt(customer.length).put(customer)
+              .array();
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+
+    @Override
+    public Deserializer<EmailTuple> deserializer() {
+      return new Deserializer<EmailTuple>() {
+        @Override
+        public void configure(final Map<String, ?> configs, final boolean isKey) {
+        }
+
+        @Override
+        public EmailTuple deserialize(final String topic, final byte[] bytes) {
+          if (bytes == null) {
+            return null;
+          }
+          final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+          final Order order = ORDERS.valueSerde().deserializer().deserialize(ORDERS.name(), next(buffer));
+          final Payment payment =
+              PAYMENTS.valueSerde().deserializer().deserialize(PAYMENTS.name(), next(buffer));
+          final Customer customer =
+              CUSTOMERS.valueSerde().deserializer().deserialize(CUSTOMERS.name(), next(buffer));
+          return new EmailTuple(order, payment).setCustomer(customer);
+        }
+
+        private byte[] next(final ByteBuffer buffer) {
+          final byte[] bytes = new byte[buffer.getInt()];
+          buffer.get(bytes);
+          return bytes;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+  }
 }
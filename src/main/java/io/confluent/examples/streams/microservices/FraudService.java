@@ -5,6 +5,10 @@ import io.confluent.examples.streams.avro.microservices.OrderState;
 import io.confluent.examples.streams.avro.microservices.OrderValidation;
 import io.confluent.examples.streams.avro.microservices.OrderValue;
 import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.util.OrderStateHeader;
+import io.confluent.examples.streams.microservices.util.PipelineTracing;
+import io.confluent.examples.streams.microservices.util.RocksDBStatisticsRecorder;
+import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsBuilder;
@@ -30,7 +34,9 @@ import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.ORDER_VALIDATIONS;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.addShutdownHookAndBlock;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.baseStreamsConfig;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.createStreams;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.parseArgsAndConfigure;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startMetrics;
 
 
 /**
@@ -46,9 +52,15 @@ public class FraudService implements Service {
 
   private static final int FRAUD_LIMIT = 2000;
   private KafkaStreams streams;
+  private Metrics metrics;
+  private RocksDBStatisticsRecorder rocksDBStatistics;
+  private PipelineTracing tracing;
 
   @Override
   public void start(final String bootstrapServers, final String stateDir) {
+    metrics = startMetrics(SERVICE_APP_ID);
+    rocksDBStatistics = new RocksDBStatisticsRecorder(SERVICE_APP_ID, metrics);
+    tracing = new PipelineTracing(SERVICE_APP_ID, metrics);
     streams = processStreams(bootstrapServers, stateDir);
     streams.cleanUp(); //don't do this in prod as it clears your state stores
     streams.start();
@@ -60,8 +72,10 @@ public class FraudService implements Service {
     //Latch onto instances of the orders and inventory topics
     final StreamsBuilder builder = new StreamsBuilder();
     final KStream<String, Order> orders = builder
-        .stream(ORDERS.name(), Consumed.with(ORDERS.keySerde(), ORDERS.valueSerde()))
-        .filter((id, order) -> OrderState.CREATED.equals(order.getState()));
+        .stream(ORDERS.name(), Consumed.with(ORDERS.keySerde(),
+            OrderStateHeader.filtering(SERVICE_APP_ID, metrics, OrderState.CREATED)))
+        .filter((id, order) -> order != null && OrderState.CREATED.equals(order.getState()))
+        .transformValues(tracing.<Order>receivedInStreams());
 
     //Create an aggregate of the total value by customer and hold it with the order. We use session windows to
     // detect periods of activity.
@@ -103,7 +117,7 @@ public class FraudService implements Service {
     final Properties props = baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID);
     props.setProperty(StreamsConfig.CACHE_MAX_BYTES_BUFFERING_CONFIG, "0");
 
-    return new KafkaStreams(builder.build(), props);
+    return createStreams(builder.build(), props, rocksDBStatistics);
   }
 
   private OrderValue simpleMerge(final OrderValue a, final OrderValue b) {
@@ -121,6 +135,12 @@ public class FraudService implements Service {
     if (streams != null) {
       streams.close();
     }
+    if (rocksDBStatistics != null) {
+      rocksDBStatistics.close();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
 }
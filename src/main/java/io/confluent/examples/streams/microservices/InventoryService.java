@@ -1,10 +1,14 @@
 package io.confluent.examples.streams.microservices;
 
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.GlobalKTable;
 import org.apache.kafka.streams.kstream.Joined;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KTable;
@@ -17,6 +21,7 @@ import org.apache.kafka.streams.state.Stores;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 import io.confluent.examples.streams.avro.microservices.Order;
@@ -25,6 +30,9 @@ import io.confluent.examples.streams.avro.microservices.OrderValidation;
 import io.confluent.examples.streams.avro.microservices.Product;
 import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import io.confluent.examples.streams.microservices.util.MicroserviceUtils;
+import io.confluent.examples.streams.microservices.util.OrderStateHeader;
+import io.confluent.examples.streams.microservices.util.PipelineTracing;
+import io.confluent.examples.streams.microservices.util.RocksDBStatisticsRecorder;
 
 import static io.confluent.examples.streams.avro.microservices.OrderValidationResult.FAIL;
 import static io.confluent.examples.streams.avro.microservices.OrderValidationResult.PASS;
@@ -41,16 +49,44 @@ import static io.confluent.examples.streams.microservices.util.MicroserviceUtils
  * <p>
  * Currently there is nothing implemented that decrements the reserved items. This
  * would happen, inside this service, in response to an order being shipped.
+ * <p>
+ * By default all orders for a product are validated against a single reservation, so a product
+ * can never use more than one partition. If {@link #setReservationShards(int)} is set above one,
+ * each product's stock is instead divided between that many shards, keyed "PRODUCT#shard", and
+ * each order is reserved against the shard its id hashes to. When that shard hasn't enough stock
+ * left, it holds what it has for the order, and hands the order on to the next shard, via the
+ * {@link #SHARDED_ORDERS_TOPIC} topic, with the holds so far in its {@link #HOLDS_HEADER}. The
+ * order passes once the shards it has visited hold enough between them. If every shard has been
+ * tried, it fails, and each shard that held stock for it is sent a {@link #RELEASE_HEADER} record
+ * to give it back. As a shard only ever reserves from its own share of the stock, the total
+ * reserved never exceeds what is in the warehouse, and an order that the whole stock covers
+ * passes, as it would unsharded. The exception is contention: stock held for one order in flight
+ * is unavailable to others until it passes or fails, so two orders that together need more
+ * than is left can both fail where, unsharded, one of them would pass.
  */
 public class InventoryService implements Service {
 
   private static final Logger log = LoggerFactory.getLogger(InventoryService.class);
   public static final String SERVICE_APP_ID = "InventoryService";
   public static final String RESERVED_STOCK_STORE_NAME = "store-of-reserved-stock";
+  public static final String RESERVED_STOCK_SHARDED_STORE_NAME = "store-of-reserved-stock-sharded";
+  public static final String SHARDED_ORDERS_TOPIC = "orders-by-product-shard";
+  //The (shard, quantity) pairs held so far for an order handed on between shards
+  static final String HOLDS_HEADER = "inventory-holds";
+  //Marks a record giving back the quantity a shard held for an order that failed
+  static final String RELEASE_HEADER = "inventory-release";
+  private static final char SHARD_SEPARATOR = '#';
   private KafkaStreams streams;
+  private Metrics metrics;
+  private RocksDBStatisticsRecorder rocksDBStatistics;
+  private PipelineTracing tracing;
+  private int reservationShards = 1;
 
   @Override
   public void start(final String bootstrapServers, final String stateDir) {
+    metrics = MicroserviceUtils.startMetrics(SERVICE_APP_ID);
+    rocksDBStatistics = new RocksDBStatisticsRecorder(SERVICE_APP_ID, metrics);
+    tracing = new PipelineTracing(SERVICE_APP_ID, metrics);
     streams = processStreams(bootstrapServers, stateDir);
     streams.cleanUp(); //don't do this in prod as it clears your state stores
     streams.start();
@@ -62,31 +98,44 @@ public class InventoryService implements Service {
     if (streams != null) {
       streams.close();
     }
+    if (rocksDBStatistics != null) {
+      rocksDBStatistics.close();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
   private KafkaStreams processStreams(final String bootstrapServers, final String stateDir) {
+    if (reservationShards > 1) {
+      return processStreamsSharded(bootstrapServers, stateDir);
+    }
 
     //Latch onto instances of the orders and inventory topics
     final StreamsBuilder builder = new StreamsBuilder();
     final KStream<String, Order> orders = builder
-      .stream(Topics.ORDERS.name(),
-        Consumed.with(Topics.ORDERS.keySerde(), Topics.ORDERS.valueSerde()));
+      .stream(Topics.ORDERS.name(), Consumed.with(Topics.ORDERS.keySerde(),
+        OrderStateHeader.filtering(SERVICE_APP_ID, metrics, OrderState.CREATED)));
     final KTable<Product, Integer> warehouseInventory = builder
       .table(Topics.WAREHOUSE_INVENTORY.name(), Consumed
         .with(Topics.WAREHOUSE_INVENTORY.keySerde(), Topics.WAREHOUSE_INVENTORY.valueSerde()));
 
     //Create a store to reserve inventory whilst the order is processed.
-    //This will be prepopulated from Kafka before the service starts processing
+    //This will be prepopulated from Kafka before the service starts processing.
+    //Reservations are read for every order, so Streams' record cache serves repeated reads of
+    //the same products from memory, rather than from RocksDB
     final StoreBuilder reservedStock = Stores
       .keyValueStoreBuilder(Stores.persistentKeyValueStore(RESERVED_STOCK_STORE_NAME),
         Topics.WAREHOUSE_INVENTORY.keySerde(), Serdes.Long())
-      .withLoggingEnabled(new HashMap<>());
+      .withLoggingEnabled(new HashMap<>())
+      .withCachingEnabled();
     builder.addStateStore(reservedStock);
 
     //First change orders stream to be keyed by Product (so we can join with warehouse inventory)
-    orders.selectKey((id, order) -> order.getProduct())
+    orders.selectKey((id, order) -> order == null ? null : order.getProduct())
       //Limit to newly created orders
-      .filter((id, order) -> OrderState.CREATED.equals(order.getState()))
+      .filter((id, order) -> order != null && OrderState.CREATED.equals(order.getState()))
+      .transformValues(tracing.<Order>receivedInStreams())
       //Join Orders to Inventory so we can compare each order to its corresponding stock value
       .join(warehouseInventory, KeyValue::new, Joined.with(Topics.WAREHOUSE_INVENTORY.keySerde(),
         Topics.ORDERS.valueSerde(), Serdes.Integer()))
@@ -96,11 +145,186 @@ public class InventoryService implements Service {
       .to(Topics.ORDER_VALIDATIONS.name(), Produced.with(Topics.ORDER_VALIDATIONS.keySerde(),
         Topics.ORDER_VALIDATIONS.valueSerde()));
 
-    return new KafkaStreams(builder.build(),
-      MicroserviceUtils.baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID));
+    return MicroserviceUtils.createStreams(builder.build(),
+      MicroserviceUtils.baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID), rocksDBStatistics);
+  }
+
+  private KafkaStreams processStreamsSharded(final String bootstrapServers, final String stateDir) {
+    final int shards = reservationShards;
+
+    //Latch onto instances of the orders and inventory topics. The inventory is held globally, as
+    //every shard of a product needs to know its total stock to work out its own share.
+    final StreamsBuilder builder = new StreamsBuilder();
+    final KStream<String, Order> orders = builder
+      .stream(Topics.ORDERS.name(), Consumed.with(Topics.ORDERS.keySerde(),
+        OrderStateHeader.filtering(SERVICE_APP_ID, metrics, OrderState.CREATED)));
+    final GlobalKTable<Product, Integer> warehouseInventory = builder
+      .globalTable(Topics.WAREHOUSE_INVENTORY.name(), Consumed
+        .with(Topics.WAREHOUSE_INVENTORY.keySerde(), Topics.WAREHOUSE_INVENTORY.valueSerde()));
+
+    //Create a store to reserve inventory, per shard, whilst the order is processed.
+    final StoreBuilder reservedStock = Stores
+      .keyValueStoreBuilder(Stores.persistentKeyValueStore(RESERVED_STOCK_SHARDED_STORE_NAME),
+        Serdes.String(), Serdes.Long())
+      .withLoggingEnabled(new HashMap<>())
+      .withCachingEnabled();
+    builder.addStateStore(reservedStock);
+
+    //Key newly created orders by the shard of their product that they should first try to reserve from
+    orders.filter((id, order) -> order != null && OrderState.CREATED.equals(order.getState()))
+      .transformValues(tracing.<Order>receivedInStreams())
+      .selectKey((id, order) -> shardKey(order.getProduct(), shardOf(id, shards)))
+      .to(SHARDED_ORDERS_TOPIC, Produced.with(Serdes.String(), Topics.ORDERS.valueSerde()));
+
+    //New orders, those handed on by a shard that ran out of stock, and releases all arrive here
+    final KStream<String, KeyValue<Order, OrderValidation>>[] outcomes = builder
+      .stream(SHARDED_ORDERS_TOPIC, Consumed.with(Serdes.String(), Topics.ORDERS.valueSerde()))
+      .join(warehouseInventory, (shardKey, order) -> order.getProduct(), KeyValue::new)
+      .transform(() -> new ShardedInventoryValidator(shards), RESERVED_STOCK_SHARDED_STORE_NAME)
+      .branch((shardKey, outcome) -> outcome.value != null,
+        (shardKey, outcome) -> true);
+
+    //Push results into the Order Validations topic
+    outcomes[0].map((shardKey, outcome) -> KeyValue.pair(outcome.value.getOrderId(), outcome.value))
+      .to(Topics.ORDER_VALIDATIONS.name(), Produced.with(Topics.ORDER_VALIDATIONS.keySerde(),
+        Topics.ORDER_VALIDATIONS.valueSerde()));
+
+    //Hand the rest on to the shard they were keyed with by the validator
+    outcomes[1].mapValues(outcome -> outcome.key)
+      .to(SHARDED_ORDERS_TOPIC, Produced.with(Serdes.String(), Topics.ORDERS.valueSerde()));
+
+    return MicroserviceUtils.createStreams(builder.build(),
+      MicroserviceUtils.baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID), rocksDBStatistics);
+  }
+
+  /**
+   * Set the number of shards each product's stock is divided between. Must be called before
+   * the service is started. One, the default, disables sharding.
+   */
+  public void setReservationShards(final int reservationShards) {
+    this.reservationShards = reservationShards;
+  }
+
+  static String shardKey(final Product product, final int shard) {
+    return product.toString() + SHARD_SEPARATOR + shard;
+  }
+
+  static int shardOf(final String orderId, final int shards) {
+    return Math.floorMod(orderId.hashCode(), shards);
+  }
+
+  private static int shardOfKey(final String shardKey) {
+    return Integer.parseInt(shardKey.substring(shardKey.lastIndexOf(SHARD_SEPARATOR) + 1));
+  }
+
+  /**
+   * The share of a product's total stock that is held by a single shard. The shares of all
+   * shards add up to the total.
+   */
+  static int shareOfStock(final int totalStock, final int shard, final int shards) {
+    return totalStock / shards + (shard < totalStock % shards ? 1 : 0);
+  }
+
+  /**
+   * Validates orders against a single shard's share of the stock. The result is either a
+   * validation, or, if this shard doesn't have enough stock but the shards yet to be tried might,
+   * the order re-keyed with the next shard to try. An order that fails is preceded by a release,
+   * re-keyed with its shard, for each shard that held stock for it.
+   */
+  private static class ShardedInventoryValidator implements
+    Transformer<String, KeyValue<Order, Integer>, KeyValue<String, KeyValue<Order, OrderValidation>>> {
+
+    private final int shards;
+    private ProcessorContext context;
+    private KeyValueStore<String, Long> reservedStocksStore;
+
+    ShardedInventoryValidator(final int shards) {
+      this.shards = shards;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(final ProcessorContext context) {
+      this.context = context;
+      reservedStocksStore = (KeyValueStore<String, Long>) context
+        .getStateStore(RESERVED_STOCK_SHARDED_STORE_NAME);
+    }
+
+    @Override
+    public KeyValue<String, KeyValue<Order, OrderValidation>> transform(
+      final String shardKey,
+      final KeyValue<Order, Integer> orderAndStock) {
+      final Order order = orderAndStock.key;
+      final Headers headers = context.headers();
+      final long reserved = reserved(shardKey);
+
+      final Header release = headers.lastHeader(RELEASE_HEADER);
+      if (release != null) {
+        //give back what this shard held for an order that failed
+        reservedStocksStore.put(shardKey, reserved - ByteBuffer.wrap(release.value()).getInt());
+        return null;
+      }
+
+      final int shard = shardOfKey(shardKey);
+      final long available = Math.max(shareOfStock(orderAndStock.value, shard, shards) - reserved, 0);
+      final Header holds = headers.lastHeader(HOLDS_HEADER);
+      final ByteBuffer held = holds == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(holds.value());
+      final int needed = order.getQuantity() - totalHeld(held);
+
+      if (available - needed >= 0) {
+        //reserve the rest from this shard and validate the order
+        reservedStocksStore.put(shardKey, reserved + needed);
+        headers.remove(HOLDS_HEADER);
+        return KeyValue.pair(shardKey, KeyValue.pair(order,
+          new OrderValidation(order.getId(), INVENTORY_CHECK, PASS)));
+      }
+
+      final int nextShard = (shard + 1) % shards;
+      if (nextShard == shardOf(order.getId(), shards)) {
+        //every shard has been tried, so give back what the others held, and fail the order
+        headers.remove(HOLDS_HEADER);
+        while (held.hasRemaining()) {
+          final int heldShard = held.getInt();
+          headers.add(RELEASE_HEADER, ByteBuffer.allocate(Integer.BYTES).putInt(held.getInt()).array());
+          context.forward(shardKey(order.getProduct(), heldShard), KeyValue.pair(order, null));
+          headers.remove(RELEASE_HEADER);
+        }
+        return KeyValue.pair(shardKey, KeyValue.pair(order,
+          new OrderValidation(order.getId(), INVENTORY_CHECK, FAIL)));
+      }
+
+      //hold what this shard has left, and hand the order on to the next shard
+      if (available > 0) {
+        reservedStocksStore.put(shardKey, reserved + available);
+        headers.remove(HOLDS_HEADER);
+        headers.add(HOLDS_HEADER, ByteBuffer.allocate(held.capacity() + 2 * Integer.BYTES)
+          .put(held)
+          .putInt(shard)
+          .putInt((int) available)
+          .array());
+      }
+      return KeyValue.pair(shardKey(order.getProduct(), nextShard), KeyValue.pair(order, null));
+    }
+
+    private long reserved(final String shardKey) {
+      final Long reserved = reservedStocksStore.get(shardKey);
+      return reserved == null ? 0L : reserved;
+    }
+
+    private static int totalHeld(final ByteBuffer held) {
+      int total = 0;
+      for (int i = Integer.BYTES; i < held.limit(); i += 2 * Integer.BYTES) {
+        total += held.getInt(i);
+      }
+      return total;
+    }
+
+    @Override
+    public void close() {
+    }
   }
 
-  private static class InventoryValidator implements
+  static class InventoryValidator implements
     Transformer<Product, KeyValue<Order, Integer>, KeyValue<String, OrderValidation>> {
 
     private KeyValueStore<Product, Long> reservedStocksStore;
@@ -5,31 +5,51 @@ import static io.confluent.examples.streams.avro.microservices.OrderValidationRe
 import static io.confluent.examples.streams.avro.microservices.OrderValidationType.ORDER_DETAILS_CHECK;
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.addShutdownHookAndBlock;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startMetrics;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startProducer;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 
 import io.confluent.examples.streams.avro.microservices.Order;
 import io.confluent.examples.streams.avro.microservices.OrderState;
 import io.confluent.examples.streams.avro.microservices.OrderValidation;
 import io.confluent.examples.streams.avro.microservices.OrderValidationResult;
 import io.confluent.examples.streams.microservices.util.MicroserviceUtils;
+import io.confluent.examples.streams.microservices.util.OrderStateHeader;
+import io.confluent.examples.streams.microservices.util.PipelineTracing;
 import io.confluent.examples.streams.utils.MonitoringInterceptorUtils;
 
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,9 +61,17 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This service could be built with Kafka Streams but we've used a Producer/Consumer pair
  * including the integration with Kafka's Exactly Once feature (Transactions) to demonstrate
- * this other style of building event driven services. Care needs to be taken with this approach
- * as in the current release multi-node support is not provided for the transactional consumer
- * (but it is supported inside Kafka Streams)
+ * this other style of building event driven services.
+ * <p>
+ * With Exactly Once disabled, records are validated by a pool of worker threads, one per
+ * partition up to {@link #setWorkerThreads(int)}, so a single instance can use several cores.
+ * Records within a partition are still validated in order, and offsets are only committed once
+ * the results for them have been acknowledged.
+ * <p>
+ * With Exactly Once enabled every record is validated on the polling thread, inside a
+ * transaction. Each assigned partition gets its own transactional producer, so several instances
+ * can share the work, and its transaction spans as many polls as
+ * {@link #setTransactionBatching(int, Duration)} allows.
  */
 public class OrderDetailsService implements Service {
 
@@ -51,89 +79,555 @@ public class OrderDetailsService implements Service {
 
   private final String CONSUMER_GROUP_ID = getClass().getSimpleName();
   private KafkaConsumer<String, Order> consumer;
-  private KafkaProducer<String, OrderValidation> producer;
+  private Producer<String, OrderValidation> producer;
   private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+  private Metrics metrics;
+  private PipelineTracing tracing;
   private volatile boolean running;
+  private int workerThreads = Runtime.getRuntime().availableProcessors();
+  private int transactionMaxRecords = 1000;
+  private Duration transactionMaxAge = Duration.ofMillis(100);
+  private static final int MAX_IN_FLIGHT_RECORDS = 10000;
+  private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
 
   // Disable Exactly Once Semantics to enable Confluent Monitoring Interceptors
   private boolean eosEnabled = false;
+  private Function<Properties, Producer<String, OrderValidation>> transactionalProducers =
+      config -> new KafkaProducer<>(config,
+          Topics.ORDER_VALIDATIONS.keySerde().serializer(),
+          Topics.ORDER_VALIDATIONS.valueSerde().serializer());
 
   @Override
   public void start(final String bootstrapServers, final String stateDir) {
+    metrics = startMetrics(CONSUMER_GROUP_ID);
+    tracing = new PipelineTracing(CONSUMER_GROUP_ID, metrics);
     executorService.execute(() -> startService(bootstrapServers));
     running = true;
     log.info("Started Service " + getClass().getSimpleName());
   }
 
+  @SuppressWarnings("unchecked")
   private void startService(final String bootstrapServers) {
     startConsumer(bootstrapServers);
-    startProducer(bootstrapServers);
 
     try {
-      final Map<TopicPartition, OffsetAndMetadata> consumedOffsets = new HashMap<>();
-      consumer.subscribe(singletonList(Topics.ORDERS.name()));
       if (eosEnabled) {
-        producer.initTransactions();
+        processInTransactions(bootstrapServers);
+      } else {
+        //Not transactional, so it can be shared with other services running in this JVM
+        if (producer == null) {
+          producer = startProducer(bootstrapServers, Topics.ORDER_VALIDATIONS,
+              "order-details-service-producer");
+        }
+        processWithPartitionWorkers();
       }
+    } finally {
+      close();
+    }
+  }
 
+  private void processInTransactions(final String bootstrapServers) {
+    final PartitionTransactions transactions = new PartitionTransactions(bootstrapServers);
+    try {
+      consumer.subscribe(singletonList(Topics.ORDERS.name()), transactions);
       while (running) {
         final ConsumerRecords<String, Order> records = consumer.poll(Duration.ofMillis(100));
-        if (records.count() > 0) {
-          if (eosEnabled) {
-            producer.beginTransaction();
-          }
-          for (final ConsumerRecord<String, Order> record : records) {
-            final Order order = record.value();
-            if (OrderState.CREATED.equals(order.getState())) {
-              //Validate the order then send the result (but note we are in a transaction so
-              //nothing will be "seen" downstream until we commit the transaction below)
-              producer.send(result(order, isValid(order) ? PASS : FAIL));
-              if (eosEnabled) {
-                recordOffset(consumedOffsets, record);
-              }
-            }
-          }
-          if (eosEnabled) {
-            producer.sendOffsetsToTransaction(consumedOffsets, CONSUMER_GROUP_ID);
-            producer.commitTransaction();
-          }
+        for (final TopicPartition partition : records.partitions()) {
+          transactions.process(partition, records.records(partition));
         }
+        transactions.commitDue();
       }
     } finally {
-      close();
+      transactions.close();
     }
   }
 
-  private void recordOffset(final Map<TopicPartition, OffsetAndMetadata> consumedOffsets,
-                            final ConsumerRecord<String, Order> record) {
-    final OffsetAndMetadata nextOffset = new OffsetAndMetadata(record.offset() + 1);
-    consumedOffsets.put(new TopicPartition(record.topic(), record.partition()), nextOffset);
+  private void processWithPartitionWorkers() {
+    final PartitionWorkers workers = new PartitionWorkers(workerThreads);
+    try {
+      consumer.subscribe(singletonList(Topics.ORDERS.name()), workers);
+      while (running) {
+        final ConsumerRecords<String, Order> records = consumer.poll(Duration.ofMillis(100));
+        for (final TopicPartition partition : records.partitions()) {
+          workers.submit(partition, records.records(partition));
+        }
+        workers.commitAcknowledged();
+        workers.applyBackpressure();
+      }
+    } finally {
+      workers.close();
+    }
   }
 
-  private ProducerRecord<String, OrderValidation> result(final Order order,
+  /**
+   * The result of validating a record, carrying on the record's trace headers.
+   */
+  private ProducerRecord<String, OrderValidation> result(final ConsumerRecord<String, Order> record,
                                                          final OrderValidationResult passOrFail) {
+    final Order order = record.value();
+    tracing.received(record.headers());
     return new ProducerRecord<>(
         Topics.ORDER_VALIDATIONS.name(),
+        null,
         order.getId(),
-        new OrderValidation(order.getId(), ORDER_DETAILS_CHECK, passOrFail)
+        new OrderValidation(order.getId(), ORDER_DETAILS_CHECK, passOrFail),
+        record.headers()
     );
   }
 
-  private void startProducer(final String bootstrapServers) {
+  /**
+   * The open transaction of each assigned partition, each on its own transactional producer.
+   * Producers are created, and fence any previous owner of the partition, on assignment, and
+   * their transactions are committed, along with the consumed offsets, when they reach the
+   * batching limits, when the partition is revoked, or on shutdown.
+   * <p>
+   * If a producer is fenced, or fails to abort a transaction it couldn't commit, the partition is
+   * rewound to its last committed offset, and, if the next poll still returns records for it, so
+   * it hasn't been revoked, a new producer is created to take it back. That covers a transaction
+   * timed out by the coordinator, which fences the producer without a rebalance.
+   */
+  private class PartitionTransactions implements ConsumerRebalanceListener {
+
+    private final String bootstrapServers;
+    private final Map<TopicPartition, PartitionTransaction> transactions = new HashMap<>();
+
+    PartitionTransactions(final String bootstrapServers) {
+      this.bootstrapServers = bootstrapServers;
+    }
+
+    void process(final TopicPartition partition, final List<ConsumerRecord<String, Order>> records) {
+      PartitionTransaction transaction = transactions.get(partition);
+      if (transaction == null) {
+        //fenced, but the poll didn't revoke the partition, so it is still ours
+        log.info("Recreating the fenced producer for " + partition);
+        transaction = open(partition);
+      }
+      try {
+        transaction.process(records);
+      } catch (final ProducerFencedException e) {
+        fenced(partition, e);
+      }
+    }
+
+    void commitDue() {
+      final long now = System.currentTimeMillis();
+      for (final PartitionTransaction transaction : new ArrayList<>(transactions.values())) {
+        if (transaction.isDue(now)) {
+          commit(transaction);
+        }
+      }
+    }
+
+    private void commit(final PartitionTransaction transaction) {
+      try {
+        transaction.commit();
+      } catch (final ProducerFencedException e) {
+        fenced(transaction.partition, e);
+      } catch (final KafkaException e) {
+        //Abort, then rewind to the last committed offset so the aborted records are validated again
+        log.warn("Failed to commit transaction for " + transaction.partition + ", retrying", e);
+        try {
+          transaction.abort();
+        } catch (final KafkaException abortFailed) {
+          //The producer can't abort, as its state is fatal, so drop it as if fenced. Its
+          //replacement aborts the transaction when it takes over the transactional id
+          log.warn("Failed to abort transaction for " + transaction.partition, abortFailed);
+          transactions.remove(transaction.partition).close();
+        }
+        rewind(transaction.partition);
+      }
+    }
+
+    private void fenced(final TopicPartition partition, final ProducerFencedException e) {
+      //Either another instance now owns the partition, and will redo whatever we hadn't
+      //committed, or our transaction timed out, and we must redo it ourselves
+      log.warn("Producer for " + partition + " was fenced", e);
+      transactions.remove(partition).close();
+      rewind(partition);
+    }
+
+    private void rewind(final TopicPartition partition) {
+      final OffsetAndMetadata committed = consumer.committed(partition);
+      if (committed != null) {
+        consumer.seek(partition, committed.offset());
+      } else {
+        consumer.seekToBeginning(singletonList(partition));
+      }
+    }
+
+    private PartitionTransaction open(final TopicPartition partition) {
+      final Producer<String, OrderValidation> producer =
+          createTransactionalProducer(bootstrapServers, partition);
+      producer.initTransactions();
+      final PartitionTransaction transaction = new PartitionTransaction(partition, producer);
+      transactions.put(partition, transaction);
+      return transaction;
+    }
+
+    @Override
+    public void onPartitionsAssigned(final Collection<TopicPartition> partitions) {
+      partitions.forEach(this::open);
+    }
+
+    @Override
+    public void onPartitionsRevoked(final Collection<TopicPartition> partitions) {
+      for (final TopicPartition partition : partitions) {
+        final PartitionTransaction transaction = transactions.get(partition);
+        if (transaction != null) {
+          commit(transaction);
+          if (transactions.remove(partition) != null) { //unless the commit found we were fenced
+            transaction.close();
+          }
+        }
+      }
+    }
+
+    void close() {
+      onPartitionsRevoked(new ArrayList<>(transactions.keySet()));
+    }
+  }
+
+  /**
+   * A partition's transactional producer and the transaction it has open, if any.
+   */
+  private class PartitionTransaction {
+
+    private final TopicPartition partition;
+    private final Producer<String, OrderValidation> producer;
+    private long openedAt = -1;
+    private int records = 0;
+    private long nextOffset;
+
+    PartitionTransaction(final TopicPartition partition,
+                         final Producer<String, OrderValidation> producer) {
+      this.partition = partition;
+      this.producer = producer;
+    }
+
+    void process(final List<ConsumerRecord<String, Order>> consumed) {
+      if (openedAt < 0) {
+        producer.beginTransaction();
+        openedAt = System.currentTimeMillis();
+      }
+      for (final ConsumerRecord<String, Order> record : consumed) {
+        final Order order = record.value();
+        if (order != null && OrderState.CREATED.equals(order.getState())) {
+          //Validate the order then send the result (but note we are in a transaction so
+          //nothing will be "seen" downstream until we commit the transaction)
+          producer.send(result(record, isValid(order) ? PASS : FAIL));
+        }
+        nextOffset = record.offset() + 1;
+      }
+      records += consumed.size();
+    }
+
+    boolean isDue(final long now) {
+      return openedAt >= 0
+          && (records >= transactionMaxRecords || now - openedAt >= transactionMaxAge.toMillis());
+    }
+
+    void commit() {
+      if (openedAt < 0) {
+        return;
+      }
+      producer.sendOffsetsToTransaction(
+          singletonMap(partition, new OffsetAndMetadata(nextOffset)), CONSUMER_GROUP_ID);
+      producer.commitTransaction();
+      reset();
+    }
+
+    void abort() {
+      try {
+        producer.abortTransaction();
+      } finally {
+        reset();
+      }
+    }
+
+    private void reset() {
+      openedAt = -1;
+      records = 0;
+    }
+
+    void close() {
+      producer.close();
+    }
+  }
+
+  /**
+   * Hands the records of each partition to a worker, always the same one for a given partition,
+   * so that records are validated in order within a partition while different partitions are
+   * validated in parallel. Offsets are only committed once every result for the records before
+   * them has been acknowledged by the producer. If a result fails to send, the partition is rewound
+   * to the first record of the batch it belongs to, and the batches after it are dropped, so those
+   * records are validated again. The consumer is only ever touched from the poll thread: workers
+   * report progress through the {@link Batch}es they are handed.
+   */
+  private class PartitionWorkers implements ConsumerRebalanceListener {
+
+    private final ExecutorService[] workers;
+    //only accessed from the poll thread
+    private final Map<TopicPartition, PartitionProgress> progress = new HashMap<>();
+
+    PartitionWorkers(final int threads) {
+      workers = new ExecutorService[threads];
+      for (int i = 0; i < threads; i++) {
+        workers[i] = Executors.newSingleThreadExecutor();
+      }
+    }
+
+    void submit(final TopicPartition partition, final List<ConsumerRecord<String, Order>> records) {
+      final Batch batch = progress.computeIfAbsent(partition, p -> new PartitionProgress())
+          .add(records.get(0).offset(), records.get(records.size() - 1).offset() + 1, records.size());
+      workers[partition.partition() % workers.length].execute(() -> validate(records, batch));
+    }
+
+    private void validate(final List<ConsumerRecord<String, Order>> records, final Batch batch) {
+      try {
+        for (final ConsumerRecord<String, Order> record : records) {
+          if (batch.isCancelled()) {
+            break; //an earlier batch failed, so these records will be polled again
+          }
+          final Order order = record.value();
+          if (order != null && OrderState.CREATED.equals(order.getState())) {
+            final ProducerRecord<String, OrderValidation> result = result(record, isValid(order) ? PASS : FAIL);
+            batch.sending();
+            try {
+              producer.send(result, (metadata, exception) -> batch.acknowledged(exception));
+            } catch (final RuntimeException e) {
+              //the callback is never called for a send that throws
+              batch.acknowledged(e);
+            }
+          }
+        }
+        batch.acknowledged(null);
+      } catch (final RuntimeException e) {
+        batch.acknowledged(e);
+      }
+    }
+
+    void commitAcknowledged() {
+      final Map<TopicPartition, OffsetAndMetadata> offsets = committable(progress.keySet());
+      if (!offsets.isEmpty()) {
+        consumer.commitAsync(offsets, (committed, exception) -> {
+          if (exception != null) {
+            log.warn("Failed to commit offsets " + committed, exception);
+          }
+        });
+      }
+      progress.forEach((partition, partitionProgress) -> {
+        final Long offset = partitionProgress.rewind();
+        if (offset != null) {
+          log.warn("Failed to send order validations for " + partition + ", validating again from offset " + offset);
+          consumer.seek(partition, offset);
+        }
+      });
+    }
+
+    /**
+     * Stop fetching from partitions whose workers have fallen too far behind, and start again
+     * once they have caught up.
+     */
+    void applyBackpressure() {
+      final Set<TopicPartition> paused = consumer.paused();
+      final List<TopicPartition> pause = new ArrayList<>();
+      final List<TopicPartition> resume = new ArrayList<>();
+      progress.forEach((partition, partitionProgress) -> {
+        final boolean behind = partitionProgress.inFlight() > MAX_IN_FLIGHT_RECORDS;
+        if (behind && !paused.contains(partition)) {
+          pause.add(partition);
+        } else if (!behind && paused.contains(partition)) {
+          resume.add(partition);
+        }
+      });
+      consumer.pause(pause);
+      consumer.resume(resume);
+    }
+
+    @Override
+    public void onPartitionsRevoked(final Collection<TopicPartition> partitions) {
+      //Let the workers finish what they were handed, so the new owner starts where we stopped
+      awaitAndCommit(partitions);
+      partitions.forEach(progress::remove);
+    }
+
+    @Override
+    public void onPartitionsAssigned(final Collection<TopicPartition> partitions) {
+    }
+
+    void close() {
+      awaitAndCommit(new ArrayList<>(progress.keySet()));
+      for (final ExecutorService worker : workers) {
+        worker.shutdownNow();
+      }
+    }
+
+    private void awaitAndCommit(final Collection<TopicPartition> partitions) {
+      final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT.toMillis();
+      try {
+        for (final TopicPartition partition : partitions) {
+          final PartitionProgress partitionProgress = progress.get(partition);
+          if (partitionProgress != null) {
+            partitionProgress.await(deadline);
+          }
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      final Map<TopicPartition, OffsetAndMetadata> offsets = committable(partitions);
+      if (!offsets.isEmpty()) {
+        consumer.commitSync(offsets);
+      }
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> committable(
+        final Collection<TopicPartition> partitions) {
+      final Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+      for (final TopicPartition partition : partitions) {
+        final PartitionProgress partitionProgress = progress.get(partition);
+        final Long offset = partitionProgress == null ? null : partitionProgress.acknowledged();
+        if (offset != null) {
+          offsets.put(partition, new OffsetAndMetadata(offset));
+        }
+      }
+      return offsets;
+    }
+  }
+
+  /**
+   * The batches handed to a partition's worker that are yet to be committed, in offset order.
+   * Only accessed from the poll thread.
+   */
+  private static class PartitionProgress {
+
+    private final Deque<Batch> batches = new ArrayDeque<>();
+    private int inFlight = 0;
+
+    Batch add(final long firstOffset, final long nextOffset, final int size) {
+      final Batch batch = new Batch(firstOffset, nextOffset, size);
+      batches.add(batch);
+      inFlight += size;
+      return batch;
+    }
+
+    /**
+     * @return the offset to commit, if the batches at the head of the queue have been
+     * acknowledged since the last call, otherwise null
+     */
+    Long acknowledged() {
+      Long offset = null;
+      while (!batches.isEmpty() && batches.peek().isAcknowledged()) {
+        final Batch batch = batches.poll();
+        inFlight -= batch.size;
+        offset = batch.nextOffset;
+      }
+      return offset;
+    }
+
+    /**
+     * Drop the first failed batch, and every batch after it, cancelling them so their workers
+     * stop sending results.
+     *
+     * @return the offset to validate again from, if a batch has failed, otherwise null
+     */
+    Long rewind() {
+      Long offset = null;
+      for (final Iterator<Batch> it = batches.iterator(); it.hasNext(); ) {
+        final Batch batch = it.next();
+        if (offset == null && batch.isFailed()) {
+          offset = batch.firstOffset;
+        }
+        if (offset != null) {
+          batch.cancel();
+          inFlight -= batch.size;
+          it.remove();
+        }
+      }
+      return offset;
+    }
+
+    int inFlight() {
+      return inFlight;
+    }
+
+    void await(final long deadline) throws InterruptedException {
+      for (final Batch batch : batches) {
+        batch.await(deadline - System.currentTimeMillis());
+      }
+    }
+  }
+
+  /**
+   * Tracks the results sent for one poll's worth of records from a partition. It starts with one
+   * outstanding acknowledgement, for the worker itself, which is released once the worker has sent
+   * every result, so that a batch can't be acknowledged before all its results are sent.
+   */
+  private static class Batch {
+
+    private final long firstOffset;
+    private final long nextOffset;
+    private final int size;
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean failed = false;
+    private volatile boolean cancelled = false;
+
+    Batch(final long firstOffset, final long nextOffset, final int size) {
+      this.firstOffset = firstOffset;
+      this.nextOffset = nextOffset;
+      this.size = size;
+    }
+
+    void sending() {
+      outstanding.incrementAndGet();
+    }
+
+    void acknowledged(final Exception exception) {
+      if (exception != null) {
+        //never commit past a result we failed to send, so it is validated again
+        log.error("Failed to send order validation", exception);
+        failed = true;
+      }
+      if (outstanding.decrementAndGet() == 0) {
+        done.countDown();
+      }
+    }
+
+    boolean isAcknowledged() {
+      return done.getCount() == 0 && !failed;
+    }
+
+    boolean isFailed() {
+      return failed;
+    }
+
+    void cancel() {
+      cancelled = true;
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    void await(final long timeoutMs) throws InterruptedException {
+      done.await(Math.max(timeoutMs, 0), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private Producer<String, OrderValidation> createTransactionalProducer(final String bootstrapServers,
+                                                                        final TopicPartition partition) {
     final Properties producerConfig = new Properties();
     producerConfig.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
-    if (eosEnabled) {
-      producerConfig.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, "OrderDetailsServiceInstance1");
-    }
+    //A transactional id per input partition, like a Kafka Streams task, so instances sharing
+    //the group don't fence each other, while a zombie owner of a partition is still fenced
+    producerConfig.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, CONSUMER_GROUP_ID + "-" + partition);
     producerConfig.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
     producerConfig.put(ProducerConfig.RETRIES_CONFIG, String.valueOf(Integer.MAX_VALUE));
     producerConfig.put(ProducerConfig.ACKS_CONFIG, "all");
-    producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, "order-details-service-producer");
+    producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, "order-details-service-producer-" + partition);
     MonitoringInterceptorUtils.maybeConfigureInterceptorsProducer(producerConfig);
 
-    producer = new KafkaProducer<>(producerConfig,
-        Topics.ORDER_VALIDATIONS.keySerde().serializer(),
-        Topics.ORDER_VALIDATIONS.valueSerde().serializer());
+    return transactionalProducers.apply(producerConfig);
   }
 
   private void startConsumer(final String bootstrapServers) {
@@ -141,13 +635,14 @@ public class OrderDetailsService implements Service {
     consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
     consumerConfig.put(ConsumerConfig.GROUP_ID_CONFIG, CONSUMER_GROUP_ID);
     consumerConfig.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
-    consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, !eosEnabled);
+    //offsets are committed in the transaction, or once the results have been acknowledged
+    consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
     consumerConfig.put(ConsumerConfig.CLIENT_ID_CONFIG, "order-details-service-consumer");
     MonitoringInterceptorUtils.maybeConfigureInterceptorsConsumer(consumerConfig);
 
     consumer = new KafkaConsumer<>(consumerConfig,
         Topics.ORDERS.keySerde().deserializer(),
-        Topics.ORDERS.valueSerde().deserializer());
+        OrderStateHeader.filtering(CONSUMER_GROUP_ID, metrics, OrderState.CREATED).deserializer());
   }
 
   private void close() {
@@ -157,6 +652,7 @@ public class OrderDetailsService implements Service {
     if (consumer != null) {
       consumer.close();
     }
+    metrics.close();
   }
 
   @Override
@@ -183,10 +679,43 @@ public class OrderDetailsService implements Service {
     return order.getProduct() != null;
   }
 
+  // for testing only
+  void setProducer(final Producer<String, OrderValidation> producer) {
+    this.producer = producer;
+  }
+
+  // for testing only
+  void setTransactionalProducers(final Function<Properties, Producer<String, OrderValidation>> transactionalProducers) {
+    this.transactionalProducers = transactionalProducers;
+  }
+
   public void setEosEnabled(final boolean value) {
     this.eosEnabled = value;
   }
 
+  /**
+   * Set how long a transaction is kept open, when Exactly Once is enabled, so the cost of
+   * committing it is shared by more records. A partition's transaction is committed once it
+   * covers maxRecords input records or has been open for maxAge, whichever comes first. Results
+   * aren't visible to read_committed consumers until then, so maxAge bounds the added latency.
+   * Zero for both commits after every poll.
+   */
+  public void setTransactionBatching(final int maxRecords, final Duration maxAge) {
+    this.transactionMaxRecords = maxRecords;
+    this.transactionMaxAge = maxAge;
+  }
+
+  /**
+   * Set the number of threads validating orders when Exactly Once is disabled. Partitions are
+   * spread over the threads, so there is no benefit in having more threads than partitions.
+   */
+  public void setWorkerThreads(final int workerThreads) {
+    if (workerThreads < 1) {
+      throw new IllegalArgumentException("workerThreads must be at least 1");
+    }
+    this.workerThreads = workerThreads;
+  }
+
   public static void main(final String[] args) throws Exception {
     final OrderDetailsService service = new OrderDetailsService();
     service.start(MicroserviceUtils.parseArgsAndConfigure(args), "/tmp/kafka-streams");
@@ -0,0 +1,368 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Payment;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
+import io.confluent.examples.streams.microservices.domain.beans.OrderBean;
+import io.confluent.examples.streams.microservices.util.Paths;
+import io.confluent.examples.streams.utils.MonitoringInterceptorUtils;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.jackson.JacksonFeature;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+
+/**
+ * Drives the microservices with a steady stream of orders, and payments for them, through the
+ * OrdersService REST API, and reports how long orders take to be CREATED (the POST returning,
+ * once the order is written to Kafka) and to be VALIDATED or FAILED (a GET on
+ * /v1/orders/{id}/validated returning).
+ * <p>
+ * The load is open loop: the n-th order is due n / rate seconds after the start, however long
+ * earlier orders are taking, and is handed to a pool of concurrent clients. Each client POSTs an
+ * order then long-polls for its validated version. Latencies are measured from when the order
+ * was due rather than when a client got round to sending it, so time spent queued behind slow
+ * requests counts against the pipeline rather than quietly lowering the rate (coordinated
+ * omission). If every client is busy the reported latencies grow, so add clients until the p50
+ * no longer moves.
+ * <p>
+ * Orders that fail, time out, or are still outstanding when the run gives up on them are not
+ * left out of the latencies, which would flatter the tail. Each is counted as taking as long as
+ * it had been going, or the validation timeout if that is longer, and the number of them is
+ * reported alongside each distribution. The rate at which orders are sent is reported
+ * separately from the rate at which they were completed.
+ * <p>
+ * Orders are a mix of:
+ * <ul>
+ * <li>valid orders, for one jumper or pair of underpants, which should be VALIDATED;</li>
+ * <li>fraudulent orders, over FraudService's limit, which should FAIL;</li>
+ * <li>orders for stockings, which are out of stock, and should FAIL.</li>
+ * </ul>
+ * Each order has a customer of its own, so valid orders never add up to a fraudulent total. To
+ * keep valid orders in stock, the warehouse inventory is set to {@link Integer#MAX_VALUE}
+ * jumpers and underpants, and no stockings, before the run starts.
+ * <p>
+ * usage: OrderLoadGenerator [rest port] [bootstrap.servers] [schema.registry.url] [orders/s]
+ * [seconds] [clients] [fraudulent %] [out of stock %]
+ */
+public class OrderLoadGenerator {
+
+  private static final Product[] IN_STOCK = {Product.JUMPERS, Product.UNDERPANTS};
+  private static final Product OUT_OF_STOCK = Product.STOCKINGS;
+  private static final double FRAUDULENT_PRICE = 5000d;
+  private static final Duration VALIDATION_TIMEOUT = Duration.ofMinutes(1);
+  private static final long NOT_COMPLETED = -1;
+
+  private enum Kind {
+    VALID(OrderState.VALIDATED), FRAUDULENT(OrderState.FAILED), OUT_OF_STOCK(OrderState.FAILED);
+
+    private final OrderState expected;
+
+    Kind(final OrderState expected) {
+      this.expected = expected;
+    }
+  }
+
+  private final Paths path;
+  private final Client client;
+  private final KafkaProducer<String, Payment> paymentProducer;
+  private final long firstId = System.currentTimeMillis() * 1000;
+  private final Kind[] kinds;
+  private final long[] created;
+  private final long[] validated;
+  //Orders whose latencies are only a lower bound, as they failed or never finished
+  private final boolean[] createdIncomplete;
+  private final boolean[] validatedIncomplete;
+  private final AtomicInteger errors = new AtomicInteger();
+  private final AtomicInteger unexpected = new AtomicInteger();
+  private final AtomicInteger abandoned = new AtomicInteger();
+  //When the last order completed, since the start
+  private final AtomicLong lastCompleted = new AtomicLong();
+  private long start;
+
+  private OrderLoadGenerator(final Paths path,
+                             final Client client,
+                             final KafkaProducer<String, Payment> paymentProducer,
+                             final Kind[] kinds) {
+    this.path = path;
+    this.client = client;
+    this.paymentProducer = paymentProducer;
+    this.kinds = kinds;
+    created = new long[kinds.length];
+    validated = new long[kinds.length];
+    createdIncomplete = new boolean[kinds.length];
+    validatedIncomplete = new boolean[kinds.length];
+    Arrays.fill(created, NOT_COMPLETED);
+    Arrays.fill(validated, NOT_COMPLETED);
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final int restPort = args.length > 0 ? Integer.parseInt(args[0]) : 5432;
+    final String bootstrapServers = args.length > 1 ? args[1] : "localhost:9092";
+    final String schemaRegistryUrl = args.length > 2 ? args[2] : "http://localhost:8081";
+    final int ordersPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+    final int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+    final int clients = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+    final int fraudulentPercent = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+    final int outOfStockPercent = args.length > 7 ? Integer.parseInt(args[7]) : 10;
+    Schemas.configureSerdesWithSchemaRegistryUrl(schemaRegistryUrl);
+
+    //HttpURLConnection only keeps 5 connections per host alive by default, so most clients would
+    //otherwise pay for a new connection on every request
+    if (System.getProperty("http.maxConnections") == null) {
+      System.setProperty("http.maxConnections", String.valueOf(clients * 2));
+    }
+    final ClientConfig clientConfig = new ClientConfig();
+    clientConfig.register(JacksonFeature.class);
+    clientConfig.property(ClientProperties.CONNECT_TIMEOUT, 60000)
+        .property(ClientProperties.READ_TIMEOUT, (int) VALIDATION_TIMEOUT.toMillis() + 60000);
+    final Client client = ClientBuilder.newClient(clientConfig);
+
+    final Kind[] kinds = kinds(ordersPerSecond * seconds, fraudulentPercent, outOfStockPercent);
+    try (final KafkaProducer<String, Payment> paymentProducer = paymentProducer(bootstrapServers)) {
+      stockWarehouse(bootstrapServers);
+      final OrderLoadGenerator generator = new OrderLoadGenerator(
+          new Paths("localhost", restPort == 0 ? 5432 : restPort), client, paymentProducer, kinds);
+      System.out.printf("Sending %d orders at %d orders/s from %d clients to %s%n",
+          kinds.length, ordersPerSecond, clients, generator.path.urlPost());
+      final long elapsedNanos = generator.run(ordersPerSecond, clients);
+      generator.report(elapsedNanos);
+    } finally {
+      client.close();
+    }
+  }
+
+  /**
+   * Send every order at its due time, then wait for the clients to finish.
+   *
+   * @return the time taken to send every order
+   */
+  private long run(final int ordersPerSecond, final int clients) throws InterruptedException {
+    final ExecutorService pool = Executors.newFixedThreadPool(clients);
+    final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / ordersPerSecond;
+    start = System.nanoTime();
+    for (int i = 0; i < kinds.length; i++) {
+      final int index = i;
+      final long due = start + i * intervalNanos;
+      for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+        LockSupport.parkNanos(wait);
+      }
+      pool.execute(() -> send(index, due));
+    }
+    final long elapsedNanos = System.nanoTime() - start;
+    pool.shutdown();
+    if (!pool.awaitTermination(VALIDATION_TIMEOUT.toMillis() * 2, TimeUnit.MILLISECONDS)) {
+      pool.shutdownNow();
+      //Count the orders we gave up on, whether or not a client had got round to them
+      for (int i = 0; i < kinds.length; i++) {
+        if (validated[i] == NOT_COMPLETED) {
+          abandoned.incrementAndGet();
+          failed(i, start + i * intervalNanos);
+        }
+      }
+    }
+    return elapsedNanos;
+  }
+
+  private void send(final int index, final long due) {
+    final long orderId = firstId + index;
+    final Kind kind = kinds[index];
+    try {
+      final Response response = client.target(path.urlPost())
+          .request(APPLICATION_JSON_TYPE)
+          .post(Entity.json(order(orderId, kind)));
+      response.close();
+      if (response.getStatus() != Response.Status.CREATED.getStatusCode()) {
+        errors.incrementAndGet();
+        failed(index, due);
+        return;
+      }
+      created[index] = System.nanoTime() - due;
+
+      paymentProducer.send(new ProducerRecord<>(Topics.PAYMENTS.name(), "Payment:" + orderId,
+          new Payment("Payment:" + orderId, id(orderId), "CZK", 1000.00d)));
+
+      final OrderBean returned = client.target(path.urlGetValidated(id(orderId)))
+          .queryParam("timeout", VALIDATION_TIMEOUT.toMillis())
+          .request(APPLICATION_JSON_TYPE)
+          .get(new GenericType<OrderBean>() {
+          });
+      validated[index] = System.nanoTime() - due;
+      lastCompleted.accumulateAndGet(System.nanoTime() - start, Math::max);
+      if (returned.getState() != kind.expected) {
+        unexpected.incrementAndGet();
+      }
+    } catch (final RuntimeException e) {
+      //Including the GET timing out
+      errors.incrementAndGet();
+      failed(index, due);
+    }
+  }
+
+  /**
+   * Record an order that didn't complete as taking at least the validation timeout, so it
+   * counts against the latencies rather than disappearing from them.
+   */
+  private void failed(final int index, final long due) {
+    final long elapsed = Math.max(System.nanoTime() - due, VALIDATION_TIMEOUT.toNanos());
+    if (created[index] == NOT_COMPLETED) {
+      created[index] = elapsed;
+      createdIncomplete[index] = true;
+    }
+    validated[index] = elapsed;
+    validatedIncomplete[index] = true;
+  }
+
+  private static OrderBean order(final long orderId, final Kind kind) {
+    //Each order gets a customer of its own
+    switch (kind) {
+      case FRAUDULENT:
+        return new OrderBean(id(orderId), orderId, OrderState.CREATED,
+            IN_STOCK[(int) (orderId % IN_STOCK.length)], 1, FRAUDULENT_PRICE);
+      case OUT_OF_STOCK:
+        return new OrderBean(id(orderId), orderId, OrderState.CREATED, OUT_OF_STOCK, 1, 1d);
+      default:
+        return new OrderBean(id(orderId), orderId, OrderState.CREATED,
+            IN_STOCK[(int) (orderId % IN_STOCK.length)], 1, 1d);
+    }
+  }
+
+  /**
+   * A shuffled mix of the given number of orders, with the given percentages of each failure.
+   */
+  private static Kind[] kinds(final int numOrders,
+                              final int fraudulentPercent,
+                              final int outOfStockPercent) {
+    final Kind[] kinds = new Kind[numOrders];
+    final int fraudulent = numOrders * fraudulentPercent / 100;
+    final int outOfStock = numOrders * outOfStockPercent / 100;
+    Arrays.fill(kinds, Kind.VALID);
+    Arrays.fill(kinds, 0, fraudulent, Kind.FRAUDULENT);
+    Arrays.fill(kinds, fraudulent, fraudulent + outOfStock, Kind.OUT_OF_STOCK);
+    final Random random = new Random(0);
+    for (int i = kinds.length - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final Kind kind = kinds[i];
+      kinds[i] = kinds[j];
+      kinds[j] = kind;
+    }
+    return kinds;
+  }
+
+  private static KafkaProducer<String, Payment> paymentProducer(final String bootstrapServers) {
+    final Properties producerConfig = new Properties();
+    producerConfig.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    producerConfig.put(ProducerConfig.ACKS_CONFIG, "all");
+    producerConfig.put(ProducerConfig.LINGER_MS_CONFIG, 1);
+    producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, "payment-generator");
+    MonitoringInterceptorUtils.maybeConfigureInterceptorsProducer(producerConfig);
+    return new KafkaProducer<>(producerConfig,
+        Topics.PAYMENTS.keySerde().serializer(),
+        Topics.PAYMENTS.valueSerde().serializer());
+  }
+
+  private static void stockWarehouse(final String bootstrapServers) throws Exception {
+    final Properties producerConfig = new Properties();
+    producerConfig.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    producerConfig.put(ProducerConfig.ACKS_CONFIG, "all");
+    producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, "inventory-generator");
+    try (final KafkaProducer<Product, Integer> producer = new KafkaProducer<>(producerConfig,
+        Topics.WAREHOUSE_INVENTORY.keySerde().serializer(),
+        Topics.WAREHOUSE_INVENTORY.valueSerde().serializer())) {
+      for (final Product product : IN_STOCK) {
+        producer.send(new ProducerRecord<>(Topics.WAREHOUSE_INVENTORY.name(), product,
+            Integer.MAX_VALUE)).get();
+      }
+      producer.send(new ProducerRecord<>(Topics.WAREHOUSE_INVENTORY.name(), OUT_OF_STOCK, 0)).get();
+    }
+  }
+
+  private void report(final long elapsedNanos) {
+    int completed = 0;
+    for (int i = 0; i < kinds.length; i++) {
+      if (!validatedIncomplete[i] && validated[i] != NOT_COMPLETED) {
+        completed++;
+      }
+    }
+    final double completedSeconds = lastCompleted.get() / (double) TimeUnit.SECONDS.toNanos(1);
+    System.out.printf("Sent %d orders in %.1f s (send rate %.0f orders/s), %d errors, "
+            + "%d abandoned, %d in an unexpected final state%n",
+        kinds.length,
+        elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1),
+        kinds.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+        errors.get(),
+        abandoned.get(),
+        unexpected.get());
+    System.out.printf("Completed %d orders in %.1f s (throughput %.0f orders/s)%n",
+        completed,
+        completedSeconds,
+        completedSeconds > 0 ? completed / completedSeconds : 0d);
+    report("POST->CREATED", created, createdIncomplete, null);
+    report("POST->VALIDATED", validated, validatedIncomplete, null);
+    for (final Kind kind : Kind.values()) {
+      report("  " + kind.name().toLowerCase(), validated, validatedIncomplete, kind);
+    }
+  }
+
+  private void report(final String name,
+                      final long[] latencies,
+                      final boolean[] incompletes,
+                      final Kind kind) {
+    final long[] recorded = new long[latencies.length];
+    int count = 0;
+    int incomplete = 0;
+    for (int i = 0; i < latencies.length; i++) {
+      if (latencies[i] != NOT_COMPLETED && (kind == null || kinds[i] == kind)) {
+        recorded[count++] = latencies[i];
+        if (incompletes[i]) {
+          incomplete++;
+        }
+      }
+    }
+    if (count == 0) {
+      System.out.printf("%-16s none sent%n", name);
+      return;
+    }
+    final long[] sorted = Arrays.copyOf(recorded, count);
+    Arrays.sort(sorted);
+    System.out.printf("%-16s %7d orders (%d incomplete, counted at >= %d s), latency p50: %8.2f ms, "
+            + "p90: %8.2f ms, p99: %8.2f ms, p99.9: %8.2f ms, max: %8.2f ms%n",
+        name,
+        count,
+        incomplete,
+        VALIDATION_TIMEOUT.getSeconds(),
+        percentile(sorted, 0.50),
+        percentile(sorted, 0.90),
+        percentile(sorted, 0.99),
+        percentile(sorted, 0.999),
+        percentile(sorted, 1.0));
+  }
+
+  private static double percentile(final long[] sorted, final double percentile) {
+    final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
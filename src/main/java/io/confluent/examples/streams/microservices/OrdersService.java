@@ -3,15 +3,25 @@ package io.confluent.examples.streams.microservices;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.errors.InvalidStateStoreException;
 import org.apache.kafka.streams.kstream.Consumed;
-import org.apache.kafka.streams.kstream.Materialized;
 import org.apache.kafka.streams.kstream.Predicate;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKey;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
 import org.apache.kafka.streams.state.QueryableStoreTypes;
 import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.apache.kafka.streams.state.Stores;
 import org.apache.kafka.streams.StreamsConfig;
 
 import org.eclipse.jetty.server.Server;
@@ -22,25 +32,48 @@ import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletRequest;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
 
 import io.confluent.examples.streams.avro.microservices.Order;
 import io.confluent.examples.streams.avro.microservices.OrderState;
@@ -48,21 +81,33 @@ import io.confluent.examples.streams.interactivequeries.HostStoreInfo;
 import io.confluent.examples.streams.interactivequeries.MetadataService;
 import io.confluent.examples.streams.microservices.domain.Schemas;
 import io.confluent.examples.streams.microservices.domain.beans.OrderBean;
+import io.confluent.examples.streams.microservices.domain.beans.OrderResultBean;
+import io.confluent.examples.streams.microservices.util.AdmissionController;
+import io.confluent.examples.streams.microservices.util.CustomerOrderKey;
+import io.confluent.examples.streams.microservices.util.LongPollRegistry;
+import io.confluent.examples.streams.microservices.util.OrderStateHeader;
 import io.confluent.examples.streams.microservices.util.Paths;
+import io.confluent.examples.streams.microservices.util.PipelineTracing;
+import io.confluent.examples.streams.microservices.util.RecentWrites;
+import io.confluent.examples.streams.microservices.util.RocksDBStatisticsRecorder;
+import io.confluent.examples.streams.microservices.util.TimeOrderedKey;
 
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.ORDERS;
 import static io.confluent.examples.streams.microservices.domain.beans.OrderBean.fromBean;
 import static io.confluent.examples.streams.microservices.domain.beans.OrderBean.toBean;
+import static io.confluent.examples.streams.microservices.util.AdmissionController.CLIENT_ID_HEADER;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.addShutdownHookAndBlock;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.baseStreamsConfig;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.createStreams;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.setTimeout;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startJetty;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startMetrics;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startProducer;
 import static org.apache.kafka.streams.state.StreamsMetadata.NOT_AVAILABLE;
 
 /**
  * This class provides a REST interface to write and read orders using a CQRS pattern
- * (https://martinfowler.com/bliki/CQRS.html). Three methods are exposed over HTTP:
+ * (https://martinfowler.com/bliki/CQRS.html). Four methods are exposed over HTTP:
  * <p>
  * - POST(Order) -> Writes and order and returns location of the resource.
  * <p>
@@ -70,6 +115,10 @@ import static org.apache.kafka.streams.state.StreamsMetadata.NOT_AVAILABLE;
  * <p>
  * - GET(OrderId)/Validated (Optional timeout)
  * <p>
+ * - POST(Orders) -> Writes a batch of orders and returns the location of each.
+ * <p>
+ * - GET(CustomerId)/Orders -> Returns every order for a customer.
+ * <p>
  * POST does what you might expect: it adds an Order to the system returning when Kafka sends the appropriate
  * acknowledgement.
  * <p>
@@ -81,6 +130,13 @@ import static org.apache.kafka.streams.state.StreamsMetadata.NOT_AVAILABLE;
  * is added to the view, or the passed TIMEOUT period elapses. This allows the caller to
  * read-their-own-writes.
  * <p>
+ * To save the caller that wait, orders POSTed to an instance are held in a small cache of
+ * {@link RecentWrites} from when Kafka acknowledges them until the view has caught up with
+ * them. A GET to that instance is served from the cache only when it would otherwise have to
+ * wait: when the order isn't in the view yet, or, for an order hosted elsewhere, when the owning
+ * instance doesn't answer straight away. The view, wherever it is, always wins once it has the
+ * order, so later updates made by other services aren't hidden by the cached version.
+ * <p>
  * In addition HTTP POST returns the location of the order submitted in the response.
  * <p>
  * Calling GET/id/validated will block until the FAILED/VALIDATED order is available in
@@ -88,13 +144,26 @@ import static org.apache.kafka.streams.state.StreamsMetadata.NOT_AVAILABLE;
  * <p>
  * The View can also be scaled out linearly simply by adding more instances of the
  * view service, and requests to any of the REST endpoints will be automatically forwarded to the
- * correct instance for the key requested orderId via Kafka's Queryable State feature.
+ * correct instance for the key requested orderId via Kafka's Queryable State feature. In
+ * REDIRECT routing mode the client is instead sent a 307 to the correct instance.
+ * <p>
+ * Non-blocking IO is used for all operations. Requests that arrive while the location of keys
+ * is unknown (on startup or during a rebalance) are parked, rather than holding a Jetty thread,
+ * and are resumed when Kafka Streams changes state, typically back to RUNNING, once the location
+ * of their key is known.
+ * <p>
+ * Alongside the view is an index of orders by customer. It is partitioned, like the view, by
+ * order id, so a customer's orders are spread over every instance. GETs for a customer's orders
+ * are therefore scattered to every instance hosting the view, each of which looks the customer
+ * up in its own part of the index, and the results gathered.
+ * <p>
+ * POSTs go through an {@link AdmissionController}, which bounds the number of orders in flight
+ * to Kafka and, optionally, the rate of each client, so a slow cluster turns POSTs away with a
+ * 503 or 429, and a Retry-After, rather than stalling the whole service.
  * <p>
- * Non-blocking IO is used for all operations other than the intialization of state stores on
- * startup or rebalance which will block calling Jetty thread.
- *<p>
- * NB This demo code only includes a partial implementation of the holding of outstanding requests
- * and as such would lead timeouts if used in a production use case.
+ * Orders that are complete (VALIDATED, FAILED or SHIPPED) are removed from the view, and the
+ * index, once they have gone unchanged for the completed order retention, so the view holds
+ * roughly the order rate times the retention rather than every order ever placed.
  */
 @Path("v1")
 public class OrdersService implements Service {
@@ -102,6 +171,26 @@ public class OrdersService implements Service {
   private static final Logger log = LoggerFactory.getLogger(OrdersService.class);
   private static final String CALL_TIMEOUT = "10000";
   private static final String ORDERS_STORE_NAME = "orders-store";
+  private static final String ORDERS_BY_CUSTOMER_STORE_NAME = "orders-by-customer-store";
+  private static final String ORDERS_EXPIRY_STORE_NAME = "orders-expiry-store";
+  public static final Duration DEFAULT_COMPLETED_ORDER_RETENTION = Duration.ofDays(7);
+  //How often to look for completed orders to expire, at most
+  private static final long MAX_EXPIRY_INTERVAL_MS = 60_000;
+  private static final byte[] NO_VALUE = new byte[0];
+  //How long to give the instance that owns an order to return it before serving it from the
+  //recent writes instead
+  private static final long RECENT_WRITE_WAIT_MS = 50;
+  //How often to check parked requests between changes of state, in case one was missed
+  private static final long METADATA_BACKSTOP_INTERVAL_MS = 5000;
+  //Resumed requests may wait on another instance, so get threads of their own, but a bounded
+  //number of them, however many requests are parked
+  private static final int METADATA_RESUME_THREADS = 8;
+  /**
+   * Request header a client can set to "true" to be told which instance owns the order it asked
+   * for, via the {@link #ROUTING_OWNER_HEADER} response header.
+   */
+  public static final String ROUTING_HINT_HEADER = "X-Routing-Hint";
+  public static final String ROUTING_OWNER_HEADER = "X-Routing-Owner";
   private final String SERVICE_APP_ID = getClass().getSimpleName();
   private final Client client = ClientBuilder.newBuilder().register(JacksonFeature.class).build();
   private Server jettyServer;
@@ -110,10 +199,25 @@ public class OrdersService implements Service {
   private KafkaStreams streams = null;
   private MetadataService metadataService;
   private KafkaProducer<String, Order> producer;
+  private RoutingMode routingMode = RoutingMode.PROXY;
+  private int maxInFlight = AdmissionController.DEFAULT_MAX_IN_FLIGHT;
+  private double clientRate = 0;
+  private int clientBurst = 0;
+  private AdmissionController admission;
+  private Duration completedOrderRetention = DEFAULT_COMPLETED_ORDER_RETENTION;
 
-  //In a real implementation we would need to (a) support outstanding requests for the same Id/filter from
-  // different users and (b) periodically purge old entries from this map.
-  private final Map<String, FilteredResponse<String, Order>> outstandingRequests = new ConcurrentHashMap<>();
+  private Metrics metrics;
+  private RocksDBStatisticsRecorder rocksDBStatistics;
+  private PipelineTracing tracing;
+  //Requests waiting for an order to arrive in the view. Many can wait on the same id, and any
+  //left outstanding are purged when their timeout expires.
+  private LongPollRegistry<String, Order> outstandingRequests;
+  //Orders POSTed to this instance that may not have reached the view yet
+  private RecentWrites<String, Order> recentWrites;
+  //Requests waiting for the location of their key to be known, e.g. during a rebalance
+  private final Queue<ParkedRequest> awaitingMetadata = new ConcurrentLinkedQueue<>();
+  private ExecutorService metadataExecutor;
+  private ScheduledExecutorService metadataBackstop;
 
   public OrdersService(final String host, final int port) {
     this.host = host;
@@ -125,29 +229,154 @@ public class OrdersService implements Service {
   }
 
   /**
-   * Create a table of orders which we can query. When the table is updated
-   * we check to see if there is an outstanding HTTP GET request waiting to be
-   * fulfilled.
+   * Create a table of orders which we can query, and an index of it by customer, along with an
+   * index of completed orders by time so they can be expired. When the table is updated we check
+   * to see if there is an outstanding HTTP GET request waiting to be fulfilled.
    */
   private StreamsBuilder createOrdersMaterializedView() {
     final StreamsBuilder builder = new StreamsBuilder();
-    builder.table(ORDERS.name(), Consumed.with(ORDERS.keySerde(), ORDERS.valueSerde()), Materialized.as(ORDERS_STORE_NAME))
-        .toStream().foreach(this::maybeCompleteLongPollGet);
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.persistentKeyValueStore(ORDERS_STORE_NAME), ORDERS.keySerde(), ORDERS.valueSerde()));
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.persistentKeyValueStore(ORDERS_BY_CUSTOMER_STORE_NAME), Serdes.Bytes(), Serdes.ByteArray()));
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.persistentKeyValueStore(ORDERS_EXPIRY_STORE_NAME), Serdes.Bytes(), Serdes.ByteArray()));
+    final long retentionMs = completedOrderRetention.toMillis();
+    builder.stream(ORDERS.name(), Consumed.with(ORDERS.keySerde(), ORDERS.valueSerde()))
+        .filter((id, order) -> id != null)
+        .transformValues(() -> new OrdersView(recentWrites, retentionMs),
+            ORDERS_STORE_NAME, ORDERS_BY_CUSTOMER_STORE_NAME, ORDERS_EXPIRY_STORE_NAME)
+        //time how long orders took to get here, the total for those that are VALIDATED or FAILED
+        .transformValues(tracing.<Order>inStreams(
+            order -> order.getState() == OrderState.VALIDATED || order.getState() == OrderState.FAILED))
+        .foreach(this::maybeCompleteLongPollGet);
     return builder;
   }
 
   private void maybeCompleteLongPollGet(final String id, final Order order) {
-    final FilteredResponse<String, Order> callback = outstandingRequests.get(id);
-    if (callback != null && callback.predicate.test(id, order)) {
-      callback.asyncResponse.resume(toBean(order));
+    outstandingRequests.complete(id, order);
+  }
+
+  /**
+   * Applies each order to the view, as a table would, and keeps the index by customer in step,
+   * moving an order's entry should its customer change and removing it should it be deleted.
+   * Each order's index entry is in the same partition as the order, and holds the timestamp of
+   * the order's latest update. Once an order is in the view it no longer needs to be held in the
+   * recent writes.
+   * <p>
+   * When an order is updated to a complete state it is also put in the expiry index, keyed by
+   * the timestamp of the update, so that a punctuator can find those that are due by scanning
+   * only the start of it. An order updated again is left in the expiry index under its earlier
+   * timestamp too; when that entry comes due the timestamps no longer match, so the order is
+   * kept until its latest entry does. Deleting from the stores writes tombstones to their
+   * changelogs, so expired orders aren't restored.
+   */
+  private static class OrdersView implements ValueTransformerWithKey<String, Order, Order> {
+
+    private final RecentWrites<String, Order> recentWrites;
+    private final long retentionMs;
+    private ProcessorContext context;
+    private KeyValueStore<String, Order> orders;
+    private KeyValueStore<Bytes, byte[]> ordersByCustomer;
+    private KeyValueStore<Bytes, byte[]> ordersExpiry;
+
+    /**
+     * @param retentionMs how long to keep completed orders after their last update, or 0 to
+     * keep them forever
+     */
+    OrdersView(final RecentWrites<String, Order> recentWrites, final long retentionMs) {
+      this.recentWrites = recentWrites;
+      this.retentionMs = retentionMs;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void init(final ProcessorContext context) {
+      this.context = context;
+      orders = (KeyValueStore<String, Order>) context.getStateStore(ORDERS_STORE_NAME);
+      ordersByCustomer = (KeyValueStore<Bytes, byte[]>) context.getStateStore(ORDERS_BY_CUSTOMER_STORE_NAME);
+      ordersExpiry = (KeyValueStore<Bytes, byte[]>) context.getStateStore(ORDERS_EXPIRY_STORE_NAME);
+      if (retentionMs > 0) {
+        context.schedule(Duration.ofMillis(Math.min(retentionMs, MAX_EXPIRY_INTERVAL_MS)),
+            PunctuationType.WALL_CLOCK_TIME, this::expire);
+      }
+    }
+
+    @Override
+    public Order transform(final String id, final Order order) {
+      final Order previous = orders.get(id);
+      if (previous != null
+          && (order == null || !previous.getCustomerId().equals(order.getCustomerId()))) {
+        ordersByCustomer.delete(CustomerOrderKey.key(previous.getCustomerId(), id));
+      }
+      if (order == null) {
+        orders.delete(id);
+      } else {
+        final long updated = Math.max(0, context.timestamp());
+        orders.put(id, order);
+        ordersByCustomer.put(CustomerOrderKey.key(order.getCustomerId(), id), timestampBytes(updated));
+        if (retentionMs > 0 && isComplete(order)) {
+          ordersExpiry.put(TimeOrderedKey.key(updated, id), NO_VALUE);
+        }
+      }
+      recentWrites.applied(id, context.partition(), context.offset());
+      return order;
     }
+
+    /**
+     * Remove every completed order whose latest update is older than the retention.
+     */
+    private void expire(final long now) {
+      final List<Bytes> due = new ArrayList<>();
+      try (final KeyValueIterator<Bytes, byte[]> entries =
+               ordersExpiry.range(TimeOrderedKey.from(), TimeOrderedKey.to(now - retentionMs))) {
+        entries.forEachRemaining(entry -> due.add(entry.key));
+      }
+      int expired = 0;
+      for (final Bytes key : due) {
+        ordersExpiry.delete(key);
+        final String id = TimeOrderedKey.id(key);
+        final Order order = orders.get(id);
+        if (order == null || !isComplete(order)) {
+          continue;
+        }
+        final Bytes customerKey = CustomerOrderKey.key(order.getCustomerId(), id);
+        final byte[] updated = ordersByCustomer.get(customerKey);
+        if (updated != null && timestamp(updated) == TimeOrderedKey.timestamp(key)) {
+          orders.delete(id);
+          ordersByCustomer.delete(customerKey);
+          expired++;
+        }
+      }
+      if (expired > 0) {
+        log.debug("Expired {} completed orders from task {}", expired, context.taskId());
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static boolean isComplete(final Order order) {
+    return order.getState() == OrderState.VALIDATED
+        || order.getState() == OrderState.FAILED
+        || order.getState() == OrderState.SHIPPED;
+  }
+
+  private static byte[] timestampBytes(final long timestamp) {
+    return ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array();
+  }
+
+  private static long timestamp(final byte[] bytes) {
+    return ByteBuffer.wrap(bytes).getLong();
   }
 
   /**
    * Perform a "Long-Poll" styled get. This method will attempt to get the value for the passed key
    * blocking until the key is available or passed timeout is reached. Non-blocking IO is used to
-   * implement this, but the API will block the calling thread if no metastore data is available
-   * (for example on startup or during a rebalance)
+   * implement this. If no metastore data is available (for example on startup or during a
+   * rebalance) the request is parked until it is.
    *
    * @param id - the key of the value to retrieve
    * @param timeout - the timeout for the long-poll
@@ -160,31 +389,36 @@ public class OrdersService implements Service {
   @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
   public void getWithTimeout(@PathParam("id") final String id,
       @QueryParam("timeout") @DefaultValue(CALL_TIMEOUT) final Long timeout,
+      @HeaderParam(ROUTING_HINT_HEADER) @DefaultValue("false") final boolean routingHint,
       @Suspended final AsyncResponse asyncResponse) {
     setTimeout(timeout, asyncResponse);
 
-    final HostStoreInfo hostForKey = getKeyLocationOrBlock(id, asyncResponse);
-
-    if (hostForKey == null) { //request timed out so return
-      return;
-    }
-    //Retrieve the order locally or reach out to a different instance if the required partition is hosted elsewhere.
-    if (thisHost(hostForKey)) {
-      fetchLocal(id, asyncResponse, (k, v) -> true);
-    } else {
-      final String path = new Paths(hostForKey.getHost(), hostForKey.getPort()).urlGet(id);
-      fetchFromOtherHost(path, asyncResponse, timeout);
-    }
+    withKeyLocation(id, asyncResponse, hostForKey -> {
+      //Retrieve the order locally or reach out to a different instance if the required partition is hosted elsewhere.
+      if (thisHost(hostForKey)) {
+        fetchLocal(id, asyncResponse, (k, v) -> true, timeout);
+      } else {
+        final Paths owner = new Paths(hostForKey.getHost(), hostForKey.getPort());
+        routeToOtherHost(id, (k, v) -> true, owner, owner.urlGet(id), asyncResponse, timeout, routingHint);
+      }
+    });
   }
 
-  class FilteredResponse<K, V> {
-    private final AsyncResponse asyncResponse;
-    private final Predicate<K, V> predicate;
-
-    FilteredResponse(final AsyncResponse asyncResponse, final Predicate<K, V> predicate) {
-      this.asyncResponse = asyncResponse;
-      this.predicate = predicate;
+  /**
+   * Serve the order from those recently POSTed to this instance, if it's there and matches the
+   * predicate. Only used when the view hasn't got the order yet.
+   *
+   * @return whether the request was served
+   */
+  private boolean fetchRecentWrite(final String id,
+                                   final AsyncResponse asyncResponse,
+                                   final Predicate<String, Order> predicate) {
+    final Order order = recentWrites.get(id, predicate);
+    if (order == null) {
+      return false;
     }
+    asyncResponse.resume(toBean(order));
+    return true;
   }
 
   /**
@@ -194,20 +428,35 @@ public class OrdersService implements Service {
    * @param asyncResponse the response to call once completed
    * @param predicate a filter that for this fetch, so for example we might fetch only VALIDATED
    * orders.
+   * @param timeout the timeout of the request, after which it will no longer be held
    */
-  private void fetchLocal(final String id, final AsyncResponse asyncResponse, final Predicate<String, Order> predicate) {
+  private void fetchLocal(final String id,
+                          final AsyncResponse asyncResponse,
+                          final Predicate<String, Order> predicate,
+                          final long timeout) {
     log.info("running GET on this node");
     try {
       final Order order = ordersStore().get(id);
       if (order == null || !predicate.test(id, order)) {
+        if (fetchRecentWrite(id, asyncResponse, predicate)) {
+          return;
+        }
         log.info("Delaying get as order not present for id " + id);
-        outstandingRequests.put(id, new FilteredResponse<>(asyncResponse, predicate));
+        outstandingRequests.register(id, predicate, asyncResponse, timeout);
+        //The order may have arrived between reading the store and registering, so check again
+        final Order arrived = ordersStore().get(id);
+        if (arrived != null) {
+          outstandingRequests.complete(id, arrived);
+        }
       } else {
         asyncResponse.resume(toBean(order));
       }
     } catch (final InvalidStateStoreException e) {
       //Store not ready so delay
-      outstandingRequests.put(id, new FilteredResponse<>(asyncResponse, predicate));
+      if (fetchRecentWrite(id, asyncResponse, predicate)) {
+        return;
+      }
+      outstandingRequests.register(id, predicate, asyncResponse, timeout);
     }
   }
 
@@ -215,29 +464,190 @@ public class OrdersService implements Service {
     return streams.store(ORDERS_STORE_NAME, QueryableStoreTypes.keyValueStore());
   }
 
+  /**
+   * Get every order for a customer, from every instance. Each instance hosting the view is asked
+   * for the orders in its own part of the index, in parallel, and the results merged, in order
+   * id order. If any instance can't be reached, or doesn't answer within the timeout, which
+   * covers the whole request rather than each instance in turn, the request fails, rather than
+   * returning only some of the customer's orders.
+   *
+   * @param customerId the customer whose orders to get
+   * @param localOnly only look in this instance's part of the index
+   */
+  @GET
+  @ManagedAsync
+  @Path("customers/{id}/orders")
+  @Produces(MediaType.APPLICATION_JSON)
+  public void getOrdersForCustomer(@PathParam("id") final Long customerId,
+      @QueryParam("local") @DefaultValue("false") final boolean localOnly,
+      @QueryParam("timeout") @DefaultValue(CALL_TIMEOUT) final Long timeout,
+      @Suspended final AsyncResponse asyncResponse) {
+    setTimeout(timeout, asyncResponse);
+    if (localOnly) {
+      try {
+        asyncResponse.resume(localOrdersForCustomer(customerId));
+      } catch (final InvalidStateStoreException e) {
+        asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+            .entity("The orders view is not ready: " + e.getMessage() + "\n")
+            .build());
+      }
+      return;
+    }
+
+    //The whole gather shares the one timeout, however many instances it waits on
+    final long deadline = System.currentTimeMillis() + timeout;
+    withStoreLocations(asyncResponse, hosts -> {
+      final Map<String, OrderBean> orders = new TreeMap<>();
+      final List<Future<List<OrderBean>>> remote = new ArrayList<>();
+      for (final HostStoreInfo host : hosts) {
+        if (!thisHost(host)) {
+          log.info("Scattering GET for customer " + customerId + " to " + host.getHost() + ":" + host.getPort());
+          remote.add(client.target(new Paths(host.getHost(), host.getPort()).urlCustomerOrders(customerId))
+              .queryParam("local", true)
+              .request(MediaType.APPLICATION_JSON_TYPE)
+              .async()
+              .get(new GenericType<List<OrderBean>>() {
+              }));
+        }
+      }
+      try {
+        if (hosts.stream().anyMatch(this::thisHost)) {
+          localOrdersForCustomer(customerId).forEach(order -> orders.put(order.getId(), order));
+        }
+        for (final Future<List<OrderBean>> result : remote) {
+          final long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+          result.get(remaining, TimeUnit.MILLISECONDS).forEach(order -> orders.put(order.getId(), order));
+        }
+        asyncResponse.resume(new ArrayList<>(orders.values()));
+      } catch (final InvalidStateStoreException | ExecutionException | TimeoutException e) {
+        log.warn("Failed to gather the orders for customer " + customerId, e);
+        asyncResponse.resume(Response.status(Response.Status.BAD_GATEWAY)
+            .entity("Failed to reach every instance hosting orders: " + e.getMessage() + "\n")
+            .build());
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        asyncResponse.resume(e);
+      } finally {
+        remote.forEach(result -> result.cancel(true));
+      }
+    });
+  }
+
+  private List<OrderBean> localOrdersForCustomer(final long customerId) {
+    final ReadOnlyKeyValueStore<Bytes, byte[]> index =
+        streams.store(ORDERS_BY_CUSTOMER_STORE_NAME, QueryableStoreTypes.keyValueStore());
+    final ReadOnlyKeyValueStore<String, Order> orders = ordersStore();
+    final List<OrderBean> found = new ArrayList<>();
+    try (final KeyValueIterator<Bytes, byte[]> entries =
+             index.range(CustomerOrderKey.from(customerId), CustomerOrderKey.to(customerId))) {
+      while (entries.hasNext()) {
+        final Order order = orders.get(CustomerOrderKey.orderId(entries.next().key));
+        //The order is in the same partition as its entry, so is only missing, or for someone
+        //else, if it changed since the index was read
+        if (order != null && order.getCustomerId() == customerId) {
+          found.add(toBean(order));
+        }
+      }
+    }
+    return found;
+  }
+
   /**
    * Use Kafka Streams' Queryable State API to work out if a key/value pair is located on
-   * this node, or on another Kafka Streams node. This returned HostStoreInfo can be used
-   * to redirect an HTTP request to the node that has the data.
+   * this node, or on another Kafka Streams node, then pass the resulting HostStoreInfo to the
+   * action, which can use it to redirect an HTTP request to the node that has the data.
    * <p>
-   * If metadata is available, which can happen on startup, or during a rebalance, block until it is.
+   * If metadata is unavailable, which can happen on startup, or during a rebalance, the request
+   * is parked rather than blocking the calling thread. Parked requests are checked whenever Kafka
+   * Streams changes state, and each is resumed once the location of its key is known. A timer
+   * checks them every {@link #METADATA_BACKSTOP_INTERVAL_MS} too, in case a change is missed.
+   */
+  private void withKeyLocation(final String id,
+                               final AsyncResponse asyncResponse,
+                               final Consumer<HostStoreInfo> action) {
+    if (asyncResponse.isDone()) {
+      //The response timed out so return
+      return;
+    }
+    final HostStoreInfo locationOfKey = getHostForOrderId(id);
+    if (!locationMetadataIsUnavailable(locationOfKey)) {
+      action.accept(locationOfKey);
+      return;
+    }
+    //The metastore is not available. This can happen on startup/rebalance.
+    awaitingMetadata.removeIf(parked -> parked.asyncResponse.isDone());
+    awaitingMetadata.add(new ParkedRequest(asyncResponse,
+        () -> !locationMetadataIsUnavailable(getHostForOrderId(id)),
+        () -> withKeyLocation(id, asyncResponse, action)));
+    //Metadata may have become available while the request was being parked
+    if (!locationMetadataIsUnavailable(getHostForOrderId(id))) {
+      releaseAwaitingMetadata();
+    }
+  }
+
+  /**
+   * Pass every instance hosting the orders view to the action, parking the request, as
+   * {@link #withKeyLocation} does, if they aren't known yet.
+   */
+  private void withStoreLocations(final AsyncResponse asyncResponse,
+                                  final Consumer<List<HostStoreInfo>> action) {
+    if (asyncResponse.isDone()) {
+      //The response timed out so return
+      return;
+    }
+    final List<HostStoreInfo> hosts = metadataService.streamsMetadataForStore(ORDERS_STORE_NAME);
+    if (!storeMetadataIsUnavailable(hosts)) {
+      action.accept(hosts);
+      return;
+    }
+    awaitingMetadata.removeIf(parked -> parked.asyncResponse.isDone());
+    awaitingMetadata.add(new ParkedRequest(asyncResponse,
+        () -> !storeMetadataIsUnavailable(metadataService.streamsMetadataForStore(ORDERS_STORE_NAME)),
+        () -> withStoreLocations(asyncResponse, action)));
+    //Metadata may have become available while the request was being parked
+    if (!storeMetadataIsUnavailable(metadataService.streamsMetadataForStore(ORDERS_STORE_NAME))) {
+      releaseAwaitingMetadata();
+    }
+  }
+
+  private boolean storeMetadataIsUnavailable(final List<HostStoreInfo> hosts) {
+    return hosts.isEmpty() || hosts.stream().anyMatch(this::locationMetadataIsUnavailable);
+  }
+
+  /**
+   * Resume the parked requests whose metadata is now available, and drop those that have timed
+   * out. The rest stay parked.
    */
-  private HostStoreInfo getKeyLocationOrBlock(final String id, final AsyncResponse asyncResponse) {
-    HostStoreInfo locationOfKey;
-    while (locationMetadataIsUnavailable(locationOfKey = getHostForOrderId(id))) {
-      //The metastore is not available. This can happen on startup/rebalance.
-      if (asyncResponse.isDone()) {
-        //The response timed out so return
-        return null;
+  private void releaseAwaitingMetadata() {
+    for (final ParkedRequest parked : awaitingMetadata) {
+      if (parked.asyncResponse.isDone()) {
+        awaitingMetadata.remove(parked);
+      } else if (parked.isReady() && awaitingMetadata.remove(parked)) {
+        //Only the caller that removed it resumes it
+        metadataExecutor.execute(parked.resume);
       }
+    }
+  }
+
+  private static class ParkedRequest {
+    private final AsyncResponse asyncResponse;
+    private final BooleanSupplier ready;
+    private final Runnable resume;
+
+    ParkedRequest(final AsyncResponse asyncResponse, final BooleanSupplier ready, final Runnable resume) {
+      this.asyncResponse = asyncResponse;
+      this.ready = ready;
+      this.resume = resume;
+    }
+
+    private boolean isReady() {
       try {
-        //Sleep a bit until metadata becomes available
-        Thread.sleep(Math.min(Long.valueOf(CALL_TIMEOUT), 200));
-      } catch (final InterruptedException e) {
-        e.printStackTrace();
+        return ready.getAsBoolean();
+      } catch (final RuntimeException e) {
+        //Let the request itself run into, and report, whatever went wrong
+        return true;
       }
     }
-    return locationOfKey;
   }
 
   private boolean locationMetadataIsUnavailable(final HostStoreInfo hostWithKey) {
@@ -250,16 +660,79 @@ public class OrdersService implements Service {
         host.getPort() == port;
   }
 
-  private void fetchFromOtherHost(final String path, final AsyncResponse asyncResponse, final long timeout) {
+  /**
+   * Serve a request for a key that is hosted on a different instance, either by proxying it or,
+   * in REDIRECT mode, by sending the client a 307 to the instance that owns the key. If the
+   * client opted in with the routing hint header, the owner's base url is returned in the
+   * {@link #ROUTING_OWNER_HEADER} header so it can go straight there on subsequent calls.
+   */
+  private void routeToOtherHost(final String id,
+                                final Predicate<String, Order> predicate,
+                                final Paths owner,
+                                final String path,
+                                final AsyncResponse asyncResponse,
+                                final long timeout,
+                                final boolean routingHint) {
+    final String ownerHint = routingHint ? owner.urlBase() : null;
+    if (routingMode == RoutingMode.REDIRECT) {
+      log.info("Redirecting GET to a different instance: " + path);
+      final URI location = UriBuilder.fromUri(path).queryParam("timeout", timeout).build();
+      asyncResponse.resume(Response.temporaryRedirect(location)
+          .header(ROUTING_OWNER_HEADER, ownerHint)
+          .build());
+    } else {
+      fetchFromOtherHost(id, predicate, path, asyncResponse, timeout, ownerHint);
+    }
+  }
+
+  /**
+   * Proxy the GET to the instance that owns the order. Should the owner not answer within
+   * {@link #RECENT_WRITE_WAIT_MS}, because it is waiting for the order to reach its view, and the
+   * order was recently POSTed here, the recent write is returned instead.
+   */
+  private void fetchFromOtherHost(final String id,
+                                  final Predicate<String, Order> predicate,
+                                  final String path,
+                                  final AsyncResponse asyncResponse,
+                                  final long timeout,
+                                  final String ownerHint) {
     log.info("Chaining GET to a different instance: " + path);
-    try {
-      final OrderBean bean = client.target(path)
-                                   .queryParam("timeout", timeout)
-                                   .request(MediaType.APPLICATION_JSON_TYPE)
-                                   .get(new GenericType<OrderBean>() {
+    final Future<OrderBean> result = client.target(path)
+                                           .queryParam("timeout", timeout)
+                                           .request(MediaType.APPLICATION_JSON_TYPE)
+                                           .async()
+                                           .get(new GenericType<OrderBean>() {
           });
-      asyncResponse.resume(bean);
-    } catch (final Exception swallowed) {
+    try {
+      OrderBean bean;
+      try {
+        bean = result.get(RECENT_WRITE_WAIT_MS, TimeUnit.MILLISECONDS);
+      } catch (final TimeoutException e) {
+        final Order recent = recentWrites.get(id, predicate);
+        if (recent != null) {
+          result.cancel(true);
+          asyncResponse.resume(Response.ok(toBean(recent)).header(ROUTING_OWNER_HEADER, ownerHint).build());
+          return;
+        }
+        bean = result.get();
+      }
+      asyncResponse.resume(Response.ok(bean).header(ROUTING_OWNER_HEADER, ownerHint).build());
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof WebApplicationException) {
+        //Pass the other instance's failure, for example a timeout, back to the client
+        asyncResponse.resume(Response.status(((WebApplicationException) e.getCause()).getResponse().getStatus())
+            .entity(e.getCause().getMessage() + "\n")
+            .build());
+      } else {
+        log.warn("Failed to chain GET to " + path, e.getCause());
+        asyncResponse.resume(Response.status(Response.Status.BAD_GATEWAY)
+            .entity("Failed to reach the instance hosting the order: " + e.getCause().getMessage() + "\n")
+            .build());
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.cancel(true);
+      asyncResponse.resume(e);
     }
   }
 
@@ -268,31 +741,45 @@ public class OrdersService implements Service {
   @Path("orders/{id}/validated")
   public void getPostValidationWithTimeout(@PathParam("id") final String id,
       @QueryParam("timeout") @DefaultValue(CALL_TIMEOUT) final Long timeout,
+      @HeaderParam(ROUTING_HINT_HEADER) @DefaultValue("false") final boolean routingHint,
       @Suspended final AsyncResponse asyncResponse) {
+    final Predicate<String, Order> isValidated =
+        (k, v) -> (v.getState() == OrderState.VALIDATED || v.getState() == OrderState.FAILED);
     setTimeout(timeout, asyncResponse);
 
-    final HostStoreInfo hostForKey = getKeyLocationOrBlock(id, asyncResponse);
+    withKeyLocation(id, asyncResponse, hostForKey -> {
+      //Retrieve the order locally or reach out to a different instance if the required partition is hosted elsewhere.
+      if (thisHost(hostForKey)) {
+        fetchLocal(id, asyncResponse, isValidated, timeout);
+      } else {
+        final Paths owner = new Paths(hostForKey.getHost(), hostForKey.getPort());
+        routeToOtherHost(id, isValidated, owner, owner.urlGetValidated(id), asyncResponse, timeout, routingHint);
+      }
+    });
+  }
 
-    if (hostForKey == null) { //request timed out so return
-      return;
-    }
-    //Retrieve the order locally or reach out to a different instance if the required partition is hosted elsewhere.
-    if (thisHost(hostForKey)) {
-      fetchLocal(id, asyncResponse,
-          (k, v) -> (v.getState() == OrderState.VALIDATED || v.getState() == OrderState.FAILED));
-    } else {
-      fetchFromOtherHost(new Paths(hostForKey.getHost(), hostForKey.getPort()).urlGetValidated(id),
-          asyncResponse, timeout);
-    }
+
+  /**
+   * Summarise how long orders submitted to this instance took to reach their final state, end
+   * to end and for each hop along the way. See {@link PipelineTracing}. Each service reports the
+   * latency of its own hops over JMX as well.
+   */
+  @GET
+  @Path("/latency")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Map<String, Double>> latency() {
+    return tracing.summary();
   }
 
 
   /**
    * Persist an Order to Kafka. Returns once the order is successfully written to R nodes where
-   * R is the replication factor configured in Kafka.
+   * R is the replication factor configured in Kafka, or straight away with a 503 or 429 if it
+   * isn't admitted.
    *
    * @param order the order to add
    * @param timeout the max time to wait for the response from Kafka before timing out the POST
+   * @param clientId who is sending the order, for per-client rate limits
    */
   @POST
   @ManagedAsync
@@ -300,17 +787,115 @@ public class OrdersService implements Service {
   @Consumes(MediaType.APPLICATION_JSON)
   public void submitOrder(final OrderBean order,
       @QueryParam("timeout") @DefaultValue(CALL_TIMEOUT) final Long timeout,
+      @HeaderParam(CLIENT_ID_HEADER) final String clientId,
+      @Context final HttpServletRequest request,
       @Suspended final AsyncResponse response) {
+    final Response rejection = admission.admit(clientId(clientId, request), 1);
+    if (rejection != null) {
+      response.resume(rejection);
+      return;
+    }
     setTimeout(timeout, response);
 
     final Order bean = fromBean(order);
-    producer.send(new ProducerRecord<>(ORDERS.name(), bean.getId(), bean),
-        callback(response, bean.getId()));
+    final Callback onSent = callback(response, bean.getId());
+    final Callback releaseThenReply = (recordMetadata, e) -> {
+      admission.release(1);
+      if (e == null) {
+        written(bean, recordMetadata);
+      }
+      onSent.onCompletion(recordMetadata, e);
+    };
+    try {
+      producer.send(new ProducerRecord<>(ORDERS.name(), null, bean.getId(), bean,
+          OrderStateHeader.stamp(tracing.start(new RecordHeaders()), bean.getState())), releaseThenReply);
+    } catch (final KafkaException e) {
+      releaseThenReply.onCompletion(null, e);
+    }
+  }
+
+  /**
+   * Persist a batch of Orders to Kafka. Every order is handed to the producer without waiting
+   * for the previous one to be acknowledged, so the whole batch shares the same producer batches
+   * and round trips. Returns once every order has been acknowledged (or has failed), with one
+   * result per order, in the order they were submitted.
+   *
+   * The batch is admitted, or rejected, as a whole, counting each order against the limits.
+   * A batch with no orders in it, or no body at all, is a bad request.
+   *
+   * @param orders the orders to add
+   * @param timeout the max time to wait for the responses from Kafka before timing out the POST
+   * @param clientId who is sending the orders, for per-client rate limits
+   */
+  @POST
+  @ManagedAsync
+  @Path("/orders/batch")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public void submitOrders(final List<OrderBean> orders,
+      @QueryParam("timeout") @DefaultValue(CALL_TIMEOUT) final Long timeout,
+      @HeaderParam(CLIENT_ID_HEADER) final String clientId,
+      @Context final HttpServletRequest request,
+      @Suspended final AsyncResponse response) {
+    if (orders == null || orders.isEmpty()) {
+      response.resume(Response.status(Response.Status.BAD_REQUEST)
+          .entity("The batch has no orders in it\n")
+          .build());
+      return;
+    }
+    final Response rejection = admission.admit(clientId(clientId, request), orders.size());
+    if (rejection != null) {
+      response.resume(rejection);
+      return;
+    }
+    setTimeout(timeout, response);
+
+    final OrderResultBean[] results = new OrderResultBean[orders.size()];
+    final AtomicInteger remaining = new AtomicInteger(orders.size());
+    for (int i = 0; i < orders.size(); i++) {
+      final int index = i;
+      final Order bean = fromBean(orders.get(i));
+      final Callback onSent = (recordMetadata, e) -> {
+        admission.release(1);
+        if (e == null) {
+          written(bean, recordMetadata);
+        }
+        results[index] = e != null
+            ? OrderResultBean.failed(bean.getId(), e)
+            : OrderResultBean.created(bean.getId(), "/v1/orders/" + bean.getId());
+        if (remaining.decrementAndGet() == 0) {
+          response.resume(Arrays.asList(results));
+        }
+      };
+      try {
+        producer.send(new ProducerRecord<>(ORDERS.name(), null, bean.getId(), bean,
+            OrderStateHeader.stamp(tracing.start(new RecordHeaders()), bean.getState())), onSent);
+      } catch (final KafkaException e) {
+        onSent.onCompletion(null, e);
+      }
+    }
+  }
+
+  /**
+   * Hold an order Kafka has acknowledged until the view catches up with it, and hand it to any
+   * GETs already waiting for it here.
+   */
+  private void written(final Order order, final RecordMetadata recordMetadata) {
+    recentWrites.written(order.getId(), order, recordMetadata.partition(), recordMetadata.offset());
+    outstandingRequests.complete(order.getId(), order);
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public void start(final String bootstrapServers, final String stateDir) {
+    metrics = startMetrics(SERVICE_APP_ID);
+    rocksDBStatistics = new RocksDBStatisticsRecorder(SERVICE_APP_ID, metrics);
+    tracing = new PipelineTracing(SERVICE_APP_ID, metrics);
+    outstandingRequests = new LongPollRegistry<>(metrics, OrderBean::toBean);
+    recentWrites = new RecentWrites<>(metrics);
+    admission = new AdmissionController(metrics, maxInFlight, clientRate, clientBurst);
+    metadataExecutor = Executors.newFixedThreadPool(METADATA_RESUME_THREADS);
+    metadataBackstop = Executors.newSingleThreadScheduledExecutor();
     jettyServer = startJetty(port, this);
     port = jettyServer.getURI().getPort(); // update port, in case port was zero
     producer = startProducer(bootstrapServers, ORDERS);
@@ -319,10 +904,16 @@ public class OrdersService implements Service {
   }
 
   private KafkaStreams startKStreams(final String bootstrapServers) {
-    final KafkaStreams streams = new KafkaStreams(
+    final KafkaStreams streams = createStreams(
         createOrdersMaterializedView().build(),
-        config(bootstrapServers));
+        config(bootstrapServers),
+        rocksDBStatistics);
     metadataService = new MetadataService(streams);
+    //Metadata changes with the state, on startup or a rebalance, so that is when parked requests
+    //are checked, with a slow timer as a backstop
+    streams.setStateListener((newState, oldState) -> releaseAwaitingMetadata());
+    metadataBackstop.scheduleWithFixedDelay(this::releaseAwaitingMetadata,
+        METADATA_BACKSTOP_INTERVAL_MS, METADATA_BACKSTOP_INTERVAL_MS, TimeUnit.MILLISECONDS);
     streams.cleanUp(); //don't do this in prod as it clears your state stores
     streams.start();
     return streams;
@@ -339,6 +930,9 @@ public class OrdersService implements Service {
     if (streams != null) {
       streams.close();
     }
+    if (rocksDBStatistics != null) {
+      rocksDBStatistics.close();
+    }
     if (producer != null) {
       producer.close();
     }
@@ -349,6 +943,18 @@ public class OrdersService implements Service {
         e.printStackTrace();
       }
     }
+    if (outstandingRequests != null) {
+      outstandingRequests.close();
+    }
+    if (metadataBackstop != null) {
+      metadataBackstop.shutdownNow();
+    }
+    if (metadataExecutor != null) {
+      metadataExecutor.shutdownNow();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
   // for testing only
@@ -362,9 +968,51 @@ public class OrdersService implements Service {
     return port;
   }
 
+  /**
+   * How GETs for orders hosted on a different instance are served: PROXY forwards the request to
+   * the owning instance and relays the result, REDIRECT replies with a 307 to the owner.
+   */
+  public enum RoutingMode {
+    PROXY, REDIRECT
+  }
+
+  public void setRoutingMode(final RoutingMode routingMode) {
+    this.routingMode = routingMode;
+  }
+
+  /**
+   * Limit the orders POSTed to this instance. Must be called before {@link #start}.
+   *
+   * @param maxInFlight the most orders that may be waiting for Kafka to acknowledge them
+   * @param clientRate the orders per second each client may POST, or 0 for no limit
+   * @param clientBurst the most orders a client may POST at once, having been idle
+   */
+  public void setAdmissionControl(final int maxInFlight,
+                                  final double clientRate,
+                                  final int clientBurst) {
+    this.maxInFlight = maxInFlight;
+    this.clientRate = clientRate;
+    this.clientBurst = clientBurst;
+  }
+
+  /**
+   * How long to keep orders in the view once they are complete and no longer changing, or
+   * {@link Duration#ZERO} to keep them forever. Must be called before {@link #start}.
+   */
+  public void setCompletedOrderRetention(final Duration completedOrderRetention) {
+    this.completedOrderRetention = completedOrderRetention;
+  }
+
+  private static String clientId(final String clientId, final HttpServletRequest request) {
+    if (clientId != null) {
+      return clientId;
+    }
+    return request != null ? request.getRemoteAddr() : "unknown";
+  }
+
   private HostStoreInfo getHostForOrderId(final String orderId) {
     return metadataService
-        .streamsMetadataForStoreAndKey(ORDERS_STORE_NAME, orderId, Serdes.String().serializer());
+        .streamsMetadataForStoreAndKey(ORDERS_STORE_NAME, orderId, ORDERS.keySerde().serializer());
   }
 
   private Callback callback(final AsyncResponse response, final String orderId) {
@@ -389,9 +1037,17 @@ public class OrdersService implements Service {
     final String schemaRegistryUrl = args.length > 1 ? args[1] : "http://localhost:8081";
     final String restHostname = args.length > 2 ? args[2] : "localhost";
     final String restPort = args.length > 3 ? args[3] : null;
+    final String routingMode = args.length > 4 ? args[4] : RoutingMode.PROXY.name();
+    final int maxInFlight = args.length > 5 ? Integer.valueOf(args[5]) : AdmissionController.DEFAULT_MAX_IN_FLIGHT;
+    final double clientRate = args.length > 6 ? Double.valueOf(args[6]) : 0;
+    final Duration retention = args.length > 7
+        ? Duration.ofSeconds(Long.valueOf(args[7])) : DEFAULT_COMPLETED_ORDER_RETENTION;
 
     Schemas.configureSerdesWithSchemaRegistryUrl(schemaRegistryUrl);
     final OrdersService service = new OrdersService(restHostname, restPort == null ? 0 : Integer.valueOf(restPort));
+    service.setRoutingMode(RoutingMode.valueOf(routingMode.toUpperCase()));
+    service.setAdmissionControl(maxInFlight, clientRate, (int) Math.ceil(clientRate));
+    service.setCompletedOrderRetention(retention);
     service.start(bootstrapServers, "/tmp/kafka-streams");
     addShutdownHookAndBlock(service);
   }
@@ -8,14 +8,27 @@ import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics.ORDER_VALIDATIONS;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.addShutdownHookAndBlock;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.baseStreamsConfig;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.createStreams;
 import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.parseArgsAndConfigure;
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.startMetrics;
 
 import io.confluent.examples.streams.avro.microservices.Order;
 import io.confluent.examples.streams.avro.microservices.OrderState;
 import io.confluent.examples.streams.avro.microservices.OrderValidation;
+import io.confluent.examples.streams.avro.microservices.OrderValidationType;
+import io.confluent.examples.streams.microservices.util.OrderStateHeader;
+import io.confluent.examples.streams.microservices.util.PipelineTracing;
+import io.confluent.examples.streams.microservices.util.RocksDBStatisticsRecorder;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.Topology;
 import org.apache.kafka.streams.kstream.Consumed;
 import org.apache.kafka.streams.kstream.Grouped;
 import org.apache.kafka.streams.kstream.JoinWindows;
@@ -24,25 +37,46 @@ import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.Materialized;
 import org.apache.kafka.streams.kstream.Produced;
 import org.apache.kafka.streams.kstream.SessionWindows;
+import org.apache.kafka.streams.processor.Processor;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
  * A simple service which listens to to validation results from each of the Validation
  * services and aggregates them by order Id, triggering a pass or fail based on whether
  * all rules pass or not.
+ * <p>
+ * By default this is built from a session-windowed aggregate of the results, joined back to the
+ * orders. If {@link #setSingleProcessorEnabled(boolean)} is set, a single keyed processor is used
+ * instead. This keeps one small entry per order in flight, holding the original order and a
+ * bitset of the rules that have passed, and emits the VALIDATED or FAILED order as soon as the
+ * outcome is known. Entries are expired by a punctuator once they are older than the retention
+ * period. This avoids the repartitions, window stores and join buffers of the windowed version.
  */
 public class ValidationsAggregatorService implements Service {
 
   private static final Logger log = LoggerFactory.getLogger(ValidationsAggregatorService.class);
   private final String SERVICE_APP_ID = getClass().getSimpleName();
+  static final String VALIDATION_STATE_STORE_NAME = "order-validation-state";
+  private static final Duration RETENTION = Duration.ofMinutes(5);
+  private static final Duration PUNCTUATE_INTERVAL = Duration.ofMinutes(1);
   private final Consumed<String, OrderValidation> serdes1 = Consumed
       .with(ORDER_VALIDATIONS.keySerde(), ORDER_VALIDATIONS.valueSerde());
-  private final Consumed<String, Order> serdes2 = Consumed.with(ORDERS.keySerde(),
-      ORDERS.valueSerde());
   private final Grouped<String, OrderValidation> serdes3 = Grouped
       .with(ORDER_VALIDATIONS.keySerde(), ORDER_VALIDATIONS.valueSerde());
   private final Joined<String, Long, Order> serdes4 = Joined
@@ -55,10 +89,20 @@ public class ValidationsAggregatorService implements Service {
       .with(ORDERS.keySerde(), ORDER_VALIDATIONS.valueSerde(), ORDERS.valueSerde());
 
   private KafkaStreams streams;
+  private Metrics metrics;
+  private RocksDBStatisticsRecorder rocksDBStatistics;
+  private PipelineTracing tracing;
+  private Set<OrderValidationType> requiredRules = EnumSet.allOf(OrderValidationType.class);
+  private boolean singleProcessorEnabled = false;
 
   @Override
   public void start(final String bootstrapServers, final String stateDir) {
-    streams = aggregateOrderValidations(bootstrapServers, stateDir);
+    metrics = startMetrics(SERVICE_APP_ID);
+    rocksDBStatistics = new RocksDBStatisticsRecorder(SERVICE_APP_ID, metrics);
+    tracing = new PipelineTracing(SERVICE_APP_ID, metrics);
+    streams = singleProcessorEnabled
+        ? aggregateOrderValidationsInProcessor(bootstrapServers, stateDir)
+        : aggregateOrderValidations(bootstrapServers, stateDir);
     streams.cleanUp(); //don't do this in prod as it clears your state stores
     streams.start();
     log.info("Started Service " + getClass().getSimpleName());
@@ -67,14 +111,20 @@ public class ValidationsAggregatorService implements Service {
   private KafkaStreams aggregateOrderValidations(
       final String bootstrapServers,
       final String stateDir) {
-    final int numberOfRules = 3; //TODO put into a KTable to make dynamically configurable
+    final Set<OrderValidationType> rules = EnumSet.copyOf(requiredRules);
+    final int numberOfRules = rules.size();
 
     final StreamsBuilder builder = new StreamsBuilder();
     final KStream<String, OrderValidation> validations = builder
-        .stream(ORDER_VALIDATIONS.name(), serdes1);
+        .stream(ORDER_VALIDATIONS.name(), serdes1)
+        //results of rules that aren't required neither pass nor fail an order
+        .filter((id, validation) -> validation != null && rules.contains(validation.getCheckType()))
+        .transformValues(tracing.<OrderValidation>receivedInStreams());
     final KStream<String, Order> orders = builder
-        .stream(ORDERS.name(), serdes2)
-        .filter((id, order) -> OrderState.CREATED.equals(order.getState()));
+        .stream(ORDERS.name(), Consumed.with(ORDERS.keySerde(),
+            OrderStateHeader.filtering(SERVICE_APP_ID, metrics, OrderState.CREATED)))
+        .filter((id, order) -> order != null && OrderState.CREATED.equals(order.getState()))
+        .transformValues(tracing.<Order>receivedInStreams());
 
     //If all rules pass then validate the order
     validations
@@ -97,7 +147,8 @@ public class ValidationsAggregatorService implements Service {
                 //Set the order to Validated
                 newBuilder(order).setState(VALIDATED).build()
             , JoinWindows.of(Duration.ofMinutes(5)), serdes4)
-        //Push the validated order into the orders topic
+        //Push the validated order into the orders topic, marked with its new state
+        .transformValues(OrderStateHeader.stampInStreams())
         .to(ORDERS.name(), serdes5);
 
     //If any rule fails then fail the order
@@ -110,10 +161,244 @@ public class ValidationsAggregatorService implements Service {
         .groupByKey(serdes6)
         .reduce((order, v1) -> order)
         //Push the validated order into the orders topic
-        .toStream().to(ORDERS.name(), Produced.with(ORDERS.keySerde(), ORDERS.valueSerde()));
+        .toStream()
+        .transformValues(OrderStateHeader.stampInStreams())
+        .to(ORDERS.name(), Produced.with(ORDERS.keySerde(), ORDERS.valueSerde()));
+
+    return createStreams(builder.build(),
+        baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID), rocksDBStatistics);
+  }
+
+  private KafkaStreams aggregateOrderValidationsInProcessor(
+      final String bootstrapServers,
+      final String stateDir) {
+    final Set<OrderValidationType> rules = EnumSet.copyOf(requiredRules);
+
+    final Topology topology = new Topology();
+    topology.addSource("orders", ORDERS.keySerde().deserializer(),
+        OrderStateHeader.filtering(SERVICE_APP_ID, metrics, OrderState.CREATED).deserializer(),
+        ORDERS.name());
+    topology.addSource("validations", ORDER_VALIDATIONS.keySerde().deserializer(),
+        ORDER_VALIDATIONS.valueSerde().deserializer(), ORDER_VALIDATIONS.name());
+    final PipelineTracing tracing = this.tracing;
+    topology.addProcessor("aggregator", () -> new ValidationAggregator(rules, RETENTION, tracing),
+        "orders", "validations");
+    topology.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.persistentKeyValueStore(VALIDATION_STATE_STORE_NAME),
+        ORDERS.keySerde(), new ValidationStateSerde()), "aggregator");
+    //Push the validated or failed order into the orders topic
+    topology.addSink("results", ORDERS.name(), ORDERS.keySerde().serializer(),
+        ORDERS.valueSerde().serializer(), "aggregator");
 
-    return new KafkaStreams(builder.build(),
-        baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID));
+    //The two topologies have different stores and internal topics, so each gets its own app id
+    return createStreams(topology,
+        baseStreamsConfig(bootstrapServers, stateDir, SERVICE_APP_ID + "-single-processor"),
+        rocksDBStatistics);
+  }
+
+  /**
+   * Set the validation rules that must all pass for an order to be validated. Results of any
+   * other rule are ignored. Must be called before the service is started. Defaults to every
+   * {@link OrderValidationType}.
+   */
+  public void setRequiredRules(final Set<OrderValidationType> requiredRules) {
+    this.requiredRules = EnumSet.copyOf(requiredRules);
+  }
+
+  public void setSingleProcessorEnabled(final boolean value) {
+    this.singleProcessorEnabled = value;
+  }
+
+  /**
+   * Collects the validation results for each order, along with the order itself, in a single
+   * store entry per order, and forwards the order as VALIDATED once every required rule has
+   * passed, or as FAILED as soon as any required rule fails.
+   */
+  static class ValidationAggregator implements Processor<String, SpecificRecord> {
+
+    private final int requiredRules;
+    private final Duration retention;
+    private ProcessorContext context;
+    private final PipelineTracing tracing;
+    private KeyValueStore<String, ValidationState> store;
+
+    ValidationAggregator(final Set<OrderValidationType> requiredRules,
+                         final Duration retention,
+                         final PipelineTracing tracing) {
+      this.requiredRules = bits(requiredRules);
+      this.retention = retention;
+      this.tracing = tracing;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(final ProcessorContext context) {
+      this.context = context;
+      store = (KeyValueStore<String, ValidationState>) context.getStateStore(VALIDATION_STATE_STORE_NAME);
+      context.schedule(PUNCTUATE_INTERVAL, PunctuationType.STREAM_TIME, this::expire);
+    }
+
+    @Override
+    public void process(final String orderId, final SpecificRecord value) {
+      if (value == null) {
+        return; //an order the source skipped, as it had already moved on
+      }
+      if (value instanceof Order && !OrderState.CREATED.equals(((Order) value).getState())) {
+        return; //ignore orders that have already moved on, including those we emit
+      }
+      if (value instanceof OrderValidation
+          && (bit(((OrderValidation) value).getCheckType()) & requiredRules) == 0) {
+        return; //results of rules that aren't required neither pass nor fail an order
+      }
+      tracing.received(context.headers());
+      ValidationState state = store.get(orderId);
+      if (state == null) {
+        state = new ValidationState();
+      }
+      if (state.emitted) {
+        return; //the outcome is already known, so any further results are redundant
+      }
+
+      if (value instanceof Order) {
+        state.order = (Order) value;
+      } else {
+        final OrderValidation validation = (OrderValidation) value;
+        if (FAIL.equals(validation.getValidationResult())) {
+          state.failed = true;
+        } else if (PASS.equals(validation.getValidationResult())) {
+          state.passed |= bit(validation.getCheckType());
+        }
+      }
+      state.timestamp = Math.max(state.timestamp, context.timestamp());
+
+      if (state.order != null && (state.failed || (state.passed & requiredRules) == requiredRules)) {
+        final OrderState outcome = state.failed ? OrderState.FAILED : VALIDATED;
+        OrderStateHeader.stamp(context.headers(), outcome);
+        context.forward(orderId, newBuilder(state.order).setState(outcome).build());
+        //keep a marker, without the order, so late results for this order are dropped
+        state.emitted = true;
+        state.order = null;
+      }
+      store.put(orderId, state);
+    }
+
+    private void expire(final long streamTime) {
+      final List<String> expired = new ArrayList<>();
+      try (final KeyValueIterator<String, ValidationState> all = store.all()) {
+        while (all.hasNext()) {
+          final KeyValue<String, ValidationState> entry = all.next();
+          if (entry.value.timestamp < streamTime - retention.toMillis()) {
+            expired.add(entry.key);
+          }
+        }
+      }
+      expired.forEach(store::delete);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static int bit(final OrderValidationType rule) {
+      return 1 << rule.ordinal();
+    }
+
+    private static int bits(final Set<OrderValidationType> rules) {
+      int bits = 0;
+      for (final OrderValidationType rule : rules) {
+        bits |= bit(rule);
+      }
+      return bits;
+    }
+  }
+
+  /**
+   * The state held for each order in flight: the rules that have passed, as a bitset of
+   * {@link OrderValidationType} ordinals, whether any rule has failed or the outcome has already
+   * been emitted, the latest timestamp seen, and the order itself until the outcome is known.
+   */
+  static class ValidationState {
+    private int passed;
+    private boolean failed;
+    private boolean emitted;
+    private long timestamp;
+    private Order order;
+  }
+
+  static class ValidationStateSerde implements Serde<ValidationState> {
+
+    private static final byte FAILED_FLAG = 1;
+    private static final byte EMITTED_FLAG = 2;
+    private static final int HEADER_SIZE = 1 + 4 + 8;
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Serializer<ValidationState> serializer() {
+      return new Serializer<ValidationState>() {
+        @Override
+        public void configure(final Map<String, ?> configs, final boolean isKey) {
+        }
+
+        @Override
+        public byte[] serialize(final String topic, final ValidationState state) {
+          if (state == null) {
+            return null;
+          }
+          final byte[] order = state.order == null
+              ? new byte[0]
+              : ORDERS.valueSerde().serializer().serialize(topic, state.order);
+          return ByteBuffer.allocate(HEADER_SIZE + order.length)
+              .put((byte) ((state.failed ? FAILED_FLAG : 0) | (state.emitted ? EMITTED_FLAG : 0)))
+              .putInt(state.passed)
+              .putLong(state.timestamp)
+              .put(order)
+              .array();
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+
+    @Override
+    public Deserializer<ValidationState> deserializer() {
+      return new Deserializer<ValidationState>() {
+        @Override
+        public void configure(final Map<String, ?> configs, final boolean isKey) {
+        }
+
+        @Override
+        public ValidationState deserialize(final String topic, final byte[] bytes) {
+          if (bytes == null) {
+            return null;
+          }
+          final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+          final ValidationState state = new ValidationState();
+          final byte flags = buffer.get();
+          state.failed = (flags & FAILED_FLAG) != 0;
+          state.emitted = (flags & EMITTED_FLAG) != 0;
+          state.passed = buffer.getInt();
+          state.timestamp = buffer.getLong();
+          if (buffer.hasRemaining()) {
+            state.order = ORDERS.valueSerde().deserializer().deserialize(topic,
+                Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length));
+          }
+          return state;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
   }
 
   @Override
@@ -121,6 +406,12 @@ public class ValidationsAggregatorService implements Service {
     if (streams != null) {
       streams.close();
     }
+    if (rocksDBStatistics != null) {
+      rocksDBStatistics.close();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
   public static void main(final String[] args) throws Exception {
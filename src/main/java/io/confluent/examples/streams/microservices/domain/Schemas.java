@@ -10,6 +10,8 @@ import io.confluent.examples.streams.avro.microservices.OrderValidation;
 import io.confluent.examples.streams.avro.microservices.OrderValue;
 import io.confluent.examples.streams.avro.microservices.Payment;
 import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.util.CompactKeySerdes;
+import io.confluent.examples.streams.utils.ReusingSpecificAvroSerde;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
 import java.util.Collections;
 import java.util.HashMap;
@@ -23,24 +25,57 @@ import org.apache.kafka.common.serialization.Serdes;
  */
 public class Schemas {
 
+  /**
+   * Set this system property to true, or call {@link #useCompactKeys}, to have every topic key
+   * its records with {@link CompactKeySerdes}, rather than as strings. Compact keys are written to
+   * their own topics, named with {@link #COMPACT_KEYS_TOPIC_SUFFIX}, as they partition
+   * differently and can't be read by services that haven't been switched over. Run
+   * {@link io.confluent.examples.streams.microservices.util.MigrateToCompactKeys} to copy existing
+   * topics across.
+   */
+  public static final String COMPACT_KEYS_PROPERTY = "microservices.compact.keys";
+  public static final String COMPACT_KEYS_TOPIC_SUFFIX = "-compact";
+  private static boolean compactKeys = Boolean.getBoolean(COMPACT_KEYS_PROPERTY);
+
   public static String schemaRegistryUrl = "";
   public static SpecificAvroSerde<OrderValue> ORDER_VALUE_SERDE = new SpecificAvroSerde<>();
 
   public static class Topic<K, V> {
 
-    private final String name;
-    private final Serde<K> keySerde;
+    private final String legacyName;
+    private final Serde<K> legacyKeySerde;
+    private final Serde<K> compactKeySerde;
     private final Serde<V> valueSerde;
 
-    Topic(final String name, final Serde<K> keySerde, final Serde<V> valueSerde) {
-      this.name = name;
-      this.keySerde = keySerde;
+    Topic(final String name,
+          final Serde<K> legacyKeySerde,
+          final Serde<K> compactKeySerde,
+          final Serde<V> valueSerde) {
+      this.legacyName = name;
+      this.legacyKeySerde = legacyKeySerde;
+      this.compactKeySerde = compactKeySerde;
       this.valueSerde = valueSerde;
-      Topics.ALL.put(name, this);
+      Topics.ALL.put(name(), this);
     }
 
     public Serde<K> keySerde() {
-      return keySerde;
+      return compactKeys ? compactKeySerde : legacyKeySerde;
+    }
+
+    public Serde<K> legacyKeySerde() {
+      return legacyKeySerde;
+    }
+
+    public Serde<K> compactKeySerde() {
+      return compactKeySerde;
+    }
+
+    public String legacyName() {
+      return legacyName;
+    }
+
+    public String compactName() {
+      return legacyName + COMPACT_KEYS_TOPIC_SUFFIX;
     }
 
     public Serde<V> valueSerde() {
@@ -48,11 +83,11 @@ public class Schemas {
     }
 
     public String name() {
-      return name;
+      return compactKeys ? compactName() : legacyName;
     }
 
     public String toString() {
-      return name;
+      return name();
     }
   }
 
@@ -71,18 +106,36 @@ public class Schemas {
     }
 
     private static void createTopics() {
-      ORDERS = new Topic<>("orders", Serdes.String(), new SpecificAvroSerde<Order>());
-      ORDERS_ENRICHED = new Topic<>("orders-enriched", Serdes.String(), new SpecificAvroSerde<OrderEnriched>());
-      PAYMENTS = new Topic<>("payments", Serdes.String(), new SpecificAvroSerde<Payment>());
-      CUSTOMERS = new Topic<>("customers", Serdes.Long(), new SpecificAvroSerde<Customer>());
-      ORDER_VALIDATIONS = new Topic<>("order-validations", Serdes.String(),
+      ALL.clear();
+      ORDERS = new Topic<>("orders", Serdes.String(), CompactKeySerdes.utf8(),
+          new ReusingSpecificAvroSerde<Order>());
+      ORDERS_ENRICHED = new Topic<>("orders-enriched", Serdes.String(), CompactKeySerdes.utf8(),
+          new SpecificAvroSerde<OrderEnriched>());
+      PAYMENTS = new Topic<>("payments", Serdes.String(), CompactKeySerdes.utf8(),
+          new SpecificAvroSerde<Payment>());
+      CUSTOMERS = new Topic<>("customers", Serdes.Long(), CompactKeySerdes.varLong(),
+          new SpecificAvroSerde<Customer>());
+      ORDER_VALIDATIONS = new Topic<>("order-validations", Serdes.String(), CompactKeySerdes.utf8(),
           new SpecificAvroSerde<OrderValidation>());
       WAREHOUSE_INVENTORY = new Topic<>("warehouse-inventory", new ProductTypeSerde(),
-          Serdes.Integer());
+          CompactKeySerdes.ordinal(Product.class), Serdes.Integer());
       ORDER_VALUE_SERDE = new SpecificAvroSerde<>();
     }
   }
 
+  /**
+   * Switch every topic to, or back from, compact keys. Must be called before any service is
+   * started, as it recreates the topics' serdes.
+   */
+  public static void useCompactKeys(final boolean enabled) {
+    compactKeys = enabled;
+    configureSerdesWithSchemaRegistryUrl(schemaRegistryUrl);
+  }
+
+  public static boolean compactKeys() {
+    return compactKeys;
+  }
+
   public static void configureSerdesWithSchemaRegistryUrl(final String url) {
     Topics.createTopics(); //wipe cached schema registry
     for (final Topic<?, ?> topic : Topics.ALL.values()) {
@@ -94,7 +147,7 @@ public class Schemas {
   }
 
   private static void configure(final Serde<?> serde, final String url) {
-    if (serde instanceof SpecificAvroSerde) {
+    if (serde instanceof SpecificAvroSerde || serde instanceof ReusingSpecificAvroSerde) {
       serde.configure(Collections.singletonMap(SCHEMA_REGISTRY_URL_CONFIG, url), false);
     }
   }
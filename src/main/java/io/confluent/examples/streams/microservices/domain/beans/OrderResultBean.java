@@ -0,0 +1,79 @@
+package io.confluent.examples.streams.microservices.domain.beans;
+
+/**
+ * Simple DTO used by the REST interface to report the outcome of submitting a single order
+ * as part of a batch. Either a location is set, if the order was written, or an error is.
+ */
+public class OrderResultBean {
+
+  private String id;
+  private String location;
+  private String error;
+
+  public OrderResultBean() {
+
+  }
+
+  public OrderResultBean(final String id, final String location, final String error) {
+    this.id = id;
+    this.location = location;
+    this.error = error;
+  }
+
+  public static OrderResultBean created(final String id, final String location) {
+    return new OrderResultBean(id, location, null);
+  }
+
+  public static OrderResultBean failed(final String id, final Exception e) {
+    return new OrderResultBean(id, null, e.getClass().getSimpleName() + ": " + e.getMessage());
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || this.getClass() != o.getClass()) {
+      return false;
+    }
+
+    final OrderResultBean that = (OrderResultBean) o;
+
+    if (this.id != null ? !this.id.equals(that.id) : that.id != null) {
+      return false;
+    }
+    if (this.location != null ? !this.location.equals(that.location) : that.location != null) {
+      return false;
+    }
+    return this.error != null ? this.error.equals(that.error) : that.error == null;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = this.id != null ? this.id.hashCode() : 0;
+    result = 31 * result + (this.location != null ? this.location.hashCode() : 0);
+    result = 31 * result + (this.error != null ? this.error.hashCode() : 0);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "OrderResultBean{" +
+        "id='" + id + '\'' +
+        ", location='" + location + '\'' +
+        ", error='" + error + '\'' +
+        '}';
+  }
+}
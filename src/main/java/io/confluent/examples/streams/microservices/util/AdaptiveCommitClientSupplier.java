@@ -0,0 +1,336 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.streams.KafkaClientSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Creates Kafka Streams' clients so that commits follow an {@link AdaptiveCommitController}.
+ * <p>
+ * Kafka Streams reads {@code commit.interval.ms} once, at startup, so the interval can't be
+ * changed while it runs. Instead Streams is left to commit at that interval, the shortest we
+ * want, and the clients it commits through hold commits back until the controller's current
+ * interval has passed, merging them into the next one:
+ * <ul>
+ * <li>at least once, the main consumer keeps the latest offsets passed to {@code commitSync}
+ * and commits them together;</li>
+ * <li>under Exactly Once, each task's producer keeps its transaction open when asked to commit
+ * it, and carries on with it when asked to begin the next, so it covers several of Streams'
+ * commits. A transaction is only ever committed once the input offsets of everything sent in it
+ * have been added to it: from within Streams' own call to commit, just after it has added them,
+ * or, if nothing has been sent since the transaction was held back, from the next poll once it
+ * is due. Once Streams has sent more records the transaction waits for Streams' next commit.</li>
+ * </ul>
+ * Nothing is held back during a rebalance, or when the client is closed, and held back offsets,
+ * or a transaction with nothing sent since, are committed once due even if no more records
+ * arrive. Held back commits therefore only delay results becoming visible, by at most the
+ * maximum interval: a failure before they are made means the records are processed again, and
+ * their output discarded with the transaction, as a failure before any commit would. Under Exactly
+ * Once, the maximum interval must be well within the producer's {@code transaction.timeout.ms}.
+ * <p>
+ * Caching is not widened with the interval. Kafka Streams sizes its record caches, and flushes
+ * them on every commit it makes at {@code commit.interval.ms}, from config read once at
+ * startup, and neither is exposed to the clients, so commits that are held back still flush
+ * the caches at the shortest interval.
+ */
+public class AdaptiveCommitClientSupplier implements KafkaClientSupplier {
+
+  private static final Logger log = LoggerFactory.getLogger(AdaptiveCommitClientSupplier.class);
+  //the stream thread's main consumer, so that the task producers it creates can find it
+  private static final ThreadLocal<DeferringConsumer> THREAD_CONSUMER = new ThreadLocal<>();
+
+  private final Metrics metrics;
+  private final long minIntervalMs;
+  private final long maxIntervalMs;
+  private final AtomicInteger openConsumers = new AtomicInteger();
+
+  /**
+   * @param serviceName the name the controllers' metrics are reported under
+   * @param minIntervalMs the shortest interval between commits, which should be Streams' own
+   * @param maxIntervalMs the longest interval between commits, so the most that results can be
+   *                      delayed by
+   */
+  public AdaptiveCommitClientSupplier(final String serviceName,
+                                      final long minIntervalMs,
+                                      final long maxIntervalMs) {
+    this.metrics = MicroserviceUtils.startMetrics(serviceName);
+    this.minIntervalMs = minIntervalMs;
+    this.maxIntervalMs = maxIntervalMs;
+  }
+
+  @Override
+  public AdminClient getAdminClient(final Map<String, Object> config) {
+    return AdminClient.create(config);
+  }
+
+  @Override
+  public Producer<byte[], byte[]> getProducer(final Map<String, Object> config) {
+    final DeferringConsumer consumer = THREAD_CONSUMER.get();
+    if (consumer == null || !config.containsKey(ProducerConfig.TRANSACTIONAL_ID_CONFIG)) {
+      return new KafkaProducer<>(config, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+    final DeferringProducer producer = new DeferringProducer(config, consumer);
+    consumer.producers.add(producer);
+    return producer;
+  }
+
+  @Override
+  public Consumer<byte[], byte[]> getConsumer(final Map<String, Object> config) {
+    openConsumers.incrementAndGet();
+    return new DeferringConsumer(config, new AdaptiveCommitController(metrics,
+        String.valueOf(config.get(ConsumerConfig.CLIENT_ID_CONFIG)), minIntervalMs, maxIntervalMs));
+  }
+
+  private void consumerClosed() {
+    //the stream threads are all gone, so is the KafkaStreams instance
+    if (openConsumers.decrementAndGet() == 0) {
+      metrics.close();
+    }
+  }
+
+  @Override
+  public Consumer<byte[], byte[]> getRestoreConsumer(final Map<String, Object> config) {
+    return new KafkaConsumer<>(config, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+  }
+
+  @Override
+  public Consumer<byte[], byte[]> getGlobalConsumer(final Map<String, Object> config) {
+    return new KafkaConsumer<>(config, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+  }
+
+  /**
+   * A stream thread's main consumer. Its lag drives the controller, and under at least once it
+   * holds back offset commits.
+   */
+  private class DeferringConsumer extends KafkaConsumer<byte[], byte[]> {
+
+    private final AdaptiveCommitController controller;
+    private final Map<TopicPartition, OffsetAndMetadata> deferred = new HashMap<>();
+    private final List<DeferringProducer> producers = new CopyOnWriteArrayList<>();
+    private long lastCommitMs = System.currentTimeMillis();
+    private boolean rebalancing = false;
+    private MetricName lagMetric;
+
+    DeferringConsumer(final Map<String, Object> config, final AdaptiveCommitController controller) {
+      super(config, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+      this.controller = controller;
+    }
+
+    @Override
+    public ConsumerRecords<byte[], byte[]> poll(final Duration timeout) {
+      THREAD_CONSUMER.set(this);
+      commitDeferred(false);
+      final ConsumerRecords<byte[], byte[]> records = super.poll(timeout);
+      controller.onPoll(System.currentTimeMillis(), records.count(), lag());
+      return records;
+    }
+
+    private long lag() {
+      if (lagMetric == null) {
+        for (final Map.Entry<MetricName, ? extends Metric> metric : metrics().entrySet()) {
+          if (metric.getKey().name().equals("records-lag-max")
+              && metric.getKey().group().equals("consumer-fetch-manager-metrics")
+              && !metric.getKey().tags().containsKey("topic")) {
+            lagMetric = metric.getKey();
+          }
+        }
+      }
+      final Metric metric = lagMetric == null ? null : metrics().get(lagMetric);
+      final Object value = metric == null ? null : metric.metricValue();
+      return value instanceof Double && !((Double) value).isNaN() ? ((Double) value).longValue() : 0;
+    }
+
+    @Override
+    public void commitSync(final Map<TopicPartition, OffsetAndMetadata> offsets) {
+      deferred.putAll(offsets);
+      if (rebalancing || controller.isDue(System.currentTimeMillis(), lastCommitMs)) {
+        commitDeferred(true);
+      } else {
+        controller.deferred();
+      }
+    }
+
+    private void commitDeferred(final boolean force) {
+      final long now = System.currentTimeMillis();
+      if (!deferred.isEmpty() && (force || controller.isDue(now, lastCommitMs))) {
+        super.commitSync(new HashMap<>(deferred));
+        deferred.clear();
+        lastCommitMs = now;
+        controller.committed();
+      }
+      for (final DeferringProducer producer : producers) {
+        producer.commitDeferred(now, force);
+      }
+    }
+
+    @Override
+    public void subscribe(final Pattern pattern, final ConsumerRebalanceListener listener) {
+      super.subscribe(pattern, new ConsumerRebalanceListener() {
+        @Override
+        public void onPartitionsRevoked(final Collection<TopicPartition> partitions) {
+          rebalancing = true;
+          try {
+            commitDeferred(true);
+            listener.onPartitionsRevoked(partitions);
+          } finally {
+            rebalancing = false;
+          }
+        }
+
+        @Override
+        public void onPartitionsAssigned(final Collection<TopicPartition> partitions) {
+          rebalancing = true;
+          try {
+            listener.onPartitionsAssigned(partitions);
+          } finally {
+            rebalancing = false;
+          }
+        }
+      });
+    }
+
+    @Override
+    public void close() {
+      try {
+        commitDeferred(true);
+      } catch (final KafkaException e) {
+        log.warn("Failed to commit deferred offsets on close", e);
+      } finally {
+        controller.close();
+        THREAD_CONSUMER.remove();
+        super.close();
+        consumerClosed();
+      }
+    }
+  }
+
+  /**
+   * A task's transactional producer, under Exactly Once, which holds back transaction commits.
+   */
+  private class DeferringProducer extends KafkaProducer<byte[], byte[]> {
+
+    private final DeferringConsumer consumer;
+    //a transaction Streams has asked us to commit is still open
+    private boolean deferred = false;
+    //records have been sent into the held back transaction whose input offsets are not yet in it
+    private boolean dirty = false;
+    //Streams believes it has a transaction open
+    private boolean inTransaction = false;
+    private long lastCommitMs = System.currentTimeMillis();
+    private KafkaException failure;
+
+    DeferringProducer(final Map<String, Object> config, final DeferringConsumer consumer) {
+      super(config, new ByteArraySerializer(), new ByteArraySerializer());
+      this.consumer = consumer;
+    }
+
+    @Override
+    public void beginTransaction() {
+      throwFailure();
+      inTransaction = true;
+      if (!deferred) {
+        super.beginTransaction();
+      }
+    }
+
+    @Override
+    public Future<RecordMetadata> send(final ProducerRecord<byte[], byte[]> record, final Callback callback) {
+      if (deferred) {
+        dirty = true;
+      }
+      return super.send(record, callback);
+    }
+
+    @Override
+    public void commitTransaction() {
+      throwFailure();
+      //Streams has just added the offsets for everything sent so far
+      inTransaction = false;
+      deferred = true;
+      dirty = false;
+      commitDeferred(System.currentTimeMillis(), consumer.rebalancing);
+      if (deferred) {
+        consumer.controller.deferred();
+      }
+    }
+
+    @Override
+    public void abortTransaction() {
+      inTransaction = false;
+      deferred = false;
+      dirty = false;
+      super.abortTransaction();
+    }
+
+    /**
+     * Commit the held back transaction, if it's due, or forced, unless records have been sent
+     * into it since, as committing those without their offsets would break Exactly Once.
+     */
+    void commitDeferred(final long now, final boolean force) {
+      if (!deferred || dirty || failure != null
+          || !(force || consumer.controller.isDue(now, lastCommitMs))) {
+        return;
+      }
+      try {
+        super.commitTransaction();
+        deferred = false;
+        lastCommitMs = now;
+        consumer.controller.committed();
+        if (inTransaction) {
+          super.beginTransaction();
+        }
+      } catch (final KafkaException e) {
+        //Surface it to Streams on its next call, which knows how to handle it
+        failure = e;
+      }
+    }
+
+    private void throwFailure() {
+      if (failure != null) {
+        final KafkaException e = failure;
+        failure = null;
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        commitDeferred(System.currentTimeMillis(), true);
+      } finally {
+        consumer.producers.remove(this);
+        super.close();
+      }
+    }
+  }
+}
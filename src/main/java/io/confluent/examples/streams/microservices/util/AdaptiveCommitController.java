@@ -0,0 +1,132 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Rate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Decides how often a stream thread should really commit, based on how far behind it is.
+ * <p>
+ * While the consumer lag would take longer than the current interval to work through, at the
+ * current processing rate, the thread is catching up (or replaying) and the interval is doubled,
+ * up to {@code maxIntervalMs}, so fewer offset commits, and under Exactly Once fewer transaction
+ * markers, are sent to the brokers. Once the lag could be worked through within the interval,
+ * the thread has caught up and the interval is halved, down to {@code minIntervalMs}, so results
+ * are visible as soon as possible again. The interval is adjusted at most once every
+ * {@link #ADJUST_PERIOD_MS}.
+ * <p>
+ * The interval, lag and processing rate it bases its decisions on are reported as metrics, along
+ * with the rates of commits made and deferred.
+ */
+public class AdaptiveCommitController {
+
+  static final long ADJUST_PERIOD_MS = 100;
+  private static final String METRIC_GROUP = "commit-controller";
+  //weight given to the latest poll in the processing rate's moving average
+  private static final double RATE_ALPHA = 0.2;
+
+  private final long minIntervalMs;
+  private final long maxIntervalMs;
+  private final Metrics metrics;
+  private final List<MetricName> gauges = new ArrayList<>();
+  private final Sensor commitSensor;
+  private final Sensor deferSensor;
+
+  private volatile long intervalMs;
+  private volatile long lag = 0;
+  private volatile double recordsPerSecond = 0;
+  private long lastPollMs = -1;
+  private long lastAdjustMs = -1;
+
+  public AdaptiveCommitController(final Metrics metrics,
+                                  final String clientId,
+                                  final long minIntervalMs,
+                                  final long maxIntervalMs) {
+    this.minIntervalMs = Math.max(minIntervalMs, 1);
+    this.maxIntervalMs = Math.max(maxIntervalMs, this.minIntervalMs);
+    this.intervalMs = this.minIntervalMs;
+    this.metrics = metrics;
+
+    addGauge("commit-interval-ms", clientId,
+        "The current interval, in ms, between commits", () -> intervalMs);
+    addGauge("consumer-lag", clientId,
+        "The consumer lag, in records, the interval was last based on", () -> lag);
+    addGauge("processing-rate", clientId,
+        "The moving average of records polled per second", () -> recordsPerSecond);
+    commitSensor = metrics.sensor(METRIC_GROUP + "-" + clientId + "-commits");
+    commitSensor.add(metrics.metricName("commit-rate", METRIC_GROUP,
+        "The number of commits per second sent to the brokers",
+        Collections.singletonMap("client-id", clientId)), new Rate());
+    deferSensor = metrics.sensor(METRIC_GROUP + "-" + clientId + "-deferred");
+    deferSensor.add(metrics.metricName("deferred-commit-rate", METRIC_GROUP,
+        "The number of commits per second held back to be merged with a later one",
+        Collections.singletonMap("client-id", clientId)), new Rate());
+  }
+
+  private void addGauge(final String name,
+                        final String clientId,
+                        final String description,
+                        final Supplier<Object> value) {
+    final MetricName metricName = metrics.metricName(name, METRIC_GROUP, description,
+        Collections.singletonMap("client-id", clientId));
+    metrics.addMetric(metricName, (Gauge<Object>) (config, now) -> value.get());
+    gauges.add(metricName);
+  }
+
+  /**
+   * Record a poll, of the passed number of records, after which the consumer was the passed
+   * number of records behind, and adjust the interval if it is time to.
+   */
+  public void onPoll(final long nowMs, final int records, final long lag) {
+    if (lastPollMs >= 0 && nowMs > lastPollMs) {
+      final double rate = records * 1000d / (nowMs - lastPollMs);
+      recordsPerSecond = RATE_ALPHA * rate + (1 - RATE_ALPHA) * recordsPerSecond;
+    }
+    lastPollMs = nowMs;
+    this.lag = lag;
+
+    if (lastAdjustMs >= 0 && nowMs - lastAdjustMs < ADJUST_PERIOD_MS) {
+      return;
+    }
+    lastAdjustMs = nowMs;
+    final double catchUpMs = lag == 0 ? 0
+        : recordsPerSecond > 0 ? lag * 1000d / recordsPerSecond : Double.MAX_VALUE;
+    if (catchUpMs > intervalMs) {
+      intervalMs = Math.min(intervalMs * 2, maxIntervalMs);
+    } else {
+      intervalMs = Math.max(intervalMs / 2, minIntervalMs);
+    }
+  }
+
+  /**
+   * @return whether a commit, last made at the passed time, is due again
+   */
+  public boolean isDue(final long nowMs, final long lastCommitMs) {
+    return nowMs - lastCommitMs >= intervalMs;
+  }
+
+  public long intervalMs() {
+    return intervalMs;
+  }
+
+  void committed() {
+    commitSensor.record();
+  }
+
+  void deferred() {
+    deferSensor.record();
+  }
+
+  public void close() {
+    gauges.forEach(metrics::removeMetric);
+    metrics.removeSensor(commitSensor.name());
+    metrics.removeSensor(deferSensor.name());
+  }
+}
@@ -0,0 +1,195 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.apache.kafka.common.utils.Time;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether to accept a request to write to Kafka, so that when brokers slow down requests
+ * are turned away quickly rather than piling up in the producer.
+ * <p>
+ * Two limits are applied:
+ * <ul>
+ * <li>the number of sends in flight, handed to the producer but not yet acknowledged, is bounded.
+ * Keeping it well below what fits in the producer's buffer means {@code send} never blocks
+ * waiting for space, which would otherwise tie up the server's threads, and so every endpoint,
+ * for up to {@code max.block.ms}. Requests over the bound are rejected with 503 Service
+ * Unavailable;</li>
+ * <li>optionally, each client, identified by the {@link #CLIENT_ID_HEADER} header or failing
+ * that its address, is held to a rate by a token bucket. Requests from a client whose bucket is
+ * empty are rejected with 429 Too Many Requests.</li>
+ * </ul>
+ * Both carry a Retry-After header. A request for more permits than the bound, say a large
+ * batch, is only accepted when nothing else is in flight, and may leave its client's bucket in
+ * debt, so it is slowed down rather than refused forever.
+ * <p>
+ * The rate of accepted and rejected requests, and the number of sends in flight, are reported
+ * as metrics.
+ */
+public class AdmissionController {
+
+  public static final String CLIENT_ID_HEADER = "X-Client-Id";
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+  static final String METRIC_GROUP = "admission-control";
+  static final int TOO_MANY_REQUESTS = 429;
+  private static final long OVERLOADED_RETRY_AFTER_SECONDS = 1;
+  //Buckets that have refilled are the same as no bucket, so are dropped once there are this many
+  private static final int MAX_IDLE_BUCKETS = 10_000;
+
+  private final int maxInFlight;
+  private final double clientRate;
+  private final double clientBurst;
+  private final Time time;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final Sensor accepted;
+  private final Sensor overloaded;
+  private final Sensor rateLimited;
+
+  /**
+   * @param maxInFlight the most sends that may be in flight at once
+   * @param clientRate the permits each client is given per second, or 0 for no limit
+   * @param clientBurst the most permits a client can save up
+   */
+  public AdmissionController(final Metrics metrics,
+                             final int maxInFlight,
+                             final double clientRate,
+                             final int clientBurst) {
+    this(metrics, maxInFlight, clientRate, clientBurst, Time.SYSTEM);
+  }
+
+  AdmissionController(final Metrics metrics,
+                      final int maxInFlight,
+                      final double clientRate,
+                      final int clientBurst,
+                      final Time time) {
+    this.maxInFlight = maxInFlight;
+    this.clientRate = clientRate;
+    this.clientBurst = Math.max(1, clientBurst);
+    this.time = time;
+
+    metrics.addMetric(metrics.metricName("in-flight", METRIC_GROUP,
+        "The number of sends accepted and not yet acknowledged"),
+        (Gauge<Integer>) (config, now) -> inFlight.get());
+    accepted = sensor(metrics, "accepted", Collections.emptyMap(), "accepted");
+    overloaded = sensor(metrics, "rejected", Collections.singletonMap("reason", "overloaded"),
+        "rejected, with a 503, as too many sends were in flight");
+    rateLimited = sensor(metrics, "rejected", Collections.singletonMap("reason", "rate-limited"),
+        "rejected, with a 429, as their client was over its rate");
+  }
+
+  private static Sensor sensor(final Metrics metrics,
+                               final String name,
+                               final Map<String, String> tags,
+                               final String description) {
+    final Sensor sensor = metrics.sensor(METRIC_GROUP + "-" + name + tags);
+    sensor.add(metrics.metricName(name + "-rate", METRIC_GROUP,
+        "The number of requests per second " + description, tags), new Rate());
+    sensor.add(metrics.metricName(name + "-total", METRIC_GROUP,
+        "The number of requests " + description, tags), new Total());
+    return sensor;
+  }
+
+  /**
+   * Try to admit a request that will make the given number of sends.
+   *
+   * @return null if it was admitted, in which case {@link #release} must be called as each send
+   * completes, successfully or not, or the response to reject it with
+   */
+  public Response admit(final String clientId, final int permits) {
+    if (!acquire(permits)) {
+      overloaded.record();
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, OVERLOADED_RETRY_AFTER_SECONDS)
+          .entity("Too many orders in flight, retry later\n")
+          .build();
+    }
+    if (clientRate > 0) {
+      final long waitNanos = bucket(clientId).take(permits, time.nanoseconds());
+      if (waitNanos > 0) {
+        release(permits);
+        rateLimited.record();
+        return Response.status(TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER,
+                Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1)))
+            .entity("Too many orders from " + clientId + ", retry later\n")
+            .build();
+      }
+    }
+    accepted.record();
+    return null;
+  }
+
+  public void release(final int permits) {
+    inFlight.addAndGet(-permits);
+  }
+
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  private boolean acquire(final int permits) {
+    while (true) {
+      final int current = inFlight.get();
+      if (current > 0 && current + permits > maxInFlight) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + permits)) {
+        return true;
+      }
+    }
+  }
+
+  private TokenBucket bucket(final String clientId) {
+    if (buckets.size() > MAX_IDLE_BUCKETS) {
+      final long now = time.nanoseconds();
+      buckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+    return buckets.computeIfAbsent(clientId, id -> new TokenBucket(time.nanoseconds()));
+  }
+
+  private class TokenBucket {
+
+    private double tokens = clientBurst;
+    private long lastNanos;
+
+    TokenBucket(final long nowNanos) {
+      lastNanos = nowNanos;
+    }
+
+    /**
+     * @return 0 if the permits were taken, or how long until enough tokens will be available
+     */
+    synchronized long take(final int permits, final long nowNanos) {
+      refill(nowNanos);
+      final double needed = Math.min(permits, clientBurst);
+      if (tokens >= needed) {
+        tokens -= permits;
+        return 0;
+      }
+      return (long) Math.ceil((needed - tokens) / clientRate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    synchronized boolean isFull(final long nowNanos) {
+      refill(nowNanos);
+      return tokens >= clientBurst;
+    }
+
+    private void refill(final long nowNanos) {
+      tokens = Math.min(clientBurst,
+          tokens + (nowNanos - lastNanos) * clientRate / TimeUnit.SECONDS.toNanos(1));
+      lastNanos = nowNanos;
+    }
+  }
+}
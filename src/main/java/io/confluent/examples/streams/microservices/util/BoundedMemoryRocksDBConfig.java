@@ -0,0 +1,126 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.Filter;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Bounds the native memory used by every RocksDB store in the JVM, however many stores and
+ * partitions it hosts.
+ * <p>
+ * All stores share one LRU block cache, of {@link #BLOCK_CACHE_BYTES_CONFIG} bytes, which also
+ * holds their index and filter blocks, rather than each having its own cache and keeping its
+ * indexes and filters on the heap outside of any limit. Each store's memtables are capped at
+ * {@link #MAX_WRITE_BUFFERS} buffers of {@link #WRITE_BUFFER_BYTES_CONFIG} bytes, so the native
+ * memory used by a process is roughly:
+ * <pre>
+ *   block cache bytes + stores x (max write buffers x write buffer bytes)
+ * </pre>
+ * This version of RocksDB doesn't expose a {@code WriteBufferManager} to Java, which would let
+ * memtables be charged to the shared cache too, so memtables are bounded per store instead.
+ * <p>
+ * Stores are tuned by kind:
+ * <ul>
+ * <li>key-value stores, which are mostly read by key, get a bloom filter so lookups for keys
+ * that aren't there rarely touch disk;</li>
+ * <li>window and session stores, which are kept as time segments named {@code <store>.<time>}
+ * and read with range scans that a whole key bloom filter can't help, get larger blocks and no
+ * filter. They get no prefix extractor either: Kafka Streams doesn't ask for total order seeks,
+ * so one would change the results of its range scans.</li>
+ * </ul>
+ * The cache, and the bloom filter, which all key-value stores share too, are created for the first
+ * store opened and are never freed, as this version of Kafka Streams doesn't tell config setters
+ * when a store is closed; they live as long as the JVM.
+ * <p>
+ * If {@link #STATISTICS_ENABLED_CONFIG} is set each store also collects RocksDB
+ * {@link org.rocksdb.Statistics}, which are sampled every {@link #STATISTICS_INTERVAL_MS_CONFIG}
+ * into metrics by the service's {@link RocksDBStatisticsRecorder}, passed in the config by
+ * {@link MicroserviceUtils#createStreams}. Collecting them slows RocksDB a little, so they are off
+ * by default.
+ */
+public class BoundedMemoryRocksDBConfig implements RocksDBConfigSetter {
+
+  public static final String BLOCK_CACHE_BYTES_CONFIG = "microservices.rocksdb.block.cache.bytes";
+  public static final String WRITE_BUFFER_BYTES_CONFIG = "microservices.rocksdb.write.buffer.bytes";
+  public static final String STATISTICS_ENABLED_CONFIG = "microservices.rocksdb.statistics.enabled";
+  public static final String STATISTICS_INTERVAL_MS_CONFIG = "microservices.rocksdb.statistics.interval.ms";
+  static final String STATISTICS_RECORDER_CONFIG = "microservices.rocksdb.statistics.recorder";
+  static final long DEFAULT_BLOCK_CACHE_BYTES = 64 * 1024 * 1024L;
+  static final long DEFAULT_WRITE_BUFFER_BYTES = 4 * 1024 * 1024L;
+  static final int MAX_WRITE_BUFFERS = 2;
+  static final long DEFAULT_STATISTICS_INTERVAL_MS = 10000;
+  private static final long KEY_VALUE_BLOCK_SIZE = 4 * 1024L;
+  private static final long SEGMENTED_BLOCK_SIZE = 16 * 1024L;
+  private static final int BLOOM_FILTER_BITS_PER_KEY = 10;
+  private static final Pattern SEGMENT_NAME = Pattern.compile(".+\\.\\d+");
+
+  private static Cache sharedCache;
+  private static Filter sharedFilter;
+
+  @Override
+  public void setConfig(final String storeName, final Options options, final Map<String, Object> configs) {
+    // Workaround: We must ensure that the parallelism is set to >= 2.  There seems to be a known
+    // issue with RocksDB where explicitly setting the parallelism to 1 causes issues (even though
+    // 1 seems to be RocksDB's default for this configuration).
+    final int compactionParallelism = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+    // Set number of compaction threads (but not flush threads).
+    options.setIncreaseParallelism(compactionParallelism);
+
+    final BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+        .setBlockCache(sharedCache(longConfig(configs, BLOCK_CACHE_BYTES_CONFIG, DEFAULT_BLOCK_CACHE_BYTES)))
+        .setCacheIndexAndFilterBlocks(true)
+        .setPinL0FilterAndIndexBlocksInCache(true);
+    if (isSegment(storeName)) {
+      tableConfig.setBlockSize(SEGMENTED_BLOCK_SIZE);
+    } else {
+      tableConfig.setBlockSize(KEY_VALUE_BLOCK_SIZE)
+          .setFilter(sharedFilter());
+    }
+    options.setTableFormatConfig(tableConfig);
+
+    options.setWriteBufferSize(longConfig(configs, WRITE_BUFFER_BYTES_CONFIG, DEFAULT_WRITE_BUFFER_BYTES));
+    options.setMaxWriteBufferNumber(MAX_WRITE_BUFFERS);
+
+    final Object recorder = configs.get(STATISTICS_RECORDER_CONFIG);
+    if (recorder instanceof RocksDBStatisticsRecorder) {
+      ((RocksDBStatisticsRecorder) recorder).register(logicalStoreName(storeName), options);
+    }
+  }
+
+  /**
+   * @return the name of the store, or of the window or session store whose segment it is
+   */
+  static String logicalStoreName(final String storeName) {
+    return isSegment(storeName) ? storeName.substring(0, storeName.lastIndexOf('.')) : storeName;
+  }
+
+  static boolean isSegment(final String storeName) {
+    return SEGMENT_NAME.matcher(storeName).matches();
+  }
+
+  private static synchronized Cache sharedCache(final long capacity) {
+    if (sharedCache == null) {
+      sharedCache = new LRUCache(capacity);
+    }
+    return sharedCache;
+  }
+
+  private static synchronized Filter sharedFilter() {
+    if (sharedFilter == null) {
+      sharedFilter = new BloomFilter(BLOOM_FILTER_BITS_PER_KEY, false);
+    }
+    return sharedFilter;
+  }
+
+  private static long longConfig(final Map<String, Object> configs, final String name, final long defaultValue) {
+    final Object value = configs.get(name);
+    return value == null ? defaultValue : Long.parseLong(value.toString());
+  }
+}
@@ -0,0 +1,280 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Compact serdes for the keys of the microservices' topics and stores. The enum and long serdes
+ * write their keys so that comparing the bytes, unsigned, orders them the same way as the keys
+ * themselves, which keeps range scans over stores meaningful. The string serde doesn't:
+ * <ul>
+ * <li>{@link #ordinal} writes an enum as a single byte, its ordinal, so new constants must only
+ * ever be added at the end;</li>
+ * <li>{@link #varLong} writes a long as a header byte followed by only as many bytes as it needs,
+ * so ids below 256 take two bytes rather than eight;</li>
+ * <li>{@link #fixedLong} writes a long as eight bytes, with the sign bit flipped so negative
+ * numbers sort first;</li>
+ * <li>{@link #utf8} writes a string's UTF-8 bytes, straight from its chars, after its length, so
+ * shorter strings sort before longer ones, whatever their chars, and only strings of the same
+ * length sort as {@link String#compareTo} would. For ids that are decimal numbers, without
+ * leading zeros, that is numeric order, so it suits ids but not, say, names scanned by prefix.</li>
+ * </ul>
+ * None of them can read keys written by {@link Serdes#String()}, {@link Serdes#Long()} or
+ * {@link MicroserviceUtils.ProductTypeSerde}, so they are only used by topics created with
+ * {@link io.confluent.examples.streams.microservices.domain.Schemas#COMPACT_KEYS_PROPERTY} set.
+ */
+public final class CompactKeySerdes {
+
+  private CompactKeySerdes() {
+  }
+
+  public static <E extends Enum<E>> Serde<E> ordinal(final Class<E> type) {
+    return Serdes.serdeFrom(new OrdinalSerializer<>(), new OrdinalDeserializer<>(type));
+  }
+
+  public static Serde<Long> varLong() {
+    return Serdes.serdeFrom(new VarLongSerializer(), new VarLongDeserializer());
+  }
+
+  public static Serde<Long> fixedLong() {
+    return Serdes.serdeFrom(new FixedLongSerializer(), new FixedLongDeserializer());
+  }
+
+  public static Serde<String> utf8() {
+    return Serdes.serdeFrom(new Utf8Serializer(), new Utf8Deserializer());
+  }
+
+  private abstract static class KeySerializer<T> implements Serializer<T> {
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private abstract static class KeyDeserializer<T> implements Deserializer<T> {
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  public static class OrdinalSerializer<E extends Enum<E>> extends KeySerializer<E> {
+
+    @Override
+    public byte[] serialize(final String topic, final E data) {
+      return data == null ? null : new byte[] {(byte) data.ordinal()};
+    }
+  }
+
+  public static class OrdinalDeserializer<E extends Enum<E>> extends KeyDeserializer<E> {
+
+    private final E[] values;
+
+    public OrdinalDeserializer(final Class<E> type) {
+      this.values = type.getEnumConstants();
+      if (values.length > 256) {
+        throw new IllegalArgumentException(type + " has too many constants to fit in a byte");
+      }
+    }
+
+    @Override
+    public E deserialize(final String topic, final byte[] data) {
+      if (data == null) {
+        return null;
+      }
+      if (data.length != 1 || (data[0] & 0xff) >= values.length) {
+        throw new SerializationException("Not an ordinal of " + values[0].getDeclaringClass());
+      }
+      return values[data[0] & 0xff];
+    }
+  }
+
+  /**
+   * The header byte is 0x80 plus the number of bytes that follow for a positive number, or 0x7F
+   * minus it for a negative one, so longer positive numbers and shorter negative ones sort later.
+   */
+  public static class VarLongSerializer extends KeySerializer<Long> {
+
+    @Override
+    public byte[] serialize(final String topic, final Long data) {
+      if (data == null) {
+        return null;
+      }
+      final long value = data;
+      final long magnitude = value < 0 ? ~value : value;
+      final int length = (Long.SIZE - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+      final byte[] bytes = new byte[length + 1];
+      bytes[0] = (byte) (value < 0 ? 0x7F - length : 0x80 + length);
+      for (int i = 1; i <= length; i++) {
+        bytes[i] = (byte) (value >>> (8 * (length - i)));
+      }
+      return bytes;
+    }
+  }
+
+  public static class VarLongDeserializer extends KeyDeserializer<Long> {
+
+    @Override
+    public Long deserialize(final String topic, final byte[] data) {
+      if (data == null) {
+        return null;
+      }
+      if (data.length == 0) {
+        throw new SerializationException("A variable length long needs a header");
+      }
+      final int header = data[0] & 0xff;
+      final boolean negative = header < 0x80;
+      final int length = negative ? 0x7F - header : header - 0x80;
+      if (length > 8 || data.length != length + 1) {
+        throw new SerializationException("Malformed variable length long");
+      }
+      long value = negative ? -1 : 0;
+      for (int i = 1; i <= length; i++) {
+        value = (value << 8) | (data[i] & 0xff);
+      }
+      return value;
+    }
+  }
+
+  public static class FixedLongSerializer extends KeySerializer<Long> {
+
+    @Override
+    public byte[] serialize(final String topic, final Long data) {
+      if (data == null) {
+        return null;
+      }
+      final long value = data ^ Long.MIN_VALUE;
+      final byte[] bytes = new byte[8];
+      for (int i = 0; i < 8; i++) {
+        bytes[i] = (byte) (value >>> (8 * (7 - i)));
+      }
+      return bytes;
+    }
+  }
+
+  public static class FixedLongDeserializer extends KeyDeserializer<Long> {
+
+    @Override
+    public Long deserialize(final String topic, final byte[] data) {
+      if (data == null) {
+        return null;
+      }
+      if (data.length != 8) {
+        throw new SerializationException("A fixed length long must be 8 bytes, not " + data.length);
+      }
+      long value = 0;
+      for (final byte b : data) {
+        value = (value << 8) | (b & 0xff);
+      }
+      return value ^ Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Lengths below 255 take one byte. Longer ones are written as 255 followed by four bytes.
+   * Unpaired surrogates are written as '?', as {@link String#getBytes} would.
+   */
+  public static class Utf8Serializer extends KeySerializer<String> {
+
+    @Override
+    public byte[] serialize(final String topic, final String data) {
+      if (data == null) {
+        return null;
+      }
+      final int chars = data.length();
+      int length = 0;
+      for (int i = 0; i < chars; i++) {
+        final char c = data.charAt(i);
+        if (c < 0x80) {
+          length++;
+        } else if (c < 0x800) {
+          length += 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < chars
+            && Character.isLowSurrogate(data.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else if (Character.isSurrogate(c)) {
+          length++;
+        } else {
+          length += 3;
+        }
+      }
+
+      final int prefix = length < 0xFF ? 1 : 5;
+      final byte[] bytes = new byte[prefix + length];
+      int pos = 0;
+      if (prefix == 1) {
+        bytes[pos++] = (byte) length;
+      } else {
+        bytes[pos++] = (byte) 0xFF;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+          bytes[pos++] = (byte) (length >>> shift);
+        }
+      }
+      for (int i = 0; i < chars; i++) {
+        final char c = data.charAt(i);
+        if (c < 0x80) {
+          bytes[pos++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[pos++] = (byte) (0xC0 | (c >> 6));
+          bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < chars
+            && Character.isLowSurrogate(data.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, data.charAt(++i));
+          bytes[pos++] = (byte) (0xF0 | (codePoint >> 18));
+          bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          bytes[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+          bytes[pos++] = '?';
+        } else {
+          bytes[pos++] = (byte) (0xE0 | (c >> 12));
+          bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      return bytes;
+    }
+  }
+
+  public static class Utf8Deserializer extends KeyDeserializer<String> {
+
+    @Override
+    public String deserialize(final String topic, final byte[] data) {
+      if (data == null) {
+        return null;
+      }
+      if (data.length == 0) {
+        throw new SerializationException("A length prefixed string needs a length");
+      }
+      int prefix = 1;
+      int length = data[0] & 0xff;
+      if (length == 0xFF && data.length >= 5) {
+        prefix = 5;
+        length = 0;
+        for (int i = 1; i < 5; i++) {
+          length = (length << 8) | (data[i] & 0xff);
+        }
+      }
+      if (data.length != prefix + length) {
+        throw new SerializationException("Expected " + length + " bytes of UTF-8, found "
+            + (data.length - prefix));
+      }
+      return new String(data, prefix, length, StandardCharsets.UTF_8);
+    }
+  }
+}
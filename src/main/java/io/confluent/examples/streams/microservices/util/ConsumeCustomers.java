@@ -28,7 +28,7 @@ public class ConsumeCustomers {
         MonitoringInterceptorUtils.maybeConfigureInterceptorsConsumer(props);
 
         try (final KafkaConsumer<String, String> consumer = new KafkaConsumer<>(props)) {
-            consumer.subscribe(Collections.singletonList("customers"));
+            consumer.subscribe(Collections.singletonList(Topics.CUSTOMERS.name()));
 
             while (true) {
                 // poll returns right away when there is data available.
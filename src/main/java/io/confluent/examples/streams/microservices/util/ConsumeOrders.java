@@ -28,7 +28,7 @@ public class ConsumeOrders {
         MonitoringInterceptorUtils.maybeConfigureInterceptorsConsumer(props);
 
         try (final KafkaConsumer<String, String> consumer = new KafkaConsumer<>(props)) {
-            consumer.subscribe(Collections.singletonList("orders"));
+            consumer.subscribe(Collections.singletonList(Topics.ORDERS.name()));
 
             while (true) {
                 // poll returns right away when there is data available.
@@ -29,7 +29,7 @@ public class ConsumePayments {
         MonitoringInterceptorUtils.maybeConfigureInterceptorsConsumer(props);
 
         try (final KafkaConsumer<String, String> consumer = new KafkaConsumer<>(props)) {
-            consumer.subscribe(Collections.singletonList("payments"));
+            consumer.subscribe(Collections.singletonList(Topics.PAYMENTS.name()));
 
             while (true) {
                 // poll returns right away when there is data available.
@@ -0,0 +1,55 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.utils.Bytes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The key of the index of orders by customer: the customer id, as eight bytes with the sign bit
+ * flipped so keys sort by customer, followed by the order id's UTF-8. All of a customer's
+ * orders are therefore next to one another, and can be found with a range scan from
+ * {@link #from} to {@link #to}.
+ */
+public final class CustomerOrderKey {
+
+  private static final int CUSTOMER_BYTES = Long.BYTES;
+
+  private CustomerOrderKey() {
+  }
+
+  public static Bytes key(final long customerId, final String orderId) {
+    final byte[] orderIdBytes = orderId.getBytes(StandardCharsets.UTF_8);
+    return Bytes.wrap(ByteBuffer.allocate(CUSTOMER_BYTES + orderIdBytes.length)
+        .putLong(customerId ^ Long.MIN_VALUE)
+        .put(orderIdBytes)
+        .array());
+  }
+
+  /**
+   * The lowest possible key for the customer.
+   */
+  public static Bytes from(final long customerId) {
+    return Bytes.wrap(ByteBuffer.allocate(CUSTOMER_BYTES).putLong(customerId ^ Long.MIN_VALUE).array());
+  }
+
+  /**
+   * A key above every one for the customer and below every one for the next. 0xFF never appears
+   * in UTF-8, so no order id can start with it.
+   */
+  public static Bytes to(final long customerId) {
+    final byte[] bytes = Arrays.copyOf(from(customerId).get(), CUSTOMER_BYTES + 1);
+    bytes[CUSTOMER_BYTES] = (byte) 0xFF;
+    return Bytes.wrap(bytes);
+  }
+
+  public static long customerId(final Bytes key) {
+    return ByteBuffer.wrap(key.get()).getLong() ^ Long.MIN_VALUE;
+  }
+
+  public static String orderId(final Bytes key) {
+    final byte[] bytes = key.get();
+    return new String(bytes, CUSTOMER_BYTES, bytes.length - CUSTOMER_BYTES, StandardCharsets.UTF_8);
+  }
+}
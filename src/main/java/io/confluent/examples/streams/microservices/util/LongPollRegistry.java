@@ -0,0 +1,196 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.streams.kstream.Predicate;
+
+import javax.ws.rs.container.AsyncResponse;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static io.confluent.examples.streams.microservices.util.MicroserviceUtils.timeoutResponse;
+
+/**
+ * Holds HTTP requests that are waiting ("long polling") for a value to arrive for a key.
+ * <p>
+ * Any number of waiters can be registered against the same key, each with its own predicate,
+ * so two GETs for the same order (say one for any version and one for the VALIDATED version)
+ * don't overwrite one another. When a new value arrives for a key, only the waiters for that key
+ * are tested, and those whose predicate matches are resumed and removed.
+ * <p>
+ * Waiters that are never completed are expired by a hashed timer wheel, which ticks once every
+ * {@code tickMs} and drops (and, if still outstanding, times out) every waiter whose deadline,
+ * as passed to {@link MicroserviceUtils#setTimeout(long, AsyncResponse)}, has passed. This
+ * keeps the registry bounded by the number of requests in flight, rather than growing forever.
+ * <p>
+ * The number of pending waiters and the rate at which they expire are reported as metrics.
+ */
+public class LongPollRegistry<K, V> {
+
+  private static final String METRIC_GROUP = "long-poll-registry";
+  private static final long DEFAULT_TICK_MS = 100;
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private final Map<K, Set<Waiter<K, V>>> waiters = new ConcurrentHashMap<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Function<V, Object> toEntity;
+  private final Queue<Waiter<K, V>>[] wheel;
+  private final long tickMs;
+  private final long startMs;
+  private final ScheduledExecutorService ticker;
+  private final Sensor expirySensor;
+  private volatile long currentTick = 0;
+
+  public LongPollRegistry(final Metrics metrics, final Function<V, Object> toEntity) {
+    this(metrics, toEntity, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+  }
+
+  @SuppressWarnings("unchecked")
+  public LongPollRegistry(final Metrics metrics,
+                          final Function<V, Object> toEntity,
+                          final long tickMs,
+                          final int wheelSize) {
+    this.toEntity = toEntity;
+    this.tickMs = tickMs;
+    this.wheel = new Queue[wheelSize];
+    for (int i = 0; i < wheelSize; i++) {
+      wheel[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    metrics.addMetric(metrics.metricName("pending-waiters", METRIC_GROUP,
+        "The number of requests currently waiting for a value to arrive"),
+        (Gauge<Integer>) (config, now) -> pending.get());
+    expirySensor = metrics.sensor(METRIC_GROUP + "-expired");
+    expirySensor.add(metrics.metricName("expiry-rate", METRIC_GROUP,
+        "The number of waiters per second that reached their timeout before being completed"),
+        new Rate());
+
+    startMs = System.currentTimeMillis();
+    ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "long-poll-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Register a request that is waiting for a value matching the passed predicate.
+   *
+   * @param key the key the request is waiting for
+   * @param predicate the filter a value must pass to complete this request
+   * @param asyncResponse the suspended response to resume
+   * @param timeout the timeout, in ms, passed to setTimeout for this response
+   */
+  public void register(final K key,
+                       final Predicate<K, V> predicate,
+                       final AsyncResponse asyncResponse,
+                       final long timeout) {
+    // Round the deadline up to the next tick so JAX-RS' own timeout normally fires first
+    final long expiryTick = Math.max(currentTick + 1,
+        (System.currentTimeMillis() + timeout - startMs + tickMs - 1) / tickMs);
+    final Waiter<K, V> waiter = new Waiter<>(key, predicate, asyncResponse, timeout, expiryTick);
+    waiters.compute(key, (k, set) -> {
+      final Set<Waiter<K, V>> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+      result.add(waiter);
+      return result;
+    });
+    pending.incrementAndGet();
+    wheel[(int) (expiryTick % wheel.length)].add(waiter);
+  }
+
+  /**
+   * Resume every request waiting on this key whose predicate matches the value. This only
+   * touches the waiters registered for this key.
+   */
+  public void complete(final K key, final V value) {
+    final Set<Waiter<K, V>> forKey = waiters.get(key);
+    if (forKey == null) {
+      return;
+    }
+    for (final Waiter<K, V> waiter : forKey) {
+      if (waiter.predicate.test(key, value) && waiter.markDone()) {
+        remove(waiter);
+        waiter.asyncResponse.resume(toEntity.apply(value));
+      }
+    }
+  }
+
+  public int pending() {
+    return pending.get();
+  }
+
+  public void close() {
+    ticker.shutdownNow();
+  }
+
+  private void tick() {
+    final long tick = ++currentTick;
+    final Queue<Waiter<K, V>> bucket = wheel[(int) (tick % wheel.length)];
+    final int size = bucket.size();
+    for (int i = 0; i < size; i++) {
+      final Waiter<K, V> waiter = bucket.poll();
+      if (waiter == null) {
+        break;
+      }
+      if (waiter.done.get()) {
+        continue; //already completed, so just drop it from the wheel
+      }
+      if (waiter.expiryTick > tick) {
+        bucket.add(waiter); //expires on a later rotation of the wheel
+        continue;
+      }
+      if (waiter.markDone()) {
+        remove(waiter);
+        expirySensor.record();
+        if (!waiter.asyncResponse.isDone()) {
+          waiter.asyncResponse.resume(timeoutResponse(waiter.timeout));
+        }
+      }
+    }
+  }
+
+  private void remove(final Waiter<K, V> waiter) {
+    waiters.computeIfPresent(waiter.key, (k, set) -> {
+      set.remove(waiter);
+      return set.isEmpty() ? null : set;
+    });
+    pending.decrementAndGet();
+  }
+
+  private static class Waiter<K, V> {
+    private final K key;
+    private final Predicate<K, V> predicate;
+    private final AsyncResponse asyncResponse;
+    private final long timeout;
+    private final long expiryTick;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    Waiter(final K key,
+           final Predicate<K, V> predicate,
+           final AsyncResponse asyncResponse,
+           final long timeout,
+           final long expiryTick) {
+      this.key = key;
+      this.predicate = predicate;
+      this.asyncResponse = asyncResponse;
+      this.timeout = timeout;
+      this.expiryTick = expiryTick;
+    }
+
+    boolean markDone() {
+      return done.compareAndSet(false, true);
+    }
+  }
+}
@@ -7,23 +7,28 @@ import io.confluent.examples.streams.utils.MonitoringInterceptorUtils;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsConfig;
-import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.apache.kafka.streams.Topology;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.servlet.ServletContainer;
-import org.rocksdb.Options;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.Response;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
@@ -33,6 +38,18 @@ public class MicroserviceUtils {
   private static final Logger log = LoggerFactory.getLogger(MicroserviceUtils.class);
   private static final String DEFAULT_BOOTSTRAP_SERVERS = "localhost:9092";
   private static final String DEFAULT_SCHEMA_REGISTRY_URL = "http://localhost:8081";
+  static final String METRICS_JMX_PREFIX = "kafka.streams.microservices";
+  /**
+   * Whether to hold back commits while a service is catching up, see
+   * {@link AdaptiveCommitClientSupplier}. Read, and removed, by {@link #createStreams}.
+   */
+  public static final String ADAPTIVE_COMMIT_ENABLED_CONFIG = "microservices.adaptive.commit.enabled";
+  /**
+   * The longest interval, in ms, commits may be held back for while catching up. The shortest is
+   * {@link StreamsConfig#COMMIT_INTERVAL_MS_CONFIG}. Read, and removed, by {@link #createStreams}.
+   */
+  public static final String ADAPTIVE_COMMIT_MAX_INTERVAL_MS_CONFIG =
+      "microservices.adaptive.commit.max.interval.ms";
 
   public static String parseArgsAndConfigure(final String[] args) {
     if (args.length > 2) {
@@ -66,8 +83,15 @@ public class MicroserviceUtils {
                                              final String appId,
                                              final boolean enableEOS) {
     Properties config = new Properties();
-    // Workaround for a known issue with RocksDB in environments where you have only 1 cpu core.
-    config.put(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG, CustomRocksDBConfig.class);
+    // Share one block cache between every store in the JVM, and cap each store's memtables
+    config.put(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG, BoundedMemoryRocksDBConfig.class);
+    config.put(BoundedMemoryRocksDBConfig.BLOCK_CACHE_BYTES_CONFIG,
+        BoundedMemoryRocksDBConfig.DEFAULT_BLOCK_CACHE_BYTES);
+    config.put(BoundedMemoryRocksDBConfig.WRITE_BUFFER_BYTES_CONFIG,
+        BoundedMemoryRocksDBConfig.DEFAULT_WRITE_BUFFER_BYTES);
+    config.put(BoundedMemoryRocksDBConfig.STATISTICS_ENABLED_CONFIG, false);
+    config.put(BoundedMemoryRocksDBConfig.STATISTICS_INTERVAL_MS_CONFIG,
+        BoundedMemoryRocksDBConfig.DEFAULT_STATISTICS_INTERVAL_MS);
     config.put(StreamsConfig.APPLICATION_ID_CONFIG, appId);
     config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
     config.put(StreamsConfig.STATE_DIR_CONFIG, stateDir);
@@ -75,24 +99,52 @@ public class MicroserviceUtils {
     final String processingGuaranteeConfig = enableEOS ? "exactly_once" : "at_least_once";
     config.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, processingGuaranteeConfig);
     config.put(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG, 1); //commit as fast as possible
+    //...unless we're catching up, in which case commit no less often than once a second
+    config.put(ADAPTIVE_COMMIT_ENABLED_CONFIG, true);
+    config.put(ADAPTIVE_COMMIT_MAX_INTERVAL_MS_CONFIG, 1000);
     config.put(StreamsConfig.consumerPrefix(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG), 30000);
     MonitoringInterceptorUtils.maybeConfigureInterceptorsStreams(config);
 
     return config;
   }
 
-  public static class CustomRocksDBConfig implements RocksDBConfigSetter {
+  /**
+   * Create a KafkaStreams instance from a config built with {@link #baseStreamsConfig}, whose
+   * commits, if {@link #ADAPTIVE_COMMIT_ENABLED_CONFIG} is set, are held back while it is
+   * catching up, and whose RocksDB statistics, if
+   * {@link BoundedMemoryRocksDBConfig#STATISTICS_ENABLED_CONFIG} is set, are sampled by the
+   * service's recorder.
+   */
+  public static KafkaStreams createStreams(final Topology topology,
+                                           final Properties config,
+                                           final RocksDBStatisticsRecorder rocksDBStatistics) {
+    final Properties streamsConfig = new Properties();
+    streamsConfig.putAll(config);
+    final Object enabled = streamsConfig.remove(ADAPTIVE_COMMIT_ENABLED_CONFIG);
+    final Object maxIntervalMs = streamsConfig.remove(ADAPTIVE_COMMIT_MAX_INTERVAL_MS_CONFIG);
+    final Object statisticsEnabled = streamsConfig.remove(BoundedMemoryRocksDBConfig.STATISTICS_ENABLED_CONFIG);
+    final Object statisticsIntervalMs = streamsConfig.remove(BoundedMemoryRocksDBConfig.STATISTICS_INTERVAL_MS_CONFIG);
+    final boolean sampleStatistics = statisticsEnabled != null && Boolean.parseBoolean(statisticsEnabled.toString());
+    if (sampleStatistics) {
+      streamsConfig.put(BoundedMemoryRocksDBConfig.STATISTICS_RECORDER_CONFIG, rocksDBStatistics);
+    }
 
-    @Override
-    public void setConfig(final String storeName, final Options options,
-        final Map<String, Object> configs) {
-      // Workaround: We must ensure that the parallelism is set to >= 2.  There seems to be a known
-      // issue with RocksDB where explicitly setting the parallelism to 1 causes issues (even though
-      // 1 seems to be RocksDB's default for this configuration).
-      final int compactionParallelism = Math.max(Runtime.getRuntime().availableProcessors(), 2);
-      // Set number of compaction threads (but not flush threads).
-      options.setIncreaseParallelism(compactionParallelism);
+    final KafkaStreams streams;
+    if (enabled == null || !Boolean.parseBoolean(enabled.toString())) {
+      streams = new KafkaStreams(topology, streamsConfig);
+    } else {
+      final StreamsConfig parsed = new StreamsConfig(streamsConfig);
+      streams = new KafkaStreams(topology, streamsConfig, new AdaptiveCommitClientSupplier(
+          parsed.getString(StreamsConfig.APPLICATION_ID_CONFIG),
+          parsed.getLong(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG),
+          Long.parseLong(maxIntervalMs.toString())));
     }
+    if (sampleStatistics) {
+      rocksDBStatistics.start(streams, statisticsIntervalMs == null
+          ? BoundedMemoryRocksDBConfig.DEFAULT_STATISTICS_INTERVAL_MS
+          : Long.parseLong(statisticsIntervalMs.toString()));
+    }
+    return streams;
   }
 
   //Streams doesn't provide an Enum serdes so just create one here.
@@ -145,10 +197,31 @@ public class MicroserviceUtils {
 
   public static void setTimeout(final long timeout, final AsyncResponse asyncResponse) {
     asyncResponse.setTimeout(timeout, TimeUnit.MILLISECONDS);
-    asyncResponse.setTimeoutHandler(resp -> resp.resume(
-        Response.status(Response.Status.GATEWAY_TIMEOUT)
-            .entity("HTTP GET timed out after " + timeout + " ms\n")
-            .build()));
+    asyncResponse.setTimeoutHandler(resp -> resp.resume(timeoutResponse(timeout)));
+  }
+
+  public static Response timeoutResponse(final long timeout) {
+    return Response.status(Response.Status.GATEWAY_TIMEOUT)
+        .entity("HTTP GET timed out after " + timeout + " ms\n")
+        .build();
+  }
+
+  /**
+   * Create a metrics registry for a service. Metrics are reported over JMX, alongside the
+   * Kafka Streams and client metrics, under the "kafka.streams.microservices" domain and tagged
+   * with the service name. While {@link SharedResources} are being shared, the shared registry
+   * is returned instead.
+   */
+  public static Metrics startMetrics(final String serviceName) {
+    final Metrics shared = SharedResources.metrics();
+    if (shared != null) {
+      return shared;
+    }
+    final MetricConfig config = new MetricConfig()
+        .tags(Collections.singletonMap("service", serviceName));
+    return new Metrics(config,
+        Collections.singletonList(new JmxReporter(METRICS_JMX_PREFIX)),
+        Time.SYSTEM);
   }
 
   public static Server startJetty(final int port, final Object binding) {
@@ -177,14 +250,29 @@ public class MicroserviceUtils {
 
   public static <T> KafkaProducer startProducer(final String bootstrapServers,
                                                 final Schemas.Topic<String, T> topic) {
+    return startProducer(bootstrapServers, topic, "order-sender");
+  }
+
+  /**
+   * Create an idempotent producer for the topic. While {@link SharedResources} are being shared,
+   * the shared producer is returned instead.
+   */
+  public static <T> KafkaProducer startProducer(final String bootstrapServers,
+                                                final Schemas.Topic<String, T> topic,
+                                                final String clientId) {
     final Properties producerConfig = new Properties();
     producerConfig.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
     producerConfig.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
     producerConfig.put(ProducerConfig.RETRIES_CONFIG, String.valueOf(Integer.MAX_VALUE));
     producerConfig.put(ProducerConfig.ACKS_CONFIG, "all");
-    producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, "order-sender");
+    producerConfig.put(ProducerConfig.CLIENT_ID_CONFIG, clientId);
     MonitoringInterceptorUtils.maybeConfigureInterceptorsProducer(producerConfig);
 
+    final KafkaProducer<Object, Object> shared = SharedResources.producer(producerConfig);
+    if (shared != null) {
+      return shared;
+    }
+
     return new KafkaProducer<>(producerConfig,
         topic.keySerde().serializer(),
         topic.valueSerde().serializer());
@@ -0,0 +1,121 @@
+package io.confluent.examples.streams.microservices.util;
+
+import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topic;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Copies every topic in {@link Topics} to its compact keys twin, rewriting each key from the
+ * topic's legacy serde to its compact one, so services can be switched over to
+ * {@link Schemas#COMPACT_KEYS_PROPERTY} without losing their data:
+ * <ol>
+ * <li>stop the services, and anything else producing to their topics;</li>
+ * <li>run this, once, which creates any missing compact keys topics, with the same number of
+ * partitions and replicas as the originals, and copies everything up to the end of each
+ * original across. Values, timestamps and headers are copied unchanged. Records are
+ * repartitioned by their new keys, so the order of records with the same key is kept but that
+ * of others isn't;</li>
+ * <li>reset each service with kafka-streams-application-reset, so that stores and their
+ * changelogs, which hold keys in the old format, are rebuilt;</li>
+ * <li>restart the services, and producers, with the system property set.</li>
+ * </ol>
+ * The originals are left alone, so switching back is a matter of restarting without the
+ * property, and resetting again.
+ * <p>
+ * usage: MigrateToCompactKeys [bootstrap servers]
+ */
+public class MigrateToCompactKeys {
+
+  public static void main(final String[] args) throws Exception {
+    final String bootstrapServers = args.length > 0 ? args[0] : "localhost:9092";
+    for (final Topic<?, ?> topic : new ArrayList<>(Topics.ALL.values())) {
+      final long copied = migrate(topic, bootstrapServers);
+      System.out.printf("Copied %d records from %s to %s%n",
+          copied, topic.legacyName(), topic.compactName());
+    }
+  }
+
+  /**
+   * @return the number of records copied
+   */
+  public static <K> long migrate(final Topic<K, ?> topic, final String bootstrapServers)
+      throws ExecutionException, InterruptedException {
+    final Properties consumerConfig = new Properties();
+    consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    final Properties producerConfig = new Properties();
+    producerConfig.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    producerConfig.put(ProducerConfig.ACKS_CONFIG, "all");
+    producerConfig.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+
+    try (final KafkaConsumer<byte[], byte[]> consumer =
+             new KafkaConsumer<>(consumerConfig, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+         final KafkaProducer<byte[], byte[]> producer =
+             new KafkaProducer<>(producerConfig, new ByteArraySerializer(), new ByteArraySerializer())) {
+      final List<PartitionInfo> partitions = consumer.partitionsFor(topic.legacyName());
+      if (partitions == null || partitions.isEmpty()) {
+        return 0;
+      }
+      createIfMissing(topic.compactName(), partitions.size(),
+          (short) partitions.get(0).replicas().length, bootstrapServers);
+
+      final List<TopicPartition> assignment = partitions.stream()
+          .map(partition -> new TopicPartition(partition.topic(), partition.partition()))
+          .collect(Collectors.toList());
+      consumer.assign(assignment);
+      consumer.seekToBeginning(assignment);
+      final Map<TopicPartition, Long> endOffsets = consumer.endOffsets(assignment);
+
+      long copied = 0;
+      while (assignment.stream().anyMatch(partition -> consumer.position(partition) < endOffsets.get(partition))) {
+        for (final ConsumerRecord<byte[], byte[]> record : consumer.poll(Duration.ofMillis(100))) {
+          final K key = topic.legacyKeySerde().deserializer().deserialize(record.topic(), record.key());
+          producer.send(new ProducerRecord<>(topic.compactName(), null, record.timestamp(),
+              topic.compactKeySerde().serializer().serialize(topic.compactName(), key),
+              record.value(), record.headers()));
+          copied++;
+        }
+      }
+      producer.flush();
+      return copied;
+    }
+  }
+
+  private static void createIfMissing(final String name,
+                                      final int partitions,
+                                      final short replicationFactor,
+                                      final String bootstrapServers)
+      throws ExecutionException, InterruptedException {
+    final Properties adminConfig = new Properties();
+    adminConfig.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    try (final AdminClient admin = AdminClient.create(adminConfig)) {
+      final Set<String> existing = admin.listTopics().names().get();
+      if (!existing.contains(name)) {
+        admin.createTopics(Collections.singleton(new NewTopic(name, partitions, replicationFactor))).all().get();
+      }
+    }
+  }
+}
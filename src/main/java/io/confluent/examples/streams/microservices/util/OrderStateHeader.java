@@ -0,0 +1,155 @@
+package io.confluent.examples.streams.microservices.util;
+
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.kstream.ValueTransformer;
+import org.apache.kafka.streams.kstream.ValueTransformerSupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Marks each record written to the orders topic with the state of its order, in an
+ * {@link #HEADER}, so that services that only want orders in some states can drop the rest
+ * without decoding their values.
+ * <p>
+ * Writers {@link #stamp} the header, or in Kafka Streams use {@link #stampInStreams} just before
+ * the sink, as a record written by Streams otherwise carries the headers of the record it came
+ * from, which may be of the order in an earlier state. Readers use a {@link #filtering}
+ * deserializer, which returns null, without decoding, for any record whose header names a state
+ * they don't want. Records without the header, from older writers, are decoded as before, so
+ * readers must still check the state of what they get.
+ * <p>
+ * The number of records decoded and skipped is reported in the metrics group
+ * "order-state-filter", tagged with the service.
+ */
+public final class OrderStateHeader {
+
+  public static final String HEADER = "order-state";
+  static final String METRIC_GROUP = "order-state-filter";
+
+  private OrderStateHeader() {
+  }
+
+  /**
+   * Set the header to the state, replacing any it already had.
+   */
+  public static Headers stamp(final Headers headers, final OrderState state) {
+    headers.remove(HEADER);
+    headers.add(HEADER, value(state));
+    return headers;
+  }
+
+  private static byte[] value(final OrderState state) {
+    return state.name().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A transformer that passes orders through unchanged, stamping each with its state.
+   */
+  public static ValueTransformerSupplier<Order, Order> stampInStreams() {
+    return () -> new ValueTransformer<Order, Order>() {
+      private ProcessorContext context;
+
+      @Override
+      public void init(final ProcessorContext context) {
+        this.context = context;
+      }
+
+      @Override
+      public Order transform(final Order order) {
+        if (order != null) {
+          stamp(context.headers(), order.getState());
+        }
+        return order;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * A serde for the orders topic whose deserializer only decodes orders in the given states.
+   */
+  public static Serde<Order> filtering(final String service,
+                                       final Metrics metrics,
+                                       final OrderState... states) {
+    return Serdes.serdeFrom(Topics.ORDERS.valueSerde().serializer(),
+        new FilteringDeserializer(Topics.ORDERS.valueSerde().deserializer(), service, metrics, states));
+  }
+
+  static class FilteringDeserializer implements Deserializer<Order> {
+
+    private final Deserializer<Order> deserializer;
+    private final byte[][] states;
+    private final LongAdder decoded = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    FilteringDeserializer(final Deserializer<Order> deserializer,
+                          final String service,
+                          final Metrics metrics,
+                          final OrderState... states) {
+      this.deserializer = deserializer;
+      this.states = Arrays.stream(states).map(OrderStateHeader::value).toArray(byte[][]::new);
+      final Map<String, String> tags = Collections.singletonMap("service", service);
+      //Counted rather than recorded in sensors, as a sensor costs about as much per record as
+      //skipping saves
+      metrics.addMetric(metrics.metricName("decoded-total", METRIC_GROUP,
+          "The number of orders decoded, as they were in a wanted state or had no header", tags),
+          (Gauge<Long>) (config, now) -> decoded.sum());
+      metrics.addMetric(metrics.metricName("skipped-total", METRIC_GROUP,
+          "The number of orders skipped without decoding, as their header named an unwanted state", tags),
+          (Gauge<Long>) (config, now) -> skipped.sum());
+    }
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public Order deserialize(final String topic, final byte[] data) {
+      return deserializer.deserialize(topic, data);
+    }
+
+    @Override
+    public Order deserialize(final String topic, final Headers headers, final byte[] data) {
+      if (data == null) {
+        return null;
+      }
+      final Header state = headers == null ? null : headers.lastHeader(HEADER);
+      if (state != null && !wanted(state.value())) {
+        skipped.increment();
+        return null;
+      }
+      decoded.increment();
+      return deserializer.deserialize(topic, headers, data);
+    }
+
+    private boolean wanted(final byte[] state) {
+      for (final byte[] wanted : states) {
+        if (Arrays.equals(wanted, state)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
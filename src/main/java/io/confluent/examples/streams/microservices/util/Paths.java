@@ -8,6 +8,10 @@ public class Paths {
     base = "http://" + host + ":" + port;
   }
 
+  public String urlBase() {
+    return base;
+  }
+
   public String urlGet(final int id) {
     return base + "/v1/orders/" + id;
   }
@@ -27,4 +31,16 @@ public class Paths {
   public String urlPost() {
     return base + "/v1/orders/";
   }
+
+  public String urlPostBatch() {
+    return base + "/v1/orders/batch";
+  }
+
+  public String urlCustomerOrders(final long customerId) {
+    return base + "/v1/customers/" + customerId + "/orders";
+  }
+
+  public String urlLatency() {
+    return base + "/v1/latency";
+  }
 }
\ No newline at end of file
@@ -0,0 +1,269 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Percentiles.BucketSizing;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.streams.kstream.ValueTransformer;
+import org.apache.kafka.streams.kstream.ValueTransformerSupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Traces orders through the pipeline with Kafka record headers, and records how long they take
+ * to get from one service to the next.
+ * <p>
+ * When an order is submitted it is given a {@link #TRACE_ID_HEADER}, a {@link #ORIGIN_HEADER}
+ * holding the time it was submitted, and a {@link #HOP_HEADER} naming the service and the time.
+ * Each service that picks up a traced record appends its own {@link #HOP_HEADER}, and records
+ * the time since the previous hop, tagged with the previous service, and since the origin.
+ * Kafka Streams carries a record's headers through to whatever it writes for that record, so
+ * the validations, and the validated order, carry the hops of the order they came from. The
+ * hops on a VALIDATED or FAILED order are therefore the path that held it up: submission, the
+ * validation that completed it, the aggregator and, recorded by {@link #completed}, its arrival
+ * back in the orders view.
+ * <p>
+ * Latencies are kept as histograms, over the last minute or so, in the metrics group
+ * "pipeline-latency", and so are reported over JMX with each service's other metrics. They are
+ * tagged with the service, so services sharing one registry keep their latencies apart. Times
+ * are taken from each service's clock, so hops between hosts are only as accurate as their
+ * clocks are in sync.
+ */
+public class PipelineTracing {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelineTracing.class);
+  public static final String TRACE_ID_HEADER = "trace-id";
+  public static final String ORIGIN_HEADER = "trace-origin";
+  public static final String HOP_HEADER = "trace-hop";
+  static final String METRIC_GROUP = "pipeline-latency";
+  private static final double MAX_LATENCY_MS = 60_000;
+  private static final int HISTOGRAM_BYTES = 4_000;
+
+  private final String service;
+  private final Metrics metrics;
+  private final Time time;
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private final Histogram originLatency;
+  private final Histogram totalLatency;
+
+  public PipelineTracing(final String service, final Metrics metrics) {
+    this(service, metrics, Time.SYSTEM);
+  }
+
+  PipelineTracing(final String service, final Metrics metrics, final Time time) {
+    this.service = service;
+    this.metrics = metrics;
+    this.time = time;
+    originLatency = histogram("origin-latency", Collections.emptyMap(),
+        "since the order was submitted");
+    totalLatency = histogram("total-latency", Collections.emptyMap(),
+        "from submitting an order to its VALIDATED or FAILED version arriving in the orders view");
+  }
+
+  /**
+   * Start a trace, for an order about to be submitted.
+   */
+  public Headers start(final Headers headers) {
+    final long now = time.milliseconds();
+    headers.add(TRACE_ID_HEADER, UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+    headers.add(ORIGIN_HEADER, ByteBuffer.allocate(Long.BYTES).putLong(now).array());
+    headers.add(HOP_HEADER, hop(service, now));
+    return headers;
+  }
+
+  /**
+   * Record the latency of a record arriving at this service, and add this service's hop to it,
+   * so the services it is passed on to measure from here. Records that aren't traced are left
+   * alone.
+   */
+  public void received(final Headers headers) {
+    final Header origin = headers.lastHeader(ORIGIN_HEADER);
+    if (origin == null) {
+      return;
+    }
+    final long now = time.milliseconds();
+    final Header previous = headers.lastHeader(HOP_HEADER);
+    if (previous != null) {
+      histogram("hop-latency", Collections.singletonMap("from", hopService(previous)),
+          "since the previous service picked the order up")
+          .record(now - hopTime(previous), now);
+    }
+    originLatency.record(now - ByteBuffer.wrap(origin.value()).getLong(), now);
+    headers.add(HOP_HEADER, hop(service, now));
+  }
+
+  /**
+   * Record the latency of a traced order reaching its final state, along with that of each hop
+   * along the way.
+   */
+  public void completed(final Headers headers) {
+    final Header origin = headers.lastHeader(ORIGIN_HEADER);
+    if (origin == null) {
+      return;
+    }
+    final long now = time.milliseconds();
+    final List<Header> hops = new ArrayList<>();
+    headers.headers(HOP_HEADER).forEach(hops::add);
+    for (int i = 1; i < hops.size(); i++) {
+      recordPathHop(hopService(hops.get(i - 1)), hopService(hops.get(i)),
+          hopTime(hops.get(i)) - hopTime(hops.get(i - 1)), now);
+    }
+    if (!hops.isEmpty()) {
+      final Header last = hops.get(hops.size() - 1);
+      recordPathHop(hopService(last), service, now - hopTime(last), now);
+    }
+    final long total = now - ByteBuffer.wrap(origin.value()).getLong();
+    totalLatency.record(total, now);
+    if (log.isDebugEnabled()) {
+      final Header traceId = headers.lastHeader(TRACE_ID_HEADER);
+      log.debug("Trace " + (traceId == null ? "?" : new String(traceId.value(), StandardCharsets.UTF_8))
+          + " completed in " + total + "ms");
+    }
+  }
+
+  private void recordPathHop(final String from, final String to, final long latency, final long now) {
+    histogram("path-hop-latency", Collections.singletonMap("hop", from + "->" + to),
+        "of each hop on the path of orders that reached their final state")
+        .record(latency, now);
+  }
+
+  /**
+   * A transformer that passes values through unchanged, calling {@link #received} with the
+   * headers of each. Use it straight after a source so it is applied before anything is written.
+   */
+  public <V> ValueTransformerSupplier<V, V> receivedInStreams() {
+    return inStreams(value -> false);
+  }
+
+  /**
+   * A transformer that passes values through unchanged, calling {@link #completed} with the
+   * headers of those that are in their final state, and {@link #received} with those of the rest.
+   */
+  public <V> ValueTransformerSupplier<V, V> inStreams(final Predicate<V> isComplete) {
+    return () -> new ValueTransformer<V, V>() {
+      private ProcessorContext context;
+
+      @Override
+      public void init(final ProcessorContext context) {
+        this.context = context;
+      }
+
+      @Override
+      public V transform(final V value) {
+        if (value != null && isComplete.test(value)) {
+          completed(context.headers());
+        } else {
+          received(context.headers());
+        }
+        return value;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * The end to end latency, and that of each hop on the path of completed orders, recorded by
+   * {@link #completed}, for reporting.
+   */
+  public Map<String, Map<String, Double>> summary() {
+    final Map<String, Map<String, Double>> summary = new LinkedHashMap<>();
+    summary.put("total", totalLatency.summary());
+    final Map<String, Map<String, Double>> hops = new TreeMap<>();
+    for (final Histogram histogram : histograms.values()) {
+      if (histogram.name.equals("path-hop-latency")) {
+        hops.put(histogram.tags.get("hop"), histogram.summary());
+      }
+    }
+    summary.putAll(hops);
+    return summary;
+  }
+
+  private Histogram histogram(final String name, final Map<String, String> tags, final String description) {
+    return histograms.computeIfAbsent(name + tags, key -> new Histogram(name, tags, description));
+  }
+
+  private static byte[] hop(final String service, final long time) {
+    final byte[] name = service.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(Long.BYTES + name.length).putLong(time).put(name).array();
+  }
+
+  private static long hopTime(final Header hop) {
+    return ByteBuffer.wrap(hop.value()).getLong();
+  }
+
+  private static String hopService(final Header hop) {
+    return new String(hop.value(), Long.BYTES, hop.value().length - Long.BYTES, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The average, maximum and percentiles of a latency, in ms, and the number of times it was
+   * recorded, over the sensor's window.
+   */
+  private class Histogram {
+
+    private final String name;
+    private final Map<String, String> tags;
+    private final Sensor sensor;
+    private final Map<String, MetricName> stats = new LinkedHashMap<>();
+
+    Histogram(final String name, final Map<String, String> tags, final String description) {
+      this.name = name;
+      this.tags = tags;
+      sensor = metrics.sensor(METRIC_GROUP + "-" + service + "-" + name + tags);
+      sensor.add(stat("count", "The number of latencies recorded " + description), new Count());
+      sensor.add(stat("avg", "The average time in ms " + description), new Avg());
+      sensor.add(stat("max", "The maximum time in ms " + description), new Max());
+      sensor.add(new Percentiles(HISTOGRAM_BYTES, MAX_LATENCY_MS, BucketSizing.LINEAR,
+          new Percentile(stat("p50", "The median time in ms " + description), 50),
+          new Percentile(stat("p95", "The 95th percentile time in ms " + description), 95),
+          new Percentile(stat("p99", "The 99th percentile time in ms " + description), 99)));
+    }
+
+    private MetricName stat(final String stat, final String description) {
+      final Map<String, String> serviceTags = new LinkedHashMap<>(tags);
+      serviceTags.put("service", service);
+      final MetricName metricName = metrics.metricName(name + "-" + stat, METRIC_GROUP, description, serviceTags);
+      stats.put(stat, metricName);
+      return metricName;
+    }
+
+    void record(final long latencyMs, final long now) {
+      sensor.record(Math.max(0, latencyMs), now);
+    }
+
+    Map<String, Double> summary() {
+      final Map<String, Double> summary = new LinkedHashMap<>();
+      stats.forEach((stat, metricName) -> {
+        final KafkaMetric metric = metrics.metric(metricName);
+        summary.put(stat, metric == null ? Double.NaN : (Double) metric.metricValue());
+      });
+      return summary;
+    }
+  }
+}
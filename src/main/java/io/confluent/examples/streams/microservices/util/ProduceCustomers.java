@@ -1,13 +1,13 @@
 package io.confluent.examples.streams.microservices.util;
 
 import io.confluent.examples.streams.avro.microservices.Customer;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import io.confluent.examples.streams.utils.MonitoringInterceptorUtils;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerializer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.common.serialization.LongSerializer;
 
 import java.util.Collections;
 import java.util.Properties;
@@ -29,10 +29,10 @@ public class ProduceCustomers {
         props.put(ProducerConfig.RETRIES_CONFIG, 0);
         MonitoringInterceptorUtils.maybeConfigureInterceptorsProducer(props);
 
-        try (final KafkaProducer<Long, Customer> producer = new KafkaProducer<>(props, new LongSerializer(), mySerializer)) {
+        try (final KafkaProducer<Long, Customer> producer = new KafkaProducer<>(props, Topics.CUSTOMERS.keySerde().serializer(), mySerializer)) {
             while (true) {
                 final Customer customer = new Customer(15L, "Franz", "Kafka", "frans@thedarkside.net", "oppression street, prague, cze", "gold");
-                final ProducerRecord<Long, Customer> record = new ProducerRecord<>("customers", customer.getId(), customer);
+                final ProducerRecord<Long, Customer> record = new ProducerRecord<>(Topics.CUSTOMERS.name(), customer.getId(), customer);
                 producer.send(record);
                 Thread.sleep(1000L);
             }
@@ -1,13 +1,13 @@
 package io.confluent.examples.streams.microservices.util;
 
 import io.confluent.examples.streams.avro.microservices.Payment;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import io.confluent.examples.streams.utils.MonitoringInterceptorUtils;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerializer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.common.serialization.StringSerializer;
 
 import java.util.Collections;
 import java.util.Properties;
@@ -31,11 +31,11 @@ public class ProducePayments {
         props.put(ProducerConfig.RETRIES_CONFIG, 0);
         MonitoringInterceptorUtils.maybeConfigureInterceptorsProducer(props);
 
-        try (final KafkaProducer<String, Payment> producer = new KafkaProducer<>(props, new StringSerializer(), mySerializer)) {
+        try (final KafkaProducer<String, Payment> producer = new KafkaProducer<>(props, Topics.PAYMENTS.keySerde().serializer(), mySerializer)) {
             while (true) {
                 final String orderId = id(0L);
                 final Payment payment = new Payment("Payment:1234", orderId, "CZK", 1000.00d);
-                final ProducerRecord<String, Payment> record = new ProducerRecord<>("payments", payment.getId(), payment);
+                final ProducerRecord<String, Payment> record = new ProducerRecord<>(Topics.PAYMENTS.name(), payment.getId(), payment);
                 producer.send(record);
                 Thread.sleep(1000L);
             }
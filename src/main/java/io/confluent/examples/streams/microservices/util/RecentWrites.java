@@ -0,0 +1,130 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.streams.kstream.Predicate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small write-through cache of values this instance has just written to Kafka, so that a
+ * client can read its own write as soon as Kafka has acknowledged it, rather than waiting for it
+ * to come back round into a materialized view.
+ * <p>
+ * Values are added, with the partition and offset they were written to, once the send is
+ * acknowledged. They are evicted as soon as the view has applied that offset, or a later one,
+ * for the key, which {@link #applied} is told of. Writes to partitions whose view is hosted on
+ * another instance are never seen applied here, so every value is also evicted after
+ * {@code maxAgeMs}, and the oldest are dropped once there are {@code maxEntries}.
+ * <p>
+ * The number of values held, and the rate of reads served from them, are reported as metrics.
+ */
+public class RecentWrites<K, V> {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+  public static final long DEFAULT_MAX_AGE_MS = 10_000;
+  static final String METRIC_GROUP = "recent-writes";
+
+  private final int maxEntries;
+  private final long maxAgeMs;
+  private final Time time;
+  //In the order they were written, so the oldest are first
+  private final LinkedHashMap<K, Write<V>> writes = new LinkedHashMap<>();
+  private final Sensor hits;
+
+  public RecentWrites(final Metrics metrics) {
+    this(metrics, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MS, Time.SYSTEM);
+  }
+
+  RecentWrites(final Metrics metrics, final int maxEntries, final long maxAgeMs, final Time time) {
+    this.maxEntries = maxEntries;
+    this.maxAgeMs = maxAgeMs;
+    this.time = time;
+
+    metrics.addMetric(metrics.metricName("entries", METRIC_GROUP,
+        "The number of recently written values waiting to appear in the view"),
+        (Gauge<Integer>) (config, now) -> size());
+    hits = metrics.sensor(METRIC_GROUP + "-hits");
+    hits.add(metrics.metricName("hit-rate", METRIC_GROUP,
+        "The number of reads per second served from recently written values"), new Rate());
+    hits.add(metrics.metricName("hit-total", METRIC_GROUP,
+        "The number of reads served from recently written values"), new Total());
+  }
+
+  /**
+   * Remember a value Kafka has acknowledged writing to the given partition and offset.
+   */
+  public synchronized void written(final K key, final V value, final int partition, final long offset) {
+    final Write<V> previous = writes.get(key);
+    if (previous != null && previous.partition == partition && previous.offset > offset) {
+      //A later write was acknowledged first
+      return;
+    }
+    //Re-insert, so the key moves to the back
+    writes.remove(key);
+    writes.put(key, new Write<>(value, partition, offset, time.milliseconds()));
+    expire();
+    if (writes.size() > maxEntries) {
+      final Iterator<Write<V>> oldest = writes.values().iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  /**
+   * @return the value most recently written for the key, if the view hasn't caught up with it
+   * yet and it matches the predicate, else null
+   */
+  public synchronized V get(final K key, final Predicate<K, V> predicate) {
+    expire();
+    final Write<V> write = writes.get(key);
+    if (write == null || !predicate.test(key, write.value)) {
+      return null;
+    }
+    hits.record();
+    return write.value;
+  }
+
+  /**
+   * Tell the cache the view has applied the record at the given partition and offset for the
+   * key, so any earlier write to it needn't be held any longer.
+   */
+  public synchronized void applied(final K key, final int partition, final long offset) {
+    final Write<V> write = writes.get(key);
+    if (write != null && write.partition == partition && write.offset <= offset) {
+      writes.remove(key);
+    }
+  }
+
+  public synchronized int size() {
+    return writes.size();
+  }
+
+  private void expire() {
+    final long oldest = time.milliseconds() - maxAgeMs;
+    final Iterator<Map.Entry<K, Write<V>>> entries = writes.entrySet().iterator();
+    while (entries.hasNext() && entries.next().getValue().writtenMs < oldest) {
+      entries.remove();
+    }
+  }
+
+  private static class Write<V> {
+    private final V value;
+    private final int partition;
+    private final long offset;
+    private final long writtenMs;
+
+    Write(final V value, final int partition, final long offset, final long writtenMs) {
+      this.value = value;
+      this.partition = partition;
+      this.offset = offset;
+      this.writtenMs = writtenMs;
+    }
+  }
+}
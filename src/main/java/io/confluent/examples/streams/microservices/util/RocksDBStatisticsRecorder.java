@@ -0,0 +1,364 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.processor.TaskMetadata;
+import org.apache.kafka.streams.processor.ThreadMetadata;
+import org.rocksdb.Env;
+import org.rocksdb.HistogramData;
+import org.rocksdb.HistogramType;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.SstFileManager;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the {@link Statistics} of a service's RocksDB stores, on a schedule, into metrics
+ * tagged with the service, the store and the task it belongs to, reported through the service's
+ * own registry alongside its other metrics. A service creates one when it starts, hands it to
+ * {@link MicroserviceUtils#createStreams}, which passes it on to
+ * {@link BoundedMemoryRocksDBConfig} in the streams config, and closes it when it stops.
+ * <p>
+ * Kafka Streams only tells a {@link org.apache.kafka.streams.state.RocksDBConfigSetter} a
+ * store's name, so each copy of a store is also given an {@link SstFileManager}, which learns
+ * the paths of the copy's files as it opens or writes them. A store's files are kept two
+ * directories below its task's, as {@code <task>/rocksdb/<store>} or, for the segments of a
+ * window or session store, {@code <task>/<store>/<segment>}, so the first file gives the task.
+ * A copy's figures are reported from then on: one that has yet to write a file has little to
+ * report. The figures for every segment of a store in a task are combined: counts are summed and
+ * latencies are those of the slowest segment. Counts are reported per second over the last
+ * sample, latencies, in microseconds, since each segment was opened.
+ * <p>
+ * Nor is a config setter told when a store is closed, so a copy is dropped once its directory
+ * has been deleted, as an expired segment's is, once the stream thread that opened it no longer
+ * has its task, or once the store is opened again in the same directory. The metrics of a store
+ * are removed with its last copy.
+ */
+public class RocksDBStatisticsRecorder {
+
+  private static final Logger log = LoggerFactory.getLogger(RocksDBStatisticsRecorder.class);
+  private static final String METRIC_GROUP = "rocksdb-statistics";
+
+  private static final Map<String, TickerType> RATES = new LinkedHashMap<>();
+  private static final Map<String, HistogramType> LATENCIES = new LinkedHashMap<>();
+
+  static {
+    RATES.put("block-cache-hit-rate", TickerType.BLOCK_CACHE_HIT);
+    RATES.put("block-cache-miss-rate", TickerType.BLOCK_CACHE_MISS);
+    RATES.put("bloom-filter-useful-rate", TickerType.BLOOM_FILTER_USEFUL);
+    RATES.put("memtable-hit-rate", TickerType.MEMTABLE_HIT);
+    RATES.put("bytes-written-rate", TickerType.BYTES_WRITTEN);
+    RATES.put("bytes-read-rate", TickerType.BYTES_READ);
+    RATES.put("flush-bytes-written-rate", TickerType.FLUSH_WRITE_BYTES);
+    RATES.put("compaction-bytes-written-rate", TickerType.COMPACT_WRITE_BYTES);
+    RATES.put("compaction-bytes-read-rate", TickerType.COMPACT_READ_BYTES);
+    RATES.put("write-stall-micros-rate", TickerType.STALL_MICROS);
+    LATENCIES.put("get", HistogramType.DB_GET);
+    LATENCIES.put("write", HistogramType.DB_WRITE);
+    LATENCIES.put("seek", HistogramType.DB_SEEK);
+    LATENCIES.put("compaction", HistogramType.COMPACTION_TIME);
+  }
+
+  private final String service;
+  private final Metrics metrics;
+  private final List<StoreCopy> unresolved = new ArrayList<>();
+  private final Map<StoreKey, StoreStatistics> stores = new HashMap<>();
+  private ScheduledExecutorService sampler;
+  private KafkaStreams streams;
+  private boolean closed = false;
+
+  public RocksDBStatisticsRecorder(final String service, final Metrics metrics) {
+    this.service = service;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Start sampling, every {@code intervalMs}, the stores opened by the passed streams.
+   */
+  synchronized void start(final KafkaStreams streams, final long intervalMs) {
+    this.streams = streams;
+    sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "rocksdb-statistics-sampler-" + service);
+      thread.setDaemon(true);
+      return thread;
+    });
+    sampler.scheduleAtFixedRate(this::sample, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Collect the statistics of a store about to be opened, on this thread, with the passed options.
+   */
+  synchronized void register(final String storeName, final Options options) {
+    if (closed) {
+      return;
+    }
+    final SstFileManager files;
+    try {
+      files = new SstFileManager(Env.getDefault());
+    } catch (final RocksDBException e) {
+      log.warn("Not collecting statistics for " + storeName, e);
+      return;
+    }
+    final Statistics statistics = new Statistics();
+    options.setStatistics(statistics);
+    options.setSstFileManager(files);
+    unresolved.add(new StoreCopy(storeName, Thread.currentThread().getName(), options, statistics, files));
+  }
+
+  synchronized void sample() {
+    try {
+      resolve();
+      final Map<String, Set<String>> assigned = assignedTasks();
+      final long now = System.currentTimeMillis();
+      final Iterator<StoreStatistics> iterator = stores.values().iterator();
+      while (iterator.hasNext()) {
+        final StoreStatistics store = iterator.next();
+        store.copies.removeIf(copy -> {
+          final boolean gone = !copy.directory.exists() || !isAssigned(copy, assigned);
+          if (gone) {
+            copy.close();
+          }
+          return gone;
+        });
+        store.sample(now);
+        if (store.copies.isEmpty()) {
+          store.close();
+          iterator.remove();
+        }
+      }
+    } catch (final RuntimeException e) {
+      //don't let one bad sample stop the schedule
+      log.warn("Failed to sample RocksDB statistics", e);
+    }
+  }
+
+  /**
+   * Find the task of each copy that has written a file, dropping any copy it replaces.
+   */
+  private void resolve() {
+    final Iterator<StoreCopy> iterator = unresolved.iterator();
+    while (iterator.hasNext()) {
+      final StoreCopy copy = iterator.next();
+      if (copy.options.get() == null) {
+        //closed before it ever wrote a file
+        copy.close();
+        iterator.remove();
+        continue;
+      }
+      final Iterator<String> paths = copy.files.getTrackedFiles().keySet().iterator();
+      if (!paths.hasNext()) {
+        continue;
+      }
+      iterator.remove();
+      copy.directory = new File(paths.next()).getParentFile();
+      final String task = copy.directory.getParentFile().getParentFile().getName();
+      for (final StoreStatistics store : stores.values()) {
+        store.copies.removeIf(existing -> {
+          final boolean replaced = existing.directory.equals(copy.directory);
+          if (replaced) {
+            existing.close();
+          }
+          return replaced;
+        });
+      }
+      stores.computeIfAbsent(new StoreKey(copy.store, task), StoreStatistics::new).copies.add(copy);
+    }
+  }
+
+  /**
+   * @return the tasks of each stream thread, or nothing while the streams aren't running, so
+   * tasks aren't taken to have moved while a rebalance is still handing them out
+   */
+  private Map<String, Set<String>> assignedTasks() {
+    final Map<String, Set<String>> assigned = new HashMap<>();
+    if (streams == null || streams.state() != KafkaStreams.State.RUNNING) {
+      return assigned;
+    }
+    for (final ThreadMetadata thread : streams.localThreadsMetadata()) {
+      final Set<String> tasks = new HashSet<>();
+      for (final TaskMetadata task : thread.activeTasks()) {
+        tasks.add(task.taskId());
+      }
+      for (final TaskMetadata task : thread.standbyTasks()) {
+        tasks.add(task.taskId());
+      }
+      assigned.put(thread.threadName(), tasks);
+    }
+    return assigned;
+  }
+
+  private static boolean isAssigned(final StoreCopy copy, final Map<String, Set<String>> assigned) {
+    //global stores are opened by a thread of their own, which has no tasks
+    final Set<String> tasks = assigned.get(copy.thread);
+    return tasks == null || tasks.contains(copy.directory.getParentFile().getParentFile().getName());
+  }
+
+  /**
+   * Stop sampling, and remove every store's metrics.
+   */
+  public synchronized void close() {
+    closed = true;
+    if (sampler != null) {
+      sampler.shutdownNow();
+    }
+    unresolved.forEach(StoreCopy::close);
+    unresolved.clear();
+    for (final StoreStatistics store : stores.values()) {
+      store.copies.forEach(StoreCopy::close);
+      store.close();
+    }
+    stores.clear();
+  }
+
+  private class StoreStatistics {
+
+    private final List<StoreCopy> copies = new ArrayList<>();
+    private final List<MetricName> metricNames = new ArrayList<>();
+    private volatile Map<String, Double> values = Collections.emptyMap();
+    private long lastSampleMs = System.currentTimeMillis();
+
+    StoreStatistics(final StoreKey key) {
+      final Map<String, String> tags = new HashMap<>();
+      tags.put("service", service);
+      tags.put("store", key.store);
+      tags.put("task", key.task);
+      for (final Map.Entry<String, TickerType> rate : RATES.entrySet()) {
+        addGauge(rate.getKey(), tags, "The number per second of " + rate.getValue());
+      }
+      addGauge("block-cache-hit-ratio", tags,
+          "The fraction of block cache lookups that were hits");
+      addGauge("write-amplification", tags,
+          "The bytes flushed and compacted for each byte written");
+      addGauge("sst-bytes", tags, "The total size of the store's SST files");
+      for (final String latency : LATENCIES.keySet()) {
+        addGauge(latency + "-latency-avg", tags, "The average " + latency + " time in micros");
+        addGauge(latency + "-latency-p99", tags, "The 99th percentile " + latency + " time in micros");
+      }
+    }
+
+    private void addGauge(final String name, final Map<String, String> tags, final String description) {
+      final MetricName metricName = metrics.metricName(name, METRIC_GROUP, description, tags);
+      metrics.addMetric(metricName, (Gauge<Double>) (config, now) -> values.getOrDefault(name, 0d));
+      metricNames.add(metricName);
+    }
+
+    void sample(final long now) {
+      final Map<TickerType, Long> deltas = new EnumMap<>(TickerType.class);
+      final Map<String, Double> sampled = new HashMap<>();
+      long sstBytes = 0;
+      for (final StoreCopy copy : copies) {
+        for (final TickerType ticker : RATES.values()) {
+          final long count = copy.statistics.getTickerCount(ticker);
+          deltas.merge(ticker, count - copy.lastCounts.getOrDefault(ticker, 0L), Long::sum);
+          copy.lastCounts.put(ticker, count);
+        }
+        for (final Map.Entry<String, HistogramType> latency : LATENCIES.entrySet()) {
+          final HistogramData data = copy.statistics.getHistogramData(latency.getValue());
+          sampled.merge(latency.getKey() + "-latency-avg", data.getAverage(), Math::max);
+          sampled.merge(latency.getKey() + "-latency-p99", data.getPercentile99(), Math::max);
+        }
+        sstBytes += copy.files.getTotalSize();
+      }
+
+      final double seconds = Math.max(now - lastSampleMs, 1) / 1000d;
+      lastSampleMs = now;
+      for (final Map.Entry<String, TickerType> rate : RATES.entrySet()) {
+        sampled.put(rate.getKey(), deltas.getOrDefault(rate.getValue(), 0L) / seconds);
+      }
+      final long hits = deltas.getOrDefault(TickerType.BLOCK_CACHE_HIT, 0L);
+      final long misses = deltas.getOrDefault(TickerType.BLOCK_CACHE_MISS, 0L);
+      final long written = deltas.getOrDefault(TickerType.BYTES_WRITTEN, 0L);
+      final long flushedAndCompacted = deltas.getOrDefault(TickerType.FLUSH_WRITE_BYTES, 0L)
+          + deltas.getOrDefault(TickerType.COMPACT_WRITE_BYTES, 0L);
+      sampled.put("block-cache-hit-ratio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+      sampled.put("write-amplification", written == 0 ? 0 : (double) flushedAndCompacted / written);
+      sampled.put("sst-bytes", (double) sstBytes);
+      values = sampled;
+    }
+
+    void close() {
+      metricNames.forEach(metrics::removeMetric);
+    }
+  }
+
+  private static class StoreCopy {
+
+    private final String store;
+    private final String thread;
+    private final WeakReference<Options> options;
+    private final Statistics statistics;
+    private final SstFileManager files;
+    private final Map<TickerType, Long> lastCounts = new EnumMap<>(TickerType.class);
+    private File directory;
+
+    StoreCopy(final String store,
+              final String thread,
+              final Options options,
+              final Statistics statistics,
+              final SstFileManager files) {
+      this.store = store;
+      this.thread = thread;
+      this.options = new WeakReference<>(options);
+      this.statistics = statistics;
+      this.files = files;
+    }
+
+    /**
+     * Release our handles. RocksDB keeps its own reference to both while the store is open.
+     */
+    void close() {
+      statistics.close();
+      files.close();
+    }
+  }
+
+  private static class StoreKey {
+
+    private final String store;
+    private final String task;
+
+    StoreKey(final String store, final String task) {
+      this.store = store;
+      this.task = task;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final StoreKey that = (StoreKey) o;
+      return store.equals(that.store) && task.equals(that.task);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(store, task);
+    }
+  }
+}
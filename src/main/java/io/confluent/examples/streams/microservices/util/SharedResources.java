@@ -0,0 +1,158 @@
+package io.confluent.examples.streams.microservices.util;
+
+import io.confluent.examples.streams.microservices.domain.Schemas.Topic;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Time;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A metrics registry and a producer shared by every service in the JVM, for when several
+ * services run in one process. Between {@link #start} and {@link #stop},
+ * {@link MicroserviceUtils#startMetrics} and {@link MicroserviceUtils#startProducer} hand out
+ * these rather than creating their own.
+ * <p>
+ * Services close what they are given as they always have, so closing the shared registry or
+ * producer does nothing: they are closed by {@link #stop}, once every service has stopped.
+ * <p>
+ * The registry has no default tags, so unlike a service's own it doesn't tag every metric with
+ * the service; metrics that more than one service registers are tagged with it explicitly. The
+ * producer writes to any of the {@link Topics}, serializing each record with its topic's serdes.
+ * Only plain producers are shared. Transactional ones can't be, as a transactional id belongs to
+ * one producer, and nor can those Kafka Streams creates, which close with their tasks.
+ */
+public final class SharedResources {
+
+  private static final String PRODUCER_CLIENT_ID = "shared-producer";
+
+  private static SharedMetrics metrics;
+  private static SharedProducer producer;
+
+  private SharedResources() {
+  }
+
+  public static synchronized void start() {
+    if (metrics == null) {
+      metrics = new SharedMetrics();
+    }
+  }
+
+  public static synchronized void stop() {
+    if (producer != null) {
+      producer.closeShared();
+      producer = null;
+    }
+    if (metrics != null) {
+      metrics.closeShared();
+      metrics = null;
+    }
+  }
+
+  /**
+   * @return the shared registry, or null if resources aren't being shared
+   */
+  static synchronized Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the shared producer, created with the given config the first time it is asked for,
+   * or null if resources aren't being shared
+   */
+  static synchronized KafkaProducer<Object, Object> producer(final Properties config) {
+    if (metrics == null) {
+      return null;
+    }
+    if (producer == null) {
+      final Properties sharedConfig = new Properties();
+      sharedConfig.putAll(config);
+      sharedConfig.put(ProducerConfig.CLIENT_ID_CONFIG, PRODUCER_CLIENT_ID);
+      producer = new SharedProducer(sharedConfig);
+    }
+    return producer;
+  }
+
+  private static class SharedMetrics extends Metrics {
+
+    SharedMetrics() {
+      super(new MetricConfig(),
+          Collections.singletonList(new JmxReporter(MicroserviceUtils.METRICS_JMX_PREFIX)),
+          Time.SYSTEM);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    void closeShared() {
+      super.close();
+    }
+  }
+
+  private static class SharedProducer extends KafkaProducer<Object, Object> {
+
+    SharedProducer(final Properties config) {
+      super(config, new TopicSerializer(Topic::keySerde), new TopicSerializer(Topic::valueSerde));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void close(final Duration timeout) {
+    }
+
+    @Deprecated
+    @Override
+    public void close(final long timeout, final TimeUnit timeUnit) {
+    }
+
+    void closeShared() {
+      super.close(Duration.ofMillis(Long.MAX_VALUE));
+    }
+  }
+
+  /**
+   * Serializes each record with the serde of the topic it is sent to.
+   */
+  private static class TopicSerializer implements Serializer<Object> {
+
+    private final Function<Topic<?, ?>, Serde<?>> serde;
+
+    TopicSerializer(final Function<Topic<?, ?>, Serde<?>> serde) {
+      this.serde = serde;
+    }
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public byte[] serialize(final String topic, final Object data) {
+      final Topic<?, ?> target = Topics.ALL.get(topic);
+      if (target == null) {
+        throw new SerializationException("The shared producer can't write to unknown topic " + topic);
+      }
+      return ((Serializer<Object>) serde.apply(target).serializer()).serialize(topic, data);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.utils.Bytes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The key of an index by time: a timestamp, as eight big-endian bytes, followed by an id's UTF-8.
+ * Timestamps are never negative, so keys sort by time, and everything up to a given time can be
+ * found with a range scan from {@link #from} to {@link #to}, without looking at anything later.
+ */
+public final class TimeOrderedKey {
+
+  private static final int TIMESTAMP_BYTES = Long.BYTES;
+
+  private TimeOrderedKey() {
+  }
+
+  public static Bytes key(final long timestamp, final String id) {
+    final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+    return Bytes.wrap(ByteBuffer.allocate(TIMESTAMP_BYTES + idBytes.length)
+        .putLong(timestamp)
+        .put(idBytes)
+        .array());
+  }
+
+  /**
+   * The lowest possible key.
+   */
+  public static Bytes from() {
+    return Bytes.wrap(new byte[TIMESTAMP_BYTES]);
+  }
+
+  /**
+   * A key above every one at or before the timestamp and below every one after it. 0xFF never
+   * appears in UTF-8, so no id can start with it.
+   */
+  public static Bytes to(final long timestamp) {
+    final byte[] bytes = Arrays.copyOf(
+        ByteBuffer.allocate(TIMESTAMP_BYTES).putLong(Math.max(0, timestamp)).array(), TIMESTAMP_BYTES + 1);
+    bytes[TIMESTAMP_BYTES] = (byte) 0xFF;
+    return Bytes.wrap(bytes);
+  }
+
+  public static long timestamp(final Bytes key) {
+    return ByteBuffer.wrap(key.get()).getLong();
+  }
+
+  public static String id(final Bytes key) {
+    final byte[] bytes = key.get();
+    return new String(bytes, TIMESTAMP_BYTES, bytes.length - TIMESTAMP_BYTES, StandardCharsets.UTF_8);
+  }
+}
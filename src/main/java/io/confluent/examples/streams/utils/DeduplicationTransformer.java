@@ -0,0 +1,410 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.MeasurableStat;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.KeyValueMapper;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.StoreBuilder;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.WindowStore;
+import org.apache.kafka.streams.state.WindowStoreIterator;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Discards duplicate records from a stream.
+ * <p>
+ * Duplicate records are detected based on an event ID, extracted from each record. The
+ * transformer remembers known event IDs in a window state store, see {@link #storeBuilder}, which
+ * automatically purges event IDs from the store after a certain amount of time has passed to
+ * prevent the store from growing indefinitely.
+ * <p>
+ * Almost all events are usually new, and reading the store to find that out costs a RocksDB
+ * lookup per event. So in front of the store the transformer keeps, in memory, a Bloom filter of
+ * the event IDs seen in each bucket of event time, half a maintain duration wide. An event whose
+ * ID none of the buckets around its timestamp might contain is definitely new, and is forwarded
+ * without reading the store; only the rest are checked against the store. Buckets are dropped as
+ * stream time moves past the maintain duration, along with the store's own expiry, and are
+ * rebuilt from the store whenever the transformer is initialized, so also once the store has been
+ * restored from its changelog. Events older than the oldest bucket are always checked against
+ * the store.
+ * <p>
+ * The filters are sized for an expected number of events per maintain duration, per task. More
+ * events than that are still de-duplicated correctly, but more of them are checked against the
+ * store. How well the filters are doing is reported in the metrics group
+ * "{@value #METRIC_GROUP}", tagged with the task and the store:
+ * <ul>
+ * <li>store-reads-total: the events that were checked against the store;</li>
+ * <li>store-reads-skipped-total: the events the filters showed to be new, without a store read;</li>
+ * <li>store-read-savings-ratio: the fraction of events that skipped the store read;</li>
+ * <li>false-positives-total: the events the filters might have seen before, but which the store
+ * showed to be new;</li>
+ * <li>false-positive-ratio: the fraction of new events the filters might have seen before.</li>
+ * </ul>
+ * Note: The store should NOT be closed manually by this transformer. The Kafka Streams API will
+ * automatically close stores when necessary.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ * @param <E> the event ID type
+ */
+public class DeduplicationTransformer<K, V, E> implements Transformer<K, V, KeyValue<K, V>> {
+
+  public static final String METRIC_GROUP = "deduplication-metrics";
+  public static final long DEFAULT_EXPECTED_EVENTS = 100_000;
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+  private static final int BUCKETS_PER_DURATION = 2;
+
+  private final String storeName;
+  private final long maintainDurationMs;
+  private final long leftDurationMs;
+  private final long rightDurationMs;
+  private final long bucketMs;
+  private final KeyValueMapper<K, V, E> idExtractor;
+  private final Serde<E> idSerde;
+  private final int bitsPerBucket;
+  private final int hashesPerBucket;
+
+  private ProcessorContext context;
+
+  /**
+   * Key: event ID
+   * Value: timestamp (event-time) of the corresponding event when the event ID was seen for the
+   * first time
+   */
+  private WindowStore<E, Long> eventIdStore;
+
+  /**
+   * The filters, by bucket of event time. Every bucket from {@link #oldestBucket} on that has
+   * had an event put in the store is here.
+   */
+  private final TreeMap<Long, BloomFilter> buckets = new TreeMap<>();
+  private long oldestBucket = Long.MIN_VALUE;
+  private long observedStreamTime = Long.MIN_VALUE;
+
+  private Sensor sensor;
+  private long storeReads = 0;
+  private long storeReadsSkipped = 0;
+  private long falsePositives = 0;
+
+  /**
+   * A transformer whose filters are sized for {@value #DEFAULT_EXPECTED_EVENTS} events per
+   * maintain duration, at a false positive rate of {@value #DEFAULT_FALSE_POSITIVE_RATE}.
+   *
+   * @see #DeduplicationTransformer(String, long, KeyValueMapper, Serde, long, double)
+   */
+  public DeduplicationTransformer(final String storeName,
+                                  final long maintainDurationPerEventInMs,
+                                  final KeyValueMapper<K, V, E> idExtractor,
+                                  final Serde<E> idSerde) {
+    this(storeName, maintainDurationPerEventInMs, idExtractor, idSerde,
+        DEFAULT_EXPECTED_EVENTS, DEFAULT_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * @param storeName the name of the window store to remember event IDs in, built with
+   *                  {@link #storeBuilder}
+   * @param maintainDurationPerEventInMs how long to "remember" a known event (or rather, an event
+   *                                     ID), during the time of which any incoming duplicates of
+   *                                     the event will be dropped, thereby de-duplicating the
+   *                                     input.
+   * @param idExtractor extracts a unique identifier from a record by which we de-duplicate input
+   *                    records; if it returns null, the record will not be considered for
+   *                    de-duping but forwarded as-is.
+   * @param idSerde the serde of the event IDs, as used by the store, by whose bytes IDs are hashed
+   * @param expectedEventsPerDuration the number of events each task expects to see per maintain
+   *                                  duration, to size the filters for
+   * @param falsePositiveRate the fraction of new events that the filters, at the expected number
+   *                          of events, may not show to be new, so that they are checked against
+   *                          the store
+   */
+  public DeduplicationTransformer(final String storeName,
+                                  final long maintainDurationPerEventInMs,
+                                  final KeyValueMapper<K, V, E> idExtractor,
+                                  final Serde<E> idSerde,
+                                  final long expectedEventsPerDuration,
+                                  final double falsePositiveRate) {
+    if (maintainDurationPerEventInMs < 1) {
+      throw new IllegalArgumentException("maintain duration per event must be >= 1");
+    }
+    if (expectedEventsPerDuration < 1) {
+      throw new IllegalArgumentException("expected events per duration must be >= 1");
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("false positive rate must be > 0 and < 1");
+    }
+    this.storeName = storeName;
+    maintainDurationMs = maintainDurationPerEventInMs;
+    leftDurationMs = maintainDurationPerEventInMs / 2;
+    rightDurationMs = maintainDurationPerEventInMs - leftDurationMs;
+    bucketMs = Math.max(1, maintainDurationPerEventInMs / BUCKETS_PER_DURATION);
+    this.idExtractor = idExtractor;
+    this.idSerde = idSerde;
+
+    //The optimal number of bits and hash functions for the expected events in each bucket
+    final double expectedPerBucket = Math.max(1, expectedEventsPerDuration / BUCKETS_PER_DURATION);
+    final double bits = -expectedPerBucket * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+    bitsPerBucket = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, Math.ceil(bits)));
+    hashesPerBucket = (int) Math.max(1, Math.round(bitsPerBucket / expectedPerBucket * Math.log(2)));
+  }
+
+  /**
+   * A persistent window store for the transformer to remember event IDs in, for the maintain
+   * duration.
+   */
+  public static <E> StoreBuilder<WindowStore<E, Long>> storeBuilder(final String storeName,
+                                                                   final Duration maintainDurationPerEvent,
+                                                                   final Serde<E> idSerde) {
+    // retention period must be at least window size -- for this use case, we don't need a longer
+    // retention period and thus just use the window size as retention time
+    return Stores.windowStoreBuilder(
+        Stores.persistentWindowStore(storeName,
+            maintainDurationPerEvent,
+            maintainDurationPerEvent,
+            false),
+        idSerde,
+        Serdes.Long());
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(final ProcessorContext context) {
+    this.context = context;
+    eventIdStore = (WindowStore<E, Long>) context.getStateStore(storeName);
+    rebuildFilters();
+    addMetrics();
+  }
+
+  @Override
+  public KeyValue<K, V> transform(final K key, final V value) {
+    final E eventId = idExtractor.apply(key, value);
+    if (eventId == null) {
+      return KeyValue.pair(key, value);
+    } else {
+      final long eventTime = context.timestamp();
+      final long[] hashes = hashes(eventId);
+      final KeyValue<K, V> output;
+      if (isDuplicate(eventId, hashes, eventTime)) {
+        output = null;
+        updateTimestampOfExistingEventToPreventExpiry(eventId, hashes, eventTime);
+      } else {
+        output = KeyValue.pair(key, value);
+        rememberNewEvent(eventId, hashes, eventTime);
+      }
+      return output;
+    }
+  }
+
+  private boolean isDuplicate(final E eventId, final long[] hashes, final long eventTime) {
+    final long firstBucket = bucket(eventTime - leftDurationMs);
+    final boolean inFilters = firstBucket >= oldestBucket;
+    if (inFilters && !mightContain(hashes, firstBucket, bucket(eventTime + rightDurationMs))) {
+      storeReadsSkipped++;
+      return false;
+    }
+    storeReads++;
+    final boolean isDuplicate;
+    try (final WindowStoreIterator<Long> timeIterator = eventIdStore.fetch(
+        eventId,
+        eventTime - leftDurationMs,
+        eventTime + rightDurationMs)) {
+      isDuplicate = timeIterator.hasNext();
+    }
+    if (inFilters && !isDuplicate) {
+      falsePositives++;
+    }
+    return isDuplicate;
+  }
+
+  private boolean mightContain(final long[] hashes, final long firstBucket, final long lastBucket) {
+    for (final BloomFilter filter : buckets.subMap(firstBucket, true, lastBucket, true).values()) {
+      if (filter.mightContain(hashes)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void updateTimestampOfExistingEventToPreventExpiry(final E eventId,
+                                                             final long[] hashes,
+                                                             final long newTimestamp) {
+    eventIdStore.put(eventId, newTimestamp, newTimestamp);
+    remember(hashes, newTimestamp);
+  }
+
+  private void rememberNewEvent(final E eventId, final long[] hashes, final long timestamp) {
+    eventIdStore.put(eventId, timestamp, timestamp);
+    remember(hashes, timestamp);
+  }
+
+  /**
+   * Add the event to the filter of its bucket, then drop the buckets that have passed out of
+   * the maintain duration.
+   */
+  private void remember(final long[] hashes, final long timestamp) {
+    final long bucket = bucket(timestamp);
+    if (bucket >= oldestBucket) {
+      buckets.computeIfAbsent(bucket, b -> new BloomFilter(bitsPerBucket, hashesPerBucket)).add(hashes);
+    }
+    if (timestamp > observedStreamTime) {
+      observedStreamTime = timestamp;
+      final long oldest = bucket(observedStreamTime - maintainDurationMs);
+      if (oldest > oldestBucket) {
+        buckets.headMap(oldest).clear();
+        oldestBucket = oldest;
+      }
+    }
+  }
+
+  /**
+   * Fill the filters with every event ID in the store, which holds everything the filters
+   * would have, and no more than they would have had dropped.
+   */
+  private void rebuildFilters() {
+    buckets.clear();
+    oldestBucket = Long.MIN_VALUE;
+    observedStreamTime = Long.MIN_VALUE;
+    try (final KeyValueIterator<Windowed<E>, Long> all = eventIdStore.all()) {
+      while (all.hasNext()) {
+        final Windowed<E> eventId = all.next().key;
+        remember(hashes(eventId.key()), eventId.window().start());
+      }
+    }
+  }
+
+  private long bucket(final long timestamp) {
+    return Math.floorDiv(timestamp, bucketMs);
+  }
+
+  /**
+   * Two independent hashes of the event ID's bytes, from which the positions of its bits in
+   * each filter are derived.
+   */
+  private long[] hashes(final E eventId) {
+    final byte[] bytes = idSerde.serializer().serialize(storeName, eventId);
+    return new long[] {Utils.murmur2(bytes), Arrays.hashCode(bytes) * 0x9E3779B97F4A7C15L | 1};
+  }
+
+  private void addMetrics() {
+    final Map<String, String> tags = new HashMap<>();
+    tags.put("task-id", context.taskId().toString());
+    tags.put("store-name", storeName);
+    sensor = context.metrics().addSensor(METRIC_GROUP + "-" + context.taskId() + "-" + storeName,
+        Sensor.RecordingLevel.INFO);
+    addMetric("store-reads-total", tags,
+        "The number of events that were checked against the store",
+        () -> storeReads);
+    addMetric("store-reads-skipped-total", tags,
+        "The number of events the filters showed to be new, without a store read",
+        () -> storeReadsSkipped);
+    addMetric("store-read-savings-ratio", tags,
+        "The fraction of events that skipped the store read",
+        () -> ratio(storeReadsSkipped, storeReads));
+    addMetric("false-positives-total", tags,
+        "The number of events the filters might have seen before, but which the store showed to be new",
+        () -> falsePositives);
+    addMetric("false-positive-ratio", tags,
+        "The fraction of new events the filters might have seen before",
+        () -> ratio(falsePositives, storeReadsSkipped));
+  }
+
+  private void addMetric(final String name,
+                         final Map<String, String> tags,
+                         final String description,
+                         final DoubleSupplier value) {
+    //Kept as counts, and only read when the metric is, rather than recorded for every event
+    sensor.add(new MetricName(name, METRIC_GROUP, description, tags), new MeasurableStat() {
+      @Override
+      public void record(final MetricConfig config, final double ignored, final long timeMs) {
+      }
+
+      @Override
+      public double measure(final MetricConfig config, final long now) {
+        return value.getAsDouble();
+      }
+    });
+  }
+
+  private static double ratio(final long count, final long otherCount) {
+    return count + otherCount == 0 ? 0 : (double) count / (count + otherCount);
+  }
+
+  @Override
+  public void close() {
+    // Note: The store should NOT be closed manually here via `eventIdStore.close()`!
+    // The Kafka Streams API will automatically close stores when necessary.
+    if (sensor != null) {
+      context.metrics().removeSensor(sensor);
+      sensor = null;
+    }
+    buckets.clear();
+  }
+
+  /**
+   * A Bloom filter over a fixed number of bits, whose bit positions for an element are derived
+   * from two hashes of it (Kirsch and Mitzenmacher's double hashing).
+   */
+  private static final class BloomFilter {
+
+    private final long[] words;
+    private final int bits;
+    private final int hashes;
+
+    BloomFilter(final int bits, final int hashes) {
+      this.words = new long[(bits + 63) / 64];
+      this.bits = bits;
+      this.hashes = hashes;
+    }
+
+    void add(final long[] hash) {
+      for (int i = 0; i < hashes; i++) {
+        final int bit = bit(hash, i);
+        words[bit >>> 6] |= 1L << bit;
+      }
+    }
+
+    boolean mightContain(final long[] hash) {
+      for (int i = 0; i < hashes; i++) {
+        final int bit = bit(hash, i);
+        if ((words[bit >>> 6] & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int bit(final long[] hash, final int i) {
+      return (int) Math.floorMod(hash[0] + i * hash[1], (long) bits);
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.KeyValueMapper;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.TransformerSupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.StateStore;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.StoreBuilder;
+import org.apache.kafka.streams.state.Stores;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A state store of ranked collections: for each group, a set of members, each with a score,
+ * that can be read back highest score first.
+ * <p>
+ * Every member is held as an entry of its own in an underlying key-value store, under a key of
+ * (group, score descending, member), so the members of a group are stored in rank order, and
+ * {@link #top(Object, int)} is a range scan over the group's prefix that stops after n entries.
+ * Changing a member's score deletes its old entry and writes the new one, so an update only
+ * touches, and only writes to the changelog, the entries of that member, however many members
+ * the group has. The current score of each member is kept alongside, under (group, member), so
+ * callers don't need to know the old score to change it.
+ * <p>
+ * Groups and members are compared by their serialized bytes, so equal groups or members must
+ * serialize to the same bytes. Members with equal scores are ranked by their serialized bytes.
+ * <p>
+ * Build the store with {@link #builder}, and to keep a running top n of a stream of scores, such
+ * as the updates of a {@code KTable} of counts, use {@link #topN} with {@code KStream#transform}.
+ * Groups are never dropped, so groups that stop changing, such as old windows, stay in the store
+ * until their members are removed.
+ *
+ * @param <G> the group type
+ * @param <M> the member type
+ */
+public class RankedStore<G, M> implements StateStore {
+
+  private static final byte RANKS = 0;
+  private static final byte SCORES = 1;
+  private static final byte[] PRESENT = new byte[0];
+
+  private final KeyValueStore<Bytes, byte[]> inner;
+  private final Serde<G> groupSerde;
+  private final Serde<M> memberSerde;
+
+  RankedStore(final KeyValueStore<Bytes, byte[]> inner,
+              final Serde<G> groupSerde,
+              final Serde<M> memberSerde) {
+    this.inner = inner;
+    this.groupSerde = groupSerde;
+    this.memberSerde = memberSerde;
+  }
+
+  /**
+   * A builder of a persistent ranked store, whose entries are logged to a changelog topic
+   * unless logging is disabled.
+   */
+  public static <G, M> StoreBuilder<RankedStore<G, M>> builder(final String name,
+                                                              final Serde<G> groupSerde,
+                                                              final Serde<M> memberSerde) {
+    return new Builder<>(
+        Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(name), Serdes.Bytes(), Serdes.ByteArray()),
+        groupSerde, memberSerde);
+  }
+
+  /**
+   * Keep a running top n of each group from a stream of member scores. Each record names a group,
+   * a member, and the member's new score, or null if it is no longer in the group. For each
+   * record the transformer updates the member in the store, then forwards the group's current
+   * top n members, with their scores, highest first.
+   * <p>
+   * Every record for a group must be processed by the same task, so the stream must be
+   * partitioned by group.
+   *
+   * @param storeName the name of a store built with {@link #builder}
+   * @param group extracts the group from a record
+   * @param member extracts the member from a record
+   * @param score extracts the member's score from a record
+   * @param n the number of members to forward
+   */
+  public static <K, V, G, M> TransformerSupplier<K, V, KeyValue<G, List<KeyValue<M, Long>>>> topN(
+      final String storeName,
+      final KeyValueMapper<K, V, G> group,
+      final KeyValueMapper<K, V, M> member,
+      final KeyValueMapper<K, V, Long> score,
+      final int n) {
+    return () -> new TopNTransformer<>(storeName, group, member, score, n);
+  }
+
+  /**
+   * @return the member's score in the group, or null if it isn't in the group
+   */
+  public Long score(final G group, final M member) {
+    final byte[] score = inner.get(scoreKey(serializeGroup(group), serializeMember(member)));
+    return score == null ? null : ByteBuffer.wrap(score).getLong();
+  }
+
+  /**
+   * Set the member's score in the group, or remove it from the group if the score is null.
+   */
+  public void put(final G group, final M member, final Long score) {
+    final byte[] groupBytes = serializeGroup(group);
+    final byte[] memberBytes = serializeMember(member);
+    final Bytes scoreKey = scoreKey(groupBytes, memberBytes);
+    final byte[] oldScore = inner.get(scoreKey);
+    if (oldScore != null) {
+      if (score != null && score == ByteBuffer.wrap(oldScore).getLong()) {
+        return;
+      }
+      inner.delete(rankKey(groupBytes, ByteBuffer.wrap(oldScore).getLong(), memberBytes));
+    }
+    if (score == null) {
+      if (oldScore != null) {
+        inner.delete(scoreKey);
+      }
+    } else {
+      inner.put(rankKey(groupBytes, score, memberBytes), PRESENT);
+      inner.put(scoreKey, ByteBuffer.allocate(Long.BYTES).putLong(score).array());
+    }
+  }
+
+  /**
+   * @return up to n of the group's members, with their scores, highest score first
+   */
+  public List<KeyValue<M, Long>> top(final G group, final int n) {
+    final byte[] prefix = rankPrefix(serializeGroup(group));
+    final List<KeyValue<M, Long>> top = new ArrayList<>(Math.min(n, 16));
+    try (final KeyValueIterator<Bytes, byte[]> ranks = inner.range(Bytes.wrap(prefix), successor(prefix))) {
+      while (top.size() < n && ranks.hasNext()) {
+        final byte[] key = ranks.next().key.get();
+        final long score = ~(ByteBuffer.wrap(key, prefix.length, Long.BYTES).getLong() ^ Long.MIN_VALUE);
+        final byte[] member = Arrays.copyOfRange(key, prefix.length + Long.BYTES, key.length);
+        top.add(KeyValue.pair(memberSerde.deserializer().deserialize(name(), member), score));
+      }
+    }
+    return top;
+  }
+
+  private byte[] serializeGroup(final G group) {
+    return groupSerde.serializer().serialize(name(), group);
+  }
+
+  private byte[] serializeMember(final M member) {
+    return memberSerde.serializer().serialize(name(), member);
+  }
+
+  /**
+   * The group is length-prefixed, so that no group's keys fall within another's range.
+   */
+  private static byte[] rankPrefix(final byte[] group) {
+    return ByteBuffer.allocate(1 + Integer.BYTES + group.length)
+        .put(RANKS)
+        .putInt(group.length)
+        .put(group)
+        .array();
+  }
+
+  /**
+   * Scores are flipped so that, compared as unsigned bytes, higher scores come first.
+   */
+  private static Bytes rankKey(final byte[] group, final long score, final byte[] member) {
+    final byte[] prefix = rankPrefix(group);
+    return Bytes.wrap(ByteBuffer.allocate(prefix.length + Long.BYTES + member.length)
+        .put(prefix)
+        .putLong(~(score ^ Long.MIN_VALUE))
+        .put(member)
+        .array());
+  }
+
+  private static Bytes scoreKey(final byte[] group, final byte[] member) {
+    return Bytes.wrap(ByteBuffer.allocate(1 + Integer.BYTES + group.length + member.length)
+        .put(SCORES)
+        .putInt(group.length)
+        .put(group)
+        .put(member)
+        .array());
+  }
+
+  /**
+   * The smallest key greater than every key that starts with the prefix. The prefix starts
+   * with {@link #RANKS}, so it always has one.
+   */
+  private static Bytes successor(final byte[] prefix) {
+    final byte[] successor = prefix.clone();
+    int i = successor.length - 1;
+    while (successor[i] == (byte) 0xFF) {
+      successor[i--] = 0;
+    }
+    successor[i]++;
+    return Bytes.wrap(successor);
+  }
+
+  @Override
+  public String name() {
+    return inner.name();
+  }
+
+  @Override
+  public void init(final ProcessorContext context, final StateStore root) {
+    inner.init(context, root);
+  }
+
+  @Override
+  public void flush() {
+    inner.flush();
+  }
+
+  @Override
+  public void close() {
+    inner.close();
+  }
+
+  @Override
+  public boolean persistent() {
+    return inner.persistent();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return inner.isOpen();
+  }
+
+  private static class Builder<G, M> implements StoreBuilder<RankedStore<G, M>> {
+
+    private final StoreBuilder<KeyValueStore<Bytes, byte[]>> inner;
+    private final Serde<G> groupSerde;
+    private final Serde<M> memberSerde;
+
+    Builder(final StoreBuilder<KeyValueStore<Bytes, byte[]>> inner,
+            final Serde<G> groupSerde,
+            final Serde<M> memberSerde) {
+      this.inner = inner;
+      this.groupSerde = groupSerde;
+      this.memberSerde = memberSerde;
+    }
+
+    @Override
+    public StoreBuilder<RankedStore<G, M>> withCachingEnabled() {
+      inner.withCachingEnabled();
+      return this;
+    }
+
+    @Override
+    public StoreBuilder<RankedStore<G, M>> withCachingDisabled() {
+      inner.withCachingDisabled();
+      return this;
+    }
+
+    @Override
+    public StoreBuilder<RankedStore<G, M>> withLoggingEnabled(final Map<String, String> config) {
+      inner.withLoggingEnabled(config);
+      return this;
+    }
+
+    @Override
+    public StoreBuilder<RankedStore<G, M>> withLoggingDisabled() {
+      inner.withLoggingDisabled();
+      return this;
+    }
+
+    @Override
+    public RankedStore<G, M> build() {
+      return new RankedStore<>(inner.build(), groupSerde, memberSerde);
+    }
+
+    @Override
+    public Map<String, String> logConfig() {
+      return inner.logConfig();
+    }
+
+    @Override
+    public boolean loggingEnabled() {
+      return inner.loggingEnabled();
+    }
+
+    @Override
+    public String name() {
+      return inner.name();
+    }
+  }
+
+  private static class TopNTransformer<K, V, G, M>
+      implements Transformer<K, V, KeyValue<G, List<KeyValue<M, Long>>>> {
+
+    private final String storeName;
+    private final KeyValueMapper<K, V, G> group;
+    private final KeyValueMapper<K, V, M> member;
+    private final KeyValueMapper<K, V, Long> score;
+    private final int n;
+    private RankedStore<G, M> store;
+
+    TopNTransformer(final String storeName,
+                    final KeyValueMapper<K, V, G> group,
+                    final KeyValueMapper<K, V, M> member,
+                    final KeyValueMapper<K, V, Long> score,
+                    final int n) {
+      this.storeName = storeName;
+      this.group = group;
+      this.member = member;
+      this.score = score;
+      this.n = n;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(final ProcessorContext context) {
+      store = (RankedStore<G, M>) context.getStateStore(storeName);
+    }
+
+    @Override
+    public KeyValue<G, List<KeyValue<M, Long>>> transform(final K key, final V value) {
+      final G g = group.apply(key, value);
+      store.put(g, member.apply(key, value), score.apply(key, value));
+      return KeyValue.pair(g, store.top(g, n));
+    }
+
+    @Override
+    public void close() {
+      // The store is closed by Kafka Streams
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The deserializer of {@link ReusingSpecificAvroSerde}.
+ */
+public class ReusingSpecificAvroDeserializer<T extends SpecificRecord> implements Deserializer<T> {
+
+  private static final int MAGIC_BYTE = 0x0;
+  private static final int HEADER_SIZE = 5;
+
+  private final ThreadLocal<Reader> readers = ThreadLocal.withInitial(Reader::new);
+  private final int reusedRecords;
+  private SchemaRegistryClient client;
+  private boolean isKey;
+
+  public ReusingSpecificAvroDeserializer() {
+    this(null, 0);
+  }
+
+  public ReusingSpecificAvroDeserializer(final SchemaRegistryClient client, final int reusedRecords) {
+    if (reusedRecords < 0) {
+      throw new IllegalArgumentException("reusedRecords must not be negative: " + reusedRecords);
+    }
+    this.client = client;
+    this.reusedRecords = reusedRecords;
+  }
+
+  @Override
+  public void configure(final Map<String, ?> configs, final boolean isKey) {
+    if (client == null) {
+      client = ReusingSpecificAvroSerde.schemaRegistryClient(configs);
+    }
+    this.isKey = isKey;
+  }
+
+  @Override
+  public T deserialize(final String topic, final byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    if (bytes.length < HEADER_SIZE || bytes[0] != MAGIC_BYTE) {
+      throw new SerializationException("Unknown magic byte!");
+    }
+    final int id = (bytes[1] & 0xff) << 24 | (bytes[2] & 0xff) << 16 | (bytes[3] & 0xff) << 8 | (bytes[4] & 0xff);
+    final Reader reader = readers.get();
+    try {
+      reader.in.reset(bytes);
+      return reader.read(topic, id);
+    } catch (final IOException | RuntimeException e) {
+      throw new SerializationException("Error deserializing Avro message for id " + id, e);
+    } catch (final RestClientException e) {
+      throw new SerializationException("Error retrieving Avro schema for id " + id, e);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * What a thread needs to read records: a decoder, a datum reader for each schema it has seen,
+   * the last one used kept to hand, and the records it cycles through when reusing them. The
+   * decoder reads directly from a stream that is pointed at each message in turn, as Avro's
+   * buffered decoder allocates, and for small messages copies, on every new byte array.
+   */
+  private class Reader {
+
+    private final MessageInputStream in = new MessageInputStream();
+    private final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(in, null);
+    private final Map<Integer, SpecificDatumReader<T>> datumReaders = new HashMap<>();
+    private final Object[] records = new Object[reusedRecords];
+    private int next;
+    private SpecificDatumReader<T> datumReader;
+    private int id = -1;
+
+    @SuppressWarnings("unchecked")
+    private T read(final String topic, final int id) throws IOException, RestClientException {
+      if (id != this.id || datumReader == null) {
+        datumReader = datumReaders.get(id);
+        if (datumReader == null) {
+          datumReader = datumReader(client.getBySubjectAndId(ReusingSpecificAvroSerde.subject(topic, isKey), id));
+          datumReaders.put(id, datumReader);
+        }
+        this.id = id;
+      }
+      if (records.length == 0) {
+        return datumReader.read(null, decoder);
+      }
+      final T record = datumReader.read((T) records[next], decoder);
+      records[next] = record;
+      next = (next + 1) % records.length;
+      return record;
+    }
+
+    private SpecificDatumReader<T> datumReader(final Schema writerSchema) {
+      final Class<?> type = SpecificData.get().getClass(writerSchema);
+      final Schema readerSchema = type == null ? writerSchema : SpecificData.get().getSchema(type);
+      return new SpecificDatumReader<>(writerSchema, readerSchema);
+    }
+  }
+
+  /**
+   * The Avro encoded part of a message, after the magic byte and schema id.
+   */
+  private static class MessageInputStream extends InputStream {
+
+    private byte[] bytes;
+    private int position;
+
+    private void reset(final byte[] bytes) {
+      this.bytes = bytes;
+      this.position = HEADER_SIZE;
+    }
+
+    @Override
+    public int read() {
+      return position < bytes.length ? bytes[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) {
+      if (position >= bytes.length) {
+        return -1;
+      }
+      final int read = Math.min(length, bytes.length - position);
+      System.arraycopy(bytes, position, buffer, offset, read);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public long skip(final long n) {
+      final int skipped = (int) Math.max(0, Math.min(n, bytes.length - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return bytes.length - position;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A drop-in replacement for {@link io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde}
+ * for topics on the hot path. It reads and writes exactly the same bytes, the magic byte, the
+ * schema id and the Avro binary encoding, and registers schemas under the same subjects, but
+ * keeps its encoder, decoder, datum readers and writers and a scratch buffer per thread, so that
+ * writing a record allocates little more than the {@code byte[]} it returns, and reading one
+ * little more than the record itself.
+ * <p>
+ * Reading can go a step further, and decode into a record it returned earlier rather than a new
+ * one, with {@link #ReusingSpecificAvroSerde(int)}. Records are then only good until the same
+ * thread has read {@code reusedRecords} more with this serde, so it is only safe where no record
+ * is held beyond that: no aggregations or stores of the raw record, no windowed joins. Note that
+ * Kafka Streams reads the next record of each input partition before it processes the current
+ * one, so for a source {@code reusedRecords} must be greater than the number of partitions, of
+ * all topics read with this serde, that a single stream thread may be assigned.
+ */
+public class ReusingSpecificAvroSerde<T extends SpecificRecord> implements Serde<T> {
+
+  private final ReusingSpecificAvroSerializer<T> serializer;
+  private final ReusingSpecificAvroDeserializer<T> deserializer;
+
+  public ReusingSpecificAvroSerde() {
+    this(null, 0);
+  }
+
+  public ReusingSpecificAvroSerde(final int reusedRecords) {
+    this(null, reusedRecords);
+  }
+
+  /**
+   * @param client        the schema registry to use, or null to connect to the one configured
+   * @param reusedRecords the number of records each thread cycles through when reading, or 0 to
+   *                      read every record into a new instance
+   */
+  public ReusingSpecificAvroSerde(final SchemaRegistryClient client, final int reusedRecords) {
+    serializer = new ReusingSpecificAvroSerializer<>(client);
+    deserializer = new ReusingSpecificAvroDeserializer<>(client, reusedRecords);
+  }
+
+  @Override
+  public Serializer<T> serializer() {
+    return serializer;
+  }
+
+  @Override
+  public Deserializer<T> deserializer() {
+    return deserializer;
+  }
+
+  @Override
+  public void configure(final Map<String, ?> configs, final boolean isKey) {
+    serializer.configure(configs, isKey);
+    deserializer.configure(configs, isKey);
+  }
+
+  @Override
+  public void close() {
+    serializer.close();
+    deserializer.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  static SchemaRegistryClient schemaRegistryClient(final Map<String, ?> configs) {
+    final Object urls = configs.get(AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG);
+    if (urls == null) {
+      throw new ConfigException("Missing required configuration \""
+          + AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG + "\" which has no default value.");
+    }
+    final Object maxSchemas = configs.get(AbstractKafkaAvroSerDeConfig.MAX_SCHEMAS_PER_SUBJECT_CONFIG);
+    return new CachedSchemaRegistryClient(
+        urls instanceof Collection ? String.join(",", (Collection<String>) urls) : urls.toString(),
+        maxSchemas == null
+            ? AbstractKafkaAvroSerDeConfig.MAX_SCHEMAS_PER_SUBJECT_DEFAULT
+            : Integer.parseInt(maxSchemas.toString()));
+  }
+
+  static String subject(final String topic, final boolean isKey) {
+    return topic + (isKey ? "-key" : "-value");
+  }
+}
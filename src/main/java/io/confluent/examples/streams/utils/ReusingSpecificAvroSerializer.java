@@ -0,0 +1,129 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The serializer of {@link ReusingSpecificAvroSerde}.
+ */
+public class ReusingSpecificAvroSerializer<T extends SpecificRecord> implements Serializer<T> {
+
+  private static final int MAGIC_BYTE = 0x0;
+
+  private final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+  private SchemaRegistryClient client;
+  private boolean isKey;
+  private boolean autoRegisterSchemas = true;
+
+  public ReusingSpecificAvroSerializer() {
+    this(null);
+  }
+
+  public ReusingSpecificAvroSerializer(final SchemaRegistryClient client) {
+    this.client = client;
+  }
+
+  @Override
+  public void configure(final Map<String, ?> configs, final boolean isKey) {
+    if (client == null) {
+      client = ReusingSpecificAvroSerde.schemaRegistryClient(configs);
+    }
+    final Object autoRegister = configs.get(AbstractKafkaAvroSerDeConfig.AUTO_REGISTER_SCHEMAS);
+    autoRegisterSchemas = autoRegister == null || Boolean.parseBoolean(autoRegister.toString());
+    this.isKey = isKey;
+  }
+
+  @Override
+  public byte[] serialize(final String topic, final T record) {
+    if (record == null) {
+      return null;
+    }
+    final Writer writer = writers.get();
+    final Schema schema = record.getSchema();
+    try {
+      final int id = writer.schemaId(topic, schema);
+      writer.out.reset();
+      writer.out.write(MAGIC_BYTE);
+      writer.out.write(id >>> 24);
+      writer.out.write(id >>> 16);
+      writer.out.write(id >>> 8);
+      writer.out.write(id);
+      writer.datumWriter(schema).write(record, writer.encoder);
+      writer.encoder.flush();
+      return writer.out.toByteArray();
+    } catch (final IOException | RuntimeException e) {
+      // the encoder may still hold part of the record, so start the next one afresh
+      writers.remove();
+      throw new SerializationException("Error serializing Avro message", e);
+    } catch (final RestClientException e) {
+      throw new SerializationException("Error registering Avro schema: " + schema, e);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * What a thread needs to write records. The encoder is bound to the scratch buffer once, and
+   * flushed after every record, so only the returned copy of the buffer is allocated. The schema
+   * id of the last topic and schema written is remembered, as a thread almost always writes the
+   * same ones over and over.
+   */
+  private class Writer {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    private final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    private SpecificDatumWriter<T> datumWriter;
+    private Schema datumSchema;
+    private String topic;
+    private Schema schema;
+    private int id;
+
+    private int schemaId(final String topic, final Schema schema)
+        throws IOException, RestClientException {
+      if (schema != this.schema || !topic.equals(this.topic)) {
+        final String subject = ReusingSpecificAvroSerde.subject(topic, isKey);
+        id = autoRegisterSchemas ? client.register(subject, schema) : client.getId(subject, schema);
+        this.topic = topic;
+        this.schema = schema;
+      }
+      return id;
+    }
+
+    private SpecificDatumWriter<T> datumWriter(final Schema schema) {
+      if (schema != datumSchema) {
+        datumWriter = new SpecificDatumWriter<>(schema);
+        datumSchema = schema;
+      }
+      return datumWriter;
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package io.confluent.examples.streams;
 
 import io.confluent.examples.streams.kafka.EmbeddedSingleNodeKafkaCluster;
+import io.confluent.examples.streams.utils.DeduplicationTransformer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
@@ -24,17 +25,11 @@ import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.streams.KafkaStreams;
-import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.kstream.KStream;
-import org.apache.kafka.streams.kstream.KeyValueMapper;
-import org.apache.kafka.streams.kstream.Transformer;
-import org.apache.kafka.streams.processor.ProcessorContext;
 import org.apache.kafka.streams.state.StoreBuilder;
-import org.apache.kafka.streams.state.Stores;
 import org.apache.kafka.streams.state.WindowStore;
-import org.apache.kafka.streams.state.WindowStoreIterator;
 import org.apache.kafka.test.TestUtils;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
@@ -53,9 +48,9 @@ import static org.assertj.core.api.Assertions.assertThat;
  * End-to-end integration test that demonstrates how to remove duplicate records from an input
  * stream.
  *
- * Here, a stateful {@link org.apache.kafka.streams.kstream.Transformer} (from the Processor API)
- * detects and discards duplicate input records based on an "event id" that is embedded in each
- * input record.  This transformer is then included in a topology defined via the DSL.
+ * Here, a stateful {@link DeduplicationTransformer} (from the Processor API) detects and discards
+ * duplicate input records based on an "event id" that is embedded in each input record.  This
+ * transformer is then included in a topology defined via the DSL.
  *
  * In this simplified example, the values of input records represent the event ID by which
  * duplicates will be detected.  In practice, record values would typically be a more complex data
@@ -88,101 +83,6 @@ public class EventDeduplicationLambdaIntegrationTest {
     CLUSTER.createTopic(outputTopic);
   }
 
-  /**
-   * Discards duplicate records from the input stream.
-   *
-   * Duplicate records are detected based on an event ID;  in this simplified example, the record
-   * value is the event ID.  The transformer remembers known event IDs in an associated window state
-   * store, which automatically purges/expires event IDs from the store after a certain amount of
-   * time has passed to prevent the store from growing indefinitely.
-   *
-   * Note: This code is for demonstration purposes and was not tested for production usage.
-   */
-  private static class DeduplicationTransformer<K, V, E> implements Transformer<K, V, KeyValue<K, V>> {
-
-    private ProcessorContext context;
-
-    /**
-     * Key: event ID
-     * Value: timestamp (event-time) of the corresponding event when the event ID was seen for the
-     * first time
-     */
-    private WindowStore<E, Long> eventIdStore;
-
-    private final long leftDurationMs;
-    private final long rightDurationMs;
-
-    private final KeyValueMapper<K, V, E> idExtractor;
-
-    /**
-     * @param maintainDurationPerEventInMs how long to "remember" a known event (or rather, an event
-     *                                     ID), during the time of which any incoming duplicates of
-     *                                     the event will be dropped, thereby de-duplicating the
-     *                                     input.
-     * @param idExtractor extracts a unique identifier from a record by which we de-duplicate input
-     *                    records; if it returns null, the record will not be considered for
-     *                    de-duping but forwarded as-is.
-     */
-    DeduplicationTransformer(final long maintainDurationPerEventInMs, final KeyValueMapper<K, V, E> idExtractor) {
-      if (maintainDurationPerEventInMs < 1) {
-        throw new IllegalArgumentException("maintain duration per event must be >= 1");
-      }
-      leftDurationMs = maintainDurationPerEventInMs / 2;
-      rightDurationMs = maintainDurationPerEventInMs - leftDurationMs;
-      this.idExtractor = idExtractor;
-    }
-
-    @Override
-    @SuppressWarnings("unchecked")
-    public void init(final ProcessorContext context) {
-      this.context = context;
-      eventIdStore = (WindowStore<E, Long>) context.getStateStore(storeName);
-    }
-
-    public KeyValue<K, V> transform(final K key, final V value) {
-      final E eventId = idExtractor.apply(key, value);
-      if (eventId == null) {
-        return KeyValue.pair(key, value);
-      } else {
-        final KeyValue<K, V> output;
-        if (isDuplicate(eventId)) {
-          output = null;
-          updateTimestampOfExistingEventToPreventExpiry(eventId, context.timestamp());
-        } else {
-          output = KeyValue.pair(key, value);
-          rememberNewEvent(eventId, context.timestamp());
-        }
-        return output;
-      }
-    }
-
-    private boolean isDuplicate(final E eventId) {
-      final long eventTime = context.timestamp();
-      final WindowStoreIterator<Long> timeIterator = eventIdStore.fetch(
-          eventId,
-          eventTime - leftDurationMs,
-          eventTime + rightDurationMs);
-      final boolean isDuplicate = timeIterator.hasNext();
-      timeIterator.close();
-      return isDuplicate;
-    }
-
-    private void updateTimestampOfExistingEventToPreventExpiry(final E eventId, final long newTimestamp) {
-      eventIdStore.put(eventId, newTimestamp, newTimestamp);
-    }
-
-    private void rememberNewEvent(final E eventId, final long timestamp) {
-      eventIdStore.put(eventId, timestamp, timestamp);
-    }
-
-    @Override
-    public void close() {
-      // Note: The store should NOT be closed manually here via `eventIdStore.close()`!
-      // The Kafka Streams API will automatically close stores when necessary.
-    }
-
-  }
-
   @Test
   public void shouldRemoveDuplicatesFromTheInput() throws Exception {
     final String firstId = UUID.randomUUID().toString(); // e.g. "4ff3cb44-abcb-46e3-8f9a-afb7cc74fbb8"
@@ -217,19 +117,8 @@ public class EventDeduplicationLambdaIntegrationTest {
     // on de-duplicating late-arriving records.
     final Duration windowSize = Duration.ofMinutes(10);
 
-    // retention period must be at least window size -- for this use case, we don't need a longer retention period
-    // and thus just use the window size as retention time
-    final Duration retentionPeriod = windowSize;
-
-    final StoreBuilder<WindowStore<String, Long>> dedupStoreBuilder = Stores.windowStoreBuilder(
-            Stores.persistentWindowStore(storeName,
-                                         retentionPeriod,
-                                         windowSize,
-                                         false
-            ),
-            Serdes.String(),
-            Serdes.Long());
-
+    final StoreBuilder<WindowStore<String, Long>> dedupStoreBuilder =
+        DeduplicationTransformer.storeBuilder(storeName, windowSize, Serdes.String());
 
     builder.addStateStore(dedupStoreBuilder);
 
@@ -238,7 +127,7 @@ public class EventDeduplicationLambdaIntegrationTest {
         // In this example, we assume that the record value as-is represents a unique event ID by
         // which we can perform de-duplication.  If your records are different, adapt the extractor
         // function as needed.
-        () -> new DeduplicationTransformer<>(windowSize.toMillis(), (key, value) -> value),
+        () -> new DeduplicationTransformer<>(storeName, windowSize.toMillis(), (key, value) -> value, Serdes.String()),
         storeName);
     deduplicated.to(outputTopic);
 
@@ -65,6 +65,7 @@ public class TopArticlesLambdaExampleTest {
   public static void createTopics() {
     CLUSTER.createTopic(TopArticlesLambdaExample.TOP_NEWS_PER_INDUSTRY_TOPIC);
     CLUSTER.createTopic(TopArticlesLambdaExample.PAGE_VIEWS);
+    CLUSTER.createTopic(TopArticlesLambdaExample.ARTICLE_VIEW_COUNTS_BY_INDUSTRY_TOPIC);
   }
 
   @Before
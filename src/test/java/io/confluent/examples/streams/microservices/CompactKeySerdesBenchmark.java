@@ -0,0 +1,67 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.util.CompactKeySerdes;
+import io.confluent.examples.streams.microservices.util.MicroserviceUtils.ProductTypeSerde;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+
+/**
+ * Measures the time taken to write and read back, and the size of, the keys used by the
+ * microservices with their original serdes versus {@link CompactKeySerdes}.
+ * <p>
+ * usage: CompactKeySerdesBenchmark [keys] [rounds]
+ */
+public class CompactKeySerdesBenchmark {
+
+  public static void main(final String[] args) {
+    final int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    final Random random = new Random(0);
+    final Product[] products = Product.values();
+    final List<Product> productKeys = new ArrayList<>(numKeys);
+    final List<String> orderIds = new ArrayList<>(numKeys);
+    final List<Long> customerIds = new ArrayList<>(numKeys);
+    for (int i = 0; i < numKeys; i++) {
+      productKeys.add(products[random.nextInt(products.length)]);
+      orderIds.add(id(random.nextInt(100_000_000)));
+      customerIds.add((long) random.nextInt(100_000));
+    }
+
+    for (int round = 0; round < rounds; round++) {
+      System.out.printf("round %d%n", round);
+      run("product  string ", new ProductTypeSerde(), productKeys);
+      run("product  ordinal", CompactKeySerdes.ordinal(Product.class), productKeys);
+      run("order    string ", Serdes.String(), orderIds);
+      run("order    utf8   ", CompactKeySerdes.utf8(), orderIds);
+      run("customer long   ", Serdes.Long(), customerIds);
+      run("customer varlong", CompactKeySerdes.varLong(), customerIds);
+    }
+  }
+
+  private static <K> void run(final String name, final Serde<K> serde, final List<K> keys) {
+    long bytes = 0;
+    int matches = 0;
+    final long start = System.nanoTime();
+    for (final K key : keys) {
+      final byte[] serialized = serde.serializer().serialize("benchmark", key);
+      bytes += serialized.length;
+      if (serde.deserializer().deserialize("benchmark", serialized).equals(key)) {
+        matches++;
+      }
+    }
+    final long nanos = System.nanoTime() - start;
+    if (matches != keys.size()) {
+      throw new IllegalStateException(name + " didn't read back what it wrote");
+    }
+    System.out.printf("  %s %6.1f ns/key %5.2f bytes/key%n",
+        name, (double) nanos / keys.size(), (double) bytes / keys.size());
+  }
+}
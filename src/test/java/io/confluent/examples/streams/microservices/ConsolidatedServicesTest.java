@@ -0,0 +1,85 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
+import io.confluent.examples.streams.microservices.domain.beans.OrderBean;
+import io.confluent.examples.streams.microservices.util.MicroserviceTestUtils;
+import io.confluent.examples.streams.microservices.util.MicroserviceUtils;
+import io.confluent.examples.streams.microservices.util.Paths;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.GenericType;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.confluent.examples.streams.avro.microservices.Product.JUMPERS;
+import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsolidatedServicesTest extends MicroserviceTestUtils {
+
+  private ConsolidatedServices services;
+  private Client client;
+
+  @Before
+  public void startKafkaCluster() throws Exception {
+    if (!CLUSTER.isRunning()) {
+      CLUSTER.start();
+    }
+    Topics.ALL.keySet().forEach(CLUSTER::createTopic);
+    Schemas.configureSerdesWithSchemaRegistryUrl(CLUSTER.schemaRegistryUrl());
+  }
+
+  @After
+  public void tearDown() {
+    if (services != null) {
+      services.stop();
+    }
+    if (client != null) {
+      client.close();
+    }
+    CLUSTER.stop();
+  }
+
+  @Test
+  public void shouldValidateOrdersWithEveryServiceInOneJvm() {
+    //Given every service running in this JVM
+    services = new ConsolidatedServices(new OrdersService("localhost"), email -> { });
+    services.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths = new Paths("localhost", services.port());
+    client = ClientBuilder.newClient();
+    sendInventory(Collections.singletonList(new KeyValue<>(JUMPERS, 10)), Topics.WAREHOUSE_INVENTORY);
+
+    //When we POST an order
+    final OrderBean order = new OrderBean(id(1L), 2L, OrderState.CREATED, Product.JUMPERS, 1, 1d);
+    postWithRetries(client.target(paths.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(order), 5);
+
+    //Then it is validated
+    final OrderBean validated = getWithRetries(client.target(paths.urlGetValidated(1))
+        .queryParam("timeout", Duration.ofMinutes(1).toMillis())
+        .request(APPLICATION_JSON_TYPE), new GenericType<OrderBean>() {}, 5);
+    assertThat(validated.getState()).isEqualTo(OrderState.VALIDATED);
+
+    //And the services' metrics are in one registry, each tagged with its service
+    final Metrics metrics = MicroserviceUtils.startMetrics("any");
+    for (final String service : new String[] {"FraudService", "OrderDetailsService", "OrdersService"}) {
+      final Map<String, String> tags = new HashMap<>();
+      tags.put("service", service);
+      assertThat(metrics.metric(metrics.metricName("origin-latency-count", "pipeline-latency", tags)))
+          .isNotNull();
+    }
+  }
+}
@@ -8,15 +8,19 @@ import io.confluent.examples.streams.microservices.util.MicroserviceTestUtils;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
-import org.junit.BeforeClass;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static io.confluent.examples.streams.avro.microservices.OrderState.CREATED;
 import static io.confluent.examples.streams.avro.microservices.Product.UNDERPANTS;
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class EmailServiceTest extends MicroserviceTestUtils {
@@ -24,8 +28,8 @@ public class EmailServiceTest extends MicroserviceTestUtils {
   private EmailService emailService;
   private volatile boolean complete;
 
-  @BeforeClass
-  public static void startKafkaCluster() throws Exception {
+  @Before
+  public void startKafkaCluster() throws Exception {
     if (!CLUSTER.isRunning()) {
       CLUSTER.start();
     }
@@ -33,6 +37,7 @@ public class EmailServiceTest extends MicroserviceTestUtils {
     CLUSTER.createTopic(Topics.ORDERS.name());
     CLUSTER.createTopic(Topics.CUSTOMERS.name());
     CLUSTER.createTopic(Topics.PAYMENTS.name());
+    CLUSTER.createTopic(EmailService.EMAIL_TUPLES_TOPIC);
     Schemas.configureSerdesWithSchemaRegistryUrl(CLUSTER.schemaRegistryUrl());
   }
 
@@ -68,4 +73,84 @@ public class EmailServiceTest extends MicroserviceTestUtils {
     //Then
     TestUtils.waitForCondition(() -> complete, 60000L, "Email was never sent.");
   }
+
+  @Test
+  public void shouldSendEveryEmailFromTheAsyncSinkWhenTheTransportIsSlow() throws Exception {
+
+    //Given a customer with five orders and payments
+    final Customer customer = new Customer(15L, "Franz", "Kafka", "frans@thedarkside.net", "oppression street, prague, cze", "gold");
+    final List<KeyValue<String, Order>> orders = new ArrayList<>();
+    final List<KeyValue<String, Payment>> payments = new ArrayList<>();
+    for (long i = 0; i < 5; i++) {
+      final Order order = new Order(id(i), 15L, CREATED, UNDERPANTS, 3, 5.00d);
+      orders.add(new KeyValue<>(order.getId(), order));
+      final Payment payment = new Payment("Payment:" + i, order.getId(), "CZK", 1000.00d);
+      payments.add(new KeyValue<>(payment.getId(), payment));
+    }
+
+    //And a slow transport, behind a queue that only has room for one email
+    final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    emailService = new EmailService(details -> {
+      try {
+        Thread.sleep(200);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      assertThat(details.customer).isEqualTo(customer);
+      sent.add(details.order.getId());
+    });
+    emailService.setAsyncEmailsEnabled(true);
+    emailService.setEmailWorkers(1);
+    emailService.setEmailQueueCapacity(1);
+
+    send(Topics.CUSTOMERS, Collections.singleton(new KeyValue<>(customer.getId(), customer)));
+    send(Topics.ORDERS, orders);
+    send(Topics.PAYMENTS, payments);
+
+    //When
+    emailService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then an email should be sent for every order
+    TestUtils.waitForCondition(() -> sent.size() >= 5, 60000L, "Emails were never sent.");
+    assertThat(sent).containsOnlyElementsOf(
+        orders.stream().map(kv -> kv.key).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void shouldSkipAnEmailTheTransportAlwaysRejects() throws Exception {
+
+    //Given a customer with five orders and payments
+    final Customer customer = new Customer(15L, "Franz", "Kafka", "frans@thedarkside.net", "oppression street, prague, cze", "gold");
+    final List<KeyValue<String, Order>> orders = new ArrayList<>();
+    final List<KeyValue<String, Payment>> payments = new ArrayList<>();
+    for (long i = 0; i < 5; i++) {
+      final Order order = new Order(id(i), 15L, CREATED, UNDERPANTS, 3, 5.00d);
+      orders.add(new KeyValue<>(order.getId(), order));
+      final Payment payment = new Payment("Payment:" + i, order.getId(), "CZK", 1000.00d);
+      payments.add(new KeyValue<>(payment.getId(), payment));
+    }
+
+    //And a transport that can never send the email for one of them
+    final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    emailService = new EmailService(details -> {
+      if (details.order.getId().equals(id(1L))) {
+        throw new IllegalArgumentException("Rejected");
+      }
+      sent.add(details.order.getId());
+    });
+    emailService.setAsyncEmailsEnabled(true);
+    emailService.setEmailWorkers(1);
+    emailService.setEmailQueueCapacity(1);
+
+    send(Topics.CUSTOMERS, Collections.singleton(new KeyValue<>(customer.getId(), customer)));
+    send(Topics.ORDERS, orders);
+    send(Topics.PAYMENTS, payments);
+
+    //When
+    emailService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then the email is skipped, and every other order's is still sent
+    TestUtils.waitForCondition(() -> sent.containsAll(asList(id(0L), id(2L), id(3L), id(4L))),
+        60000, "Emails after the rejected one were never sent.");
+  }
 }
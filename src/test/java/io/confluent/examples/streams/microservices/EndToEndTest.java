@@ -26,6 +26,7 @@ import javax.ws.rs.core.GenericType;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static io.confluent.examples.streams.avro.microservices.Product.JUMPERS;
 import static io.confluent.examples.streams.avro.microservices.Product.UNDERPANTS;
@@ -67,6 +68,15 @@ public class EndToEndTest extends MicroserviceTestUtils {
 
     //Then
     assertThat(returnedBean.getState()).isEqualTo(OrderState.VALIDATED);
+
+    //And the time it took, and the hops it made, are recorded
+    final Map<String, Map<String, Double>> latency = client.target(path.urlLatency())
+      .request(APPLICATION_JSON_TYPE)
+      .get(new GenericType<Map<String, Map<String, Double>>>() {
+      });
+    assertThat(latency.get("total").get("count")).isGreaterThanOrEqualTo(1.0);
+    assertThat(latency.get("ValidationsAggregatorService->OrdersService").get("count"))
+        .isGreaterThanOrEqualTo(1.0);
   }
 
   @Test
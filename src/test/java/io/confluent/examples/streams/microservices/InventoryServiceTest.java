@@ -17,8 +17,10 @@ import io.confluent.examples.streams.avro.microservices.Product;
 import io.confluent.examples.streams.kafka.EmbeddedSingleNodeKafkaCluster;
 import io.confluent.examples.streams.microservices.domain.Schemas;
 import io.confluent.examples.streams.microservices.util.MicroserviceTestUtils;
+import io.confluent.examples.streams.microservices.util.MigrateToCompactKeys;
 import java.util.List;
 import java.util.Properties;
+import java.util.stream.Collectors;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.serialization.LongDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
@@ -26,6 +28,7 @@ import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.processor.internals.ProcessorStateManager;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
+import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -39,8 +42,26 @@ public class InventoryServiceTest extends MicroserviceTestUtils {
 
   @BeforeClass
   public static void startKafkaCluster() {
+    Schemas.configureSerdesWithSchemaRegistryUrl(CLUSTER.schemaRegistryUrl());
+  }
+
+  @Before
+  public void prepareKafkaCluster() throws Exception {
+    CLUSTER.deleteTopicsAndWait(30000,
+        Topics.ORDERS.legacyName(),
+        Topics.ORDERS.compactName(),
+        Topics.ORDER_VALIDATIONS.legacyName(),
+        Topics.ORDER_VALIDATIONS.compactName(),
+        Topics.WAREHOUSE_INVENTORY.legacyName(),
+        Topics.WAREHOUSE_INVENTORY.compactName(),
+        InventoryService.SHARDED_ORDERS_TOPIC,
+        ProcessorStateManager.storeChangelogTopic(InventoryService.SERVICE_APP_ID,
+            InventoryService.RESERVED_STOCK_STORE_NAME),
+        ProcessorStateManager.storeChangelogTopic(InventoryService.SERVICE_APP_ID,
+            InventoryService.RESERVED_STOCK_SHARDED_STORE_NAME));
     CLUSTER.createTopic(Topics.ORDERS.name());
     CLUSTER.createTopic(Topics.ORDER_VALIDATIONS.name());
+    CLUSTER.createTopic(InventoryService.SHARDED_ORDERS_TOPIC, 4, (short) 1);
     Schemas.configureSerdesWithSchemaRegistryUrl(CLUSTER.schemaRegistryUrl());
   }
 
@@ -87,6 +108,116 @@ public class InventoryServiceTest extends MicroserviceTestUtils {
     ));
   }
 
+  @Test
+  public void shouldNeverOverReserveStockWhenReservationsAreSharded() throws Exception {
+
+    //Given a service that splits each product's stock across four shards
+    inventoryService = new InventoryService();
+    inventoryService.setReservationShards(4);
+
+    //With a single jumper, which only one shard can hold
+    inventory = asList(
+        new KeyValue<>(UNDERPANTS, 75),
+        new KeyValue<>(JUMPERS, 1)
+    );
+    sendInventory(inventory, Topics.WAREHOUSE_INVENTORY);
+
+    orders = asList(
+        new Order(id(0L), 1L, CREATED, UNDERPANTS, 3, 10.00d),
+        new Order(id(1L), 2L, CREATED, JUMPERS, 1, 75.00d),
+        new Order(id(2L), 2L, CREATED, JUMPERS, 1, 75.00d)
+    );
+    sendOrders(orders);
+
+    //When
+    inventoryService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then the underpants should be reserved, and only one of the two orders for jumpers
+    final List<OrderValidation> validations = MicroserviceTestUtils
+        .read(Topics.ORDER_VALIDATIONS, 3, CLUSTER.bootstrapServers());
+    assertThat(validations).contains(
+        new OrderValidation(id(0L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS));
+    assertThat(validations.stream()
+        .filter(v -> !v.getOrderId().equals(id(0L)))
+        .map(OrderValidation::getValidationResult)
+        .collect(Collectors.toList()))
+        .containsOnly(OrderValidationResult.PASS, OrderValidationResult.FAIL);
+  }
+
+  @Test
+  public void shouldReserveOrdersLargerThanOneShardsShareFromSeveralShards() throws Exception {
+
+    //Given ten jumpers split across four shards, none of which holds more than three
+    inventoryService = new InventoryService();
+    inventoryService.setReservationShards(4);
+    sendInventory(asList(new KeyValue<>(JUMPERS, 10)), Topics.WAREHOUSE_INVENTORY);
+    inventoryService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //When an order for eight is placed
+    sendOrders(asList(new Order(id(0L), 1L, CREATED, JUMPERS, 8, 75.00d)));
+
+    //Then it should pass, as the stock as a whole covers it
+    assertThat(MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 1, CLUSTER.bootstrapServers()))
+        .containsExactly(
+            new OrderValidation(id(0L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS));
+
+    //When an order for more than the two left is placed
+    sendOrders(asList(new Order(id(1L), 2L, CREATED, JUMPERS, 5, 75.00d)));
+
+    //Then it should fail
+    assertThat(MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 2, CLUSTER.bootstrapServers()))
+        .endsWith(
+            new OrderValidation(id(1L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.FAIL));
+
+    //And the stock it held on the way should have been given back, so the last two can be ordered
+    sendOrders(asList(new Order(id(2L), 3L, CREATED, JUMPERS, 2, 75.00d)));
+    assertThat(MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 3, CLUSTER.bootstrapServers()))
+        .endsWith(
+            new OrderValidation(id(2L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS));
+  }
+
+  @Test
+  public void shouldValidateOrdersMigratedToCompactKeys() throws Exception {
+
+    //Given inventory and orders written with the original keys
+    inventoryService = new InventoryService();
+    sendInventory(asList(new KeyValue<>(UNDERPANTS, 75), new KeyValue<>(JUMPERS, 1)),
+        Topics.WAREHOUSE_INVENTORY);
+    sendOrders(asList(
+        new Order(id(0L), 1L, CREATED, UNDERPANTS, 3, 10.00d),
+        new Order(id(1L), 2L, CREATED, JUMPERS, 1, 75.00d),
+        new Order(id(2L), 2L, CREATED, JUMPERS, 1, 75.00d)
+    ));
+
+    //When they are migrated, and the service is switched over to compact keys
+    assertThat(MigrateToCompactKeys.migrate(Topics.WAREHOUSE_INVENTORY, CLUSTER.bootstrapServers()))
+        .isEqualTo(2);
+    assertThat(MigrateToCompactKeys.migrate(Topics.ORDERS, CLUSTER.bootstrapServers()))
+        .isEqualTo(3);
+    Schemas.useCompactKeys(true);
+    CLUSTER.createTopic(Topics.ORDER_VALIDATIONS.name());
+    inventoryService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then the orders are validated, and the results keyed, as before
+    assertThat(MicroserviceTestUtils
+        .read(Topics.ORDER_VALIDATIONS, 3, CLUSTER.bootstrapServers()))
+        .isEqualTo(asList(
+            new OrderValidation(id(0L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS),
+            new OrderValidation(id(1L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS),
+            new OrderValidation(id(2L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.FAIL)));
+  }
+
+  @Test
+  public void shouldSplitStockBetweenShardsWithoutLosingAny() {
+    for (final int stock : asList(0, 1, 3, 75, 100)) {
+      int total = 0;
+      for (int shard = 0; shard < 4; shard++) {
+        total += InventoryService.shareOfStock(stock, shard, 4);
+      }
+      assertThat(total).isEqualTo(stock);
+    }
+  }
+
   private List<KeyValue<Product, Long>> readInventoryStateStore(final int numberOfRecordsToWaitFor)
       throws InterruptedException {
     return IntegrationTestUtils
@@ -107,6 +238,9 @@ public class InventoryServiceTest extends MicroserviceTestUtils {
 
   @After
   public void tearDown() {
-    inventoryService.stop();
+    if (inventoryService != null) {
+      inventoryService.stop();
+    }
+    Schemas.useCompactKeys(false);
   }
 }
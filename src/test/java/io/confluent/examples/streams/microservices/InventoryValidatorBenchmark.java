@@ -0,0 +1,80 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.util.MicroserviceUtils.ProductTypeSerde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.processor.MockProcessorContext;
+import org.apache.kafka.streams.state.KeyValueBytesStoreSupplier;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.test.TestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.confluent.examples.streams.microservices.InventoryService.RESERVED_STOCK_STORE_NAME;
+import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+
+/**
+ * Measures the throughput of InventoryService's inventory check against a RocksDB reservation
+ * store, and against an in-memory one, which bounds what any read cache in front of RocksDB could
+ * gain. The service puts Streams' own record cache in front of the store; that needs a stream
+ * thread's cache, so isn't measured here.
+ * <p>
+ * usage: InventoryValidatorBenchmark [orders] [rounds]
+ */
+public class InventoryValidatorBenchmark {
+
+  public static void main(final String[] args) {
+    final int numOrders = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    final Random random = new Random(0);
+    final Product[] products = Product.values();
+    final List<KeyValue<Order, Integer>> orders = new ArrayList<>(numOrders);
+    for (int i = 0; i < numOrders; i++) {
+      final Product product = products[random.nextInt(products.length)];
+      orders.add(KeyValue.pair(new Order(id(i), 1L, OrderState.CREATED, product, 1, 1d), Integer.MAX_VALUE));
+    }
+
+    for (int round = 0; round < rounds; round++) {
+      System.out.printf("round %d: rocksdb %,.0f orders/s, in-memory %,.0f orders/s%n", round,
+          run(orders, Stores.persistentKeyValueStore(RESERVED_STOCK_STORE_NAME)),
+          run(orders, Stores.inMemoryKeyValueStore(RESERVED_STOCK_STORE_NAME)));
+    }
+  }
+
+  private static double run(final List<KeyValue<Order, Integer>> orders,
+                            final KeyValueBytesStoreSupplier storeSupplier) {
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "inventory-validator-benchmark");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "unused:9092");
+    config.put(StreamsConfig.STATE_DIR_CONFIG, TestUtils.tempDirectory().getPath());
+    final MockProcessorContext context = new MockProcessorContext(config);
+
+    final KeyValueStore<Product, Long> store = Stores
+        .keyValueStoreBuilder(storeSupplier, new ProductTypeSerde(), Serdes.Long())
+        .withLoggingDisabled()
+        .build();
+    store.init(context, store);
+    context.register(store, null);
+
+    final InventoryService.InventoryValidator validator = new InventoryService.InventoryValidator();
+    validator.init(context);
+    final long start = System.nanoTime();
+    for (final KeyValue<Order, Integer> orderAndStock : orders) {
+      validator.transform(orderAndStock.key.getProduct(), orderAndStock);
+    }
+    final long elapsed = System.nanoTime() - start;
+    validator.close();
+    store.close();
+    return orders.size() / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+}
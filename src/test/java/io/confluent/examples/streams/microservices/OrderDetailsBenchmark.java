@@ -0,0 +1,144 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.OrderValidation;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the throughput and end to end latency of {@link OrderDetailsService} with Exactly
+ * Once enabled, committing a transaction after every poll, as it used to, against batching
+ * transactions with {@link OrderDetailsService#setTransactionBatching(int, Duration)}.
+ * <p>
+ * For each setting an OrderDetailsService is started in this JVM, against the Kafka cluster and
+ * Schema Registry passed on the command line, and orders are produced at a fixed rate. Latency
+ * is measured from sending an order to a read_committed consumer receiving its validation, so it
+ * includes the time the result waits for its transaction to commit.
+ * <p>
+ * usage: OrderDetailsBenchmark [bootstrap.servers] [schema.registry.url] [orders] [orders/s]
+ */
+public class OrderDetailsBenchmark {
+
+  public static void main(final String[] args) throws Exception {
+    final String bootstrapServers = args.length > 0 ? args[0] : "localhost:9092";
+    final String schemaRegistryUrl = args.length > 1 ? args[1] : "http://localhost:8081";
+    final int numOrders = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    final int ordersPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+    Schemas.configureSerdesWithSchemaRegistryUrl(schemaRegistryUrl);
+
+    run("per-poll", bootstrapServers, numOrders, ordersPerSecond, 0, Duration.ZERO);
+    run("batched", bootstrapServers, numOrders, ordersPerSecond, 1000, Duration.ofMillis(100));
+  }
+
+  private static void run(final String name,
+                          final String bootstrapServers,
+                          final int numOrders,
+                          final int ordersPerSecond,
+                          final int maxRecords,
+                          final Duration maxAge) throws Exception {
+    final OrderDetailsService service = new OrderDetailsService();
+    service.setEosEnabled(true);
+    service.setTransactionBatching(maxRecords, maxAge);
+    service.start(bootstrapServers, "/tmp/kafka-streams");
+
+    final String run = UUID.randomUUID().toString();
+    final Map<String, Long> sentAt = new HashMap<>();
+    final long[] latencies = new long[numOrders];
+    try (final KafkaProducer<String, Order> producer = orderProducer(bootstrapServers);
+         final KafkaConsumer<String, OrderValidation> consumer =
+             validationConsumer(bootstrapServers)) {
+      //Give the service time to join its group and initialize its producers
+      Thread.sleep(5000);
+
+      final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / ordersPerSecond;
+      final long start = System.nanoTime();
+      int sent = 0;
+      int received = 0;
+      while (received < numOrders) {
+        //Open loop: send whatever is due by now, regardless of how far behind the service is
+        final long due = Math.min(numOrders, (System.nanoTime() - start) / intervalNanos + 1);
+        for (; sent < due; sent++) {
+          final String id = run + "-" + sent;
+          sentAt.put(id, System.nanoTime());
+          producer.send(new ProducerRecord<>(Topics.ORDERS.name(), id,
+              new Order(id, 0L, OrderState.CREATED, Product.JUMPERS, 1, 1d)));
+        }
+        for (final ConsumerRecord<String, OrderValidation> record
+            : consumer.poll(Duration.ofMillis(1))) {
+          final Long sentNanos = sentAt.remove(record.key());
+          if (sentNanos != null) {
+            latencies[received++] = System.nanoTime() - sentNanos;
+          }
+        }
+      }
+      report(name, latencies, System.nanoTime() - start);
+    } finally {
+      service.stop();
+    }
+  }
+
+  private static KafkaProducer<String, Order> orderProducer(final String bootstrapServers) {
+    final Properties config = new Properties();
+    config.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    config.put(ProducerConfig.ACKS_CONFIG, "all");
+    config.put(ProducerConfig.LINGER_MS_CONFIG, 1);
+    return new KafkaProducer<>(config,
+        Topics.ORDERS.keySerde().serializer(),
+        Topics.ORDERS.valueSerde().serializer());
+  }
+
+  private static KafkaConsumer<String, OrderValidation> validationConsumer(
+      final String bootstrapServers) {
+    final Properties config = new Properties();
+    config.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    config.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+    final KafkaConsumer<String, OrderValidation> consumer = new KafkaConsumer<>(config,
+        Topics.ORDER_VALIDATIONS.keySerde().deserializer(),
+        Topics.ORDER_VALIDATIONS.valueSerde().deserializer());
+    final List<PartitionInfo> partitions = consumer.partitionsFor(Topics.ORDER_VALIDATIONS.name());
+    final List<TopicPartition> assigned = partitions.stream()
+        .map(p -> new TopicPartition(p.topic(), p.partition()))
+        .collect(Collectors.toList());
+    consumer.assign(assigned);
+    consumer.seekToEnd(assigned);
+    assigned.forEach(consumer::position); //resolve the end offsets before any orders are sent
+    return consumer;
+  }
+
+  private static void report(final String name, final long[] latencies, final long elapsedNanos) {
+    Arrays.sort(latencies);
+    System.out.printf("%-8s orders: %d, throughput: %.0f orders/s, latency p50: %.2f ms, "
+            + "p99: %.2f ms, max: %.2f ms%n",
+        name,
+        latencies.length,
+        latencies.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+        percentile(latencies, 0.50),
+        percentile(latencies, 0.99),
+        percentile(latencies, 1.0));
+  }
+
+  private static double percentile(final long[] sorted, final double percentile) {
+    final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
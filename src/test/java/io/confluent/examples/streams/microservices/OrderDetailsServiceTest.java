@@ -4,13 +4,34 @@ import io.confluent.examples.streams.avro.microservices.Order;
 import io.confluent.examples.streams.avro.microservices.OrderValidation;
 import io.confluent.examples.streams.microservices.domain.Schemas;
 import io.confluent.examples.streams.microservices.util.MicroserviceTestUtils;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static io.confluent.examples.streams.avro.microservices.OrderState.CREATED;
 import static io.confluent.examples.streams.avro.microservices.OrderValidationResult.FAIL;
@@ -21,6 +42,7 @@ import static io.confluent.examples.streams.avro.microservices.Product.UNDERPANT
 import static io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class OrderDetailsServiceTest extends MicroserviceTestUtils {
@@ -101,9 +123,223 @@ public class OrderDetailsServiceTest extends MicroserviceTestUtils {
         ));
   }
 
+  @Test
+  public void shouldValidatePartitionsInParallelAndCommitOnlyAcknowledgedOffsets()
+      throws Exception {
+
+    //Given orders spread over four partitions, validated by four workers
+    CLUSTER.deleteTopicsAndWait(30000, Topics.ORDERS.name());
+    CLUSTER.createTopic(Topics.ORDERS.name(), 4, (short) 1);
+    orderValService = new OrderDetailsService();
+    orderValService.setWorkerThreads(4);
+
+    orders = new ArrayList<>();
+    expected = new ArrayList<>();
+    for (long i = 0; i < 100; i++) {
+      final int quantity = i % 10 == 0 ? -1 : 3; //every tenth order should fail
+      orders.add(new Order(id(i), 0L, CREATED, UNDERPANTS, quantity, 5.00d));
+      expected.add(new OrderValidation(id(i), ORDER_DETAILS_CHECK, quantity < 0 ? FAIL : PASS));
+    }
+    sendOrders(orders);
+
+    //When
+    orderValService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then every order should be validated exactly once
+    assertThat(MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 100, CLUSTER.bootstrapServers()))
+        .containsOnlyElementsOf(expected)
+        .doesNotHaveDuplicates();
+
+    //And after a restart, only the new order should be validated
+    orderValService.stop();
+    orderValService = new OrderDetailsService();
+    orderValService.setWorkerThreads(4);
+    orderValService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    sendOrders(Collections.singletonList(new Order(id(100L), 0L, CREATED, UNDERPANTS, 3, 5.00d)));
+
+    final List<OrderValidation> validations =
+        MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 101, CLUSTER.bootstrapServers());
+    assertThat(validations).doesNotHaveDuplicates();
+    assertThat(validations).contains(new OrderValidation(id(100L), ORDER_DETAILS_CHECK, PASS));
+  }
+
+  @Test
+  public void shouldValidateAgainAfterAFailedSend() throws Exception {
+
+    //Given a producer whose first send throws, and whose second send fails in its callback
+    final AtomicInteger sends = new AtomicInteger();
+    final MockProducer<String, OrderValidation> producer = new MockProducer<String, OrderValidation>(true,
+        Topics.ORDER_VALIDATIONS.keySerde().serializer(), Topics.ORDER_VALIDATIONS.valueSerde().serializer()) {
+      @Override
+      public synchronized Future<RecordMetadata> send(final ProducerRecord<String, OrderValidation> record,
+                                                      final Callback callback) {
+        final int send = sends.incrementAndGet();
+        if (send == 1) {
+          throw new KafkaException("injected synchronous failure");
+        }
+        if (send == 2) {
+          final KafkaException failure = new KafkaException("injected asynchronous failure");
+          callback.onCompletion(null, failure);
+          final CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+          future.completeExceptionally(failure);
+          return future;
+        }
+        return super.send(record, callback);
+      }
+    };
+    orderValService = new OrderDetailsService();
+    orderValService.setProducer(producer);
+
+    orders = new ArrayList<>();
+    expected = new ArrayList<>();
+    for (long i = 0; i < 10; i++) {
+      orders.add(new Order(id(i), 0L, CREATED, UNDERPANTS, 3, 5.00d));
+      expected.add(new OrderValidation(id(i), ORDER_DETAILS_CHECK, PASS));
+    }
+    sendOrders(orders);
+
+    //When
+    orderValService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then the orders whose results failed to send should be validated again
+    TestUtils.waitForCondition(() -> sent(producer).containsAll(expected), 30000,
+        "Orders whose results failed to send were never validated again");
+
+    //And the partition should not be wedged, so its offset is committed past every order
+    final TopicPartition partition = new TopicPartition(Topics.ORDERS.name(), 0);
+    try (final AdminClient admin = AdminClient.create(singletonMap(
+        AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers()))) {
+      TestUtils.waitForCondition(() -> committed(admin, partition) == orders.size(), 30000,
+          "Offsets were not committed past the failed sends");
+    }
+  }
+
+  @Test
+  public void shouldShareTransactionalValidationBetweenInstances() throws Exception {
+
+    //Given two instances with Exactly Once enabled, sharing orders spread over four partitions
+    CLUSTER.deleteTopicsAndWait(30000, Topics.ORDERS.name());
+    CLUSTER.createTopic(Topics.ORDERS.name(), 4, (short) 1);
+    orderValService = new OrderDetailsService();
+    orderValService.setEosEnabled(true);
+    final OrderDetailsService otherInstance = new OrderDetailsService();
+    otherInstance.setEosEnabled(true);
+    otherInstance.setTransactionBatching(10, Duration.ofMillis(50));
+
+    orders = new ArrayList<>();
+    expected = new ArrayList<>();
+    for (long i = 0; i < 100; i++) {
+      final int quantity = i % 10 == 0 ? -1 : 3; //every tenth order should fail
+      orders.add(new Order(id(i), 0L, CREATED, UNDERPANTS, quantity, 5.00d));
+      expected.add(new OrderValidation(id(i), ORDER_DETAILS_CHECK, quantity < 0 ? FAIL : PASS));
+    }
+
+    //When both run, without fencing each other
+    orderValService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    otherInstance.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    try {
+      sendOrders(orders);
+
+      //Then every order should be validated exactly once
+      assertThat(MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 100, CLUSTER.bootstrapServers()))
+          .containsOnlyElementsOf(expected)
+          .doesNotHaveDuplicates();
+    } finally {
+      otherInstance.stop();
+    }
+  }
+
+  @Test
+  public void shouldTakeBackAPartitionWhoseProducerWasFenced() throws Exception {
+
+    //Given an instance with Exactly Once enabled that has validated an order
+    orderValService = new OrderDetailsService();
+    orderValService.setEosEnabled(true);
+    orderValService.setTransactionBatching(0, Duration.ZERO);
+    orderValService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    sendOrders(Collections.singletonList(new Order(id(0L), 0L, CREATED, UNDERPANTS, 3, 5.00d)));
+    MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 1, CLUSTER.bootstrapServers()); //block
+
+    //When its producer is fenced without a rebalance, as when the coordinator times out its transaction
+    final Properties fencerConfig = producerConfig(CLUSTER);
+    fencerConfig.put(ProducerConfig.RETRIES_CONFIG, Integer.MAX_VALUE);
+    fencerConfig.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG,
+        OrderDetailsService.class.getSimpleName() + "-" + new TopicPartition(Topics.ORDERS.name(), 0));
+    try (final KafkaProducer<byte[], byte[]> fencer =
+             new KafkaProducer<>(fencerConfig, new ByteArraySerializer(), new ByteArraySerializer())) {
+      fencer.initTransactions();
+    }
+    sendOrders(Collections.singletonList(new Order(id(1L), 0L, CREATED, UNDERPANTS, 3, 5.00d)));
+
+    //Then the instance should take the partition back, and go on validating orders
+    assertThat(MicroserviceTestUtils.read(Topics.ORDER_VALIDATIONS, 2, CLUSTER.bootstrapServers()))
+        .isEqualTo(asList(
+            new OrderValidation(id(0L), ORDER_DETAILS_CHECK, PASS),
+            new OrderValidation(id(1L), ORDER_DETAILS_CHECK, PASS)
+        ));
+  }
+
+  @Test
+  public void shouldRecreateAProducerThatFailsToAbort() throws Exception {
+
+    //Given an instance with Exactly Once enabled, whose first producer can neither commit nor
+    //abort its transaction
+    final AtomicInteger producers = new AtomicInteger();
+    orderValService = new OrderDetailsService();
+    orderValService.setEosEnabled(true);
+    orderValService.setTransactionBatching(0, Duration.ZERO);
+    orderValService.setTransactionalProducers(config -> {
+      if (producers.incrementAndGet() > 1) {
+        return new KafkaProducer<>(config, Topics.ORDER_VALIDATIONS.keySerde().serializer(),
+            Topics.ORDER_VALIDATIONS.valueSerde().serializer());
+      }
+      return new KafkaProducer<String, OrderValidation>(config, Topics.ORDER_VALIDATIONS.keySerde().serializer(),
+          Topics.ORDER_VALIDATIONS.valueSerde().serializer()) {
+        @Override
+        public void commitTransaction() {
+          throw new KafkaException("injected commit failure");
+        }
+
+        @Override
+        public void abortTransaction() {
+          throw new KafkaException("injected abort failure");
+        }
+      };
+    });
+
+    //When
+    orderValService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    sendOrders(Collections.singletonList(new Order(id(0L), 0L, CREATED, UNDERPANTS, 3, 5.00d)));
+    sendOrders(Collections.singletonList(new Order(id(1L), 0L, CREATED, UNDERPANTS, 3, 5.00d)));
+
+    //Then the producer should be replaced, and the instance go on validating orders
+    final TopicPartition partition = new TopicPartition(Topics.ORDERS.name(), 0);
+    try (final AdminClient admin = AdminClient.create(singletonMap(
+        AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers()))) {
+      TestUtils.waitForCondition(() -> committed(admin, partition) == 2, 30000,
+          "Offsets were not committed after the producer failed to abort");
+    }
+    assertThat(producers.get()).isGreaterThan(1);
+  }
+
   @After
   public void tearDown() {
     orderValService.stop();
     CLUSTER.stop();
   }
+
+  private static List<OrderValidation> sent(final MockProducer<String, OrderValidation> producer) {
+    return producer.history().stream().map(ProducerRecord::value).collect(Collectors.toList());
+  }
+
+  private static long committed(final AdminClient admin, final TopicPartition partition) {
+    try {
+      final Map<TopicPartition, OffsetAndMetadata> offsets = admin
+          .listConsumerGroupOffsets(OrderDetailsService.class.getSimpleName())
+          .partitionsToOffsetAndMetadata().get();
+      return offsets.containsKey(partition) ? offsets.get(partition).offset() : -1;
+    } catch (final InterruptedException | ExecutionException e) {
+      return -1;
+    }
+  }
 }
@@ -6,10 +6,14 @@ import io.confluent.examples.streams.avro.microservices.Product;
 import io.confluent.examples.streams.microservices.domain.Schemas;
 import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import io.confluent.examples.streams.microservices.domain.beans.OrderBean;
+import io.confluent.examples.streams.microservices.domain.beans.OrderResultBean;
 import io.confluent.examples.streams.microservices.util.MicroserviceTestUtils;
 import io.confluent.examples.streams.microservices.util.Paths;
+import io.confluent.examples.streams.microservices.util.RecentWrites;
 
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.test.TestUtils;
+import org.glassfish.jersey.client.ClientProperties;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -24,10 +28,13 @@ import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 import java.net.HttpURLConnection;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import static io.confluent.examples.streams.avro.microservices.Order.newBuilder;
 import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+import static java.util.Arrays.asList;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 import static org.junit.Assert.fail;
@@ -56,7 +63,8 @@ public class OrdersServiceTest extends MicroserviceTestUtils {
 
   @Before
   public void prepareKafkaCluster() throws Exception {
-    CLUSTER.deleteTopicsAndWait(30000, Topics.ORDERS.name(), "OrdersService-orders-store-changelog");
+    CLUSTER.deleteTopicsAndWait(30000, Topics.ORDERS.name(), "OrdersService-orders-store-changelog",
+        "OrdersService-orders-by-customer-store-changelog", "OrdersService-orders-expiry-store-changelog");
     CLUSTER.createTopic(Topics.ORDERS.name());
     Schemas.configureSerdesWithSchemaRegistryUrl(CLUSTER.schemaRegistryUrl());
   }
@@ -105,6 +113,96 @@ public class OrdersServiceTest extends MicroserviceTestUtils {
   }
 
 
+  @Test
+  public void shouldPostBatchOfOrdersAndGetThemBack() {
+    final List<OrderBean> beans = asList(
+      new OrderBean(id(1L), 2L, OrderState.CREATED, Product.JUMPERS, 10, 100d),
+      new OrderBean(id(2L), 2L, OrderState.CREATED, Product.UNDERPANTS, 1, 5d),
+      new OrderBean(id(3L), 3L, OrderState.CREATED, Product.STOCKINGS, 2, 10d));
+
+    final Client client = ClientBuilder.newClient();
+
+    //Given a rest service
+    rest = new OrdersService("localhost");
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths = new Paths("localhost", rest.port());
+
+    //When we POST a batch of orders
+    final Response response = postWithRetries(
+      client.target(paths.urlPostBatch()).request(APPLICATION_JSON_TYPE),
+      Entity.json(beans),
+      5);
+
+    //Then there should be a location for each, in the order they were sent
+    assertThat(response.getStatus()).isEqualTo(HttpURLConnection.HTTP_OK);
+    final List<OrderResultBean> results = response.readEntity(new GenericType<List<OrderResultBean>>() {});
+    assertThat(results).isEqualTo(asList(
+      OrderResultBean.created(id(1L), "/v1/orders/" + id(1L)),
+      OrderResultBean.created(id(2L), "/v1/orders/" + id(2L)),
+      OrderResultBean.created(id(3L), "/v1/orders/" + id(3L))));
+
+    //When GET the last bean back
+    final Invocation.Builder builder = client
+      .target(paths.urlGet(3))
+      .queryParam("timeout", Duration.ofSeconds(30).toMillis())
+      .request(APPLICATION_JSON_TYPE);
+
+    //Then it should be the bean we POSTed
+    assertThat(getWithRetries(builder, newBean(), 5)).isEqualTo(beans.get(2));
+  }
+
+  @Test
+  public void shouldRejectABatchWithNoOrders() {
+    final Client client = ClientBuilder.newClient();
+
+    //Given a rest service
+    rest = new OrdersService("localhost");
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths = new Paths("localhost", rest.port());
+
+    //When we POST a batch that is empty, and one with a null body
+    final Response empty = client.target(paths.urlPostBatch()).request(APPLICATION_JSON_TYPE)
+      .post(Entity.json(Collections.emptyList()));
+    final Response nothing = client.target(paths.urlPostBatch()).request(APPLICATION_JSON_TYPE)
+      .post(Entity.json("null"));
+
+    //Then both are bad requests
+    assertThat(empty.getStatus()).isEqualTo(HttpURLConnection.HTTP_BAD_REQUEST);
+    assertThat(nothing.getStatus()).isEqualTo(HttpURLConnection.HTTP_BAD_REQUEST);
+  }
+
+  @Test
+  public void shouldRejectOrdersFromAClientOverItsRate() {
+    final Client client = ClientBuilder.newClient();
+
+    //Given a rest service that lets each client POST one order a minute
+    rest = new OrdersService("localhost");
+    rest.setAdmissionControl(100, 1 / 60d, 1);
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths = new Paths("localhost", rest.port());
+
+    //When a client POSTs two orders
+    final Response first = postWithRetries(
+      client.target(paths.urlPost()).request(APPLICATION_JSON_TYPE).header("X-Client-Id", "a"),
+      Entity.json(new OrderBean(id(1L), 2L, OrderState.CREATED, Product.JUMPERS, 10, 100d)),
+      5);
+    final Response second = client.target(paths.urlPost()).request(APPLICATION_JSON_TYPE)
+      .header("X-Client-Id", "a")
+      .post(Entity.json(new OrderBean(id(2L), 2L, OrderState.CREATED, Product.JUMPERS, 10, 100d)));
+
+    //Then the second is turned away, and told when to try again
+    assertThat(first.getStatus()).isEqualTo(HttpURLConnection.HTTP_CREATED);
+    assertThat(second.getStatus()).isEqualTo(429);
+    assertThat(second.getHeaderString("Retry-After")).isEqualTo("60");
+
+    //But another client can still POST
+    final Response other = postWithRetries(
+      client.target(paths.urlPost()).request(APPLICATION_JSON_TYPE).header("X-Client-Id", "b"),
+      Entity.json(new OrderBean(id(3L), 2L, OrderState.CREATED, Product.JUMPERS, 10, 100d)),
+      5);
+    assertThat(other.getStatus()).isEqualTo(HttpURLConnection.HTTP_CREATED);
+  }
+
   @Test
   public void shouldGetValidatedOrderOnRequest() {
     final Order orderV1 = new Order(id(1L), 3L, OrderState.CREATED, Product.JUMPERS, 10, 100d);
@@ -198,6 +296,167 @@ public class OrdersServiceTest extends MicroserviceTestUtils {
     assertThat(returnedOrder).isEqualTo(order);
   }
 
+  @Test
+  public void shouldGetEveryOrderForACustomerFromEveryInstance() throws Exception {
+    //Given orders spread over four partitions
+    CLUSTER.deleteTopicsAndWait(30000, Topics.ORDERS.name());
+    CLUSTER.createTopic(Topics.ORDERS.name(), 4, (short) 1);
+    final Client client = ClientBuilder.newClient();
+
+    //And two rest servers, each hosting some of them
+    rest = new OrdersService("localhost");
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths1 = new Paths("localhost", rest.port());
+    rest2 = new OrdersService("localhost");
+    rest2.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths2 = new Paths("localhost", rest2.port());
+
+    //When we POST orders for two customers, then move one of them on to VALIDATED
+    final List<OrderBean> customer5 = new ArrayList<>();
+    for (long i = 1; i <= 8; i++) {
+      final OrderBean order = new OrderBean(id(i), i % 2 == 0 ? 5L : 6L, OrderState.CREATED, Product.JUMPERS, 1, 1d);
+      postWithRetries(client.target(paths1.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(order), 5);
+      if (order.getCustomerId() == 5L) {
+        customer5.add(order);
+      }
+    }
+    final OrderBean validated = new OrderBean(id(2L), 5L, OrderState.VALIDATED, Product.JUMPERS, 1, 1d);
+    postWithRetries(client.target(paths1.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(validated), 5);
+    customer5.set(0, validated);
+    //Then, once they reach the view, either instance returns all of the customer's orders, and
+    //only theirs, in their latest state
+    for (final Paths paths : asList(paths1, paths2)) {
+      TestUtils.waitForCondition(() -> customer5.equals(ordersForCustomer(client, paths, 5L)),
+          30000, "Didn't get every order for the customer back from " + paths.urlBase());
+    }
+  }
+
+  @Test
+  public void shouldExpireCompletedOrdersAfterTheRetention() throws Exception {
+    final Client client = ClientBuilder.newClient();
+
+    //Given a rest service that keeps completed orders for a second
+    rest = new OrdersService("localhost");
+    rest.setCompletedOrderRetention(Duration.ofSeconds(1));
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths = new Paths("localhost", rest.port());
+
+    //When we POST an order that has been validated, then one that is still being processed
+    final OrderBean validated = new OrderBean(id(1L), 7L, OrderState.VALIDATED, Product.JUMPERS, 1, 1d);
+    final OrderBean created = new OrderBean(id(2L), 7L, OrderState.CREATED, Product.JUMPERS, 1, 1d);
+    postWithRetries(client.target(paths.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(validated), 5);
+    postWithRetries(client.target(paths.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(created), 5);
+
+    //Then, as the orders are in one partition, by the time the second is in the view the first
+    //has been too, and it is then removed from the view and the customer's index
+    TestUtils.waitForCondition(
+        () -> Collections.singletonList(created).equals(ordersForCustomer(client, paths, 7L)),
+        60000, "The validated order wasn't expired");
+
+    //But the one still being processed is kept
+    Thread.sleep(2000);
+    assertThat(ordersForCustomer(client, paths, 7L)).containsOnly(created);
+  }
+
+  @Test
+  public void shouldNotServeARecentWriteOnceTheOwnerHasALaterVersion() throws Exception {
+    //Given orders spread over four partitions
+    CLUSTER.deleteTopicsAndWait(30000, Topics.ORDERS.name());
+    CLUSTER.createTopic(Topics.ORDERS.name(), 4, (short) 1);
+    final Client client = ClientBuilder.newClient();
+
+    //And two rest servers, each hosting some of them, both ready
+    rest = new OrdersService("localhost");
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths1 = new Paths("localhost", rest.port());
+    rest2 = new OrdersService("localhost");
+    rest2.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths2 = new Paths("localhost", rest2.port());
+    for (final Paths paths : asList(paths1, paths2)) {
+      TestUtils.waitForCondition(() -> ordersForCustomer(client, paths, 8L) != null,
+          30000, "The view never became available on " + paths.urlBase());
+    }
+
+    //When we POST orders to the first, so it holds them as recent writes
+    final List<KeyValue<String, Order>> validated = new ArrayList<>();
+    for (long i = 1; i <= 8; i++) {
+      final OrderBean order = new OrderBean(id(i), 8L, OrderState.CREATED, Product.JUMPERS, 1, 1d);
+      postWithRetries(client.target(paths1.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(order), 5);
+      validated.add(new KeyValue<>(order.getId(), OrderBean.fromBean(
+          new OrderBean(id(i), 8L, OrderState.VALIDATED, Product.JUMPERS, 1, 1d))));
+    }
+    //And they are then validated by someone else
+    send(Topics.ORDERS, validated);
+
+    //Then the first should return the validated orders, including those hosted on the second,
+    //well before its recent writes would have expired
+    TestUtils.waitForCondition(() -> validated.stream().allMatch(
+        kv -> client.target(paths1.urlGet(kv.key))
+            .queryParam("timeout", Duration.ofSeconds(5).toMillis())
+            .request(APPLICATION_JSON_TYPE)
+            .get(newBean()).getState() == OrderState.VALIDATED),
+        RecentWrites.DEFAULT_MAX_AGE_MS / 2, "A stale recent write was served");
+  }
+
+  private List<OrderBean> ordersForCustomer(final Client client, final Paths paths, final long customerId) {
+    try {
+      return client.target(paths.urlCustomerOrders(customerId))
+          .request(APPLICATION_JSON_TYPE)
+          .get(new GenericType<List<OrderBean>>() {});
+    } catch (final ServerErrorException e) {
+      //Not ready yet
+      return null;
+    }
+  }
+
+  @Test
+  public void shouldRedirectGetToOwningInstanceInRedirectMode() {
+    final OrderBean order = new OrderBean(id(1L), 4L, OrderState.VALIDATED, Product.JUMPERS, 10, 100d);
+    final Client client = ClientBuilder.newClient();
+
+    //Given two rest servers, in redirect mode, on different ports
+    rest = new OrdersService("localhost");
+    rest.setRoutingMode(OrdersService.RoutingMode.REDIRECT);
+    rest.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths1 = new Paths("localhost", rest.port());
+    rest2 = new OrdersService("localhost");
+    rest2.setRoutingMode(OrdersService.RoutingMode.REDIRECT);
+    rest2.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+    final Paths paths2 = new Paths("localhost", rest2.port());
+
+    //And one order
+    postWithRetries(client.target(paths1.urlPost()).request(APPLICATION_JSON_TYPE), Entity.json(order), 5);
+
+    //When GET to each, following redirects, then we should get the order back from both
+    for (final Paths paths : asList(paths1, paths2)) {
+      final Invocation.Builder builder = client
+        .target(paths.urlGet(order.getId()))
+        .queryParam("timeout", Duration.ofSeconds(30).toMillis())
+        .request(APPLICATION_JSON_TYPE);
+      assertThat(getWithRetries(builder, newBean(), 5)).isEqualTo(order);
+    }
+
+    //When GET to each without following redirects, asking for a routing hint
+    final Response response1 = getWithoutRedirects(client, paths1.urlGet(order.getId()));
+    final Response response2 = getWithoutRedirects(client, paths2.urlGet(order.getId()));
+
+    //Then the owner should answer and the other instance should redirect to it
+    final Response redirect = response1.getStatus() == 307 ? response1 : response2;
+    final Paths owner = redirect == response1 ? paths2 : paths1;
+    assertThat(asList(response1.getStatus(), response2.getStatus())).containsOnly(200, 307);
+    assertThat(redirect.getLocation().toString()).startsWith(owner.urlGet(order.getId()));
+    assertThat(redirect.getHeaderString(OrdersService.ROUTING_OWNER_HEADER)).isEqualTo(owner.urlBase());
+  }
+
+  private Response getWithoutRedirects(final Client client, final String url) {
+    return client.target(url)
+      .property(ClientProperties.FOLLOW_REDIRECTS, false)
+      .queryParam("timeout", Duration.ofSeconds(30).toMillis())
+      .request(APPLICATION_JSON_TYPE)
+      .header(OrdersService.ROUTING_HINT_HEADER, "true")
+      .get();
+  }
+
   private GenericType<OrderBean> newBean() {
     return new GenericType<OrderBean>() {};
   }
@@ -0,0 +1,153 @@
+package io.confluent.examples.streams.microservices;
+
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.examples.streams.microservices.OrdersService.RoutingMode;
+import io.confluent.examples.streams.microservices.domain.Schemas;
+import io.confluent.examples.streams.microservices.domain.beans.OrderBean;
+import io.confluent.examples.streams.microservices.util.Paths;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.jackson.JacksonFeature;
+
+import javax.ws.rs.ServerErrorException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+
+/**
+ * Compares the latency and throughput of GETs for orders served by the two routing modes of
+ * {@link OrdersService}: PROXY, where an instance that doesn't own the order forwards the request
+ * to the owner, and REDIRECT, where it replies with a 307 that the client follows.
+ * <p>
+ * For each mode two OrdersService instances are started in this JVM, against the Kafka cluster
+ * and Schema Registry passed on the command line, and every GET is sent to the first instance,
+ * so roughly half of the requests have to be routed to the second.
+ * <p>
+ * usage: RoutingBenchmark [bootstrap.servers] [schema.registry.url] [orders] [concurrency]
+ */
+public class RoutingBenchmark {
+
+  public static void main(final String[] args) throws Exception {
+    final String bootstrapServers = args.length > 0 ? args[0] : "localhost:9092";
+    final String schemaRegistryUrl = args.length > 1 ? args[1] : "http://localhost:8081";
+    final int numOrders = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    final int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+    Schemas.configureSerdesWithSchemaRegistryUrl(schemaRegistryUrl);
+
+    final ClientConfig clientConfig = new ClientConfig();
+    clientConfig.register(JacksonFeature.class);
+    clientConfig.property(ClientProperties.FOLLOW_REDIRECTS, true);
+    final Client client = ClientBuilder.newClient(clientConfig);
+
+    boolean ordersPosted = false;
+    for (final RoutingMode mode : RoutingMode.values()) {
+      final OrdersService first = new OrdersService("localhost");
+      final OrdersService second = new OrdersService("localhost");
+      first.setRoutingMode(mode);
+      second.setRoutingMode(mode);
+      first.start(bootstrapServers, "/tmp/kafka-streams");
+      second.start(bootstrapServers, "/tmp/kafka-streams");
+      try {
+        final Paths paths = new Paths("localhost", first.port());
+        if (!ordersPosted) {
+          postOrders(client, paths, numOrders);
+          ordersPosted = true;
+        }
+        //Warm up, which also waits for both instances to have restored the orders
+        run(client, paths, numOrders, concurrency);
+        final long start = System.nanoTime();
+        final long[] latencies = run(client, paths, numOrders, concurrency);
+        final long elapsed = System.nanoTime() - start;
+        report(mode, latencies, elapsed);
+      } finally {
+        first.stop();
+        second.stop();
+      }
+    }
+    client.close();
+  }
+
+  private static void postOrders(final Client client, final Paths paths, final int numOrders) {
+    final List<OrderBean> orders = new ArrayList<>();
+    for (int i = 0; i < numOrders; i++) {
+      orders.add(new OrderBean(id(i), i % 10, OrderState.CREATED, Product.JUMPERS, 1, 1d));
+    }
+    client.target(paths.urlPostBatch())
+        .request(APPLICATION_JSON_TYPE)
+        .post(Entity.json(orders))
+        .close();
+  }
+
+  private static long[] run(final Client client,
+                            final Paths paths,
+                            final int numOrders,
+                            final int concurrency) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    final List<Future<long[]>> results = new ArrayList<>();
+    for (int t = 0; t < concurrency; t++) {
+      final int thread = t;
+      results.add(executor.submit(() -> {
+        final long[] latencies = new long[(numOrders + concurrency - 1 - thread) / concurrency];
+        for (int i = thread, n = 0; i < numOrders; i += concurrency, n++) {
+          final long start = System.nanoTime();
+          get(client, paths.urlGet(i));
+          latencies[n] = System.nanoTime() - start;
+        }
+        return latencies;
+      }));
+    }
+    final long[] all = new long[numOrders];
+    int offset = 0;
+    for (final Future<long[]> result : results) {
+      final long[] latencies = result.get();
+      System.arraycopy(latencies, 0, all, offset, latencies.length);
+      offset += latencies.length;
+    }
+    executor.shutdown();
+    return all;
+  }
+
+  private static void get(final Client client, final String url) {
+    while (true) {
+      try {
+        client.target(url)
+            .queryParam("timeout", 30000)
+            .request(APPLICATION_JSON_TYPE)
+            .get(OrderBean.class);
+        return;
+      } catch (final ServerErrorException e) {
+        if (!e.getMessage().contains("504")) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static void report(final RoutingMode mode, final long[] latencies, final long elapsedNanos) {
+    Arrays.sort(latencies);
+    System.out.printf("%-8s requests: %d, throughput: %.0f req/s, latency p50: %.2f ms, "
+            + "p99: %.2f ms, max: %.2f ms%n",
+        mode,
+        latencies.length,
+        latencies.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+        percentile(latencies, 0.50),
+        percentile(latencies, 0.99),
+        percentile(latencies, 1.0));
+  }
+
+  private static double percentile(final long[] sorted, final double percentile) {
+    final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -16,12 +16,13 @@ import io.confluent.examples.streams.avro.microservices.OrderValidationType;
 import io.confluent.examples.streams.microservices.domain.Schemas;
 import io.confluent.examples.streams.microservices.domain.Schemas.Topics;
 import io.confluent.examples.streams.microservices.util.MicroserviceTestUtils;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
-import org.junit.BeforeClass;
+import org.junit.Before;
 import org.junit.Test;
 
 public class ValidationsAggregatorServiceTest extends MicroserviceTestUtils {
@@ -31,12 +32,15 @@ public class ValidationsAggregatorServiceTest extends MicroserviceTestUtils {
   private ValidationsAggregatorService ordersService;
 
 
-  @BeforeClass
-  public static void startKafkaCluster() {
+  @Before
+  public void startKafkaCluster() throws Exception {
+    //a fresh cluster for each test, as the service's changelogs and internal topics outlive it
+    if (!CLUSTER.isRunning()) {
+      CLUSTER.start();
+    }
     CLUSTER.createTopic(Topics.ORDERS.name());
     CLUSTER.createTopic(Topics.ORDER_VALIDATIONS.name());
     Schemas.configureSerdesWithSchemaRegistryUrl(CLUSTER.schemaRegistryUrl());
-    MicroserviceTestUtils.tailAllTopicsToConsole(CLUSTER.bootstrapServers());
   }
 
   @Test
@@ -76,8 +80,104 @@ public class ValidationsAggregatorServiceTest extends MicroserviceTestUtils {
     );
   }
 
+  @Test
+  public void shouldAggregateRuleSuccessesInASingleProcessor() throws Exception {
+
+    //Given
+    ordersService = new ValidationsAggregatorService();
+    ordersService.setSingleProcessorEnabled(true);
+
+    orders = asList(
+        new Order(id(0L), 0L, CREATED, UNDERPANTS, 3, 5.00d),
+        new Order(id(1L), 0L, CREATED, JUMPERS, 1, 75.00d)
+    );
+    sendOrders(orders);
+
+    ruleResults = asList(
+        new OrderValidation(id(0L), OrderValidationType.FRAUD_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(0L), OrderValidationType.ORDER_DETAILS_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(0L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(1L), OrderValidationType.FRAUD_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(1L), OrderValidationType.ORDER_DETAILS_CHECK, OrderValidationResult.FAIL),
+        new OrderValidation(id(1L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS)
+    );
+    sendOrderValuations(ruleResults);
+
+    //When
+    ordersService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then the first order should be validated, as every rule passed, but the second should have
+    //failed, each exactly once
+    final List<KeyValue<String, Order>> finalOrders = MicroserviceTestUtils
+        .readKeyValues(Topics.ORDERS, 4, CLUSTER.bootstrapServers());
+    assertThat(finalOrders.stream().map(kv -> kv.value).collect(Collectors.toList()))
+        .containsOnly(
+            orders.get(0),
+            orders.get(1),
+            new Order(id(0L), 0L, VALIDATED, UNDERPANTS, 3, 5.00d),
+            new Order(id(1L), 0L, FAILED, JUMPERS, 1, 75.00d)
+        );
+  }
+
+  @Test
+  public void shouldOnlyApplyTheRequiredRules() throws Exception {
+    shouldOnlyApplyTheRequiredRules(false);
+  }
+
+  @Test
+  public void shouldOnlyApplyTheRequiredRulesInASingleProcessor() throws Exception {
+    shouldOnlyApplyTheRequiredRules(true);
+  }
+
+  private void shouldOnlyApplyTheRequiredRules(final boolean singleProcessor) throws Exception {
+
+    //Given a service that only requires the fraud and inventory checks
+    ordersService = new ValidationsAggregatorService();
+    ordersService.setSingleProcessorEnabled(singleProcessor);
+    ordersService.setRequiredRules(
+        EnumSet.of(OrderValidationType.FRAUD_CHECK, OrderValidationType.INVENTORY_CHECK));
+
+    orders = asList(
+        new Order(id(0L), 0L, CREATED, UNDERPANTS, 3, 5.00d),
+        new Order(id(1L), 0L, CREATED, JUMPERS, 1, 75.00d),
+        new Order(id(2L), 0L, CREATED, JUMPERS, 2, 75.00d)
+    );
+    sendOrders(orders);
+
+    ruleResults = asList(
+        //fails a rule that isn't required, but passes both that are
+        new OrderValidation(id(0L), OrderValidationType.ORDER_DETAILS_CHECK, OrderValidationResult.FAIL),
+        new OrderValidation(id(0L), OrderValidationType.FRAUD_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(0L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.PASS),
+        //passes a rule that isn't required, and is still waiting for the inventory check
+        new OrderValidation(id(1L), OrderValidationType.FRAUD_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(1L), OrderValidationType.ORDER_DETAILS_CHECK, OrderValidationResult.PASS),
+        //fails a required rule
+        new OrderValidation(id(2L), OrderValidationType.FRAUD_CHECK, OrderValidationResult.PASS),
+        new OrderValidation(id(2L), OrderValidationType.INVENTORY_CHECK, OrderValidationResult.FAIL)
+    );
+    sendOrderValuations(ruleResults);
+
+    //When
+    ordersService.start(CLUSTER.bootstrapServers(), TestUtils.tempDirectory().getPath());
+
+    //Then the first order should be validated and the third failed, while the second should be
+    //left alone until the inventory check reports
+    final List<KeyValue<String, Order>> finalOrders = MicroserviceTestUtils
+        .readKeyValues(Topics.ORDERS, 5, CLUSTER.bootstrapServers());
+    assertThat(finalOrders.stream().map(kv -> kv.value).collect(Collectors.toList()))
+        .containsOnly(
+            orders.get(0),
+            orders.get(1),
+            orders.get(2),
+            new Order(id(0L), 0L, VALIDATED, UNDERPANTS, 3, 5.00d),
+            new Order(id(2L), 0L, FAILED, JUMPERS, 2, 75.00d)
+        );
+  }
+
   @After
   public void tearDown() {
     ordersService.stop();
+    CLUSTER.stop();
   }
 }
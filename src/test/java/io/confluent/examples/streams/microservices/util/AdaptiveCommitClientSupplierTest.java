@@ -0,0 +1,210 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveCommitClientSupplierTest extends MicroserviceTestUtils {
+
+  private static final String INPUT = "adaptive-commit-input";
+  private static final String OUTPUT = "adaptive-commit-output";
+  private static final String GROUP = "adaptive-commit-test";
+  private static final TopicPartition INPUT_PARTITION = new TopicPartition(INPUT, 0);
+  private static final TopicPartition OUTPUT_PARTITION = new TopicPartition(OUTPUT, 0);
+
+  private Consumer<byte[], byte[]> consumer;
+  private Producer<byte[], byte[]> producer;
+
+  @Before
+  public void startKafkaCluster() throws Exception {
+    if (!CLUSTER.isRunning()) {
+      CLUSTER.start();
+    }
+    CLUSTER.createTopic(INPUT);
+    CLUSTER.createTopic(OUTPUT);
+    try (final Producer<byte[], byte[]> input = new KafkaProducer<>(
+        producerConfig(CLUSTER), new ByteArraySerializer(), new ByteArraySerializer())) {
+      for (int i = 0; i < 3; i++) {
+        input.send(new ProducerRecord<>(INPUT, ("in-" + i).getBytes())).get();
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (producer != null) {
+      producer.close();
+    }
+    if (consumer != null) {
+      consumer.close();
+    }
+    CLUSTER.stop();
+  }
+
+  @Test
+  public void shouldHoldBackOffsetCommitsUntilDueOrClosed() throws Exception {
+    //Given a consumer whose commits are held back for at least a minute
+    consumer = consumer(new AdaptiveCommitClientSupplier("adaptive-commit-test", 60_000, 60_000));
+    pollUntilRecords();
+
+    //When Streams commits
+    consumer.commitSync(Collections.singletonMap(INPUT_PARTITION, new OffsetAndMetadata(3)));
+
+    //Then nothing is committed yet
+    assertThat(committed()).isNull();
+
+    //But it is once the consumer is closed
+    consumer.close();
+    consumer = null;
+    assertThat(committed()).isEqualTo(3L);
+  }
+
+  @Test
+  public void shouldCommitHeldBackOffsetsOnceDueWithoutAnotherCommit() throws Exception {
+    //Given a consumer whose commits are held back for a few seconds
+    consumer = consumer(new AdaptiveCommitClientSupplier("adaptive-commit-test", 5_000, 5_000));
+    pollUntilRecords();
+
+    //When Streams commits, then has nothing more to do
+    consumer.commitSync(Collections.singletonMap(INPUT_PARTITION, new OffsetAndMetadata(3)));
+    assertThat(committed()).isNull();
+
+    //Then the offsets are committed by a later poll, once they are due
+    TestUtils.waitForCondition(() -> {
+      consumer.poll(Duration.ofMillis(100));
+      return Long.valueOf(3L).equals(committed());
+    }, 30000, "The held back offsets were never committed");
+  }
+
+  @Test
+  public void shouldOnlyCommitAHeldBackTransactionWithTheOffsetsOfEverythingInIt() throws Exception {
+    //Given a stream thread's consumer and a task's transactional producer, which hold back
+    //commits for a few seconds
+    final AdaptiveCommitClientSupplier supplier =
+        new AdaptiveCommitClientSupplier("adaptive-commit-test", 3_000, 3_000);
+    consumer = consumer(supplier);
+    pollUntilRecords();
+    producer = transactionalProducer(supplier);
+    producer.initTransactions();
+
+    //And a first transaction which, with nothing sent after it, is committed once due
+    producer.beginTransaction();
+    producer.send(new ProducerRecord<>(OUTPUT, "out-0".getBytes()));
+    producer.sendOffsetsToTransaction(Collections.singletonMap(INPUT_PARTITION, new OffsetAndMetadata(1)), GROUP);
+    producer.commitTransaction();
+    producer.beginTransaction();
+    TestUtils.waitForCondition(() -> {
+      consumer.poll(Duration.ofMillis(100));
+      return singletonList("out-0").equals(committedOutput());
+    }, 30000, "The idle transaction was never committed");
+
+    //When Streams commits the next, which is held back, then sends more in the one it begins
+    producer.send(new ProducerRecord<>(OUTPUT, "out-1".getBytes()));
+    producer.sendOffsetsToTransaction(Collections.singletonMap(INPUT_PARTITION, new OffsetAndMetadata(2)), GROUP);
+    producer.commitTransaction();
+    producer.beginTransaction();
+    producer.send(new ProducerRecord<>(OUTPUT, "out-2".getBytes()));
+
+    //Then the transaction isn't committed by a poll, even once due, as it holds a record whose
+    //offset isn't in it
+    final long deadline = System.currentTimeMillis() + 6_000;
+    while (System.currentTimeMillis() < deadline) {
+      consumer.poll(Duration.ofMillis(100));
+    }
+    assertThat(committedOutput()).isEqualTo(singletonList("out-0"));
+    assertThat(committed()).isEqualTo(1L);
+
+    //But it is when Streams commits again, with that record's offset
+    producer.sendOffsetsToTransaction(Collections.singletonMap(INPUT_PARTITION, new OffsetAndMetadata(3)), GROUP);
+    producer.commitTransaction();
+    assertThat(committedOutput()).isEqualTo(asList("out-0", "out-1", "out-2"));
+    assertThat(committed()).isEqualTo(3L);
+  }
+
+  private Consumer<byte[], byte[]> consumer(final AdaptiveCommitClientSupplier supplier) {
+    final Map<String, Object> config = new HashMap<>();
+    config.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers());
+    config.put(ConsumerConfig.GROUP_ID_CONFIG, GROUP);
+    config.put(ConsumerConfig.CLIENT_ID_CONFIG, "adaptive-commit-test-consumer");
+    config.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    config.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+    final Consumer<byte[], byte[]> consumer = supplier.getConsumer(config);
+    consumer.assign(singletonList(INPUT_PARTITION));
+    return consumer;
+  }
+
+  private Producer<byte[], byte[]> transactionalProducer(final AdaptiveCommitClientSupplier supplier) {
+    final Map<String, Object> config = new HashMap<>();
+    config.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers());
+    config.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, "adaptive-commit-test-0_0");
+    return supplier.getProducer(config);
+  }
+
+  /**
+   * Poll, as a stream thread would, on this thread, until the input arrives.
+   */
+  private void pollUntilRecords() throws InterruptedException {
+    TestUtils.waitForCondition(() -> !consumer.poll(Duration.ofMillis(100)).isEmpty(),
+        30000, "Never read the input");
+  }
+
+  private Long committed() {
+    final Properties config = new Properties();
+    config.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers());
+    config.put(ConsumerConfig.GROUP_ID_CONFIG, GROUP);
+    try (final KafkaConsumer<byte[], byte[]> reader =
+             new KafkaConsumer<>(config, new ByteArrayDeserializer(), new ByteArrayDeserializer())) {
+      final OffsetAndMetadata committed = reader.committed(INPUT_PARTITION);
+      return committed == null ? null : committed.offset();
+    }
+  }
+
+  /**
+   * @return the output of every committed transaction
+   */
+  private List<String> committedOutput() {
+    final Properties config = new Properties();
+    config.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers());
+    config.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+    final List<String> output = new ArrayList<>();
+    try (final KafkaConsumer<String, String> reader =
+             new KafkaConsumer<>(config, new StringDeserializer(), new StringDeserializer())) {
+      reader.assign(singletonList(OUTPUT_PARTITION));
+      reader.seekToBeginning(singletonList(OUTPUT_PARTITION));
+      //Under read_committed the end offset is that of the first open transaction
+      final long end = reader.endOffsets(singletonList(OUTPUT_PARTITION)).get(OUTPUT_PARTITION);
+      while (reader.position(OUTPUT_PARTITION) < end) {
+        for (final ConsumerRecord<String, String> record : reader.poll(Duration.ofMillis(100))) {
+          output.add(record.value());
+        }
+      }
+    }
+    return output;
+  }
+}
@@ -0,0 +1,87 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+
+import static io.confluent.examples.streams.microservices.util.AdaptiveCommitController.ADJUST_PERIOD_MS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveCommitControllerTest {
+
+  private final Metrics metrics = new Metrics();
+  private final AdaptiveCommitController controller =
+      new AdaptiveCommitController(metrics, "test-consumer", 1, 1000);
+  private long now = 0;
+
+  @After
+  public void tearDown() {
+    controller.close();
+    metrics.close();
+  }
+
+  @Test
+  public void shouldWidenTheIntervalUpToTheMaximumWhileLagIsHigh() {
+    //1000 records a second with a million to go
+    for (int i = 0; i < 20; i++) {
+      poll(100, 1000000);
+    }
+
+    assertThat(controller.intervalMs()).isEqualTo(1000);
+    assertThat(controller.isDue(now, now - 999)).isFalse();
+    assertThat(controller.isDue(now, now - 1000)).isTrue();
+  }
+
+  @Test
+  public void shouldNarrowTheIntervalToTheMinimumOnceCaughtUp() {
+    for (int i = 0; i < 20; i++) {
+      poll(100, 1000000);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      poll(100, 0);
+    }
+
+    assertThat(controller.intervalMs()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldOnlyWidenTheIntervalWhenLagTakesLongerThanItToWorkThrough() {
+    //Given a steady 2000 records a second, with no lag
+    for (int i = 0; i < 50; i++) {
+      poll(200, 0);
+    }
+
+    //When there is half a ms of lag
+    poll(200, 1);
+
+    //Then the interval is unchanged
+    assertThat(controller.intervalMs()).isEqualTo(1);
+
+    //But when there is more than a ms of lag, it is widened
+    poll(200, 3);
+    assertThat(controller.intervalMs()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldReportItsDecisionsAsMetrics() {
+    poll(100, 1000000);
+    poll(100, 1000000);
+
+    assertThat(metric("commit-interval-ms")).isEqualTo(controller.intervalMs());
+    assertThat(metric("consumer-lag")).isEqualTo(1000000L);
+  }
+
+  private void poll(final int records, final long lag) {
+    now += ADJUST_PERIOD_MS;
+    controller.onPoll(now, records, lag);
+  }
+
+  private Object metric(final String name) {
+    return metrics.metrics().entrySet().stream()
+        .filter(metric -> metric.getKey().name().equals(name))
+        .findFirst()
+        .map(metric -> metric.getValue().metricValue())
+        .orElse(null);
+  }
+}
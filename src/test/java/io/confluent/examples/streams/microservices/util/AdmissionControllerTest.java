@@ -0,0 +1,111 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.utils.MockTime;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.Map;
+
+import static io.confluent.examples.streams.microservices.util.AdmissionController.METRIC_GROUP;
+import static io.confluent.examples.streams.microservices.util.AdmissionController.TOO_MANY_REQUESTS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdmissionControllerTest {
+
+  private final MockTime time = new MockTime(0, 0, 0);
+  private final Metrics metrics = new Metrics(time);
+
+  @After
+  public void tearDown() {
+    metrics.close();
+  }
+
+  @Test
+  public void shouldRejectWithA503OnceTooManySendsAreInFlight() {
+    final AdmissionController admission = new AdmissionController(metrics, 3, 0, 0, time);
+
+    assertThat(admission.admit("a", 2)).isNull();
+    assertThat(admission.admit("b", 1)).isNull();
+    final Response rejection = admission.admit("c", 1);
+
+    assertThat(rejection.getStatus()).isEqualTo(503);
+    assertThat(rejection.getHeaderString(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+    assertThat(admission.inFlight()).isEqualTo(3);
+
+    //When a send completes there is room again
+    admission.release(1);
+    assertThat(admission.admit("c", 1)).isNull();
+  }
+
+  @Test
+  public void shouldAdmitARequestBiggerThanTheBoundOnlyWhenNothingIsInFlight() {
+    final AdmissionController admission = new AdmissionController(metrics, 3, 0, 0, time);
+
+    assertThat(admission.admit("a", 1)).isNull();
+    assertThat(admission.admit("a", 10).getStatus()).isEqualTo(503);
+
+    admission.release(1);
+    assertThat(admission.admit("a", 10)).isNull();
+    assertThat(admission.inFlight()).isEqualTo(10);
+  }
+
+  @Test
+  public void shouldRateLimitEachClientWithItsOwnBucket() {
+    final AdmissionController admission = new AdmissionController(metrics, 100, 2, 2, time);
+
+    //A client can use up its burst straight away, and is then held to its rate
+    assertThat(admission.admit("a", 1)).isNull();
+    assertThat(admission.admit("a", 1)).isNull();
+    final Response rejection = admission.admit("a", 1);
+    assertThat(rejection.getStatus()).isEqualTo(TOO_MANY_REQUESTS);
+    assertThat(rejection.getHeaderString(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+    //The rejected request doesn't hold on to its slot
+    assertThat(admission.inFlight()).isEqualTo(2);
+
+    //Others aren't affected
+    assertThat(admission.admit("b", 1)).isNull();
+
+    //At 2 a second, there's another token after half a second
+    time.sleep(499);
+    assertThat(admission.admit("a", 1)).isNotNull();
+    time.sleep(1);
+    assertThat(admission.admit("a", 1)).isNull();
+  }
+
+  @Test
+  public void shouldLetABatchBiggerThanTheBurstThroughButMakeItsClientWait() {
+    final AdmissionController admission = new AdmissionController(metrics, 100, 1, 5, time);
+
+    assertThat(admission.admit("a", 20)).isNull();
+    //It takes 20 seconds to pay back
+    assertThat(admission.admit("a", 1).getHeaderString(HttpHeaders.RETRY_AFTER)).isEqualTo("16");
+    time.sleep(16_000);
+    assertThat(admission.admit("a", 1)).isNull();
+  }
+
+  @Test
+  public void shouldCountAcceptedAndRejectedRequests() {
+    final AdmissionController admission = new AdmissionController(metrics, 1, 1, 1, time);
+
+    admission.admit("a", 1);
+    admission.admit("b", 1);
+    admission.release(1);
+    admission.admit("a", 1);
+
+    assertThat(value("accepted-total", Collections.emptyMap())).isEqualTo(1.0);
+    assertThat(value("rejected-total", Collections.singletonMap("reason", "overloaded")))
+        .isEqualTo(1.0);
+    assertThat(value("rejected-total", Collections.singletonMap("reason", "rate-limited")))
+        .isEqualTo(1.0);
+    assertThat(metrics.metric(metrics.metricName("in-flight", METRIC_GROUP)).metricValue())
+        .isEqualTo(0);
+  }
+
+  private double value(final String name, final Map<String, String> tags) {
+    return (Double) metrics.metric(metrics.metricName(name, METRIC_GROUP, tags)).metricValue();
+  }
+}
@@ -0,0 +1,118 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.test.TestUtils;
+import org.junit.Test;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import static io.confluent.examples.streams.microservices.util.BoundedMemoryRocksDBConfig.STATISTICS_RECORDER_CONFIG;
+import static io.confluent.examples.streams.microservices.util.BoundedMemoryRocksDBConfig.WRITE_BUFFER_BYTES_CONFIG;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BoundedMemoryRocksDBConfigTest {
+
+  private final BoundedMemoryRocksDBConfig setter = new BoundedMemoryRocksDBConfig();
+
+  @Test
+  public void shouldCapEachStoresMemtables() {
+    try (final Options options = new Options()) {
+      setter.setConfig("orders-store", options,
+          Collections.singletonMap(WRITE_BUFFER_BYTES_CONFIG, 1024 * 1024L));
+
+      assertThat(options.writeBufferSize()).isEqualTo(1024 * 1024L);
+      assertThat(options.maxWriteBufferNumber()).isEqualTo(BoundedMemoryRocksDBConfig.MAX_WRITE_BUFFERS);
+    }
+  }
+
+  @Test
+  public void shouldUseTheDefaultsWhenNotConfigured() {
+    try (final Options options = new Options()) {
+      setter.setConfig("orders-store", options, Collections.emptyMap());
+
+      assertThat(options.writeBufferSize()).isEqualTo(BoundedMemoryRocksDBConfig.DEFAULT_WRITE_BUFFER_BYTES);
+    }
+  }
+
+  @Test
+  public void shouldTellSegmentsOfWindowAndSessionStoresFromKeyValueStores() {
+    assertThat(BoundedMemoryRocksDBConfig.isSegment("song-play-count")).isFalse();
+    assertThat(BoundedMemoryRocksDBConfig.isSegment("store-of-reserved-stock")).isFalse();
+    assertThat(BoundedMemoryRocksDBConfig.isSegment("payments-join-store.1571356800000")).isTrue();
+  }
+
+  @Test
+  public void shouldPublishEachStoresStatisticsAsMetricsTaggedWithItsTask() throws Exception {
+    final Metrics metrics = MicroserviceUtils.startMetrics("statistics-test");
+    final RocksDBStatisticsRecorder recorder = new RocksDBStatisticsRecorder("statistics-test", metrics);
+    final File storeDir = new File(TestUtils.tempDirectory(), "0_1/rocksdb/orders-store");
+    assertThat(storeDir.getParentFile().mkdirs()).isTrue();
+    final ObjectName name = new ObjectName("kafka.streams.microservices:type=rocksdb-statistics,"
+        + "service=statistics-test,store=orders-store,task=0_1");
+
+    try (final Options options = new Options().setCreateIfMissing(true)) {
+      setter.setConfig("orders-store", options, Collections.singletonMap(STATISTICS_RECORDER_CONFIG, recorder));
+      try (final RocksDB db = RocksDB.open(options, storeDir.getAbsolutePath());
+           final FlushOptions flush = new FlushOptions().setWaitForFlush(true)) {
+        for (int i = 0; i < 100; i++) {
+          db.put(("key" + i).getBytes(), "value".getBytes());
+        }
+        db.flush(flush);
+        db.get("key1".getBytes());
+      }
+      recorder.sample();
+
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertThat((Double) server.getAttribute(name, "bytes-written-rate")).isGreaterThan(0);
+      assertThat((Double) server.getAttribute(name, "get-latency-avg")).isGreaterThan(0);
+      assertThat((Double) server.getAttribute(name, "sst-bytes")).isGreaterThan(0);
+
+      recorder.close();
+      assertThat(server.isRegistered(name)).isFalse();
+    } finally {
+      recorder.close();
+      metrics.close();
+    }
+  }
+
+  @Test
+  public void shouldStopPublishingTheStatisticsOfASegmentOnceItIsDeleted() throws Exception {
+    final Metrics metrics = MicroserviceUtils.startMetrics("statistics-test");
+    final RocksDBStatisticsRecorder recorder = new RocksDBStatisticsRecorder("statistics-test", metrics);
+    final File segmentDir = new File(TestUtils.tempDirectory(),
+        "1_0/payments-join-store/payments-join-store.1571356800000");
+    assertThat(segmentDir.getParentFile().mkdirs()).isTrue();
+    final ObjectName name = new ObjectName("kafka.streams.microservices:type=rocksdb-statistics,"
+        + "service=statistics-test,store=payments-join-store,task=1_0");
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    try (final Options options = new Options().setCreateIfMissing(true)) {
+      setter.setConfig(segmentDir.getName(), options, Collections.singletonMap(STATISTICS_RECORDER_CONFIG, recorder));
+      try (final RocksDB db = RocksDB.open(options, segmentDir.getAbsolutePath());
+           final FlushOptions flush = new FlushOptions().setWaitForFlush(true)) {
+        db.put("key".getBytes(), "value".getBytes());
+        db.flush(flush);
+      }
+      recorder.sample();
+      assertThat(server.isRegistered(name)).isTrue();
+
+      //When the segment expires
+      Utils.delete(segmentDir);
+      recorder.sample();
+
+      //Then
+      assertThat(server.isRegistered(name)).isFalse();
+    } finally {
+      recorder.close();
+      metrics.close();
+    }
+  }
+}
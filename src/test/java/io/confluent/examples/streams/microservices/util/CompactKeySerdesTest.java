@@ -0,0 +1,124 @@
+package io.confluent.examples.streams.microservices.util;
+
+import io.confluent.examples.streams.avro.microservices.Product;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.utils.Bytes;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static io.confluent.examples.streams.microservices.domain.beans.OrderId.id;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactKeySerdesTest {
+
+  private static final long[] EDGES = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -65537, -65536, -257,
+      -256, -255, -2, -1, 0, 1, 127, 128, 255, 256, 65535, 65536, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+
+  @Test
+  public void shouldRoundTripAndOrderEnumsByOrdinal() {
+    final Serde<Product> serde = CompactKeySerdes.ordinal(Product.class);
+    for (final Product product : Product.values()) {
+      final byte[] bytes = serde.serializer().serialize("t", product);
+      assertThat(bytes).hasSize(1);
+      assertThat(serde.deserializer().deserialize("t", bytes)).isEqualTo(product);
+    }
+    assertSortedLikeBytes(serde, Arrays.asList(Product.values()), Comparator.naturalOrder());
+  }
+
+  @Test
+  public void shouldRoundTripAndOrderVarLongs() {
+    final Serde<Long> serde = CompactKeySerdes.varLong();
+    final List<Long> values = longs();
+    for (final long value : values) {
+      assertThat(serde.deserializer().deserialize("t", serde.serializer().serialize("t", value)))
+          .isEqualTo(value);
+    }
+    assertSortedLikeBytes(serde, values, Comparator.naturalOrder());
+    assertThat(serde.serializer().serialize("t", 0L)).hasSize(1);
+    assertThat(serde.serializer().serialize("t", 200L)).hasSize(2);
+    assertThat(serde.serializer().serialize("t", Long.MAX_VALUE)).hasSize(9);
+  }
+
+  @Test
+  public void shouldRoundTripAndOrderFixedLongs() {
+    final Serde<Long> serde = CompactKeySerdes.fixedLong();
+    final List<Long> values = longs();
+    for (final long value : values) {
+      assertThat(serde.deserializer().deserialize("t", serde.serializer().serialize("t", value)))
+          .isEqualTo(value);
+    }
+    assertSortedLikeBytes(serde, values, Comparator.naturalOrder());
+  }
+
+  @Test
+  public void shouldWriteTheSameUtf8AsTheJdkAfterTheLength() {
+    final Serde<String> serde = CompactKeySerdes.utf8();
+    final StringBuilder longString = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      longString.append('x');
+    }
+    for (final String value : Arrays.asList("", id(42), "café", "€100", "😀 smile",
+        "unpaired \ud83d", longString.toString())) {
+      final byte[] bytes = serde.serializer().serialize("t", value);
+      final byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+      assertThat(Arrays.copyOfRange(bytes, bytes.length - expected.length, bytes.length))
+          .isEqualTo(expected);
+      assertThat(serde.deserializer().deserialize("t", bytes))
+          .isEqualTo(new String(expected, StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void shouldOrderDecimalIdsNumerically() {
+    final List<Long> ids = new ArrayList<>();
+    final Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      ids.add((long) random.nextInt(Integer.MAX_VALUE));
+    }
+    assertSortedLikeBytes(CompactKeySerdes.utf8(),
+        ids.stream().map(i -> id(i)).collect(Collectors.toList()),
+        Comparator.comparing(Long::parseLong));
+  }
+
+  @Test
+  public void shouldOrderStringsByLengthBeforeTheirChars() {
+    assertSortedLikeBytes(CompactKeySerdes.utf8(), Arrays.asList("b", "ab", "abc", "z", "aa"),
+        Comparator.comparing(String::length).thenComparing(Comparator.naturalOrder()));
+  }
+
+  @Test(expected = SerializationException.class)
+  public void shouldRejectKeysWrittenAsStrings() {
+    CompactKeySerdes.ordinal(Product.class).deserializer()
+        .deserialize("t", Product.JUMPERS.toString().getBytes());
+  }
+
+  private static List<Long> longs() {
+    final List<Long> values = new ArrayList<>();
+    for (final long edge : EDGES) {
+      values.add(edge);
+    }
+    final Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      values.add(random.nextLong() >> random.nextInt(64));
+    }
+    return values;
+  }
+
+  private static <T> void assertSortedLikeBytes(final Serde<T> serde,
+                                                final List<T> values,
+                                                final Comparator<T> order) {
+    final List<T> byBytes = new ArrayList<>(values);
+    byBytes.sort(Comparator.comparing(value -> Bytes.wrap(serde.serializer().serialize("t", value))));
+    final List<T> byValue = new ArrayList<>(values);
+    byValue.sort(order);
+    assertThat(byBytes).isEqualTo(byValue);
+  }
+}
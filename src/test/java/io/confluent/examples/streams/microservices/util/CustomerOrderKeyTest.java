@@ -0,0 +1,35 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.utils.Bytes;
+import org.junit.Test;
+
+import static io.confluent.examples.streams.microservices.util.CustomerOrderKey.from;
+import static io.confluent.examples.streams.microservices.util.CustomerOrderKey.key;
+import static io.confluent.examples.streams.microservices.util.CustomerOrderKey.to;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CustomerOrderKeyTest {
+
+  @Test
+  public void shouldReadBackTheCustomerAndOrder() {
+    final Bytes key = key(-42L, "order-€1");
+
+    assertThat(CustomerOrderKey.customerId(key)).isEqualTo(-42L);
+    assertThat(CustomerOrderKey.orderId(key)).isEqualTo("order-€1");
+  }
+
+  @Test
+  public void shouldRangeOverEveryOrderForACustomerAndNoOthers() {
+    for (final long customerId : new long[] {Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE}) {
+      for (final String orderId : new String[] {"", "0", "999999", "￿", "😀"}) {
+        final Bytes key = key(customerId, orderId);
+        assertThat(key.compareTo(from(customerId))).isGreaterThanOrEqualTo(0);
+        assertThat(key.compareTo(to(customerId))).isLessThan(0);
+        if (customerId < Long.MAX_VALUE) {
+          assertThat(key.compareTo(from(customerId + 1))).isLessThan(0);
+          assertThat(to(customerId).compareTo(key(customerId + 1, orderId))).isLessThan(0);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class LongPollRegistryTest {
+
+  private final Metrics metrics = new Metrics();
+  private final LongPollRegistry<String, String> registry =
+      new LongPollRegistry<>(metrics, value -> value, 10, 8);
+
+  @After
+  public void tearDown() {
+    registry.close();
+    metrics.close();
+  }
+
+  @Test
+  public void shouldResumeEveryWaiterWhosePredicateMatches() {
+    final AsyncResponse any = mock(AsyncResponse.class);
+    final AsyncResponse validated = mock(AsyncResponse.class);
+    registry.register("1", (k, v) -> true, any, 10000);
+    registry.register("1", (k, v) -> v.equals("VALIDATED"), validated, 10000);
+
+    registry.complete("1", "CREATED");
+
+    verify(any).resume("CREATED");
+    verify(validated, never()).resume(any());
+    assertThat(registry.pending()).isEqualTo(1);
+
+    registry.complete("1", "VALIDATED");
+
+    verify(validated).resume("VALIDATED");
+    assertThat(registry.pending()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldOnlyTouchWaitersForTheCompletedKey() {
+    final AsyncResponse other = mock(AsyncResponse.class);
+    registry.register("2", (k, v) -> true, other, 10000);
+
+    registry.complete("1", "CREATED");
+
+    verify(other, never()).resume(any());
+    assertThat(registry.pending()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldExpireWaitersWhenTheirTimeoutPasses() throws Exception {
+    final AsyncResponse response = mock(AsyncResponse.class);
+    //longer than one rotation of the wheel (8 x 10ms)
+    registry.register("1", (k, v) -> true, response, 150);
+
+    TestUtils.waitForCondition(() -> registry.pending() == 0, "waiter was never expired");
+
+    verify(response, timeout(1000)).resume(any(Response.class));
+    registry.complete("1", "CREATED");
+    verify(response, never()).resume("CREATED");
+  }
+}
@@ -0,0 +1,81 @@
+package io.confluent.examples.streams.microservices.util;
+
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the time a service that only wants newly created orders spends reading the orders
+ * topic, when it decodes every order then checks its state, versus when it uses
+ * {@link OrderStateHeader#filtering} to skip the rest before decoding them.
+ * <p>
+ * The orders are the mix the topic carries: every order once as CREATED, then once more as
+ * VALIDATED or FAILED, so half of them are wanted.
+ * <p>
+ * usage: OrderStateFilterBenchmark [orders] [rounds]
+ */
+public class OrderStateFilterBenchmark {
+
+  public static void main(final String[] args) {
+    final int numOrders = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    final SpecificAvroSerde<Order> serde = new SpecificAvroSerde<>(new MockSchemaRegistryClient());
+    serde.configure(Collections.singletonMap(
+        AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://unused:8081"), false);
+
+    final Random random = new Random(0);
+    final Product[] products = Product.values();
+    final List<byte[]> values = new ArrayList<>(numOrders);
+    final List<Headers> headers = new ArrayList<>(numOrders);
+    for (int i = 0; i < numOrders; i++) {
+      final OrderState state = i % 2 == 0 ? OrderState.CREATED
+          : random.nextInt(10) == 0 ? OrderState.FAILED : OrderState.VALIDATED;
+      final Order order = new Order(String.valueOf(i / 2), (long) random.nextInt(1000), state,
+          products[random.nextInt(products.length)], random.nextInt(10), random.nextDouble() * 100);
+      values.add(serde.serializer().serialize("orders", order));
+      headers.add(OrderStateHeader.stamp(new RecordHeaders(), state));
+    }
+
+    try (final Metrics metrics = new Metrics()) {
+      final Deserializer<Order> filtering = new OrderStateHeader.FilteringDeserializer(
+          serde.deserializer(), "benchmark", metrics, OrderState.CREATED);
+      for (int round = 0; round < rounds; round++) {
+        System.out.printf("round %d%n", round);
+        run("decode then filter", serde.deserializer(), values, headers);
+        run("filter by header  ", filtering, values, headers);
+      }
+    }
+  }
+
+  private static void run(final String name,
+                          final Deserializer<Order> deserializer,
+                          final List<byte[]> values,
+                          final List<Headers> headers) {
+    int created = 0;
+    final long start = System.nanoTime();
+    for (int i = 0; i < values.size(); i++) {
+      final Order order = deserializer.deserialize("orders", headers.get(i), values.get(i));
+      if (order != null && OrderState.CREATED.equals(order.getState())) {
+        created++;
+      }
+    }
+    final long nanos = System.nanoTime() - start;
+    if (created != (values.size() + 1) / 2) {
+      throw new IllegalStateException(name + " didn't find every created order");
+    }
+    System.out.printf("  %s %6.1f ns/order%n", name, (double) nanos / values.size());
+  }
+}
@@ -0,0 +1,92 @@
+package io.confluent.examples.streams.microservices.util;
+
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static io.confluent.examples.streams.microservices.util.OrderStateHeader.HEADER;
+import static io.confluent.examples.streams.microservices.util.OrderStateHeader.METRIC_GROUP;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OrderStateHeaderTest {
+
+  private static final Order ORDER = new Order("1", 2L, OrderState.CREATED, Product.JUMPERS, 1, 1d);
+  private static final byte[] DATA = new byte[] {1};
+
+  private final Metrics metrics = new Metrics();
+  private final CountingDeserializer delegate = new CountingDeserializer();
+  private final OrderStateHeader.FilteringDeserializer deserializer =
+      new OrderStateHeader.FilteringDeserializer(delegate, "fraud", metrics, OrderState.CREATED);
+
+  @After
+  public void tearDown() {
+    metrics.close();
+  }
+
+  @Test
+  public void shouldReplaceAnyStateTheHeadersAlreadyHad() {
+    final Headers headers = OrderStateHeader.stamp(new RecordHeaders(), OrderState.CREATED);
+    OrderStateHeader.stamp(headers, OrderState.VALIDATED);
+
+    assertThat(headers.headers(HEADER)).hasSize(1);
+    assertThat(new String(headers.lastHeader(HEADER).value(), StandardCharsets.UTF_8))
+        .isEqualTo("VALIDATED");
+  }
+
+  @Test
+  public void shouldSkipOrdersInUnwantedStatesWithoutDecodingThem() {
+    final Order created = deserializer.deserialize("orders",
+        OrderStateHeader.stamp(new RecordHeaders(), OrderState.CREATED), DATA);
+    final Order validated = deserializer.deserialize("orders",
+        OrderStateHeader.stamp(new RecordHeaders(), OrderState.VALIDATED), DATA);
+
+    assertThat(created).isEqualTo(ORDER);
+    assertThat(validated).isNull();
+    assertThat(delegate.decoded).isEqualTo(1);
+    assertThat(total("decoded-total")).isEqualTo(1L);
+    assertThat(total("skipped-total")).isEqualTo(1L);
+  }
+
+  @Test
+  public void shouldDecodeOrdersWithoutTheHeader() {
+    assertThat(deserializer.deserialize("orders", new RecordHeaders(), DATA)).isEqualTo(ORDER);
+    assertThat(deserializer.deserialize("orders", new RecordHeaders(), null)).isNull();
+
+    assertThat(delegate.decoded).isEqualTo(1);
+    assertThat(total("skipped-total")).isEqualTo(0L);
+  }
+
+  private long total(final String name) {
+    final Map<String, String> tags = Collections.singletonMap("service", "fraud");
+    return (Long) metrics.metric(metrics.metricName(name, METRIC_GROUP, tags)).metricValue();
+  }
+
+  private static class CountingDeserializer implements Deserializer<Order> {
+
+    private int decoded;
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public Order deserialize(final String topic, final byte[] data) {
+      decoded++;
+      return ORDER;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
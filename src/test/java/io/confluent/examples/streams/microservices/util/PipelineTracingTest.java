@@ -0,0 +1,103 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.utils.MockTime;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.confluent.examples.streams.microservices.util.PipelineTracing.HOP_HEADER;
+import static io.confluent.examples.streams.microservices.util.PipelineTracing.METRIC_GROUP;
+import static io.confluent.examples.streams.microservices.util.PipelineTracing.ORIGIN_HEADER;
+import static io.confluent.examples.streams.microservices.util.PipelineTracing.TRACE_ID_HEADER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PipelineTracingTest {
+
+  private final MockTime time = new MockTime(0, 1_000_000, 0);
+  private final Metrics metrics = new Metrics(time);
+  private final PipelineTracing orders = new PipelineTracing("orders", metrics, time);
+  private final PipelineTracing fraud = new PipelineTracing("fraud", metrics, time);
+  private final PipelineTracing aggregator = new PipelineTracing("aggregator", metrics, time);
+
+  @After
+  public void tearDown() {
+    metrics.close();
+  }
+
+  @Test
+  public void shouldStampSubmittedOrdersWithATrace() {
+    final Headers headers = orders.start(new RecordHeaders());
+
+    assertThat(headers.lastHeader(TRACE_ID_HEADER)).isNotNull();
+    assertThat(headers.lastHeader(ORIGIN_HEADER).value()).hasSize(8);
+    assertThat(hops(headers)).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRecordTheLatencyOfEachHopAndAppendItsOwn() {
+    final Headers headers = orders.start(new RecordHeaders());
+    time.sleep(10);
+    fraud.received(headers);
+    time.sleep(30);
+    aggregator.received(headers);
+
+    assertThat(hops(headers)).isEqualTo(3);
+    assertThat(value("fraud", "hop-latency-max", "from", "orders")).isEqualTo(10.0);
+    assertThat(value("aggregator", "hop-latency-max", "from", "fraud")).isEqualTo(30.0);
+    assertThat(value("fraud", "origin-latency-max", null, null)).isEqualTo(10.0);
+    assertThat(value("aggregator", "origin-latency-max", null, null)).isEqualTo(40.0);
+  }
+
+  @Test
+  public void shouldSummariseThePathOfCompletedOrders() {
+    final Headers headers = orders.start(new RecordHeaders());
+    time.sleep(10);
+    fraud.received(headers);
+    time.sleep(30);
+    aggregator.received(headers);
+    time.sleep(5);
+    orders.completed(headers);
+
+    final Map<String, Map<String, Double>> summary = orders.summary();
+    assertThat(summary.keySet())
+        .containsOnly("total", "orders->fraud", "fraud->aggregator", "aggregator->orders");
+    assertThat(summary.get("total").get("count")).isEqualTo(1.0);
+    assertThat(summary.get("total").get("max")).isEqualTo(45.0);
+    assertThat(summary.get("orders->fraud").get("max")).isEqualTo(10.0);
+    assertThat(summary.get("fraud->aggregator").get("max")).isEqualTo(30.0);
+    assertThat(summary.get("aggregator->orders").get("max")).isEqualTo(5.0);
+  }
+
+  @Test
+  public void shouldLeaveRecordsThatAreNotTracedAlone() {
+    final Headers headers = new RecordHeaders();
+    fraud.received(headers);
+    orders.completed(headers);
+
+    assertThat(headers.toArray()).isEmpty();
+    assertThat(orders.summary().get("total").get("count")).isEqualTo(0.0);
+  }
+
+  private static int hops(final Headers headers) {
+    final List<Header> hops = new ArrayList<>();
+    headers.headers(HOP_HEADER).forEach(hops::add);
+    return hops.size();
+  }
+
+  private double value(final String service, final String name, final String tag, final String tagValue) {
+    final Map<String, String> tags = new HashMap<>();
+    tags.put("service", service);
+    if (tag != null) {
+      tags.put(tag, tagValue);
+    }
+    return (Double) metrics.metric(metrics.metricName(name, METRIC_GROUP, tags)).metricValue();
+  }
+}
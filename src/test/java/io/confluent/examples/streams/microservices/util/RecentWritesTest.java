@@ -0,0 +1,73 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.utils.MockTime;
+import org.junit.After;
+import org.junit.Test;
+
+import static io.confluent.examples.streams.microservices.util.RecentWrites.METRIC_GROUP;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecentWritesTest {
+
+  private final MockTime time = new MockTime(0, 0, 0);
+  private final Metrics metrics = new Metrics(time);
+  private final RecentWrites<String, String> writes = new RecentWrites<>(metrics, 3, 1000, time);
+
+  @After
+  public void tearDown() {
+    metrics.close();
+  }
+
+  @Test
+  public void shouldServeWritesUntilTheViewHasAppliedThem() {
+    writes.written("a", "created", 0, 10);
+
+    //The view is behind, or a different key was applied
+    writes.applied("a", 0, 9);
+    writes.applied("b", 0, 10);
+    assertThat(writes.get("a", (k, v) -> true)).isEqualTo("created");
+
+    //The view has caught up
+    writes.applied("a", 0, 10);
+    assertThat(writes.get("a", (k, v) -> true)).isNull();
+  }
+
+  @Test
+  public void shouldKeepTheLatestWriteForAKey() {
+    writes.written("a", "validated", 0, 11);
+    writes.written("a", "created", 0, 10);
+    assertThat(writes.get("a", (k, v) -> true)).isEqualTo("validated");
+
+    //The view applying the earlier write doesn't evict the later one
+    writes.applied("a", 0, 10);
+    assertThat(writes.get("a", (k, v) -> true)).isEqualTo("validated");
+  }
+
+  @Test
+  public void shouldOnlyServeWritesThatMatchThePredicate() {
+    writes.written("a", "created", 0, 10);
+
+    assertThat(writes.get("a", (k, v) -> v.equals("validated"))).isNull();
+    assertThat(writes.get("a", (k, v) -> v.equals("created"))).isEqualTo("created");
+    assertThat(metrics.metric(metrics.metricName("hit-total", METRIC_GROUP)).metricValue())
+        .isEqualTo(1.0);
+  }
+
+  @Test
+  public void shouldEvictWritesAfterTheirMaxAgeOrOnceFull() {
+    writes.written("a", "a", 0, 1);
+    time.sleep(500);
+    writes.written("b", "b", 1, 1);
+    writes.written("c", "c", 2, 1);
+    writes.written("d", "d", 3, 1);
+
+    //Only room for three
+    assertThat(writes.get("a", (k, v) -> true)).isNull();
+    assertThat(writes.size()).isEqualTo(3);
+
+    time.sleep(1001);
+    assertThat(writes.get("b", (k, v) -> true)).isNull();
+    assertThat(writes.size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,35 @@
+package io.confluent.examples.streams.microservices.util;
+
+import org.apache.kafka.common.utils.Bytes;
+import org.junit.Test;
+
+import static io.confluent.examples.streams.microservices.util.TimeOrderedKey.from;
+import static io.confluent.examples.streams.microservices.util.TimeOrderedKey.key;
+import static io.confluent.examples.streams.microservices.util.TimeOrderedKey.to;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimeOrderedKeyTest {
+
+  @Test
+  public void shouldReadBackTheTimestampAndId() {
+    final Bytes key = key(1234L, "order-€1");
+
+    assertThat(TimeOrderedKey.timestamp(key)).isEqualTo(1234L);
+    assertThat(TimeOrderedKey.id(key)).isEqualTo("order-€1");
+  }
+
+  @Test
+  public void shouldRangeOverEverythingUpToATimeAndNothingAfter() {
+    for (final long timestamp : new long[] {0, 1, 255, 256, Long.MAX_VALUE - 1}) {
+      for (final String id : new String[] {"", "0", "999999", "￿", "😀"}) {
+        final Bytes key = key(timestamp, id);
+        assertThat(key.compareTo(from())).isGreaterThanOrEqualTo(0);
+        assertThat(key.compareTo(to(timestamp))).isLessThan(0);
+        assertThat(to(timestamp).compareTo(key(timestamp + 1, id))).isLessThan(0);
+        if (timestamp > 0) {
+          assertThat(key.compareTo(to(timestamp - 1))).isGreaterThan(0);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.processor.MockProcessorContext;
+import org.apache.kafka.streams.state.WindowStore;
+import org.apache.kafka.streams.test.ConsumerRecordFactory;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DeduplicationTransformerTest {
+
+  private static final String STORE_NAME = "eventId-store";
+  private static final Duration MAINTAIN_DURATION = Duration.ofMinutes(10);
+
+  private final ConsumerRecordFactory<String, String> records =
+      new ConsumerRecordFactory<>("input", new StringSerializer(), new StringSerializer());
+  private final Properties config = new Properties();
+  private TopologyTestDriver driver;
+
+  @Before
+  public void setUp() {
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "deduplication-transformer-test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "unused:9092");
+    config.put(StreamsConfig.STATE_DIR_CONFIG, TestUtils.tempDirectory().getPath());
+
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.addStateStore(DeduplicationTransformer.storeBuilder(STORE_NAME, MAINTAIN_DURATION, Serdes.String()));
+    builder.stream("input", Consumed.with(Serdes.String(), Serdes.String()))
+        .transform(() -> new DeduplicationTransformer<String, String, String>(
+            STORE_NAME, MAINTAIN_DURATION.toMillis(), (key, value) -> value, Serdes.String()), STORE_NAME)
+        .to("output", Produced.with(Serdes.String(), Serdes.String()));
+    driver = new TopologyTestDriver(builder.build(), config);
+  }
+
+  @After
+  public void tearDown() {
+    driver.close();
+  }
+
+  @Test
+  public void shouldDropDuplicatesWithoutReadingTheStoreForNewEvents() {
+    assertThat(deduplicate("a", 0), equalTo("a"));
+    assertThat(deduplicate("b", 1), equalTo("b"));
+    assertThat(deduplicate("a", 2), nullValue());
+    assertThat(deduplicate("c", 3), equalTo("c"));
+
+    //only the duplicate, and any false positives, were checked against the store
+    assertThat(metric("store-reads-total") - metric("false-positives-total"), equalTo(1.0));
+    assertThat(metric("store-reads-skipped-total") + metric("false-positives-total"), equalTo(3.0));
+  }
+
+  @Test
+  public void shouldForgetEventsOnceTheMaintainDurationHasPassed() {
+    assertThat(deduplicate("a", 0), equalTo("a"));
+    assertThat(deduplicate("b", MAINTAIN_DURATION.toMillis() * 3), equalTo("b"));
+    assertThat(deduplicate("a", MAINTAIN_DURATION.toMillis() * 3), equalTo("a"));
+  }
+
+  @Test
+  public void shouldCheckEventsOlderThanTheFiltersAgainstTheStore() {
+    final long late = 0;
+    final long now = MAINTAIN_DURATION.toMillis();
+    //written behind the filters' back, so only the store can tell it is a duplicate
+    driver.<String, Long>getWindowStore(STORE_NAME).put("a", late, late);
+
+    assertThat(deduplicate("b", now), equalTo("b"));
+    assertThat(deduplicate("a", late), nullValue());
+  }
+
+  @Test
+  public void shouldRebuildTheFiltersFromTheStore() {
+    assertThat(deduplicate("a", 0), equalTo("a"));
+
+    //a new transformer over the same store, as after the store has been restored
+    final MockProcessorContext context = new MockProcessorContext(config);
+    context.register(driver.<String, Long>getWindowStore(STORE_NAME), null);
+    final DeduplicationTransformer<String, String, String> transformer = new DeduplicationTransformer<>(
+        STORE_NAME, MAINTAIN_DURATION.toMillis(), (key, value) -> value, Serdes.String());
+    transformer.init(context);
+    context.setTimestamp(1);
+
+    assertThat(transformer.transform("key", "a"), nullValue());
+    assertThat(transformer.transform("key", "b"), equalTo(KeyValue.pair("key", "b")));
+    transformer.close();
+  }
+
+  @Test
+  public void shouldForwardRecordsWithoutAnEventId() {
+    final MockProcessorContext context = new MockProcessorContext(config);
+    context.register(driver.<String, Long>getWindowStore(STORE_NAME), null);
+    final DeduplicationTransformer<String, String, String> transformer = new DeduplicationTransformer<>(
+        STORE_NAME, MAINTAIN_DURATION.toMillis(), (key, value) -> null, Serdes.String());
+    transformer.init(context);
+
+    assertThat(transformer.transform("key", "a"), equalTo(KeyValue.pair("key", "a")));
+    assertThat(transformer.transform("key", "a"), equalTo(KeyValue.pair("key", "a")));
+    transformer.close();
+  }
+
+  private String deduplicate(final String eventId, final long timestamp) {
+    driver.pipeInput(records.create("input", "key", eventId, timestamp));
+    final ProducerRecord<String, String> output =
+        driver.readOutput("output", new StringDeserializer(), new StringDeserializer());
+    return output == null ? null : output.value();
+  }
+
+  private double metric(final String name) {
+    for (final Map.Entry<MetricName, ? extends Metric> metric : driver.metrics().entrySet()) {
+      if (metric.getKey().name().equals(name)
+          && metric.getKey().group().equals(DeduplicationTransformer.METRIC_GROUP)) {
+        return (Double) metric.getValue().metricValue();
+      }
+    }
+    throw new AssertionError("No metric " + name);
+  }
+}
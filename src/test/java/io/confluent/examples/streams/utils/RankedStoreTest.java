@@ -0,0 +1,155 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.processor.MockProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RankedStoreTest {
+
+  private static final String STORE_NAME = "ranked-store";
+
+  private final MockProcessorContext context = new MockProcessorContext();
+  private KeyValueStore<Bytes, byte[]> inner;
+  private RankedStore<String, String> store;
+
+  @Before
+  public void setUp() {
+    inner = Stores.inMemoryKeyValueStore(STORE_NAME).get();
+    store = new RankedStore<>(inner, Serdes.String(), Serdes.String());
+    store.init(context, store);
+  }
+
+  @After
+  public void tearDown() {
+    store.close();
+  }
+
+  @Test
+  public void shouldRankMembersByDescendingScore() {
+    store.put("eng", "stuff", 1L);
+    store.put("eng", "news", 3L);
+    store.put("eng", "random", 2L);
+    store.put("eng", "minus", -1L);
+
+    assertThat(store.top("eng", 10), equalTo(Arrays.asList(
+        KeyValue.pair("news", 3L),
+        KeyValue.pair("random", 2L),
+        KeyValue.pair("stuff", 1L),
+        KeyValue.pair("minus", -1L))));
+  }
+
+  @Test
+  public void shouldReturnAtMostN() {
+    for (long score = 0; score < 100; score++) {
+      store.put("eng", "page-" + score, score);
+    }
+
+    assertThat(store.top("eng", 2), equalTo(Arrays.asList(
+        KeyValue.pair("page-99", 99L),
+        KeyValue.pair("page-98", 98L))));
+  }
+
+  @Test
+  public void shouldReplaceTheOldEntryWhenTheScoreChanges() {
+    store.put("eng", "news", 3L);
+    store.put("eng", "random", 2L);
+    store.put("eng", "random", 4L);
+
+    assertThat(store.score("eng", "random"), equalTo(4L));
+    assertThat(store.top("eng", 10), equalTo(Arrays.asList(
+        KeyValue.pair("random", 4L),
+        KeyValue.pair("news", 3L))));
+    //one rank entry and one score entry per member
+    assertThat(entries(), equalTo(4));
+  }
+
+  @Test
+  public void shouldRemoveMembersWithANullScore() {
+    store.put("eng", "news", 3L);
+    store.put("eng", "random", 2L);
+    store.put("eng", "news", null);
+    store.put("eng", "unknown", null);
+
+    assertThat(store.score("eng", "news"), nullValue());
+    assertThat(store.top("eng", 10), equalTo(Collections.singletonList(KeyValue.pair("random", 2L))));
+    assertThat(entries(), equalTo(2));
+  }
+
+  @Test
+  public void shouldKeepGroupsApart() {
+    //"en" is a prefix of "eng", so only the length prefix keeps their ranges apart
+    store.put("en", "a", 5L);
+    store.put("eng", "news", 3L);
+    store.put("science", "index", 7L);
+
+    assertThat(store.top("en", 10), equalTo(Collections.singletonList(KeyValue.pair("a", 5L))));
+    assertThat(store.top("eng", 10), equalTo(Collections.singletonList(KeyValue.pair("news", 3L))));
+    assertThat(store.top("science", 10), equalTo(Collections.singletonList(KeyValue.pair("index", 7L))));
+    assertThat(store.top("unknown", 10), equalTo(Collections.<KeyValue<String, Long>>emptyList()));
+  }
+
+  @Test
+  public void shouldForwardTheTopNOfTheUpdatedGroup() {
+    final Transformer<String, Long, KeyValue<String, List<KeyValue<String, Long>>>> transformer =
+        RankedStore.<String, Long, String, String>topN(STORE_NAME,
+                                                       (key, count) -> key.split("/")[0],
+                                                       (key, count) -> key.split("/")[1],
+                                                       (key, count) -> count,
+                                                       2).get();
+    transformer.init(context);
+
+    transformer.transform("eng/news", 3L);
+    transformer.transform("eng/random", 2L);
+    transformer.transform("science/index", 7L);
+
+    assertThat(transformer.transform("eng/stuff", 4L), equalTo(KeyValue.pair("eng", Arrays.asList(
+        KeyValue.pair("stuff", 4L),
+        KeyValue.pair("news", 3L)))));
+    assertThat(transformer.transform("eng/stuff", null), equalTo(KeyValue.pair("eng", Arrays.asList(
+        KeyValue.pair("news", 3L),
+        KeyValue.pair("random", 2L)))));
+    transformer.close();
+  }
+
+  private int entries() {
+    int entries = 0;
+    try (final KeyValueIterator<Bytes, byte[]> all = inner.all()) {
+      while (all.hasNext()) {
+        all.next();
+        entries++;
+      }
+    }
+    return entries;
+  }
+}
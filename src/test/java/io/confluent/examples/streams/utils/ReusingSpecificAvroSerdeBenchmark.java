@@ -0,0 +1,124 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import io.confluent.examples.streams.avro.PlayEvent;
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.serialization.Serde;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Measures the bytes allocated, and the time taken, to write and read back an {@link Order} and a
+ * {@link PlayEvent} with {@link SpecificAvroSerde} versus {@link ReusingSpecificAvroSerde}, with
+ * and without record reuse.
+ * <p>
+ * usage: ReusingSpecificAvroSerdeBenchmark [records] [rounds]
+ */
+public class ReusingSpecificAvroSerdeBenchmark {
+
+  private static final Map<String, String> CONFIG =
+      Collections.singletonMap(AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://unused:8081");
+
+  public static void main(final String[] args) {
+    final int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    final Random random = new Random(0);
+    final OrderState[] states = OrderState.values();
+    final Product[] products = Product.values();
+    final IntFunction<Order> orders = i -> new Order(String.valueOf(i), (long) random.nextInt(1000),
+        states[random.nextInt(states.length)], products[random.nextInt(products.length)],
+        random.nextInt(10), random.nextDouble() * 100);
+    final IntFunction<PlayEvent> playEvents = i -> new PlayEvent((long) random.nextInt(1000),
+        (long) random.nextInt(300_000));
+
+    final SchemaRegistryClient client = new MockSchemaRegistryClient();
+    for (int round = 0; round < rounds; round++) {
+      System.out.printf("round %d%n", round);
+      run("order     specific", specific(client), orders, numRecords);
+      run("order     reusing ", reusing(client, 0), orders, numRecords);
+      run("order     records ", reusing(client, 1), orders, numRecords);
+      run("playevent specific", specific(client), playEvents, numRecords);
+      run("playevent reusing ", reusing(client, 0), playEvents, numRecords);
+      run("playevent records ", reusing(client, 1), playEvents, numRecords);
+    }
+  }
+
+  private static <T extends SpecificRecord> Serde<T> specific(final SchemaRegistryClient client) {
+    final SpecificAvroSerde<T> serde = new SpecificAvroSerde<>(client);
+    serde.configure(CONFIG, false);
+    return serde;
+  }
+
+  private static <T extends SpecificRecord> Serde<T> reusing(final SchemaRegistryClient client,
+                                                            final int reusedRecords) {
+    final ReusingSpecificAvroSerde<T> serde = new ReusingSpecificAvroSerde<>(client, reusedRecords);
+    serde.configure(CONFIG, false);
+    return serde;
+  }
+
+  /**
+   * The records are built up front, and checked to read back as written before the measured
+   * loop, as comparing records boxes every field, so only what the serde allocates is counted.
+   */
+  private static <T extends SpecificRecord> void run(final String name,
+                                                     final Serde<T> serde,
+                                                     final IntFunction<T> records,
+                                                     final int numRecords) {
+    final List<T> input = new ArrayList<>(numRecords);
+    for (int i = 0; i < numRecords; i++) {
+      input.add(records.apply(i));
+    }
+    for (final T record : input.subList(0, Math.min(numRecords, 1000))) {
+      if (!serde.deserializer().deserialize("benchmark", serde.serializer().serialize("benchmark", record))
+          .equals(record)) {
+        throw new IllegalStateException(name + " didn't read back what it wrote");
+      }
+    }
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long threadId = Thread.currentThread().getId();
+
+    long bytes = 0;
+    final long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+    final long start = System.nanoTime();
+    for (final T record : input) {
+      final byte[] serialized = serde.serializer().serialize("benchmark", record);
+      bytes += serialized.length;
+      if (serde.deserializer().deserialize("benchmark", serialized) == null) {
+        throw new IllegalStateException(name + " didn't read back what it wrote");
+      }
+    }
+    final long nanos = System.nanoTime() - start;
+    final long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    System.out.printf("  %s %6.1f ns/record %7.1f bytes allocated/record (%.1f bytes written)%n",
+        name, (double) nanos / numRecords, (double) allocated / numRecords, (double) bytes / numRecords);
+  }
+}
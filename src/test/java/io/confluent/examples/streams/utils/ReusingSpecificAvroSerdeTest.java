@@ -0,0 +1,115 @@
+/*
+ * Copyright Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.utils;
+
+import io.confluent.examples.streams.avro.PlayEvent;
+import io.confluent.examples.streams.avro.microservices.Order;
+import io.confluent.examples.streams.avro.microservices.OrderState;
+import io.confluent.examples.streams.avro.microservices.Product;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ReusingSpecificAvroSerdeTest {
+
+  private static final Map<String, String> CONFIG =
+      Collections.singletonMap(AbstractKafkaAvroSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://unused:8081");
+
+  private final SchemaRegistryClient client = new MockSchemaRegistryClient();
+
+  @Test
+  public void shouldReadAndWriteTheSameBytesAsSpecificAvroSerde() {
+    final ReusingSpecificAvroSerde<Order> reusing = serde(0);
+    final SpecificAvroSerde<Order> specific = new SpecificAvroSerde<>(client);
+    specific.configure(CONFIG, false);
+
+    final Order order = order(1);
+    final byte[] bytes = reusing.serializer().serialize("orders", order);
+    assertThat(bytes, equalTo(specific.serializer().serialize("orders", order)));
+    assertThat(specific.deserializer().deserialize("orders", bytes), equalTo(order));
+    assertThat(reusing.deserializer().deserialize("orders", bytes), equalTo(order));
+  }
+
+  @Test
+  public void shouldWriteEachTypeWithItsOwnSchema() {
+    final ReusingSpecificAvroSerde<Order> orders = serde(0);
+    final ReusingSpecificAvroSerde<PlayEvent> playEvents = serde(0);
+
+    final PlayEvent event = new PlayEvent(7L, 60_000L);
+    final byte[] eventBytes = playEvents.serializer().serialize("play-events", event);
+    final byte[] orderBytes = orders.serializer().serialize("orders", order(1));
+
+    assertThat(playEvents.deserializer().deserialize("play-events", eventBytes), equalTo(event));
+    assertThat(orders.deserializer().deserialize("orders", orderBytes), equalTo(order(1)));
+  }
+
+  @Test
+  public void shouldReadIntoNewRecordsUnlessAskedToReuseThem() {
+    final ReusingSpecificAvroSerde<Order> serde = serde(0);
+    final byte[] bytes = serde.serializer().serialize("orders", order(1));
+
+    assertThat(serde.deserializer().deserialize("orders", bytes),
+        not(sameInstance(serde.deserializer().deserialize("orders", bytes))));
+  }
+
+  @Test
+  public void shouldCycleThroughTheReusedRecords() {
+    final ReusingSpecificAvroSerde<Order> serde = serde(2);
+    final Order first = serde.deserializer().deserialize("orders", serde.serializer().serialize("orders", order(1)));
+    final Order second = serde.deserializer().deserialize("orders", serde.serializer().serialize("orders", order(2)));
+    assertThat(first, equalTo(order(1)));
+    assertThat(second, not(sameInstance(first)));
+
+    final Order third = serde.deserializer().deserialize("orders", serde.serializer().serialize("orders", order(3)));
+    assertThat(third, sameInstance(first));
+    assertThat(third, equalTo(order(3)));
+    assertThat(second, equalTo(order(2)));
+  }
+
+  @Test
+  public void shouldPassNullsThrough() {
+    final ReusingSpecificAvroSerde<Order> serde = serde(1);
+    assertThat(serde.serializer().serialize("orders", null), nullValue());
+    assertThat(serde.deserializer().deserialize("orders", null), nullValue());
+  }
+
+  @Test(expected = SerializationException.class)
+  public void shouldRejectBytesWithoutTheMagicByte() {
+    serde(0).deserializer().deserialize("orders", new byte[] {1, 0, 0, 0, 1, 2});
+  }
+
+  private <T extends org.apache.avro.specific.SpecificRecord> ReusingSpecificAvroSerde<T> serde(final int reusedRecords) {
+    final ReusingSpecificAvroSerde<T> serde = new ReusingSpecificAvroSerde<>(client, reusedRecords);
+    serde.configure(CONFIG, false);
+    return serde;
+  }
+
+  private static Order order(final int id) {
+    return new Order(String.valueOf(id), 15L, OrderState.CREATED, Product.JUMPERS, id, 9.99);
+  }
+}